@@ -0,0 +1,151 @@
+package Clients;
+
+import java.io.PrintWriter;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Acknowledges the numbered messages received from the Server once reliable
+ * delivery has been requested with the "RELIABLE" command.
+ * Acknowledgements are cumulative and coalesced: one "ACK" is sent every
+ * ACK_EVERY messages, or after ACK_DELAY milliseconds if fewer have arrived.
+ * Used on the Client side.
+ */
+public class AckTracker {
+
+    /**
+     * Number of messages received before an acknowledgement is sent straight away
+     */
+    private static final int ACK_EVERY = 64;
+    /**
+     * Maximum time an acknowledgement is delayed, in milliseconds
+     */
+    private static final long ACK_DELAY = 200;
+
+    /**
+     * Used to send the acknowledgements to the Server
+     */
+    private PrintWriter output;
+    /**
+     * Sequence number of the last message received
+     */
+    private long received;
+    /**
+     * Sequence number of the last message acknowledged
+     */
+    private long acknowledged;
+    /**
+     * Token used to resume the session, or 0 if the Server has not sent it yet
+     */
+    private volatile long sessionId;
+    /**
+     * Sends the delayed acknowledgements
+     */
+    private Timer timer;
+
+    /**
+     * Creates a new AckTracker sending acknowledgements with the given PrintWriter.
+     * @param output Used to send the acknowledgements to the Server
+     */
+    public AckTracker(PrintWriter output) {
+        this.output = output;
+    }
+
+    /**
+     * Asks the Server for reliable delivery and starts sending delayed acknowledgements.
+     */
+    public void start() {
+        this.output.println("RELIABLE");
+        this.output.flush();
+        this.timer = new Timer(true); // Daemon thread, does not keep the application running
+        this.timer.schedule(new TimerTask() {
+            public void run() {
+                flush();
+            }
+        }, ACK_DELAY, ACK_DELAY);
+    }
+
+    /**
+     * Stops sending delayed acknowledgements.
+     */
+    public void stop() {
+        if (this.timer != null) {
+            this.timer.cancel();
+        }
+    }
+
+    /**
+     * Getter method for the token used to resume the session.
+     * @return The session's token, or 0 if the Server has not sent it yet
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Builds the command used to resume the session after reconnecting, so the
+     * Server sends again the messages that were not acknowledged.
+     * @return The resume command, e.g. "RESUME 1234 41"
+     */
+    public synchronized String getResumeCommand() {
+        return "RESUME " + this.sessionId + " " + this.received;
+    }
+
+    /**
+     * Removes the sequence number from a message received from the Server and
+     * records it, sending an acknowledgement if enough messages have arrived.
+     * Messages without a sequence number are returned unchanged.
+     * @param message The message received, e.g. "#42 [Client 1]: Hello"
+     * @return The message without its sequence number, e.g. "[Client 1]: Hello"
+     */
+    public String receive(String message) {
+        int space = message.indexOf(' ');
+        if (!message.startsWith("#") || space < 0) {
+            return message; // Not numbered
+        }
+        long seq;
+        try {
+            seq = Long.parseLong(message.substring(1, space));
+        } catch (NumberFormatException e) {
+            return message; // Not numbered, a client message starting with '#'
+        }
+        message = message.substring(space + 1);
+        if (this.sessionId == 0 && message.startsWith("[Server]: SESSION ")) {
+            this.sessionId = Long.parseLong(message.substring(18).trim()); // Keep the token to resume the session
+        }
+        this.record(seq);
+        return message;
+    }
+
+    /**
+     * Records the sequence number of a received message and acknowledges it
+     * if ACK_EVERY messages have arrived since the last acknowledgement.
+     * @param seq Sequence number of the received message
+     */
+    private synchronized void record(long seq) {
+        if (seq > this.received) {
+            this.received = seq;
+        }
+        if (this.received - this.acknowledged >= ACK_EVERY) {
+            this.sendAck();
+        }
+    }
+
+    /**
+     * Acknowledges every message received so far, if any are unacknowledged.
+     */
+    public synchronized void flush() {
+        if (this.received > this.acknowledged) {
+            this.sendAck();
+        }
+    }
+
+    /**
+     * Sends a cumulative acknowledgement for every message received so far.
+     */
+    private void sendAck() {
+        this.output.println("ACK " + this.received);
+        this.output.flush();
+        this.acknowledged = this.received;
+    }
+}
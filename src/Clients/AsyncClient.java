@@ -0,0 +1,447 @@
+package Clients;
+
+import Common.ChannelSocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Event-driven Client session, driven by a ClientEventLoop together with any
+ * number of other sessions.
+ * Connecting and sending return CompletableFutures, received messages are
+ * passed to a listener and closing the session completes a future, so no
+ * thread has to wait on the connection.
+ * Addresses starting with "tls:" are connected securely, without blocking
+ * the event loop during the handshake.
+ * Extends the Client class.
+ */
+public class AsyncClient extends Client {
+
+    /**
+     * A message waiting to be written to the Server
+     */
+    private static class PendingWrite {
+        /**
+         * The encoded message, including the line terminator
+         */
+        private final ByteBuffer data;
+        /**
+         * Completed once the whole message has been written
+         */
+        private final CompletableFuture<Void> written;
+
+        private PendingWrite(ByteBuffer data) {
+            this.data = data;
+            this.written = new CompletableFuture<Void>();
+        }
+    }
+
+    /**
+     * Event loop driving this session
+     */
+    private ClientEventLoop loop;
+    /**
+     * Channel used for the connection
+     */
+    private SocketChannel channel;
+    /**
+     * Registration of the channel with the event loop's Selector
+     */
+    private SelectionKey key;
+    /**
+     * Encrypts and decrypts the data of a secure connection, or null for plain connections
+     */
+    private TlsSession tls;
+    /**
+     * Used to indicate that the TLS handshake is in progress
+     */
+    private boolean handshaking;
+    /**
+     * Bytes of a message received only in part so far
+     */
+    private byte[] partialLine;
+    /**
+     * Number of bytes held in partialLine
+     */
+    private int partialLength;
+    /**
+     * Messages waiting to be written, in the order they were sent
+     */
+    private Queue<PendingWrite> writes;
+    /**
+     * The message currently being written, or null
+     */
+    private PendingWrite currentWrite;
+    /**
+     * Used to indicate that the event loop has been asked to write the pending messages
+     */
+    private AtomicBoolean flushScheduled;
+    /**
+     * Called with every message received from the Server
+     */
+    private volatile Consumer<String> listener;
+    /**
+     * Completed once the connection has been established
+     */
+    private CompletableFuture<AsyncClient> connected;
+    /**
+     * Completed once the session has been closed
+     */
+    private CompletableFuture<Void> closed;
+
+    /**
+     * Creates a new session driven by the given event loop; the connection
+     * is only established once connect() is called.
+     * @param loop Event loop driving the session
+     * @param port Port number to use for the connection
+     * @param address Address to be used for the connection
+     */
+    public AsyncClient(ClientEventLoop loop, int port, String address) {
+        super(port, address, false); // Do not establish a blocking connection
+        this.loop = loop;
+        this.partialLine = new byte[256];
+        this.writes = new ConcurrentLinkedQueue<PendingWrite>();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.listener = message -> {};
+        this.connected = new CompletableFuture<AsyncClient>();
+        this.closed = new CompletableFuture<Void>();
+    }
+
+    /**
+     * Sets the listener called, on the event loop thread, with every message
+     * received from the Server. The listener must not block.
+     * @param listener Called with each message, without the line terminator
+     */
+    public void setMessageListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Getter method for the future completed once the session has been closed.
+     * Completes normally if the session was closed or the Server closed the
+     * connection, and exceptionally if the connection failed.
+     * @return Future completed once the session has been closed
+     */
+    public CompletableFuture<Void> getClosed() {
+        return closed;
+    }
+
+    /**
+     * Starts establishing the connection to the Server without blocking.
+     * Addresses starting with "unix:" connect to the Server's Unix domain
+     * socket, which needs Java 16 or later.
+     * @return Future completed with this session once connected
+     */
+    public CompletableFuture<AsyncClient> connect() {
+        boolean unix = isUnix(this.getAddress());
+        SocketAddress serverAddress;
+        try {
+            // Resolve outside the event loop
+            serverAddress = unix ? ChannelSocket.unixAddress(getHost(this.getAddress()))
+                    : new InetSocketAddress(getHost(this.getAddress()), this.getPort());
+        } catch (IOException e) { // Unix domain sockets are not available
+            this.loop.execute(() -> this.close(e));
+            return this.connected;
+        }
+        this.loop.execute(() -> {
+            try {
+                this.channel = unix ? ChannelSocket.openUnixChannel() : SocketChannel.open();
+                this.channel.configureBlocking(false);
+                if (!unix) {
+                    this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Unix domain sockets have no delay to turn off
+                }
+                boolean done = this.channel.connect(serverAddress);
+                this.key = this.channel.register(this.loop.getSelector(), done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                if (done) {
+                    this.channelConnected();
+                }
+            } catch (IOException e) {
+                this.close(e);
+            }
+        });
+        return this.connected;
+    }
+
+    /**
+     * Starts establishing the connection to the Server.
+     * Received messages are passed to the message listener.
+     * @Override
+     */
+    public void start() {
+        this.connect();
+    }
+
+    /**
+     * Sends a message to the Server without blocking.
+     * Messages are written in the order they are sent; messages sent before
+     * the connection is established are written once it is.
+     * @param message The message to be sent
+     * @return Future completed once the whole message has been written
+     */
+    public CompletableFuture<Void> send(String message) {
+        if (this.closed.isDone()) {
+            return CompletableFuture.failedFuture(new ClosedChannelException());
+        }
+        PendingWrite write = new PendingWrite(StandardCharsets.UTF_8.encode(message + "\n"));
+        this.writes.offer(write);
+        if (this.flushScheduled.compareAndSet(false, true)) { // Only ask the event loop once per batch of messages
+            this.loop.execute(this::flush);
+        }
+        return write.written;
+    }
+
+    /**
+     * Closes the session; pending messages that have not been written fail.
+     */
+    public void close() {
+        if (this.loop.inEventLoop()) {
+            this.close(null);
+        } else {
+            this.loop.execute(() -> this.close(null));
+        }
+    }
+
+    /**
+     * Closes the channel, fails the pending messages and completes the close future.
+     * Must be called on the event loop thread.
+     * @param cause The error that closed the session, or null if it was closed normally
+     */
+    private void close(IOException cause) {
+        if (this.closed.isDone()) {
+            return; // Already closed
+        }
+        try {
+            if (this.tls != null && this.channel.isConnected()) this.tls.close(this.channel); // Tell the Server the session is closing
+            if (this.key != null) this.key.cancel();
+            if (this.channel != null) this.channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing channel.");
+        }
+        this.disconnect(); // Sets the connected flag to false
+
+        ClosedChannelException closedException = new ClosedChannelException();
+        if (this.currentWrite != null) this.currentWrite.written.completeExceptionally(closedException);
+        PendingWrite write;
+        while ((write = this.writes.poll()) != null) {
+            write.written.completeExceptionally(closedException);
+        }
+        this.connected.completeExceptionally(cause != null ? cause : closedException); // No effect if already connected
+        if (cause != null) {
+            this.closed.completeExceptionally(cause);
+        } else {
+            this.closed.complete(null);
+        }
+    }
+
+    /**
+     * Handles the readiness of the channel reported by the event loop.
+     * Must be called on the event loop thread.
+     * @param key The channel's registration with the Selector
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isConnectable() && this.channel.finishConnect()) {
+                this.channelConnected();
+            } else if (key.isValid() && this.handshaking) {
+                this.continueHandshake(); // The channel is readable or writable during the handshake
+                return;
+            }
+            if (key.isValid() && key.isReadable()) {
+                this.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                this.flush();
+            }
+        } catch (IOException e) {
+            this.close(e);
+        }
+    }
+
+    /**
+     * Starts the TLS handshake once the channel has connected, or marks the
+     * session as connected for plain connections.
+     * @throws IOException If the handshake could not be started
+     */
+    private void channelConnected() throws IOException {
+        if (!isSecure(this.getAddress())) {
+            this.finishConnect();
+            return;
+        }
+        try {
+            // The default context caches sessions, so reconnecting to the same Server resumes the session
+            this.tls = new TlsSession(SSLContext.getDefault(), getHost(this.getAddress()), this.getPort());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available.", e);
+        }
+        this.handshaking = true;
+        this.continueHandshake();
+    }
+
+    /**
+     * Makes as much progress with the TLS handshake as the channel allows, and
+     * marks the session as connected once it has finished.
+     * @throws IOException If the handshake failed
+     */
+    private void continueHandshake() throws IOException {
+        ByteBuffer buffer = this.loop.getReadBuffer();
+        if (!this.tls.handshake(this.channel, buffer)) { // Wait until the channel is ready
+            this.key.interestOps(this.tls.hasPendingWrites() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            return;
+        }
+        this.handshaking = false;
+        this.finishConnect();
+        if (buffer.position() > 0) { // Messages received together with the end of the handshake
+            this.receive(buffer);
+        }
+    }
+
+    /**
+     * Marks the session as connected, starts reading from the Server and
+     * writes any messages sent in the meantime.
+     */
+    private void finishConnect() {
+        this.setSocket(this.channel.socket());
+        this.setConnected(); // Sets the connected flag to true
+        this.key.interestOps(SelectionKey.OP_READ);
+        this.connected.complete(this);
+        this.flush();
+    }
+
+    /**
+     * Reads everything available from the Server, splits it into messages and
+     * passes each complete message to the listener.
+     * Uses the event loop's read buffer, only the bytes of an incomplete
+     * message are kept by the session.
+     * @throws IOException If reading from the channel fails
+     */
+    private void read() throws IOException {
+        ByteBuffer buffer = this.loop.getReadBuffer();
+        int count;
+        while ((count = this.tls == null ? this.channel.read(buffer) : this.tls.read(this.channel, buffer)) > 0) {
+            this.receive(buffer);
+        }
+        if (count < 0) { // The Server has closed the connection
+            this.close(null);
+        }
+    }
+
+    /**
+     * Splits the data in the buffer into messages, passes each complete
+     * message to the listener and clears the buffer.
+     * @param buffer Buffer holding the data received, from index 0 to its position
+     */
+    private void receive(ByteBuffer buffer) {
+        byte[] data = buffer.array();
+        int start = 0;
+        int end = buffer.position();
+        for (int i = 0; i < end; i++) {
+            if (data[i] == '\n') {
+                this.receiveLine(data, start, i);
+                start = i + 1;
+            }
+        }
+        this.appendPartial(data, start, end); // Keep the start of the next message
+        buffer.clear();
+    }
+
+    /**
+     * Decodes a complete message and passes it to the listener.
+     * @param data Bytes holding the end of the message
+     * @param start Index of the first byte of the message in data
+     * @param end Index of the line terminator in data
+     */
+    private void receiveLine(byte[] data, int start, int end) {
+        String message;
+        if (this.partialLength > 0) { // The message started in an earlier read
+            this.appendPartial(data, start, end);
+            message = this.decode(this.partialLine, 0, this.partialLength);
+            this.partialLength = 0;
+        } else {
+            message = this.decode(data, start, end);
+        }
+        try {
+            this.listener.accept(message);
+        } catch (RuntimeException e) {
+            System.err.println("Error in message listener.");
+        }
+    }
+
+    /**
+     * Decodes a message, dropping a trailing carriage return.
+     * @param data Bytes holding the message
+     * @param start Index of the first byte of the message
+     * @param end Index after the last byte of the message
+     * @return The decoded message
+     */
+    private String decode(byte[] data, int start, int end) {
+        if (end > start && data[end - 1] == '\r') end--;
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores the bytes of a message that has not been completely received yet.
+     * @param data Bytes holding part of the message
+     * @param start Index of the first byte to store
+     * @param end Index after the last byte to store
+     */
+    private void appendPartial(byte[] data, int start, int end) {
+        int length = end - start;
+        if (length == 0) return;
+        if (this.partialLength + length > this.partialLine.length) {
+            this.partialLine = Arrays.copyOf(this.partialLine, Math.max(this.partialLine.length * 2, this.partialLength + length));
+        }
+        System.arraycopy(data, start, this.partialLine, this.partialLength, length);
+        this.partialLength += length;
+    }
+
+    /**
+     * Writes as many pending messages as the channel accepts without blocking,
+     * and asks to be notified when the channel can accept more.
+     * Must be called on the event loop thread.
+     */
+    private void flush() {
+        this.flushScheduled.set(false); // Messages sent from now on schedule another flush
+        if (!this.isConnected() || this.closed.isDone()) {
+            return; // Written once the connection has been established
+        }
+        try {
+            while (true) {
+                if (this.currentWrite == null) {
+                    this.currentWrite = this.writes.poll();
+                    if (this.currentWrite == null) break; // Nothing left to write
+                }
+                boolean written;
+                if (this.tls == null) {
+                    this.channel.write(this.currentWrite.data);
+                    written = !this.currentWrite.data.hasRemaining();
+                } else {
+                    written = this.tls.write(this.channel, this.currentWrite.data); // Encrypt and write
+                }
+                if (!written) { // The channel is full, wait until it can accept more
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.currentWrite.written.complete(null);
+                this.currentWrite = null;
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            this.close(e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package Clients;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the responses generated by the ChatBot's workers to the Server.
+ * Responses are queued by the workers and written out in batches by a single
+ * thread, flushing the connection once per batch instead of once per response.
+ * At most MAX_PENDING responses wait to be sent; when more are queued the
+ * oldest is dropped, so a slow connection does not grow the bot's memory.
+ * Implements Runnable.
+ * Used on the Client side.
+ */
+public class BotReplyWriter implements Runnable {
+
+    /**
+     * Maximum number of responses written to the Server before flushing
+     */
+    private static final int MAX_BATCH = 256;
+    /**
+     * Number of responses waiting to be sent after which the oldest are dropped
+     */
+    private static final int MAX_PENDING = 1024;
+
+    /**
+     * PrintWriter used to send the responses to the Server
+     */
+    private PrintWriter output;
+    /**
+     * Holds the responses waiting to be sent, in the order they were queued
+     */
+    private BlockingQueue<String> replies;
+    /**
+     * Number of responses dropped because the connection fell behind, since last reported
+     */
+    private LongAdder dropped;
+    /**
+     * Thread sending the queued responses
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this BotReplyWriter thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new BotReplyWriter using the provided PrintWriter.
+     * @param output PrintWriter used to send responses to the Server
+     */
+    public BotReplyWriter(PrintWriter output) {
+        this.output = output;
+        this.replies = new ArrayBlockingQueue<String>(MAX_PENDING);
+        this.dropped = new LongAdder();
+        this.running = true;
+    }
+
+    /**
+     * Checks if this BotReplyWriter is currently running.
+     * @return true if the BotReplyWriter is currently running, false if it has
+     * been terminated
+     */
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Queues a response to be sent to the Server.
+     * Responses are sent in the order they are queued. If MAX_PENDING
+     * responses are already waiting the oldest is dropped.
+     * @param reply The response to be sent
+     */
+    public void send(String reply) {
+        if (!this.isRunning()) {
+            return;
+        }
+        while (!this.replies.offer(reply)) { // The connection has fallen behind
+            if (this.replies.poll() != null) {
+                this.dropped.increment(); // Reported by the writer's thread
+            }
+        }
+    }
+
+    /**
+     * Terminates this BotReplyWriter, by setting the running flag to false and
+     * waking up the thread if it is waiting for responses.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt(); // Wake up the thread if it is waiting on the queue
+        }
+    }
+
+    /**
+     * Creates and starts a new BotReplyWriter Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Waits for responses, drains every response queued so far and sends them
+     * to the Server, flushing once per batch.
+     * @Override
+     */
+    public void run() {
+        ArrayList<String> batch = new ArrayList<String>(MAX_BATCH);
+        StringBuilder log = new StringBuilder();
+        try {
+            while (this.isRunning()) { // Repeat while this thread has not been terminated
+                batch.add(this.replies.take()); // Wait for the first response
+                this.replies.drainTo(batch, MAX_BATCH - 1); // Take any other responses queued in the meantime
+                long lost = this.dropped.sumThenReset();
+                if (lost > 0) {
+                    System.err.println("Error sending responses, " + lost + " were dropped as the connection fell behind.");
+                }
+
+                for (String reply : batch) {
+                    this.output.println(reply); // Write the response without flushing
+                    log.append("\t> Sending message: ").append(reply).append(System.lineSeparator()); // document message
+                }
+                this.output.flush(); // Send the whole batch to the server
+
+                System.out.print(log);
+                log.setLength(0);
+                batch.clear();
+            }
+        } catch (InterruptedException i) {
+            // The writer has been terminated
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package Clients;
+
+import Common.BotPlugin;
+import Common.Tokenizer;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Generates the Bot's responses to client messages mentioning "@bot".
+ * Used by the ChatBot, which connects to the Server as a client, and can also
+ * be hosted by the Server itself as a BotPlugin (java ChatServer -csb Clients.BotResponder),
+ * in which case no separate connection is needed.
+ * Implements BotPlugin.
+ */
+public class BotResponder implements BotPlugin {
+
+    /**
+     * The name of the bot, e.g. "BOT Chad"
+     */
+    private String name;
+
+    /**
+     * Holds preset responses to client messages
+     */
+    private HashMap<String, String> responses;
+
+    /**
+     * Picks a name for the bot, initialises and populates the HashMap.
+     */
+    public BotResponder() {
+        String names[] = {"Chad", "Timothy", "Marcus", "Dominic", "Elliot", "Duffy"};
+        this.name = "BOT " + names[new Random().nextInt(names.length)]; // Picks a random name from the array of names
+        this.responses = new HashMap<String, String>(); // Initialises HashMap
+        this.populateHashMap(); // Calls function to populate HashMap with preset responses to client messages
+    }
+
+    /**
+     * Getter method for the name of the bot.
+     * @return The name of the bot, e.g. "BOT Chad"
+     * @Override
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Populates HashMap with preset responses corresponding to client messages.
+     */
+    private void populateHashMap() {
+        // The keyes are client messages, each key corresponds to a prescripted message
+        this.responses.put("hello", "Hi there!"); // Adds new entry in the HashMap
+        this.responses.put("hi", "Hey!");
+        this.responses.put("hey", "Hello!");
+        this.responses.put("bye", "See you soon!");
+        this.responses.put("goodbye", "Bye!");
+        this.responses.put("thanks", "My pleasure!");
+        this.responses.put("okay", "Sounds good.");
+        this.responses.put("yes", "Great to hear!");
+        this.responses.put("awesome", "That's more like it!");
+        this.responses.put("great", "Cool!");
+        this.responses.put("okay", "Great!");
+        this.responses.put("good", "Cool.");
+        this.responses.put("yeah", "Nice.");
+        this.responses.put("how", "Who am I to say?");
+        this.responses.put("yup", "Coolio.");
+        this.responses.put("okay", "Alright!");
+        this.responses.put("ok", "Sounds good!");
+        this.responses.put("no", "Why is that?");
+        this.responses.put("news", "Not that I know of.");
+        this.responses.put("haha", "Good one, right?");
+        this.responses.put("new", "Nope, nothing new.");
+    }
+
+    /**
+     * Checks if the HashMap contains a response for any word in the client's message
+     * and returns the corresponding response.
+     * @param messageArray Client message broken up into an array
+     * @return String response or null if HashMap does not contain the given key
+     */
+    private String lookUpResponses(String messageArray[]) {
+        // Iterate through the array of Strings
+        for (String word: messageArray) {
+            // If a word is a key in the HashMap, return the corresponding String
+            if (this.responses.containsKey(word)) return responses.get(word);
+        }
+        return null;
+    }
+
+    /**
+     * Called when a client message has not got any preset response, returns a random response.
+     * The generated response does not depend on the client's message.
+     * Uses a Random object to select a random String from an array of responses
+     * @return A random response
+     */
+    private String randomResponse() {
+        // Array of random responses:
+        String randomResponses[] = { "Just like mother always said, sometimes some people deserve a good high five, in the face, with a chair.",
+                "You've probably never had Sunday Roast have you?", "Oh well.", "Mitochondria is the powerhouse of the cell.",
+                "Well the dinosaurs probably said something along those lines when they saw the meteor heading their way.",
+                "What? Sorry, I wasn't paying attention", "\"Call me maybe\" Is the best song ever written. Don't @ me."};
+        // Uses the Random.nextInt() function to generate a random integer corresponding to an index in the response array
+        return randomResponses[new Random().nextInt(randomResponses.length)]; // Returns a randomly selected String from the array
+    }
+
+    /**
+     * Called when a client message contains a question mark and it cannot be handled by the HashMap,
+     * returns a random response the the question.
+     * The generated response does not depend on the client's message.
+     * Uses a Random object to select a random String from an array of responses
+     * @return A randomly generated response to a question
+     */
+    private String questionResponse() {
+        // Array of question responses:
+        String questionResponses[] = {"I see.", "Go on.", "What do you think?",
+                "Ah, I've almost got it.", "I don't know.", "No clue.", "I don't know.",
+                "Think about it, one more time."};
+        // Uses the Random.nextInt() function to generate a random integer corresponding to an index in the response array
+        return questionResponses[new Random().nextInt(questionResponses.length)]; // Returns a randomly selected String from the array
+    }
+
+    /**
+     * Calls the appropriate functions to generate a response to the client's message.
+     * Called if the client's message cannot be handled by the HashMap, i.e. there is
+     * no coded response for the message.
+     * @param message String received by the Bot
+     * @return A response to the client's message
+     */
+    private String responseExceptions(String message) {
+        if (message.endsWith("?")) return this.questionResponse(); // Call function to handle question
+        return this.randomResponse(); // Call function to generate a random response
+    }
+
+    /**
+     * Checks if a client's message mentions "@bot", so the Server only
+     * queues the messages the bot responds to.
+     * @param sender Name of the client that sent the message
+     * @param message The client's message, without the client's name
+     * @return true if the message mentions "@bot", false otherwise
+     * @Override
+     */
+    public boolean accepts(String sender, String message) {
+        return message.toLowerCase().contains("@bot");
+    }
+
+    /**
+     * Generates the response to a client's message.
+     * Messages that do not mention "@bot" are ignored.
+     * @param sender Name of the client that sent the message
+     * @param message The client's message, without the client's name
+     * @return A String response to the message, or null if the message is not directed at the bot
+     * @Override
+     */
+    public String respond(String sender, String message) {
+        message = message.toLowerCase(); // Converts the String to lowercase to be handled
+
+        if (!message.contains("@bot")) { // Check if message is direct at the bot
+            return null; // If it is not directed at the bot, ignore it
+        }
+
+        String messageWords [] = Tokenizer.tokenize(message); // Break the message down into an array of Strings
+
+        String response = this.lookUpResponses(messageWords); // Attempt to get response using the HashMap
+
+        if (response == null) {
+            response = responseExceptions(message); // Call method to handle unexpected messages
+        }
+        return response;
+    }
+}
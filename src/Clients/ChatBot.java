@@ -8,8 +8,9 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Connects to the server as a client, reads each message sent by the server,
@@ -18,6 +19,67 @@ import java.util.Random;
  */
 public class ChatBot extends Client {
 
+    /**
+     * Number of messages waiting in a worker lane after which the oldest are dropped
+     */
+    private static final int MAX_PENDING = 256;
+
+    /**
+     * A worker lane: a thread generating the responses to the messages
+     * queued for it, in the order they were queued. The queue holds at most
+     * MAX_PENDING messages; when it is full the oldest is dropped, so a bot
+     * falling behind answers recent messages instead of growing without limit.
+     */
+    private class WorkerLane implements Runnable {
+        /**
+         * Messages waiting for a response
+         */
+        private final BlockingQueue<String> pending = new ArrayBlockingQueue<String>(MAX_PENDING);
+        /**
+         * Number of messages dropped because the lane fell behind, since last reported
+         */
+        private final LongAdder dropped = new LongAdder();
+        /**
+         * Thread generating the responses
+         */
+        private final Thread thread = new Thread(this);
+
+        /**
+         * Queues a message for the lane, dropping the oldest if MAX_PENDING are already waiting.
+         * @param message String received by the bot
+         */
+        private void offer(String message) {
+            while (!this.pending.offer(message)) { // The lane has fallen behind
+                if (this.pending.poll() != null) {
+                    this.dropped.increment(); // Reported by the lane's thread
+                }
+            }
+        }
+
+        /**
+         * Generates the responses to the queued messages and queues them to
+         * be sent to the Server, until the lane is stopped.
+         * @Override
+         */
+        public void run() {
+            try {
+                while (true) {
+                    String message = this.pending.take(); // Wait for the next message
+                    long lost = this.dropped.sumThenReset();
+                    if (lost > 0) {
+                        System.err.println("Error handling messages, " + lost + " were dropped as the bot fell behind.");
+                    }
+                    String response = processMessage(message); // calls function to generate response
+                    if (response != null) {
+                        replyWriter.send(response); // queues the response to be sent to the server
+                    }
+                }
+            } catch (InterruptedException i) {
+                // The lane has been stopped
+            }
+        }
+    }
+
     /**
      * Used to send messages to the server
      */
@@ -28,9 +90,23 @@ public class ChatBot extends Client {
     private BufferedReader input;
 
     /**
-     * Holds preset responses to client messages
+     * Generates the responses to client messages
      */
-    private HashMap<String, String> responses;
+    private BotResponder responder;
+
+    /**
+     * Worker lanes used to generate responses in parallel; messages from the
+     * same client are always handled by the same lane to keep their replies in order
+     */
+    private WorkerLane[] workers;
+    /**
+     * Sends the generated responses to the Server in batches
+     */
+    private BotReplyWriter replyWriter;
+    /**
+     * Acknowledges the numbered messages received from the Server
+     */
+    private AckTracker acks;
 
     /**
      * Default constructor, establishes a connection to port 14001 and address localhost.
@@ -39,24 +115,37 @@ public class ChatBot extends Client {
         this(14001, "localhost");
     }
 
+    /**
+     * Establishes connection and joins the default "bots" consumer group.
+     * @param port Port number to connect to
+     * @param address Address to connect to
+     */
+    public ChatBot(int port, String address) {
+        this(port, address, "bots");
+    }
+
     /**
      * Establishes connection, prepares for communication with the Server, sets
-     * the Bot's name, initialises and populates the HashMap.
+     * the Bot's name, joins the given consumer group, initialises and populates
+     * the HashMap.
      *
      * @param port Port number to connect to
      * @param address Address to connect to
+     * @param group Consumer group shared with the other bots, so each mention is answered once
      */
-    public ChatBot(int port, String address) {
+    public ChatBot(int port, String address, String group) {
         super(port, address); // Calls the constructor of the parent class
         if (this.isConnected()) { // Check that the Bot has successfully connected to the Server
             try {
                 // Initialise input/output streams to handle communcation with server:
                 this.input = new BufferedReader(new InputStreamReader(this.getSocket().getInputStream()));
-                this.output = new PrintWriter(new OutputStreamWriter(this.getSocket().getOutputStream()), true);
+                this.output = new PrintWriter(new OutputStreamWriter(this.getSocket().getOutputStream()), false);
 
+                this.acks = new AckTracker(this.output); // Used to acknowledge Server messages
+                this.responder = new BotResponder(); // Picks the bot's name and prepares its responses
                 this.setName(); // Sets the name of the bot
-                this.responses = new HashMap<String, String>(); // Initialises HashMap
-                this.populateHashMap(); // Calls function to populate HashMap with preset responses to client messages
+                this.setFilter(); // Asks the server to only send messages mentioning the bot
+                this.joinGroup(group); // Shares the mentions with the other bots in the group
                 System.out.println("> Bot Initialized.");
             } catch (IOException e) {
                 System.out.println("> Failed to Initialize Bot.");
@@ -64,34 +153,6 @@ public class ChatBot extends Client {
         }
     }
 
-    /**
-     * Populates HashMap with preset responses corresponding to client messages.
-     */
-    private void populateHashMap() {
-        // The keyes are client messages, each key corresponds to a prescripted message
-        this.responses.put("hello", "Hi there!"); // Adds new entry in the HashMap
-        this.responses.put("hi", "Hey!");
-        this.responses.put("hey", "Hello!");
-        this.responses.put("bye", "See you soon!");
-        this.responses.put("goodbye", "Bye!");
-        this.responses.put("thanks", "My pleasure!");
-        this.responses.put("okay", "Sounds good.");
-        this.responses.put("yes", "Great to hear!");
-        this.responses.put("awesome", "That's more like it!");
-        this.responses.put("great", "Cool!");
-        this.responses.put("okay", "Great!");
-        this.responses.put("good", "Cool.");
-        this.responses.put("yeah", "Nice.");
-        this.responses.put("how", "Who am I to say?");
-        this.responses.put("yup", "Coolio.");
-        this.responses.put("okay", "Alright!");
-        this.responses.put("ok", "Sounds good!");
-        this.responses.put("no", "Why is that?");
-        this.responses.put("news", "Not that I know of.");
-        this.responses.put("haha", "Good one, right?");
-        this.responses.put("new", "Nope, nothing new.");
-    }
-
     /**
      * Closes the Client Socket (if it is still open) and the Input/Output Streams,
      * and finally outputs on the console that the bot has been terminated.
@@ -100,6 +161,8 @@ public class ChatBot extends Client {
         if (!this.getSocket().isClosed()) {
             try {
                 this.getSocket().close(); // Closes the Socket used to communicate with the Server
+                this.stopWorkers(); // Stops the worker lanes and the reply writer
+                this.acks.stop(); // Stops sending acknowledgements
                 // Closes the BufferedReader and PrintWriter
                 this.input.close();
                 this.output.close();
@@ -116,85 +179,109 @@ public class ChatBot extends Client {
     }
 
     /**
-     * Picks and sets the name for the bot.
+     * Sets the name for the bot.
      * Sends a message to the server requesting that the name of the bot be
-     * changed to the selected name
+     * changed to the name picked by the responder
      */
     private void setName() {
-        String names[] = {"Chad", "Timothy", "Marcus", "Dominic", "Elliot", "Duffy"};
-        String name = names[new Random().nextInt(names.length)]; // Picks a random name from the array of names
-        this.output.println("NAME BOT " + name); // Sends message to server requesting name be set to selected name
+        this.output.println("NAME " + this.responder.getName()); // Sends message to server requesting name be set to selected name
+        this.output.flush();
     }
 
     /**
-     * Checks the received message for exceptions.
-     * Used to detect the Server getting shutdown.
-     * @param message
+     * Sends a message to the server requesting that the bot only receives
+     * messages mentioning "@bot", instead of every message sent to the server.
+     * Messages directed at the bot by the server itself are still received.
      */
-    private void messageExceptions(String message) {
-        if (message.equals("[Server]: You've been disconnected from the server.")) {
-            this.shutdown(); // If the server has shut down, shut down the bot
-        }
+    private void setFilter() {
+        this.output.println("FILTER MENTION bot");
+        this.output.flush();
     }
 
+    /**
+     * Sends a message to the server requesting that the bot joins a consumer
+     * group; the server delivers each message to only one bot of the group.
+     * @param group The name of the group to join
+     */
+    private void joinGroup(String group) {
+        this.output.println("GROUP " + group);
+        this.output.flush();
+    }
 
     /**
-     * Checks if the HashMap contains a response for any word in the client's message
-     * and returns the corresponding response.
-     * @param messageArray Client message broken up into an array
-     * @return String response or null if HashMap does not contain the given key
+     * Starts one worker lane per available processor and the thread sending
+     * the responses back to the Server.
      */
-    private String lookUpResponses(String messageArray[]) {
-        // Iterate through the array of Strings
-        for (String word: messageArray) {
-            // If a word is a key in the HashMap, return the corresponding String
-            if (this.responses.containsKey(word)) return responses.get(word);
+    private void startWorkers() {
+        this.replyWriter = new BotReplyWriter(this.output);
+        this.replyWriter.start();
+        this.workers = new WorkerLane[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new WorkerLane(); // Each lane handles its messages in order
+            this.workers[i].thread.start();
         }
-        return null;
     }
 
     /**
-     * Called when a client message has not got any preset response, returns a random response.
-     * The generated response does not depend on the client's message.
-     * Uses a Random object to select a random String from an array of responses
-     * @return A random response
+     * Stops the worker lanes and the reply writer, discarding any messages
+     * that have not been handled yet.
      */
-    private String randomResponse() {
-        // Array of random responses:
-        String randomResponses[] = { "Just like mother always said, sometimes some people deserve a good high five, in the face, with a chair.",
-                "You've probably never had Sunday Roast have you?", "Oh well.", "Mitochondria is the powerhouse of the cell.",
-                "Well the dinosaurs probably said something along those lines when they saw the meteor heading their way.",
-                "What? Sorry, I wasn't paying attention", "\"Call me maybe\" Is the best song ever written. Don't @ me."};
-        // Uses the Random.nextInt() function to generate a random integer corresponding to an index in the response array
-        return randomResponses[new Random().nextInt(randomResponses.length)]; // Returns a randomly selected String from the array
+    private void stopWorkers() {
+        if (this.workers != null) {
+            for (WorkerLane worker : this.workers) {
+                worker.thread.interrupt();
+            }
+        }
+        if (this.replyWriter != null) {
+            this.replyWriter.terminate();
+        }
     }
 
     /**
-     * Called when a client message contains a question mark and it cannot be handled by the HashMap,
-     * returns a random response the the question.
-     * The generated response does not depend on the client's message.
-     * Uses a Random object to select a random String from an array of responses
-     * @return A randomly generated response to a question
+     * Extracts the name of the client that sent a message, e.g. "[Client 1]".
+     * @param message String received by the bot
+     * @return The name of the sender, or the whole message if it has no sender
      */
-    private String questionResponse() {
-        // Array of question responses:
-        String questionResponses[] = {"I see.", "Go on.", "What do you think?",
-                "Ah, I've almost got it.", "I don't know.", "No clue.", "I don't know.",
-                "Think about it, one more time."};
-        // Uses the Random.nextInt() function to generate a random integer corresponding to an index in the response array
-        return questionResponses[new Random().nextInt(questionResponses.length)]; // Returns a randomly selected String from the array
+    private String getSender(String message) {
+        int end = message.indexOf("]:");
+        return end < 0 ? message : message.substring(0, end + 1);
     }
 
     /**
-     * Calls the appropriate functions to generate a response to the client's message.
-     * Called if the client's message cannot be handled by the HashMap, i.e. there is
-     * no coded response for the message.
-     * @param message String received by the Bot
-     * @return A response to the client's message
+     * Hands a client message to the worker lane responsible for its sender.
+     * The worker generates the response and queues it to be sent to the Server,
+     * so the thread reading from the Server never waits for a response.
+     * Messages the responder does not accept are not queued at all.
+     * @param message String received by the bot
      */
-    private String responseExceptions(String message) {
-        if (message.endsWith("?")) return this.questionResponse(); // Call function to handle question
-        return this.randomResponse(); // Call function to generate a random response
+    private void dispatch(String message) {
+        String sender = this.getSender(message);
+        if (!this.responder.accepts(sender, message.substring(message.indexOf(":") + 2))) {
+            return; // Not directed at the bot
+        }
+        int lane = Math.floorMod(sender.hashCode(), this.workers.length); // Pick the sender's lane
+        this.workers[lane].offer(message);
+    }
+
+    /**
+     * Checks if a message was sent by a client, rather than by the Server or
+     * another bot.
+     * @param message String received by the bot
+     * @return true if the message was sent by a client, false otherwise
+     */
+    private boolean isClientMessage(String message) {
+        return !(message.startsWith("[BOT ") || !message.startsWith("[") || message.startsWith("[Server]:"));
+    }
+
+    /**
+     * Checks the received message for exceptions.
+     * Used to detect the Server getting shutdown.
+     * @param message
+     */
+    private void messageExceptions(String message) {
+        if (message.equals("[Server]: You've been disconnected from the server.")) {
+            this.shutdown(); // If the server has shut down, shut down the bot
+        }
     }
 
 
@@ -208,30 +295,20 @@ public class ChatBot extends Client {
     private String processMessage(String message) {
         String response = null;
         // Check to see if message was sent by a client, the bot itself or the server
-        if (message.startsWith("[BOT ") || !message.startsWith("[") || message.startsWith("[Server]:")) {
+        if (!this.isClientMessage(message)) {
             this.messageExceptions(message); // Handle any message from the server accordingly
         } else {
-            message = message.toLowerCase(); // Converts the String to lowercase to be handled
-
-            if (!message.contains("@bot")) { // Check if message is direct at the bot
-                return response; // If it is not directed at the bot, ignore it
-            }
-
-            message = message.substring(message.indexOf(":") + 2); // Remove the name of the client
-            String messageWords [] = message.split("[\\p{Punct}\\s]+"); // Break the message down into an array of Strings
-
-            response = this.lookUpResponses(messageWords); // Attempt to get response using the HashMap
-
-            if (response == null) {
-                response = responseExceptions(message); // Call method to handle unexpected messages
-            }
+            // Remove the name of the client and let the responder generate the response
+            response = this.responder.respond(this.getSender(message), message.substring(message.indexOf(":") + 2));
         }
         return response;
     }
 
     /**
-     * Starts thread to control the bot, listens for messages sent by clients,
-     * calls functions to process the messages and sends response to the Server.
+     * Starts thread to control the bot, listens for messages sent by clients
+     * and hands them to the worker lanes, which generate the responses and
+     * queue them to be sent to the Server.
+     * Messages from the Server are handled directly by this thread.
      * @Override
      */
     public void start() {
@@ -242,7 +319,9 @@ public class ChatBot extends Client {
         // Start thread to listen to the user's input
         BotController botController = new BotController(this);
         botController.start();
-        String response, message;
+        this.startWorkers(); // Start the threads generating and sending responses
+        this.acks.start(); // Asks the Server for reliable delivery
+        String message;
         try {
             while (botController.isRunning()) { // Checks if the user input tried to terminate the bot
                 message = input.readLine(); // Gets message from server
@@ -250,12 +329,12 @@ public class ChatBot extends Client {
                 if (message == null) {
                     break;
                 }
+                message = this.acks.receive(message); // Remove and acknowledge the sequence number
 
-                response = this.processMessage(message); // calls function to generate response
-
-                if (response != null) {
-                    System.out.println("\t> Sending message: " + response); // document message
-                    output.println(response); // sends response to the server
+                if (this.isClientMessage(message)) {
+                    this.dispatch(message); // hands the message to a worker to generate the response
+                } else {
+                    this.messageExceptions(message); // Handle any message from the server accordingly
                 }
             }
         } catch (SocketException s) {
@@ -270,13 +349,16 @@ public class ChatBot extends Client {
         String address = "localhost";
         int port = 14001;
         String portStr = null;
+        String group = "bots";
 
-        // Search and extract -cca and -ccp parameters
+        // Search and extract -cca, -ccp and -cbg parameters
         for (int i =0; i < args.length - 1; i++) {
             if (args[i].equals("-cca")) {
                 address = args[i + 1];
             } else if (args[i].equals("-ccp")) {
                 portStr = args[i + 1];
+            } else if (args[i].equals("-cbg")) {
+                group = args[i + 1];
             }
         }
 
@@ -289,6 +371,6 @@ public class ChatBot extends Client {
             }
         }
 
-        new ChatBot(port, address).start(); // Start a new ChatBot with the given parameters
+        new ChatBot(port, address, group).start(); // Start a new ChatBot with the given parameters
     }
 }
@@ -1,5 +1,7 @@
 package Clients;
 
+import java.util.concurrent.CountDownLatch;
+
 /**
  * Establishes connection between the Client and the Server.
  * Provides the interface for communication between Server and Client.
@@ -25,9 +27,10 @@ public class ChatClient extends Client{
     }
 
     /**
-     * Starts threads to handle user input and server responses, monitors if any
-     * of the two threads have been shut down and shuts down the other in response.
-     * Checks if any of the client's threads have been terminated every 500ms.
+     * Starts threads to handle user input and server responses, waits until any
+     * of the two threads has been shut down and shuts down the other in response.
+     * Both threads count down the same latch when terminated, so the shutdown is
+     * noticed straight away.
      * @Override
      */
     public void start() {
@@ -36,18 +39,17 @@ public class ChatClient extends Client{
             System.out.println("> Error connecting Client to given port and address.");
             return;
         }
+        CountDownLatch finished = new CountDownLatch(1); // Counted down by the first thread to shut down
+        TerminalRenderer renderer = new TerminalRenderer(); // Prints the Server's messages, and keeps the newest
         // Thread for handling user input
-        ClientInputHandler inputHandler = new ClientInputHandler(this.getSocket());
+        ClientInputHandler inputHandler = new ClientInputHandler(this.getSocket(), finished, renderer);
         inputHandler.start();
-        // Thread for handling server response
-        ServerHandler serverHandler = new ServerHandler(this.getSocket());
+        // Thread for handling server response, acknowledging messages through the input handler's writer
+        ServerHandler serverHandler = new ServerHandler(this.getSocket(), finished, renderer, inputHandler.getOutput());
         serverHandler.start();
 
         try {
-            // Check every 500ms if any of the two threads have shut down:
-            while (serverHandler.isRunning() && inputHandler.isRunning()) {
-                Thread.sleep(500);
-            }
+            finished.await(); // Wait until any of the two threads has shut down
         } catch (InterruptedException i) {
             System.err.println("Error caused by sleeping thread.");
         } finally {
@@ -1,7 +1,11 @@
 package Clients;
 
+import Common.ChannelSocket;
+
 import java.io.IOException;
 import java.net.Socket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * General Client Class, establishes connection with the Server.
@@ -25,7 +29,7 @@ public abstract class Client {
      * Flag used to indicate whether a client has successfully connected to the server or not
      * true if the connection was successful, false otherwise
      */
-    private boolean connected;
+    private volatile boolean connected;
 
     /**
      * Default constructor, uses Port number 14001 and address "localhost".
@@ -40,12 +44,27 @@ public abstract class Client {
      * @param address Address to be used for the connection
      */
     public Client(int port, String address) {
+        this(port, address, true);
+    }
+
+    /**
+     * Uses the provided port and address to establish a connection to the
+     * Server, if requested. Subclasses that connect without blocking pass
+     * false and establish the connection on their own.
+     * @param port Port number to use for the connection
+     * @param address Address to be used for the connection
+     * @param connect true to establish the connection straight away, false otherwise
+     */
+    protected Client(int port, String address, boolean connect) {
         this.connected = false;
         this.port = port;
         this.address = address;
+        if (!connect) {
+            return; // The subclass establishes the connection itself
+        }
         try {
             System.out.println("> Starting Client with port number: " + this.port +" and address: " + this.address);
-            this.socket = new Socket(this.address, this.port); // Instantiate Socket to establish connection
+            this.socket = openSocket(this.address, this.port); // Instantiate Socket to establish connection
             System.out.println("> Client has connected.");
             this.connected = true; // Sets the connected flag to true
         } catch (IOException e) {
@@ -53,6 +72,61 @@ public abstract class Client {
         }
     }
 
+    /**
+     * Opens a Socket connected to the Server.
+     * Addresses starting with "tls:", e.g. "tls:localhost", are connected
+     * securely; the TLS session is cached and resumed on later connections
+     * to the same Server.
+     * Addresses starting with "unix:", e.g. "unix:/tmp/chat.sock", are
+     * connected to the Server's Unix domain socket, ignoring the port; this
+     * needs Java 16 or later.
+     * @param address Address of the Server, optionally starting with "tls:" or "unix:"
+     * @param port Port number of the Server
+     * @return The connected Socket
+     * @throws IOException If the connection or the TLS handshake failed
+     */
+    public static Socket openSocket(String address, int port) throws IOException {
+        if (isUnix(address)) {
+            return ChannelSocket.connectUnix(getHost(address));
+        }
+        if (isSecure(address)) {
+            SSLSocket secureSocket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(getHost(address), port);
+            secureSocket.startHandshake(); // Report handshake errors while connecting, not on the first message
+            return secureSocket;
+        }
+        return new Socket(address, port);
+    }
+
+    /**
+     * Checks if an address asks for a connection secured with TLS.
+     * @param address Address of the Server
+     * @return true if the address starts with "tls:", false otherwise
+     */
+    public static boolean isSecure(String address) {
+        return address.startsWith("tls:");
+    }
+
+    /**
+     * Checks if an address asks for a connection to a Unix domain socket.
+     * @param address Address of the Server
+     * @return true if the address starts with "unix:", false otherwise
+     */
+    public static boolean isUnix(String address) {
+        return address.startsWith("unix:");
+    }
+
+    /**
+     * Removes the "tls:" or "unix:" prefix from an address, if present.
+     * @param address Address of the Server
+     * @return The host name or IP address of the Server, or the path of its Unix domain socket
+     */
+    public static String getHost(String address) {
+        if (isUnix(address)) {
+            return address.substring(5);
+        }
+        return isSecure(address) ? address.substring(4) : address;
+    }
+
     /**
      * Getter method for the port number used for the connection.
      * @return The port number used for the connection as an integer
@@ -109,6 +183,14 @@ public abstract class Client {
         return connected;
     }
 
+    /**
+     * Sets the connected flag to true, indicating the Client has connected
+     * to the Server.
+     */
+    protected void setConnected() {
+        this.connected = true;
+    }
+
     /**
      * Sets the connected flag to false, indicating the Client has disconnected
      * from the Server.
@@ -0,0 +1,159 @@
+package Clients;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Drives any number of AsyncClient sessions from a single thread, using a
+ * Selector to find out which connections are ready instead of running two
+ * threads per connection.
+ * Implements Runnable.
+ * Used on the Client side.
+ */
+public class ClientEventLoop implements Runnable {
+
+    /**
+     * Selector used to wait for connections that are ready to connect, read or write
+     */
+    private Selector selector;
+    /**
+     * Buffer shared by every session for reading, as only one session reads at a time
+     */
+    private ByteBuffer readBuffer;
+    /**
+     * Tasks submitted by other threads, run by the event loop thread
+     */
+    private Queue<Runnable> tasks;
+    /**
+     * Thread running the event loop
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this ClientEventLoop thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new ClientEventLoop, which must be started before use.
+     * @throws IOException If the Selector could not be opened
+     */
+    public ClientEventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocate(32768); // Room for at least one decrypted TLS record
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.running = true;
+    }
+
+    /**
+     * Getter method for the Selector used by the event loop.
+     * Must only be used on the event loop thread.
+     * @return The Selector used by the event loop
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Getter method for the buffer shared by the sessions for reading.
+     * Must only be used on the event loop thread.
+     * @return The buffer used for reading
+     */
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Checks if this ClientEventLoop is currently running.
+     * @return true if the ClientEventLoop is currently running, false if it has been terminated
+     */
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Checks if the calling thread is the event loop thread.
+     * @return true if called from the event loop thread, false otherwise
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Runs a task on the event loop thread, waking up the Selector if it is waiting.
+     * @param task The task to be run
+     */
+    public void execute(Runnable task) {
+        this.tasks.offer(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Terminates this ClientEventLoop; every session still open is closed by
+     * the event loop thread before it exits.
+     */
+    public void terminate() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Creates and starts a new ClientEventLoop Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Runs every task submitted so far.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error running task on the event loop.");
+            }
+        }
+    }
+
+    /**
+     * Waits for connections to become ready and lets their sessions connect,
+     * read or write, then runs the tasks submitted by other threads.
+     * Finally closes every session left and the Selector.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.isRunning()) { // Repeat while this thread has not been terminated
+                this.selector.select();
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    AsyncClient session = (AsyncClient) key.attachment();
+                    session.handle(key); // Let the session connect, read or write
+                }
+                this.selector.selectedKeys().clear();
+                this.runTasks();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Error waiting for connections on the event loop.");
+        } finally {
+            this.running = false;
+            this.runTasks(); // Run tasks submitted while shutting down
+            for (SelectionKey key : this.selector.keys()) {
+                ((AsyncClient) key.attachment()).close(); // Close every session still open
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the selector.");
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Listens for user input and sends the message to the Server.
@@ -24,13 +26,23 @@ public class ClientInputHandler implements Runnable {
      */
     private BufferedReader input;
     /**
-     * PrintWriter used to send the user's message to the server
+     * PrintWriter used to send the user's message to the server, shared with
+     * the ServerHandler's acknowledgements; println() holds the writer's lock
+     * for the whole line, so lines from both threads are never interleaved
      */
     private PrintWriter output;
     /**
      * Used to indicate if this ClientInputHandler thread is currently running or not
      */
-    private boolean running;
+    private volatile boolean running;
+    /**
+     * Counted down once this thread has been terminated, to signal the thread waiting on it
+     */
+    private CountDownLatch finished;
+    /**
+     * Keeps the messages received from the Server, read back with "SCROLLBACK", or null
+     */
+    private TerminalRenderer renderer;
 
     /**
      * Creates a new ClientInputHandler Object using the provided Socket.
@@ -39,6 +51,30 @@ public class ClientInputHandler implements Runnable {
      * @param socket Socket used to establish a connection with the Server
      */
     public ClientInputHandler(Socket socket) {
+        this(socket, new CountDownLatch(1));
+    }
+
+    /**
+     * Creates a new ClientInputHandler Object using the provided Socket, which counts
+     * down the given latch once it has been terminated.
+     * @param socket Socket used to establish a connection with the Server
+     * @param finished Latch counted down once this thread has been terminated
+     */
+    public ClientInputHandler(Socket socket, CountDownLatch finished) {
+        this(socket, finished, null);
+    }
+
+    /**
+     * Creates a new ClientInputHandler Object using the provided Socket, which
+     * reads back the messages kept by the given renderer for "SCROLLBACK" and
+     * counts down the given latch once it has been terminated.
+     * @param socket Socket used to establish a connection with the Server
+     * @param finished Latch counted down once this thread has been terminated
+     * @param renderer Keeps the messages received from the Server, or null
+     */
+    public ClientInputHandler(Socket socket, CountDownLatch finished, TerminalRenderer renderer) {
+        this.finished = finished;
+        this.renderer = renderer;
         try {
             this.socket = socket;
             // Initialise the IO stream readers/writers:
@@ -57,6 +93,15 @@ public class ClientInputHandler implements Runnable {
         }
     }
 
+    /**
+     * Getter method for the PrintWriter used to send messages to the Server,
+     * so other threads writing to the same socket share it.
+     * @return The PrintWriter used to send messages to the Server
+     */
+    public PrintWriter getOutput() {
+        return this.output;
+    }
+
     /**
      * Checks if this ClientInputHandler is currently running.
      *
@@ -72,6 +117,7 @@ public class ClientInputHandler implements Runnable {
      */
     public void terminate() {
         this.running = false;
+        this.finished.countDown(); // Signal the thread waiting on this one
     }
 
     /**
@@ -96,6 +142,8 @@ public class ClientInputHandler implements Runnable {
             System.err.println("Error closing input or output stream readers/writers.");
         } catch (NullPointerException n) {
             System.err.println("Error connecting to server.");
+        } finally {
+            this.finished.countDown(); // Signal the thread waiting on this one, even if closing failed
         }
     }
 
@@ -107,6 +155,31 @@ public class ClientInputHandler implements Runnable {
         new Thread(this).start();
     }
 
+    /**
+     * Prints the newest messages kept by the renderer, e.g. the ones skipped
+     * while the Server was sending them faster than they could be printed.
+     * @param message The SCROLLBACK command, optionally followed by a number of lines, e.g. "SCROLLBACK 200"
+     */
+    private void printScrollback(String message) {
+        int count = TerminalRenderer.SCROLLBACK_SIZE;
+        try {
+            String option = message.substring("SCROLLBACK".length()).trim();
+            if (!option.isEmpty()) {
+                count = Integer.parseInt(option);
+            }
+        } catch (NumberFormatException n) {
+            System.out.println("> Error reading scrollback, type \"SCROLLBACK\" optionally followed by a number of lines.");
+            return;
+        }
+        List<String> lines = this.renderer.getScrollback(count);
+        StringBuilder text = new StringBuilder("> Last " + lines.size() + " messages:" + System.lineSeparator());
+        for (String line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        System.out.print(text); // Printed with a single write
+        System.out.flush();
+    }
+
     /**
      * Gets user input from the console, checks for the "EXIT" command, and
      * broadcasts it to the Server.
@@ -124,6 +197,16 @@ public class ClientInputHandler implements Runnable {
                     break;
                 }
 
+                if (this.renderer != null && message.startsWith("SCROLLBACK")) {
+                    this.printScrollback(message); // Handled by the Client, not sent to the Server
+                    continue;
+                }
+                if (message.startsWith("UPLOAD ")) {
+                    message = FileTransfer.requestUpload(message); // Ask for a ticket with the file's size and name
+                    if (message == null) {
+                        continue; // The file cannot be uploaded
+                    }
+                }
                 if (!message.equals("")) {
                     output.println(message); // Sends user message to Server
                 }
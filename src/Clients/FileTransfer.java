@@ -0,0 +1,289 @@
+package Clients;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Uploads or downloads a single file on the Server's file transfer port, on
+ * its own low priority thread, so the chat carries on during the transfer.
+ * The user types "UPLOAD" followed by a file's path; the Client asks the
+ * Server for an upload ticket with the file's size, SHA-256 hash and name,
+ * and starts the upload once the Server's reply arrives. The Server skips
+ * the upload if it already has a file with the same hash. "DOWNLOAD"
+ * followed by a shared file's reference is sent to the Server as it is; the
+ * Server's reply starts the download, which saves the file in the working
+ * directory.
+ * Implements Runnable.
+ * Used on the Client side.
+ */
+public class FileTransfer implements Runnable {
+
+    /**
+     * Number of bytes copied at a time
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Files waiting for their upload ticket, in the order they were requested
+     */
+    private static ConcurrentLinkedQueue<File> pendingUploads = new ConcurrentLinkedQueue<File>();
+
+    /**
+     * Address of the Server
+     */
+    private InetAddress host;
+    /**
+     * Port number of the Server's file transfer listener
+     */
+    private int port;
+    /**
+     * The ticket handed out by the Server
+     */
+    private long ticket;
+    /**
+     * The file uploaded, or the file the download is saved to
+     */
+    private File file;
+    /**
+     * Size of the file downloaded, or 0 for an upload
+     */
+    private long size;
+
+    /**
+     * Creates a new transfer.
+     * @param host Address of the Server
+     * @param port Port number of the Server's file transfer listener
+     * @param ticket The ticket handed out by the Server
+     * @param file The file uploaded, or the file the download is saved to
+     * @param size Size of the file downloaded, or 0 for an upload
+     */
+    private FileTransfer(InetAddress host, int port, long ticket, File file, long size) {
+        this.host = host;
+        this.port = port;
+        this.ticket = ticket;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Turns the user's "UPLOAD <path>" command into the request sent to the
+     * Server, and remembers the file until the Server hands out its ticket.
+     * @param command The user's command
+     * @return The request to be sent to the Server, or null if the file cannot be uploaded
+     */
+    public static String requestUpload(String command) {
+        File file = new File(command.substring("UPLOAD".length()).trim());
+        if (!file.isFile() || file.length() == 0) {
+            System.err.println("Error uploading file, " + file + " is not a file or is empty.");
+            return null;
+        }
+        String hash;
+        try {
+            hash = hash(file);
+        } catch (IOException e) {
+            System.err.println("Error uploading file, " + file + " could not be read.");
+            return null;
+        }
+        pendingUploads.offer(file);
+        return "UPLOAD " + file.length() + " " + hash + " " + file.getName();
+    }
+
+    /**
+     * Computes the SHA-256 hash of a file, which the Server uses to find out
+     * whether it already has the file.
+     * @param file The file
+     * @return The hash, in lower case hexadecimal
+     * @throws IOException If the file could not be read
+     */
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available.", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder text = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Starts the transfer a message from the Server hands out a ticket for, if it does.
+     * @param message The message from the Server, without its sequence number
+     * @param host Address of the Server
+     * @return true if the message was a ticket and has been handled, false if it should be shown to the user
+     */
+    public static boolean handle(String message, InetAddress host) {
+        if (message.startsWith("[Server]: Error uploading file") || message.startsWith("[Server]: Upload skipped")) {
+            pendingUploads.poll(); // The Server refused, or did not need, the oldest upload request
+            return false;
+        }
+        String parts[] = message.split(" ", 6);
+        try {
+            if (parts.length == 4 && parts[1].equals("UPLOAD")) { // "[Server]: UPLOAD <ticket> <port>"
+                File file = pendingUploads.poll();
+                if (file != null) {
+                    new FileTransfer(host, Integer.parseInt(parts[3]), Long.parseLong(parts[2]), file, 0).start();
+                }
+                return true;
+            } else if (parts.length == 6 && parts[1].equals("DOWNLOAD")) { // "[Server]: DOWNLOAD <ticket> <port> <size> <name>"
+                File file = saveAs(new File(parts[5]).getName()); // Never write outside the working directory
+                new FileTransfer(host, Integer.parseInt(parts[3]), Long.parseLong(parts[2]), file, Long.parseLong(parts[4])).start();
+                return true;
+            }
+        } catch (NumberFormatException n) {
+            // Not a ticket, show the message as it is
+        }
+        return false;
+    }
+
+    /**
+     * Chooses the file a download is saved to, without replacing an existing file.
+     * @param name Name of the shared file
+     * @return A file in the working directory that does not exist yet
+     */
+    private static File saveAs(String name) {
+        File file = new File(name.isEmpty() ? "download" : name);
+        for (int i = 1; file.exists(); i++) {
+            file = new File("(" + i + ") " + name);
+        }
+        return file;
+    }
+
+    /**
+     * Creates and starts a new FileTransfer Thread, with a low priority so
+     * the chat's threads run first.
+     * @Override
+     */
+    public void start() {
+        Thread thread = new Thread(this);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Connects to the file transfer port and uploads or downloads the file.
+     * @Override
+     */
+    public void run() {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(this.host, this.port))) {
+            if (this.size == 0) {
+                this.upload(channel);
+            } else {
+                this.download(channel);
+            }
+        } catch (IOException e) {
+            System.err.println("Error transferring file: " + this.file.getName() + ".");
+        }
+    }
+
+    /**
+     * Sends the file and waits for the Server to confirm it has been shared.
+     * @param channel The file transfer connection
+     * @throws IOException If the transfer failed
+     */
+    private void upload(SocketChannel channel) throws IOException {
+        writeLine(channel, "PUT " + this.ticket);
+        System.out.println("> Uploading " + this.file.getName() + "...");
+        try (FileChannel in = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            long length = in.size();
+            long sent = 0;
+            while (sent < length) {
+                sent += in.transferTo(sent, Math.min(CHUNK_SIZE, length - sent), channel);
+            }
+        }
+        String reply = readLine(channel);
+        if (reply.startsWith("OK ")) {
+            System.out.println("> Uploaded " + this.file.getName() + ", shared as " + reply.substring(3) + ".");
+        } else {
+            System.err.println("Error uploading " + this.file.getName() + ": " + reply);
+        }
+    }
+
+    /**
+     * Receives the file into the working directory.
+     * @param channel The file transfer connection
+     * @throws IOException If the transfer failed
+     */
+    private void download(SocketChannel channel) throws IOException {
+        writeLine(channel, "GET " + this.ticket);
+        String reply = readLine(channel);
+        if (!reply.startsWith("OK ")) {
+            System.err.println("Error downloading " + this.file.getName() + ": " + reply);
+            return;
+        }
+        long received = 0;
+        try (FileChannel out = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (received < this.size) {
+                long copied = out.transferFrom(channel, received, Math.min(CHUNK_SIZE, this.size - received));
+                if (copied <= 0) {
+                    break; // The Server closed the connection
+                }
+                received += copied;
+            }
+        }
+        if (received < this.size) {
+            this.file.delete();
+            System.err.println("Error downloading " + this.file.getName() + ": connection closed.");
+        } else {
+            System.out.println("> Saved " + this.file.getPath() + " (" + received + " bytes).");
+        }
+    }
+
+    /**
+     * Sends a line on the file transfer connection.
+     * @param channel The file transfer connection
+     * @param line The line, without its line ending
+     * @throws IOException If the line could not be sent
+     */
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a line from the file transfer connection, one byte at a time so
+     * none of the file that may follow it is read.
+     * @param channel The file transfer connection
+     * @return The line, without its line ending
+     * @throws IOException If the connection was closed first
+     */
+    private static String readLine(SocketChannel channel) throws IOException {
+        StringBuilder line = new StringBuilder();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new IOException("Connection closed.");
+            }
+            char c = (char) one.get(0);
+            if (c == '\n') {
+                return line.toString();
+            } else if (c != '\r') {
+                line.append(c);
+            }
+        }
+    }
+}
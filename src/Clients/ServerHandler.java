@@ -3,11 +3,15 @@ package Clients;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
 
 /**
- * Receives and prints out the messages sent out by the Server.
+ * Receives and prints out the messages sent out by the Server, through a
+ * TerminalRenderer so a burst of messages is drained as fast as it arrives.
  * Implements the Runnable Interface.
  * It is used on the Client side.
  */
@@ -21,11 +25,23 @@ public class ServerHandler implements Runnable {
      * BufferedReader used to get server responses
      */
     private BufferedReader input;
+    /**
+     * Acknowledges the numbered messages received from the Server
+     */
+    private AckTracker acks;
+    /**
+     * Prints the messages received from the Server in frames, so reading them never waits for the console
+     */
+    private TerminalRenderer renderer;
 
     /**
      * Used to indicate if this ServerHandler thread is currently running or not
      */
-    private boolean running;
+    private volatile boolean running;
+    /**
+     * Counted down once this thread has been terminated, to signal the thread waiting on it
+     */
+    private CountDownLatch finished;
 
     /**
      * Creates a new ServerHandler Object using the provided Socket.
@@ -34,9 +50,53 @@ public class ServerHandler implements Runnable {
      * @param socket Socket used to establish a connection with the Server
      */
     public ServerHandler(Socket socket) {
+        this(socket, new CountDownLatch(1));
+    }
+
+    /**
+     * Creates a new ServerHandler Object using the provided Socket, which counts
+     * down the given latch once it has been terminated.
+     * @param socket Socket used to establish a connection with the Server
+     * @param finished Latch counted down once this thread has been terminated
+     */
+    public ServerHandler(Socket socket, CountDownLatch finished) {
+        this(socket, finished, new TerminalRenderer());
+    }
+
+    /**
+     * Creates a new ServerHandler Object using the provided Socket, which
+     * prints the messages received with the given renderer and counts down
+     * the given latch once it has been terminated.
+     * @param socket Socket used to establish a connection with the Server
+     * @param finished Latch counted down once this thread has been terminated
+     * @param renderer Prints the messages received from the Server
+     */
+    public ServerHandler(Socket socket, CountDownLatch finished, TerminalRenderer renderer) {
+        this(socket, finished, renderer, null);
+    }
+
+    /**
+     * Creates a new ServerHandler Object using the provided Socket, which
+     * prints the messages received with the given renderer, acknowledges them
+     * with the given PrintWriter and counts down the given latch once it has
+     * been terminated.
+     * Another thread sending messages to the Server must share the same
+     * PrintWriter, so an acknowledgement never lands in the middle of its lines.
+     * @param socket Socket used to establish a connection with the Server
+     * @param finished Latch counted down once this thread has been terminated
+     * @param renderer Prints the messages received from the Server
+     * @param output Used to send the acknowledgements, or null to create one for the socket
+     */
+    public ServerHandler(Socket socket, CountDownLatch finished, TerminalRenderer renderer, PrintWriter output) {
+        this.finished = finished;
+        this.renderer = renderer;
         try {
             this.socket = socket;
             this.input = new BufferedReader(new InputStreamReader(this.socket.getInputStream())); // Instanciates BufferedReader used to get Server Responses
+            if (output == null) {
+                output = new PrintWriter(new OutputStreamWriter(this.socket.getOutputStream()), true); // No other thread writes to the socket
+            }
+            this.acks = new AckTracker(output); // Used to acknowledge Server messages
             this.running = true;
         } catch (SocketException s) { // If an error occurs, prints out an error message and shuts down the application:
             System.err.println("Error with passed socket.");
@@ -65,6 +125,7 @@ public class ServerHandler implements Runnable {
      */
     public void terminate() {
         this.running = false;
+        this.finished.countDown(); // Signal the thread waiting on this one
     }
 
     /**
@@ -75,6 +136,8 @@ public class ServerHandler implements Runnable {
      */
     public void shutdown() {
         try {
+            if (this.acks != null) this.acks.stop(); // Stops sending acknowledgements
+            this.renderer.terminate(); // Prints the messages not rendered yet and stops rendering
             this.socket.close(); // Closes the Socket used for the connection
             this.input.close(); // Closes the BufferedReader
             if (this.isRunning()) {
@@ -86,6 +149,8 @@ public class ServerHandler implements Runnable {
             System.err.println("Error closing input stream readers");
         } catch (NullPointerException n) {
             System.err.println("Error connecting to server.");
+        } finally {
+            this.finished.countDown(); // Signal the thread waiting on this one, even if closing failed
         }
     }
 
@@ -94,11 +159,13 @@ public class ServerHandler implements Runnable {
      * @Override
      */
     public void start() {
+        this.renderer.start(); // Start printing the messages received
         new Thread(this).start();
     }
 
     /**
-     * Gets messages sent by the Server, prints them and finally calls the
+     * Asks the Server for reliable delivery, gets messages sent by the Server,
+     * acknowledges and prints them and finally calls the
      * appropriate method to shutdown this ServerHandler thread.
      * Finally it shuts down the ServerHandler thread.
      * @Override
@@ -106,6 +173,7 @@ public class ServerHandler implements Runnable {
     public void run() {
         try {
             String serverMessage; // Holds the message sent by the Server
+            this.acks.start(); // Asks the Server for reliable delivery
 
             while (this.isRunning()) { // Repeat while this thread has not been terminated
                 serverMessage = this.input.readLine(); // Get message from the Server
@@ -114,7 +182,11 @@ public class ServerHandler implements Runnable {
                     this.terminate(); // Used to turn the running flag to false, indicating that the thread has been terminated
                     break;
                 }
-                System.out.println(serverMessage); // Print out the message received from the Server
+                serverMessage = this.acks.receive(serverMessage); // Remove and acknowledge the sequence number
+                if (FileTransfer.handle(serverMessage, this.socket.getInetAddress())) {
+                    continue; // A ticket for a file transfer, which has been started
+                }
+                this.renderer.print(serverMessage); // Printed in the next frame, without waiting for the console
             }
         } catch (SocketException s) {
         } catch (IOException e) {
@@ -0,0 +1,197 @@
+package Clients;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints the messages received from the Server to the console in frames.
+ * Received lines are only added to a scrollback buffer of the newest
+ * SCROLLBACK_SIZE lines, so the thread reading the socket never waits for
+ * the console. A separate thread renders every line added since the last
+ * frame with a single write, at most once every FRAME_INTERVAL. When more
+ * lines arrived than fit on the screen, only the last screenful is printed
+ * and the lines that would have scrolled off straight away are skipped;
+ * they can still be read from the scrollback.
+ * Implements Runnable.
+ * Used on the Client side.
+ */
+public class TerminalRenderer implements Runnable {
+
+    /**
+     * Number of lines kept in the scrollback
+     */
+    public static final int SCROLLBACK_SIZE = 2000;
+    /**
+     * Number of lines on the screen, if the terminal does not set LINES
+     */
+    public static final int DEFAULT_SCREEN_LINES = 50;
+    /**
+     * Shortest time between two frames, in milliseconds
+     */
+    private static final long FRAME_INTERVAL = 50;
+
+    /**
+     * The newest lines received, in a ring indexed by line number
+     */
+    private String[] scrollback;
+    /**
+     * Number of lines received so far
+     */
+    private long received;
+    /**
+     * Number of lines rendered or skipped so far
+     */
+    private long shown;
+    /**
+     * Largest number of lines printed in a frame
+     */
+    private int screenLines;
+    /**
+     * Thread rendering the frames
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this TerminalRenderer thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new TerminalRenderer for a screen of the terminal's height,
+     * read from the LINES environment variable if it is set.
+     */
+    public TerminalRenderer() {
+        this(screenHeight());
+    }
+
+    /**
+     * Creates a new TerminalRenderer.
+     * @param screenLines Largest number of lines printed in a frame
+     */
+    public TerminalRenderer(int screenLines) {
+        this.scrollback = new String[SCROLLBACK_SIZE];
+        this.screenLines = Math.max(1, Math.min(screenLines, SCROLLBACK_SIZE));
+        this.running = true;
+    }
+
+    /**
+     * Gets the terminal's height from the LINES environment variable.
+     * @return The number of lines on the screen, or DEFAULT_SCREEN_LINES if it is not known
+     */
+    private static int screenHeight() {
+        try {
+            return Integer.parseInt(System.getenv("LINES").trim()) - 1; // Leave a line for the user's input
+        } catch (NullPointerException | NumberFormatException e) {
+            return DEFAULT_SCREEN_LINES;
+        }
+    }
+
+    /**
+     * Adds a line to be printed in the next frame, without waiting for the console.
+     * @param line The line received from the Server
+     */
+    public synchronized void print(String line) {
+        this.scrollback[(int) (this.received % SCROLLBACK_SIZE)] = line;
+        this.received++;
+        if (this.received - this.shown == 1) {
+            this.notifyAll(); // Wake the renderer if it is waiting for lines
+        }
+    }
+
+    /**
+     * Getter method for the newest lines of the scrollback.
+     * @param count Number of lines wanted
+     * @return Up to count of the newest lines received, oldest first
+     */
+    public synchronized List<String> getScrollback(int count) {
+        long from = Math.max(0, this.received - Math.min(count, SCROLLBACK_SIZE));
+        ArrayList<String> lines = new ArrayList<String>();
+        for (long i = from; i < this.received; i++) {
+            lines.add(this.scrollback[(int) (i % SCROLLBACK_SIZE)]);
+        }
+        return lines;
+    }
+
+    /**
+     * Builds the next frame: the lines received since the last frame, or only
+     * the last screenful of them, after a note of how many were skipped.
+     * Must be called while holding this renderer's monitor.
+     * @return The frame's text, or null if no lines were received since the last frame
+     */
+    private String nextFrame() {
+        if (this.received == this.shown) {
+            return null;
+        }
+        StringBuilder frame = new StringBuilder();
+        long from = Math.max(this.shown, this.received - this.screenLines);
+        if (from > this.shown) { // Lines that would scroll off the screen in this frame are not printed
+            frame.append("> ").append(from - this.shown).append(" lines skipped, type \"SCROLLBACK\" to read the last ")
+                    .append(SCROLLBACK_SIZE).append(" lines.").append(System.lineSeparator());
+        }
+        for (long i = from; i < this.received; i++) {
+            frame.append(this.scrollback[(int) (i % SCROLLBACK_SIZE)]).append(System.lineSeparator());
+        }
+        this.shown = this.received;
+        return frame.toString();
+    }
+
+    /**
+     * Prints a frame to the console with a single write.
+     * @param frame The frame's text
+     */
+    private static void render(String frame) {
+        System.out.print(frame);
+        System.out.flush();
+    }
+
+    /**
+     * Terminates this TerminalRenderer, by setting the running flag to false
+     * and waking up the thread; the lines not rendered yet are printed in a
+     * last frame.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt(); // Wake up the thread if it is waiting for lines or the next frame
+        }
+    }
+
+    /**
+     * Creates and starts a new TerminalRenderer Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Waits for lines and renders them in frames, at most one every
+     * FRAME_INTERVAL; lines received while waiting for the next frame are
+     * rendered together in it.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.running) { // Repeat while this thread has not been terminated
+                String frame;
+                synchronized (this) {
+                    while (this.received == this.shown) {
+                        this.wait(); // Until a line is received
+                    }
+                    frame = this.nextFrame();
+                }
+                render(frame); // Printed without holding the monitor, so lines can still be added
+                Thread.sleep(FRAME_INTERVAL); // Caps the refresh rate
+            }
+        } catch (InterruptedException i) {
+            // The renderer has been terminated
+        }
+        String frame;
+        synchronized (this) {
+            frame = this.nextFrame();
+        }
+        if (frame != null) {
+            render(frame); // The lines received before the renderer was terminated
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package Clients;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Secures a non-blocking connection with TLS, encrypting the data written to
+ * the channel and decrypting the data read from it.
+ * Never blocks: every method does as much as the channel allows and reports
+ * whether it has to be called again once the channel is ready.
+ * Used by AsyncClient, on the event loop thread.
+ */
+public class TlsSession {
+
+    /**
+     * Empty buffer, wrapped while the handshake needs to send data
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Encrypts and decrypts the data
+     */
+    private SSLEngine engine;
+    /**
+     * Encrypted data read from the channel and not decrypted yet (ready to be written to)
+     */
+    private ByteBuffer netIn;
+    /**
+     * Encrypted data waiting to be written to the channel (ready to be read from)
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Starts a new TLS session with the Server.
+     * Passing the Server's host and port lets the context resume a session
+     * cached from an earlier connection instead of performing a full handshake.
+     * @param context Context creating the session, shared by the connections that should resume each other's sessions
+     * @param host Host name of the Server
+     * @param port Port number of the Server
+     * @throws SSLException If the handshake could not be started
+     */
+    public TlsSession(SSLContext context, String host, int port) throws SSLException {
+        this.engine = context.createSSLEngine(host, port);
+        this.engine.setUseClientMode(true);
+        int packetSize = this.engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize);
+        this.netOut.flip(); // Nothing to write yet
+        this.engine.beginHandshake();
+    }
+
+    /**
+     * Getter method for the largest amount of data a single TLS record can
+     * decrypt to; buffers passed to read() must have room for at least this much.
+     * @return The size of the largest decrypted record
+     */
+    public int getApplicationBufferSize() {
+        return this.engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Checks if encrypted data is waiting to be written, meaning the channel
+     * has to become writable before the session can make progress.
+     * @return true if encrypted data is waiting to be written, false otherwise
+     */
+    public boolean hasPendingWrites() {
+        return this.netOut.hasRemaining();
+    }
+
+    /**
+     * Makes as much progress with the handshake as the channel allows.
+     * Any data received together with the end of the handshake is decrypted into dst.
+     * @param channel The channel of the connection
+     * @param dst Buffer receiving any decrypted data
+     * @return true once the handshake has finished, false if it has to be called
+     * again when the channel is readable or writable
+     * @throws IOException If the handshake failed or the Server closed the connection
+     */
+    public boolean handshake(SocketChannel channel, ByteBuffer dst) throws IOException {
+        while (true) {
+            if (!this.flush(channel)) {
+                return false; // Wait until the channel is writable
+            }
+            switch (this.engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    this.wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    SSLEngineResult result = this.unwrap(dst);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) { // Need more data from the Server
+                        int count = channel.read(this.netIn);
+                        if (count < 0) throw new EOFException("Connection closed during the handshake.");
+                        if (count == 0) return false; // Wait until the channel is readable
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("Connection closed during the handshake.");
+                    }
+                    break;
+                case NEED_TASK:
+                    this.runTasks();
+                    break;
+                default: // FINISHED or NOT_HANDSHAKING
+                    return this.flush(channel);
+            }
+        }
+    }
+
+    /**
+     * Reads encrypted data from the channel and decrypts every complete record
+     * that fits into dst.
+     * @param channel The channel of the connection
+     * @param dst Buffer receiving the decrypted data, with room for at least one record
+     * @return The number of decrypted bytes, 0 if no complete record has
+     * arrived yet, or -1 if the Server closed the connection
+     * @throws IOException If reading or decrypting failed
+     */
+    public int read(SocketChannel channel, ByteBuffer dst) throws IOException {
+        int count = channel.read(this.netIn);
+        int start = dst.position();
+        while (dst.remaining() >= this.getApplicationBufferSize()) {
+            SSLEngineResult result = this.unwrap(dst);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                return -1; // The Server closed the session
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                this.runTasks();
+            }
+            if (this.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                this.wrap(EMPTY); // Answer post-handshake messages, e.g. key updates
+                this.flush(channel);
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                    || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                break; // The rest of the record has not arrived yet
+            }
+        }
+        int produced = dst.position() - start;
+        return (produced == 0 && count < 0) ? -1 : produced;
+    }
+
+    /**
+     * Encrypts src and writes it to the channel, as far as the channel allows.
+     * @param channel The channel of the connection
+     * @param src Data to be encrypted and written
+     * @return true if all of src has been written, false if it has to be called
+     * again when the channel is writable
+     * @throws IOException If encrypting or writing failed
+     */
+    public boolean write(SocketChannel channel, ByteBuffer src) throws IOException {
+        while (true) {
+            if (!this.flush(channel)) {
+                return false; // Wait until the channel is writable
+            }
+            if (!src.hasRemaining()) {
+                return true;
+            }
+            this.wrap(src);
+        }
+    }
+
+    /**
+     * Tells the Server the session is being closed, if the channel accepts it
+     * without blocking.
+     * @param channel The channel of the connection
+     */
+    public void close(SocketChannel channel) {
+        try {
+            this.engine.closeOutbound();
+            if (this.flush(channel)) {
+                this.wrap(EMPTY); // Produces the close notification
+                this.flush(channel);
+            }
+        } catch (IOException e) {
+            // The connection is being closed anyway
+        }
+    }
+
+    /**
+     * Writes the encrypted data waiting to be written.
+     * @param channel The channel of the connection
+     * @return true if everything has been written, false if the channel is full
+     * @throws IOException If writing failed
+     */
+    private boolean flush(SocketChannel channel) throws IOException {
+        while (this.netOut.hasRemaining()) {
+            if (channel.write(this.netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encrypts data into the buffer of data waiting to be written.
+     * Must only be called once that buffer has been written completely.
+     * @param src Data to be encrypted
+     * @throws SSLException If encrypting failed
+     */
+    private void wrap(ByteBuffer src) throws SSLException {
+        this.netOut.clear();
+        SSLEngineResult result = this.engine.wrap(src, this.netOut);
+        this.netOut.flip();
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("TLS record larger than the packet buffer.");
+        }
+    }
+
+    /**
+     * Decrypts the next record read from the channel into dst.
+     * @param dst Buffer receiving the decrypted data
+     * @return The result of decrypting
+     * @throws SSLException If decrypting failed
+     */
+    private SSLEngineResult unwrap(ByteBuffer dst) throws SSLException {
+        this.netIn.flip();
+        SSLEngineResult result = this.engine.unwrap(this.netIn, dst);
+        this.netIn.compact();
+        return result;
+    }
+
+    /**
+     * Runs the handshake tasks on the calling thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
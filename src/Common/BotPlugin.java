@@ -0,0 +1,38 @@
+package Common;
+
+/**
+ * A bot hosted inside the Server, receiving every broadcast directly instead
+ * of connecting to the Server as a client.
+ * Implementations must have a public constructor without parameters, so the
+ * Server can load them by their class name (java ChatServer -csb ClassName).
+ * Used on both the Client and the Server side, so bots do not depend on the Server.
+ */
+public interface BotPlugin {
+
+    /**
+     * Getter method for the name of the bot, shown to clients as "[name]".
+     * @return The name of the bot, e.g. "BOT Chad"
+     */
+    String getName();
+
+    /**
+     * Checks if the bot may respond to a message, before it is queued for the bot.
+     * Called on the thread broadcasting the message, so it must be quick.
+     * Messages it turns down are never handed to respond().
+     * @param sender Name of the client that sent the message, e.g. "[Client 1]"
+     * @param message The client's message, without the client's name
+     * @return true if the message should be handed to the bot, false to ignore it
+     */
+    default boolean accepts(String sender, String message) {
+        return true;
+    }
+
+    /**
+     * Generates the response to a message broadcast by a client.
+     * Called on the bot's own thread, never on the thread broadcasting the message.
+     * @param sender Name of the client that sent the message, e.g. "[Client 1]"
+     * @param message The client's message, without the client's name
+     * @return The response to be broadcast by the bot, or null to ignore the message
+     */
+    String respond(String sender, String message);
+}
@@ -0,0 +1,404 @@
+package Common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A Socket reading and writing a connected SocketChannel, for connections
+ * that have no Socket of their own, such as Unix domain socket connections.
+ * The Server's ClientHandlers and the Clients use it like any other Socket.
+ * Unix domain sockets only connect processes on the same machine, so
+ * getInetAddress() returns the loopback address.
+ * Unix domain socket channels need Java 16 or later; they are opened through
+ * reflection, so the code still builds for older releases, where
+ * isUnixAvailable() returns false.
+ * Extends Socket.
+ * Used on the Server and Client side.
+ */
+public class ChannelSocket extends Socket {
+
+    /**
+     * The Unix protocol family, or null before Java 16
+     */
+    private static final ProtocolFamily UNIX = unixFamily();
+    /**
+     * UnixDomainSocketAddress.of(String), or null before Java 16
+     */
+    private static final Method UNIX_ADDRESS = method("java.net.UnixDomainSocketAddress", "of", String.class);
+    /**
+     * SocketChannel.open(ProtocolFamily), or null before Java 15
+     */
+    private static final Method OPEN_CHANNEL = method("java.nio.channels.SocketChannel", "open", ProtocolFamily.class);
+    /**
+     * ServerSocketChannel.open(ProtocolFamily), or null before Java 15
+     */
+    private static final Method OPEN_SERVER_CHANNEL = method("java.nio.channels.ServerSocketChannel", "open", ProtocolFamily.class);
+
+    /**
+     * The connection
+     */
+    private final SocketChannel channel;
+    /**
+     * Describes the connection, e.g. "unix:/tmp/chat.sock"
+     */
+    private final String name;
+    /**
+     * Reads from the connection
+     */
+    private final ChannelInput input;
+    /**
+     * Writes to the connection
+     */
+    private final ChannelOutput output;
+    /**
+     * true once the input has been shut down
+     */
+    private volatile boolean inputShutdown;
+    /**
+     * true once the output has been shut down
+     */
+    private volatile boolean outputShutdown;
+
+    /**
+     * Creates a Socket using a connected channel, which must be in blocking mode.
+     * @param channel The connection
+     * @param name Describes the connection, e.g. "unix:/tmp/chat.sock"
+     */
+    public ChannelSocket(SocketChannel channel, String name) {
+        this.channel = channel;
+        this.name = name;
+        this.input = new ChannelInput(this);
+        this.output = new ChannelOutput(this);
+    }
+
+    /**
+     * Finds the Unix protocol family.
+     * @return The family, or null if the Java runtime does not have it
+     */
+    private static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            return null; // Before Java 16
+        }
+    }
+
+    /**
+     * Finds a public static method of a class, if the Java runtime has it.
+     * @param className Fully qualified name of the class
+     * @param name Name of the method
+     * @param parameter Type of the method's parameter
+     * @return The method, or null if the Java runtime does not have it
+     */
+    private static Method method(String className, String name, Class<?> parameter) {
+        try {
+            return Class.forName(className).getMethod(name, parameter);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Calls one of the methods found when the class was loaded.
+     * @param method The method
+     * @param argument The method's argument
+     * @return What the method returned
+     * @throws IOException If the method threw one, or Unix domain sockets are not available
+     */
+    private static Object invoke(Method method, Object argument) throws IOException {
+        if (!isUnixAvailable()) {
+            throw new IOException("Unix domain sockets need Java 16 or later.");
+        }
+        try {
+            return method.invoke(null, argument);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Checks if the Java runtime supports Unix domain socket channels.
+     * @return true from Java 16 onwards
+     */
+    public static boolean isUnixAvailable() {
+        return UNIX != null && UNIX_ADDRESS != null && OPEN_CHANNEL != null && OPEN_SERVER_CHANNEL != null;
+    }
+
+    /**
+     * Creates the address of a Unix domain socket.
+     * @param path Path of the socket file
+     * @return The address
+     * @throws IOException If Unix domain sockets are not available or the path is not valid
+     */
+    public static SocketAddress unixAddress(String path) throws IOException {
+        return (SocketAddress) invoke(UNIX_ADDRESS, path);
+    }
+
+    /**
+     * Opens an unconnected Unix domain socket channel.
+     * @return The channel, in blocking mode
+     * @throws IOException If Unix domain sockets are not available or the channel could not be opened
+     */
+    public static SocketChannel openUnixChannel() throws IOException {
+        return (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+    }
+
+    /**
+     * Opens an unbound Unix domain server socket channel.
+     * @return The channel, in blocking mode
+     * @throws IOException If Unix domain sockets are not available or the channel could not be opened
+     */
+    public static ServerSocketChannel openUnixServerChannel() throws IOException {
+        return (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, UNIX);
+    }
+
+    /**
+     * Connects to a Unix domain socket.
+     * @param path Path of the socket file
+     * @return A Socket using the connection
+     * @throws IOException If the connection failed or Unix domain sockets are not available
+     */
+    public static ChannelSocket connectUnix(String path) throws IOException {
+        SocketChannel channel = openUnixChannel();
+        try {
+            channel.connect(unixAddress(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new ChannelSocket(channel, "unix:" + path);
+    }
+
+    /**
+     * Getter method for the channel used for the connection.
+     * @return The connected channel
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (this.isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (this.isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.output;
+    }
+
+    /**
+     * The connection never leaves the machine.
+     * @return The loopback address
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        this.channel.shutdownInput(); // Reads blocked on the channel return the end of the stream
+        this.inputShutdown = true;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.channel.shutdownOutput();
+        this.outputShutdown = true;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return this.inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return this.outputShutdown;
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        try {
+            this.channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new SocketException("Error setting the send buffer size: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        try {
+            return this.channel.getOption(StandardSocketOptions.SO_SNDBUF);
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new SocketException("Error getting the send buffer size: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Does nothing, the channel has no read timeout; connections that need
+     * a handshake timeout are not accepted through a channel.
+     * @param timeout Ignored
+     */
+    @Override
+    public void setSoTimeout(int timeout) {
+    }
+
+    /**
+     * Does nothing, Unix domain sockets send every write straight away.
+     * @param on Ignored
+     */
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+
+    /**
+     * Reads from the channel of a ChannelSocket.
+     * The channel reads into the caller's array directly, reusing the
+     * ByteBuffer wrapping it while the caller keeps passing the same array,
+     * as buffered streams do.
+     * Extends InputStream.
+     */
+    private static class ChannelInput extends InputStream {
+        /**
+         * The Socket read from
+         */
+        private final ChannelSocket socket;
+        /**
+         * Wraps the array read into last
+         */
+        private ByteBuffer buffer;
+        /**
+         * Used to read a single byte
+         */
+        private final byte[] single = new byte[1];
+
+        private ChannelInput(ChannelSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return this.read(this.single, 0, 1) < 0 ? -1 : this.single[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (this.buffer == null || this.buffer.array() != bytes) {
+                this.buffer = ByteBuffer.wrap(bytes);
+            }
+            this.buffer.limit(offset + length).position(offset);
+            try {
+                return this.socket.channel.read(this.buffer); // Blocks until at least one byte, or the end of the stream
+            } catch (ClosedChannelException e) {
+                throw new SocketException("Socket closed"); // Reported like a closed Socket
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+
+    /**
+     * Writes to the channel of a ChannelSocket.
+     * The channel writes from the caller's array directly, reusing the
+     * ByteBuffer wrapping it while the caller keeps passing the same array,
+     * as buffered streams do.
+     * Extends OutputStream.
+     */
+    private static class ChannelOutput extends OutputStream {
+        /**
+         * The Socket written to
+         */
+        private final ChannelSocket socket;
+        /**
+         * Wraps the array written from last
+         */
+        private ByteBuffer buffer;
+        /**
+         * Used to write a single byte
+         */
+        private final byte[] single = new byte[1];
+
+        private ChannelOutput(ChannelSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            this.single[0] = (byte) b;
+            this.write(this.single, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            if (this.buffer == null || this.buffer.array() != bytes) {
+                this.buffer = ByteBuffer.wrap(bytes);
+            }
+            this.buffer.limit(offset + length).position(offset);
+            try {
+                while (this.buffer.hasRemaining()) {
+                    this.socket.channel.write(this.buffer); // A blocking channel writes everything, but may take several calls
+                }
+            } catch (ClosedChannelException e) {
+                throw new SocketException("Socket closed"); // Reported like a closed Socket
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package Common;
+
+import java.util.regex.Pattern;
+
+/**
+ * Breaks messages down into lowercase words.
+ * Used by the ChatBot's responses and by the Server's message search, so a
+ * word is the same thing for both.
+ * Used on both the Client and the Server side.
+ */
+public class Tokenizer {
+
+    /**
+     * Punctuation and whitespace separating the words of a message
+     */
+    private static final Pattern SEPARATORS = Pattern.compile("[\\p{Punct}\\s]+");
+
+    /**
+     * Breaks a message down into its words.
+     * @param message The message to be broken down
+     * @return The message's words in lowercase, in the order they appear, without empty words
+     */
+    public static String[] tokenize(String message) {
+        String[] words = SEPARATORS.split(message.toLowerCase()); // Break the message down into an array of Strings
+        if (words.length > 0 && words[0].isEmpty()) { // The message started with a separator
+            String[] trimmed = new String[words.length - 1];
+            System.arraycopy(words, 1, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return words;
+    }
+}
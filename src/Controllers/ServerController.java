@@ -27,7 +27,8 @@ public class ServerController extends Controller {
 
     /**
      * Listens to user input for the "EXIT" command and shuts down the ChatServer
-     * if the command is detected.
+     * if the command is detected. "STATS" prints the metrics of the
+     * interceptor pipeline.
      * @Override
      */
     public void run() {
@@ -38,6 +39,8 @@ public class ServerController extends Controller {
                 if (message.equals("EXIT")) {
                     this.server.shutdown(); // Shuts down the ChatServer
                     this.terminate(); // Sets running flag to false to exit the loop
+                } else if (message.equals("STATS")) {
+                    this.server.printInterceptorReport(); // Prints how each stage of the pipeline is doing
                 } else {
                     System.out.println("> Unknown command.");
                 }
@@ -0,0 +1,656 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the files shared by clients, by the hash of their content, so a file
+ * shared several times is stored once.
+ * Files are split into chunks of CHUNK_SIZE, each stored once under the hash
+ * of its own content, so files that share chunks share their storage too.
+ * Chunks are sent to clients straight from memory-mapped files; the chunks
+ * sent last stay mapped in a small cache, so popular files are not mapped
+ * again for every download.
+ * Clients ask for a ticket on their chat connection before uploading or
+ * downloading a file, and hand it over on the file transfer port; tickets
+ * can be used once, and only for a short time. Chat messages only refer to
+ * a file by the first REFERENCE_LENGTH characters of its hash.
+ * A file is deleted FILE_TIMEOUT after it was last shared, together with the
+ * chunks no other file uses, unless a download of it is in progress or has
+ * a ticket; it is then deleted once the last such download is over.
+ * New chunks are written without holding the store's monitor, so the chat's
+ * threads asking for tickets never wait for a file being stored.
+ * The room on disk is limited: the stored chunks and the uploads clients
+ * have tickets for, counted at their full size until they are stored or
+ * fail, never exceed MAX_TOTAL_SIZE, and no client has more than
+ * MAX_CLIENT_RESERVED bytes of uploads reserved at a time.
+ * Used on the Server side.
+ */
+public class AttachmentStore {
+
+    /**
+     * Largest file that can be shared, in bytes
+     */
+    public static final long MAX_FILE_SIZE = 1L << 30;
+    /**
+     * Largest number of bytes kept in the store's directory, the stored
+     * chunks and the uploads reserved together
+     */
+    public static final long MAX_TOTAL_SIZE = 4L << 30;
+    /**
+     * Largest number of bytes of uploads a client can have reserved and not finished yet
+     */
+    public static final long MAX_CLIENT_RESERVED = MAX_FILE_SIZE;
+    /**
+     * Size of the chunks files are split into, in bytes
+     */
+    public static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * Number of characters of a file's hash used to refer to it
+     */
+    public static final int REFERENCE_LENGTH = 12;
+    /**
+     * Number of mapped chunks kept in the cache
+     */
+    private static final int CACHE_CHUNKS = 64;
+    /**
+     * How long a file can be downloaded after it was last shared, in milliseconds
+     */
+    private static final long FILE_TIMEOUT = 60 * 60 * 1000;
+    /**
+     * How long a ticket can be used, in milliseconds
+     */
+    private static final long TICKET_TIMEOUT = 60 * 1000;
+
+    /**
+     * A stored file, made of chunks
+     */
+    public static class Blob {
+        /**
+         * Hash of the file's content, in hexadecimal
+         */
+        private final String hash;
+        /**
+         * Size of the file, in bytes
+         */
+        private final long size;
+        /**
+         * Hashes of the file's chunks, in order
+         */
+        private final String[] chunks;
+        /**
+         * Name the file was last shared with
+         */
+        private String name;
+        /**
+         * Time the file was last shared, in milliseconds
+         */
+        private long sharedAt;
+        /**
+         * Number of download tickets and downloads in progress for the file,
+         * which keep it from being deleted; guarded by the store's monitor
+         */
+        private int pins;
+
+        private Blob(String hash, long size, String[] chunks) {
+            this.hash = hash;
+            this.size = size;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Getter method for the short reference used in chat messages.
+         * @return The first REFERENCE_LENGTH characters of the file's hash
+         */
+        public String getReference() {
+            return hash.substring(0, REFERENCE_LENGTH);
+        }
+
+        /**
+         * Getter method for the size of the file.
+         * @return The file's size, in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Getter method for the number of chunks the file is made of.
+         * @return The number of chunks
+         */
+        public int getChunkCount() {
+            return chunks.length;
+        }
+
+        /**
+         * Getter method for the name the file was last shared with.
+         * @return The file's name
+         */
+        public synchronized String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * A file a client has been given a ticket to upload
+     */
+    public static class Upload {
+        /**
+         * Name given to the file by its sender
+         */
+        private final String name;
+        /**
+         * Size of the file, in bytes
+         */
+        private final long size;
+        /**
+         * Hash of the file's content announced by its sender
+         */
+        private final String hash;
+        /**
+         * Name of the client sharing the file
+         */
+        private final String sender;
+        /**
+         * File the upload is received into, before it is split into chunks
+         */
+        private final File file;
+        /**
+         * true while the upload's size is counted in the room reserved;
+         * guarded by the store's monitor
+         */
+        private boolean reserved;
+
+        private Upload(String name, long size, String hash, String sender, File file) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+            this.sender = sender;
+            this.file = file;
+        }
+
+        /**
+         * Getter method for the name given to the file by its sender.
+         * @return The file's name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Getter method for the size of the file.
+         * @return The file's size, in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Getter method for the name of the client sharing the file.
+         * @return The sender's name
+         */
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * Getter method for the file the upload is received into.
+         * @return The file in the store's directory
+         */
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * A ticket handed out to a client
+     */
+    private static class Ticket {
+        /**
+         * The file to be uploaded, or null for a download
+         */
+        private final Upload upload;
+        /**
+         * The file to be downloaded, or null for an upload
+         */
+        private final Blob blob;
+        /**
+         * Time the ticket was issued, in milliseconds
+         */
+        private final long issuedAt;
+
+        private Ticket(Upload upload, Blob blob) {
+            this.upload = upload;
+            this.blob = blob;
+            this.issuedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Directory the chunks and uploads in progress are kept in
+     */
+    private File directory;
+    /**
+     * Stored files, by hash
+     */
+    private HashMap<String, Blob> blobs;
+    /**
+     * Number of stored files using each chunk, by hash
+     */
+    private HashMap<String, Integer> chunkUsers;
+    /**
+     * Chunks mapped into memory, least recently sent first
+     */
+    private LinkedHashMap<String, MappedByteBuffer> cache;
+    /**
+     * Tickets that have not been used yet
+     */
+    private HashMap<Long, Ticket> tickets;
+    /**
+     * Used to generate the tickets
+     */
+    private SecureRandom random;
+    /**
+     * Bytes used by the stored chunks
+     */
+    private long storedBytes;
+    /**
+     * Bytes reserved for uploads that have not been stored yet
+     */
+    private long reservedBytes;
+    /**
+     * Bytes reserved for uploads that have not been stored yet, by the name of the client sharing them
+     */
+    private HashMap<String, Long> reservedBySender;
+
+    /**
+     * Creates a new, empty store in a temporary directory.
+     * @throws IOException If the directory could not be created
+     */
+    public AttachmentStore() throws IOException {
+        this.directory = Files.createTempDirectory("chat-files").toFile();
+        this.blobs = new HashMap<String, Blob>();
+        this.chunkUsers = new HashMap<String, Integer>();
+        this.cache = new LinkedHashMap<String, MappedByteBuffer>(CACHE_CHUNKS * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MappedByteBuffer> eldest) {
+                return this.size() > CACHE_CHUNKS; // The mapping is released once the buffer is no longer used
+            }
+        };
+        this.tickets = new HashMap<Long, Ticket>();
+        this.random = new SecureRandom();
+        this.reservedBySender = new HashMap<String, Long>();
+    }
+
+    /**
+     * Finds a stored file by the hash of its content.
+     * @param hash The file's hash, in hexadecimal
+     * @return The file, or null if it is not stored
+     */
+    public synchronized Blob findByHash(String hash) {
+        this.expire();
+        return this.blobs.get(hash);
+    }
+
+    /**
+     * Finds a stored file by the short reference used in chat messages.
+     * @param reference The first REFERENCE_LENGTH characters of the file's hash
+     * @return The file, or null if no stored file has the reference
+     */
+    public synchronized Blob find(String reference) {
+        this.expire();
+        if (reference.length() != REFERENCE_LENGTH) {
+            return null;
+        }
+        for (Blob blob : this.blobs.values()) {
+            if (blob.hash.startsWith(reference)) {
+                return blob;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records that a stored file has been shared again, keeping it for another FILE_TIMEOUT.
+     * @param blob The stored file
+     * @param name Name the file is shared with
+     */
+    public synchronized void share(Blob blob, String name) {
+        synchronized (blob) {
+            blob.name = name;
+        }
+        blob.sharedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Hands out a ticket for uploading a file, reserving room for it until it
+     * has been stored or has failed, see release().
+     * @param sender Name of the client sharing the file
+     * @param name Name given to the file by its sender
+     * @param size Size of the file, in bytes
+     * @param hash Hash of the file's content announced by the sender, checked once the file has arrived
+     * @return The ticket, to be handed over on the file transfer port, or 0 if
+     * the store or the sender's share of it has no room for the file
+     */
+    public synchronized long reserveUpload(String sender, String name, long size, String hash) {
+        this.expire();
+        if (this.reservedBySender.getOrDefault(sender, 0L) + size > MAX_CLIENT_RESERVED
+                || this.storedBytes + this.reservedBytes + size > MAX_TOTAL_SIZE) {
+            return 0;
+        }
+        File file = new File(this.directory, "upload-" + this.random.nextInt(Integer.MAX_VALUE) + ".part");
+        Upload upload = new Upload(name, size, hash, sender, file);
+        upload.reserved = true;
+        this.reservedBytes += size;
+        this.reservedBySender.merge(sender, size, Long::sum);
+        return this.issue(new Ticket(upload, null));
+    }
+
+    /**
+     * Gives back the room reserved for an upload, once it has been stored or
+     * has failed. Does nothing if it has been given back already.
+     * @param upload The upload
+     */
+    public synchronized void release(Upload upload) {
+        if (!upload.reserved) {
+            return;
+        }
+        upload.reserved = false;
+        this.reservedBytes -= upload.size;
+        if (this.reservedBySender.merge(upload.sender, -upload.size, Long::sum) == 0) {
+            this.reservedBySender.remove(upload.sender);
+        }
+    }
+
+    /**
+     * Hands out a ticket for downloading a stored file. The file is kept
+     * until the ticket expires or the download is over, see unpin().
+     * @param blob The file to be downloaded
+     * @return The ticket, to be handed over on the file transfer port, or 0 if the file has been deleted
+     */
+    public synchronized long reserveDownload(Blob blob) {
+        this.expire();
+        if (this.blobs.get(blob.hash) != blob) {
+            return 0; // Expired since it was found
+        }
+        blob.pins++;
+        return this.issue(new Ticket(null, blob));
+    }
+
+    /**
+     * Records that a download of a file is over, so the file can be deleted
+     * once it has expired.
+     * @param blob The file downloaded
+     */
+    public synchronized void unpin(Blob blob) {
+        blob.pins--;
+        this.expire();
+    }
+
+    /**
+     * Stores a ticket under a number that is not in use yet.
+     * @param ticket The ticket
+     * @return The ticket's number
+     */
+    private long issue(Ticket ticket) {
+        long number;
+        do {
+            number = this.random.nextLong() & Long.MAX_VALUE;
+        } while (this.tickets.containsKey(number) || number == 0);
+        this.tickets.put(number, ticket);
+        return number;
+    }
+
+    /**
+     * Uses up an upload ticket.
+     * @param number The ticket handed over by the client
+     * @return The file to be uploaded, or null if the ticket is not a valid upload ticket
+     */
+    public synchronized Upload redeemUpload(long number) {
+        this.expire();
+        Ticket ticket = this.tickets.get(number);
+        if (ticket == null || ticket.upload == null) {
+            return null;
+        }
+        this.tickets.remove(number);
+        return ticket.upload;
+    }
+
+    /**
+     * Uses up a download ticket. The file stays pinned until the download
+     * calls unpin().
+     * @param number The ticket handed over by the client
+     * @return The file to be downloaded, or null if the ticket is not a valid download ticket
+     */
+    public synchronized Blob redeemDownload(long number) {
+        this.expire();
+        Ticket ticket = this.tickets.get(number);
+        if (ticket == null || ticket.blob == null) {
+            return null;
+        }
+        this.tickets.remove(number);
+        return ticket.blob;
+    }
+
+    /**
+     * Stores an uploaded file, once all of it has been received, and deletes
+     * the received copy. Only the chunks that are not stored yet are written.
+     * The chunks are hashed while they are mapped into memory, without
+     * copying them into the Java heap.
+     * New chunks are written to temporary files without holding the store's
+     * monitor, then moved into place while holding it; a chunk stored by
+     * another upload in the meantime is not moved, and one deleted in the
+     * meantime is written again.
+     * @param upload The uploaded file
+     * @return The stored file, shared with the name given by its sender
+     * @throws IOException If the file could not be read or stored, or does not match the hash announced by the sender
+     */
+    public Blob store(Upload upload) throws IOException {
+        HashMap<String, File> written = new HashMap<String, File>(); // New chunks not moved into place yet
+        try (FileChannel in = FileChannel.open(upload.file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest fileDigest = sha256();
+            String[] chunks = new String[(int) ((upload.size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) { // Hash every chunk, and the whole file on the way
+                long offset = (long) i * CHUNK_SIZE;
+                MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, upload.size - offset));
+                MessageDigest chunkDigest = sha256();
+                chunkDigest.update(chunk.duplicate());
+                fileDigest.update(chunk);
+                chunks[i] = hex(chunkDigest.digest());
+            }
+            String hash = hex(fileDigest.digest());
+            if (!hash.equals(upload.hash)) {
+                throw new IOException("The uploaded file does not match its hash.");
+            }
+
+            while (true) {
+                ArrayList<Integer> missing = new ArrayList<Integer>();
+                synchronized (this) {
+                    Blob blob = this.blobs.get(hash);
+                    if (blob == null) {
+                        for (int i = 0; i < chunks.length; i++) {
+                            if (!this.chunkUsers.containsKey(chunks[i]) && !written.containsKey(chunks[i])) {
+                                missing.add(i);
+                            }
+                        }
+                    }
+                    if (blob == null && missing.isEmpty()) { // A new file, with every chunk stored or written
+                        for (String chunk : chunks) {
+                            File file = written.remove(chunk);
+                            if (file != null && !this.chunkUsers.containsKey(chunk)) {
+                                Files.move(file.toPath(), this.chunkFile(chunk).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                                this.storedBytes += this.chunkFile(chunk).length();
+                            }
+                            this.chunkUsers.merge(chunk, 1, Integer::sum);
+                        }
+                        blob = new Blob(hash, upload.size, chunks);
+                        this.blobs.put(hash, blob);
+                    }
+                    if (blob != null) {
+                        this.share(blob, upload.name);
+                        return blob;
+                    }
+                }
+                for (int i : missing) { // Write the chunks that are not stored yet, without holding the monitor
+                    long offset = (long) i * CHUNK_SIZE;
+                    written.put(chunks[i], this.writeChunk(in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, upload.size - offset))));
+                }
+            }
+        } finally {
+            for (File file : written.values()) {
+                file.delete(); // Stored by another upload in the meantime, or the upload failed
+            }
+            upload.file.delete();
+        }
+    }
+
+    /**
+     * Writes a chunk to a new temporary file in the store's directory.
+     * @param content The chunk's content
+     * @return The file the chunk was written to
+     * @throws IOException If the chunk could not be written
+     */
+    private File writeChunk(ByteBuffer content) throws IOException {
+        File file = File.createTempFile("chunk-", ".part", this.directory);
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Gets the content of one of a file's chunks, mapped into memory.
+     * @param blob The stored file
+     * @param index Index of the chunk in the file
+     * @return The chunk's content, for the caller's use only
+     * @throws IOException If the chunk could not be read
+     */
+    public ByteBuffer chunk(Blob blob, int index) throws IOException {
+        String hash = blob.chunks[index];
+        MappedByteBuffer mapped;
+        synchronized (this) {
+            mapped = this.cache.get(hash);
+        }
+        if (mapped == null) { // Map the chunk without holding the monitor
+            try (FileChannel in = FileChannel.open(this.chunkFile(hash).toPath(), StandardOpenOption.READ)) {
+                mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()); // Stays mapped after the channel is closed
+            }
+            synchronized (this) {
+                this.cache.put(hash, mapped);
+            }
+        }
+        return mapped.duplicate(); // Every download has its own position
+    }
+
+    /**
+     * Gets the file a chunk is kept in.
+     * @param hash The chunk's hash
+     * @return The chunk's file
+     */
+    private File chunkFile(String hash) {
+        return new File(this.directory, hash + ".chunk");
+    }
+
+    /**
+     * Drops the tickets that can no longer be used, and deletes the files
+     * that can no longer be downloaded, together with the chunks no other
+     * file uses. Files with a download ticket or a download in progress are
+     * kept, as their chunks are mapped one at a time while they are sent.
+     * Must be called while holding this store's monitor.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Ticket> tickets = this.tickets.values().iterator();
+        while (tickets.hasNext()) {
+            Ticket ticket = tickets.next();
+            if (now - ticket.issuedAt > TICKET_TIMEOUT) {
+                tickets.remove();
+                if (ticket.upload != null) {
+                    this.release(ticket.upload); // Never redeemed, give its room back
+                } else {
+                    ticket.blob.pins--; // Never redeemed, the file can be deleted once it has expired
+                }
+            }
+        }
+        Iterator<Blob> iterator = this.blobs.values().iterator();
+        while (iterator.hasNext()) {
+            Blob blob = iterator.next();
+            if (now - blob.sharedAt <= FILE_TIMEOUT || blob.pins > 0) {
+                continue; // Still shared, or being downloaded
+            }
+            iterator.remove();
+            for (String chunk : blob.chunks) {
+                if (this.chunkUsers.merge(chunk, -1, Integer::sum) == 0) { // No other file uses the chunk
+                    this.chunkUsers.remove(chunk);
+                    this.cache.remove(chunk);
+                    this.storedBytes -= this.chunkFile(chunk).length();
+                    this.chunkFile(chunk).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes every stored file and the store's directory, when the Server shuts down.
+     */
+    public synchronized void delete() {
+        File[] stored = this.directory.listFiles();
+        if (stored != null) {
+            for (File file : stored) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+        this.blobs.clear();
+        this.chunkUsers.clear();
+        this.cache.clear();
+        this.tickets.clear();
+        this.reservedBySender.clear();
+        this.storedBytes = 0;
+        this.reservedBytes = 0;
+    }
+
+    /**
+     * Creates a SHA-256 digest.
+     * @return A new digest
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e); // Every Java platform must support SHA-256
+        }
+    }
+
+    /**
+     * Encodes a hash in lower case hexadecimal.
+     * @param hash The hash
+     * @return The encoded hash
+     */
+    public static String hex(byte[] hash) {
+        StringBuilder text = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return text.toString();
+    }
+}
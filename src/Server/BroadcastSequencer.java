@@ -0,0 +1,261 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Puts every broadcast into a single total order and hands them to the
+ * fan-out in batches, on one dispatcher thread.
+ * The threads reading from clients publish broadcasts into a ring buffer of
+ * slots allocated once, so publishing takes no lock and allocates nothing.
+ * The dispatcher takes the broadcasts from the ring in the order their slots
+ * were claimed, which is the order every client receives them in, and hands
+ * up to MAX_BATCH of them at a time to its ChatRoom's fanOut().
+ * The sequencer holds a reference to each published payload and releases it
+ * once the payload has been fanned out.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class BroadcastSequencer implements Runnable {
+
+    /**
+     * Largest number of broadcasts handed to the fan-out at once
+     */
+    public static final int MAX_BATCH = 256;
+    /**
+     * How many times the dispatcher checks for new broadcasts before sleeping
+     */
+    private static final int SPIN_LIMIT = 100;
+
+    /**
+     * A slot of the ring, reused for every broadcast at its position
+     */
+    private static class Slot {
+        /**
+         * Name of the client or hosted bot sending the message
+         */
+        private String sender;
+        /**
+         * The message, including the sender's name, encoded in UTF-8
+         */
+        private PooledBuffer payload;
+        /**
+         * Index of the payload's first byte after the sender's name
+         */
+        private int textOffset;
+        /**
+         * Sequence number of the broadcast in the slot, set once the slot has
+         * been filled; the slot starts out with the number of its position
+         * minus the ring's capacity, so no broadcast is mistaken for published
+         */
+        private volatile long published;
+    }
+
+    /**
+     * The ring of slots, its length a power of two
+     */
+    private final Slot[] ring;
+    /**
+     * Used to map a sequence number to its slot
+     */
+    private final int mask;
+    /**
+     * Sequence number claimed by the next publisher
+     */
+    private final AtomicLong claimed;
+    /**
+     * Number of broadcasts the dispatcher has finished with; their slots can be reused
+     */
+    private volatile long consumed;
+    /**
+     * Number of publishers waiting for a slot to become free
+     */
+    private volatile int waitingPublishers;
+    /**
+     * Used by publishers to wait while the ring is full; only taken when it is
+     */
+    private final Lock fullLock;
+    /**
+     * Signalled by the dispatcher when slots have become free
+     */
+    private final Condition notFull;
+    /**
+     * Whether the dispatcher is sleeping and has to be woken up by the next publisher
+     */
+    private volatile boolean sleeping;
+    /**
+     * Senders of the batch being handed to the fan-out, reused for every batch
+     */
+    private final String[] batchSenders;
+    /**
+     * Payloads of the batch being handed to the fan-out, reused for every batch
+     */
+    private final PooledBuffer[] batchPayloads;
+    /**
+     * Offsets of the batch's messages after the sender's name, reused for every batch
+     */
+    private final int[] batchOffsets;
+    /**
+     * The clients the broadcasts are fanned out to
+     */
+    private final ChatRoom room;
+    /**
+     * Thread dispatching the broadcasts
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this BroadcastSequencer thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new sequencer with a ring of the given capacity.
+     * @param room The clients the broadcasts are fanned out to
+     * @param capacity Number of broadcasts that can wait for the dispatcher, rounded up to a power of two
+     */
+    public BroadcastSequencer(ChatRoom room, int capacity) {
+        this.room = room;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // Round up to a power of two
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            this.ring[i] = new Slot();
+            this.ring[i].published = i - size; // Not published yet
+        }
+        this.mask = size - 1;
+        this.claimed = new AtomicLong();
+        this.fullLock = new ReentrantLock();
+        this.notFull = this.fullLock.newCondition();
+        this.batchSenders = new String[MAX_BATCH];
+        this.batchPayloads = new PooledBuffer[MAX_BATCH];
+        this.batchOffsets = new int[MAX_BATCH];
+    }
+
+    /**
+     * Publishes a broadcast, to be handed to the fan-out by the dispatcher.
+     * Waits while the ring is full, so a flood of messages slows down the
+     * clients sending them rather than using more memory.
+     * The sequencer takes over the caller's reference to the payload, which
+     * is released even if the broadcast could not be published.
+     * @param sender Name of the client or hosted bot sending the message
+     * @param payload The message, including the sender's name, encoded in UTF-8
+     * @param textOffset Index of the payload's first byte after the sender's name
+     * @return true if the broadcast was published, false if the sequencer has been terminated
+     */
+    public boolean publish(String sender, PooledBuffer payload, int textOffset) {
+        long seq = this.claimed.getAndIncrement(); // Claims a slot and the broadcast's place in the order
+        if (seq - this.consumed >= this.ring.length) { // The slot is still in use by an older broadcast
+            try {
+                this.fullLock.lock();
+                this.waitingPublishers++;
+                while (seq - this.consumed >= this.ring.length) {
+                    if (!this.running) {
+                        payload.release();
+                        return false;
+                    }
+                    this.notFull.awaitUninterruptibly(); // Sleep until the dispatcher frees some slots
+                }
+            } finally {
+                this.waitingPublishers--;
+                this.fullLock.unlock();
+            }
+        }
+        Slot slot = this.ring[(int) seq & this.mask];
+        slot.sender = sender;
+        slot.payload = payload;
+        slot.textOffset = textOffset;
+        slot.published = seq; // Makes the slot's contents visible to the dispatcher
+        if (this.sleeping) {
+            this.sleeping = false;
+            LockSupport.unpark(this.thread);
+        }
+        return true;
+    }
+
+    /**
+     * Terminates this BroadcastSequencer. Broadcasts already published are
+     * still handed to the fan-out before the thread finishes.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+        }
+        this.wakePublishers(); // Publishers waiting for a slot give up
+    }
+
+    /**
+     * Wakes up the publishers waiting for a slot, if there are any.
+     */
+    private void wakePublishers() {
+        if (this.waitingPublishers > 0) {
+            try {
+                this.fullLock.lock();
+                this.notFull.signalAll();
+            } finally {
+                this.fullLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Creates and starts a new BroadcastSequencer Thread.
+     * @Override
+     */
+    public void start() {
+        this.running = true;
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Takes the published broadcasts from the ring in order and hands them to
+     * the fan-out in batches, sleeping while there are none.
+     * @Override
+     */
+    public void run() {
+        long next = 0; // Sequence number of the next broadcast to dispatch
+        int idle = 0; // Number of checks in a row that found nothing
+        while (true) {
+            int count = 0;
+            while (count < MAX_BATCH) { // Collect the consecutive broadcasts that have been published
+                Slot slot = this.ring[(int) (next + count) & this.mask];
+                if (slot.published != next + count) {
+                    break; // Not published yet, later slots must wait for it to keep the order
+                }
+                this.batchSenders[count] = slot.sender;
+                this.batchPayloads[count] = slot.payload;
+                this.batchOffsets[count] = slot.textOffset;
+                slot.sender = null; // Do not keep the message alive once dispatched
+                slot.payload = null;
+                count++;
+            }
+
+            if (count > 0) {
+                next += count;
+                this.consumed = next; // The slots can be reused while the batch is fanned out
+                this.wakePublishers();
+                this.room.fanOut(this.batchSenders, this.batchPayloads, this.batchOffsets, count);
+                for (int i = 0; i < count; i++) {
+                    this.batchPayloads[i].release(); // Back to the pool, unless a reliable session still keeps it
+                }
+                Arrays.fill(this.batchSenders, 0, count, null);
+                Arrays.fill(this.batchPayloads, 0, count, null);
+                idle = 0;
+            } else if (!this.running) {
+                break; // Terminated, and every published broadcast has been dispatched
+            } else if (++idle < SPIN_LIMIT) {
+                Thread.onSpinWait();
+            } else {
+                this.sleeping = true;
+                if (this.ring[(int) next & this.mask].published != next) { // Check again, a publisher may have missed the flag
+                    LockSupport.parkNanos(1000000); // Woken up by the next publisher
+                }
+                this.sleeping = false;
+            }
+        }
+    }
+}
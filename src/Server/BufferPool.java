@@ -0,0 +1,119 @@
+package Server;
+
+/**
+ * Hands out reusable buffers for the messages passing through the Server,
+ * so forwarding a message does not allocate memory once the Server is warm.
+ * The buffers are allocated together as one slab when the pool is created.
+ * When they are all in use, new ones are created, and kept once released as
+ * long as the pool holds fewer than its maximum, and the free buffers take
+ * no more memory than that many buffers of BUFFER_SIZE. Buffers that grew
+ * for a long message are kept too, unless they grew beyond MAX_KEPT_SIZE,
+ * so a burst of long messages does not keep its memory for ever.
+ * Buffers are handed out and returned by any thread.
+ * Used on the Server side.
+ */
+public class BufferPool {
+
+    /**
+     * Number of bytes each buffer can hold before growing
+     */
+    public static final int BUFFER_SIZE = 512;
+    /**
+     * Largest buffer kept once released, so a few huge messages do not keep
+     * their memory for ever
+     */
+    public static final int MAX_KEPT_SIZE = 4 * BUFFER_SIZE;
+
+    /**
+     * Free buffers, linked through their next field
+     */
+    private PooledBuffer free;
+    /**
+     * Number of free buffers
+     */
+    private int freeCount;
+    /**
+     * Largest number of free buffers kept
+     */
+    private final int maxFree;
+    /**
+     * Bytes held by the free buffers
+     */
+    private long freeBytes;
+    /**
+     * Largest number of bytes held by the free buffers, maxFree buffers of BUFFER_SIZE
+     */
+    private final long maxFreeBytes;
+    /**
+     * Number of buffers created because the pool was empty
+     */
+    private long misses;
+
+    /**
+     * Creates a pool with a slab of the given number of buffers.
+     * @param initial Number of buffers created straight away
+     * @param maxFree Largest number of free buffers kept
+     */
+    public BufferPool(int initial, int maxFree) {
+        this.maxFree = maxFree;
+        this.maxFreeBytes = (long) maxFree * BUFFER_SIZE;
+        for (int i = 0; i < initial; i++) {
+            this.recycle(new PooledBuffer(this, BUFFER_SIZE));
+        }
+    }
+
+    /**
+     * Takes a free buffer from the pool, or creates one if there are none.
+     * @return An empty buffer with a single reference
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer buffer;
+        synchronized (this) {
+            buffer = this.free;
+            if (buffer != null) {
+                this.free = buffer.next;
+                buffer.next = null;
+                this.freeCount--;
+                this.freeBytes -= buffer.array().length;
+            } else {
+                this.misses++;
+            }
+        }
+        if (buffer == null) {
+            buffer = new PooledBuffer(this, BUFFER_SIZE); // Kept by the pool once released
+        }
+        buffer.acquired();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer released by its last holder to the pool.
+     * @param buffer The buffer, no longer used
+     */
+    synchronized void recycle(PooledBuffer buffer) {
+        int size = buffer.array().length;
+        if (this.freeCount < this.maxFree && size <= MAX_KEPT_SIZE && this.freeBytes + size <= this.maxFreeBytes) {
+            buffer.next = this.free;
+            this.free = buffer;
+            this.freeCount++;
+            this.freeBytes += size;
+        }
+    }
+
+    /**
+     * Getter method for the number of free buffers.
+     * @return The number of buffers ready to be handed out
+     */
+    public synchronized int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Getter method for the number of buffers created because the pool was empty.
+     * Stops increasing once the pool holds enough buffers for the Server's load.
+     * @return The number of buffers created after the pool was created
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
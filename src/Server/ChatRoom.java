@@ -0,0 +1,651 @@
+package Server;
+
+import Common.BotPlugin;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The clients of one ChatServer and everything they share: the list of
+ * connected clients and its roster, consumer groups, reliable sessions,
+ * hosted bots, the sequencer putting their broadcasts in one order and the
+ * interceptor pipeline their lines pass through.
+ * Every ChatServer owns its own ChatRoom, so several Servers running in one
+ * JVM never see each other's clients, while they share the threads and
+ * buffers of a ServerResources.
+ * Used on the Server side.
+ */
+public class ChatRoom {
+
+    /**
+     * Number of broadcasts that can wait to be fanned out
+     */
+    public static final int SEQUENCER_CAPACITY = 8192;
+    /**
+     * Smallest number of writes (recipients times messages) handed to a
+     * thread of the fan-out pool
+     */
+    private static final int MIN_RANGE_WRITES = 4096;
+    /**
+     * How long a reliable session can be resumed after losing its connection, in milliseconds
+     */
+    private static final long SESSION_TIMEOUT = 60000;
+    /**
+     * Name of the pipeline stage handling the commands, the last stage
+     */
+    private static final String COMMAND_STAGE = "commands";
+
+    /**
+     * Threads and buffers shared with the other Servers in the JVM
+     */
+    final ServerResources resources;
+    /**
+     * A Reentrant lock used to access synchronised segments of code
+     */
+    final Lock lock = new ReentrantLock();
+    /**
+     * ArrayList containing all current client connection handlers
+     */
+    final ArrayList<ClientHandler> clients = new ArrayList<ClientHandler>();
+    /**
+     * Keeps track of the number of total connections established; used
+     * to assign a unique number to each new connecting client
+     */
+    private int clientNumber = 0;
+    /**
+     * Consumer groups that currently have members, by name
+     */
+    final HashMap<String, ConsumerGroup> groups = new HashMap<String, ConsumerGroup>();
+    /**
+     * Bots hosted inside the Server, which receive every broadcast directly
+     */
+    final List<HostedBot> hostedBots = new CopyOnWriteArrayList<HostedBot>();
+    /**
+     * Puts every broadcast in one order and fans them out on its own thread
+     */
+    private final BroadcastSequencer sequencer = new BroadcastSequencer(this, SEQUENCER_CAPACITY);
+    /**
+     * Number of writes (recipients times messages) a batch must need before
+     * it is split between the threads of the fan-out pool
+     */
+    private volatile int splitThreshold = 4 * MIN_RANGE_WRITES;
+    /**
+     * The decoded messages of the batch being fanned out, filled in as they are needed
+     */
+    private final String[] batchTexts = new String[BroadcastSequencer.MAX_BATCH];
+    /**
+     * Snapshot of the connected clients' names, replaced whenever a client
+     * connects, leaves or changes their name, and read without the lock
+     */
+    volatile Roster roster = Roster.EMPTY;
+    /**
+     * Sends the changes to the roster to the clients watching it
+     */
+    final PresenceFeed presenceFeed = new PresenceFeed(this);
+    /**
+     * Index of the broadcast messages used for SEARCH, or null if searching is not available
+     */
+    volatile MessageIndex messageIndex;
+    /**
+     * History of the broadcast messages used for HISTORY, or null if the history is not kept
+     */
+    volatile MessageHistory messageHistory;
+    /**
+     * Records the traffic received from clients, or null if it is not captured
+     */
+    volatile TrafficCapture trafficCapture;
+    /**
+     * Keeps the files shared with UPLOAD, or null if file transfers are not available
+     */
+    volatile AttachmentStore attachmentStore;
+    /**
+     * Port number of the file transfer listener
+     */
+    volatile int fileTransferPort;
+    /**
+     * Reliable sessions that can be resumed, by session token
+     */
+    final HashMap<Long, DeliveryLog> sessions = new HashMap<Long, DeliveryLog>();
+    /**
+     * Used to generate the session tokens
+     */
+    final SecureRandom sessionTokens = new SecureRandom();
+    /**
+     * The stages every line read from a client passes through before it is
+     * broadcast, ending with the stage handling the commands
+     */
+    final InterceptorPipeline pipeline = new InterceptorPipeline();
+
+    /**
+     * Creates a new ChatRoom without any clients.
+     * @param resources Threads and buffers shared with the other Servers in the JVM
+     */
+    public ChatRoom(ServerResources resources) {
+        this.resources = resources;
+        this.pipeline.add(COMMAND_STAGE, message -> message.getSender().route(message), 0); // Commands are never bypassed
+    }
+
+    /**
+     * Getter method for the threads and buffers used by the room.
+     * @return The resources shared with the other Servers in the JVM
+     */
+    public ServerResources getResources() {
+        return resources;
+    }
+
+    /**
+     * Assigns the next unique number to a new connection.
+     * Several listeners can create ClientHandlers at the same time.
+     * @return The connection's number
+     */
+    int nextClientId() {
+        try {
+            lock.lock();
+            return this.clientNumber++; // Adjust the clientNumber for the next connection
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the current list of connected clients and sends a list of
+     * commands to the new client.
+     * Uses a Reentrant lock to ensure synchronisation.
+     * Prints a message informing of addition of the client.
+     * @param newClient The new client to be added to the list
+     */
+    void newConnection(ClientHandler newClient) {
+        try {
+            lock.lock(); // Used to synchronise the updating of the list
+            this.clients.add(newClient); // Adds new client to the list
+            this.roster = this.roster.withAdded(newClient.getClientName()); // Publish the new snapshot of the connected clients
+        } catch (Exception e) {
+            System.err.println("Error adding client to list.");
+        } finally {
+            System.out.println("> Client: " + newClient.getClientName() + " has been added to the list.");
+            lock.unlock(); // Unlocks the synchronised block of code
+            newClient.sendCommands(); // Sends a list of commands on how to navigate the server
+            newClient.sendLatest(); // Sends the newest messages from the history, if it is kept
+            // Inform connected clients of new connection, with the other announcements made in the same window
+            this.presenceFeed.announce(PresenceFeed.Kind.JOINED, "New connection. Client: " + newClient.getClientName() + " has connected.");
+        }
+    }
+
+    /**
+     * Removes a client from the list of connected clients, closing any input
+     * and output streams associated with them as well as the Socket they used.
+     * Uses a Reentrant lock to ensure synchronisation.
+     * @param client Client to be removed from the list
+     */
+    public void removeClient(ClientHandler client) {
+        if (client.getClientSocket().isClosed()) { // Check if the client has already been removed
+            return;
+        }
+
+        try {
+            lock.lock(); // Used to synchronise the list updating
+            // Inform the Client they are being removed; not numbered, so it is not sent again if the session is resumed
+            client.sendUnnumbered("[Server]: You've been disconnected from the server.");
+
+            this.clients.remove(client); // Update the list of clients
+            this.roster = this.roster.withRemoved(client.getClientName()); // Publish the new snapshot of the connected clients
+            this.presenceFeed.unwatch(client);
+            client.leaveGroup(); // Hand the client's share of its consumer group to the remaining members
+            if (client.deliveryLog != null) {
+                client.deliveryLog.detach(System.currentTimeMillis()); // Keep the session so it can be resumed
+            }
+            TrafficCapture capture = this.trafficCapture;
+            if (capture != null) {
+                capture.disconnected(client.getClientId());
+            }
+        } catch (Exception e) {
+            System.err.println("Error removing client from list.");
+        } finally {
+            // Inform all connected clients that a client left, with the other announcements made in the same window
+            this.presenceFeed.announce(PresenceFeed.Kind.LEFT, "Client " + client.getClientName() + " has left the Server.");
+            System.out.println("> Client: " + client.getClientName() + " has been removed from the list.");
+            lock.unlock(); // Unlock the synchronised block of code
+        }
+        // Close the input, output streams and Sockets used; outside the lock, as it waits for the disconnection notice to be written
+        client.terminate();
+    }
+
+    /**
+     * Removes all connected clients from the server.
+     * Each client is removed without holding the lock around the others, so
+     * closing one client's connection never blocks the room, and the clients
+     * are removed on the shared threads at once, so the disconnection
+     * notices of slow clients are waited for together, not one after another.
+     */
+    public void removeAll() {
+        List<ClientHandler> removed;
+        try {
+            lock.lock(); // Synchronise the accessing of the list of connections
+            removed = new ArrayList<ClientHandler>(this.clients);
+        } finally {
+            lock.unlock();
+        }
+        CountDownLatch removing = new CountDownLatch(removed.size());
+        for (ClientHandler client : removed) {
+            this.resources.execute(() -> {
+                try {
+                    this.removeClient(client); // Takes the lock itself, and closes the connection after releasing it
+                } finally {
+                    removing.countDown();
+                }
+            });
+        }
+        try {
+            removing.await();
+        } catch (InterruptedException i) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Broadcasts a message on behalf of a sender to all connected clients
+     * whose filters accept it, and hands it to the bots hosted by the Server.
+     * The message is published to the sequencer, which puts every broadcast
+     * in one order and fans them out on its own thread, so the calling thread
+     * never waits for the lock or the recipients.
+     * @param sender Name of the client or hosted bot sending the message
+     * @param message The message to be sent to all clients
+     */
+    void deliver(String sender, String message) {
+        PooledBuffer payload = this.resources.getBufferPool().acquire();
+        byte[] encoded = (sender + ": ").getBytes(StandardCharsets.UTF_8);
+        payload.append(encoded, 0, encoded.length);
+        int textOffset = payload.length();
+        encoded = message.getBytes(StandardCharsets.UTF_8);
+        payload.append(encoded, 0, encoded.length);
+        this.sequencer.publish(sender, payload, textOffset);
+    }
+
+    /**
+     * Broadcasts a message read from a client to all connected clients whose
+     * filters accept it, without decoding it.
+     * @param sender Name of the client sending the message
+     * @param payload The message, including the client's name, encoded in UTF-8;
+     * the caller's reference is handed to the sequencer
+     * @param textOffset Index of the payload's first byte after the client's name
+     */
+    void publish(String sender, PooledBuffer payload, int textOffset) {
+        this.sequencer.publish(sender, payload, textOffset);
+    }
+
+    /**
+     * Fans out a batch of broadcasts from the sequencer, in order, taking the
+     * lock once for the whole batch.
+     * The messages are queued in the recipients' chat lanes and each
+     * client's outbox is flushed once at the end of the batch, so a batch
+     * costs each client a single write rather than one per message; clients
+     * with a writer thread are written by it, without holding up the batch.
+     * Each message goes to every connected client whose filters accept it.
+     * Clients in a consumer group share the message, only one member of each
+     * group receives it.
+     * Messages are only decoded when a filter, consumer group, hosted bot or
+     * the index needs their text, so forwarding a message between clients
+     * without any of them allocates no memory.
+     * When the batch has to be written to a large audience, the clients are
+     * split into ranges written by the fan-out pool in parallel. Each client
+     * is in a single range, so it still receives the messages in order.
+     * @param senders Names of the clients or hosted bots sending the messages
+     * @param payloads The messages, including the sender's name, encoded in UTF-8
+     * @param textOffsets Index of each payload's first byte after the sender's name
+     * @param count Number of broadcasts in the batch
+     */
+    void fanOut(String[] senders, PooledBuffer[] payloads, int[] textOffsets, int count) {
+        try {
+            lock.lock(); // Synchronise the looping through the list of clients
+            if (!this.groups.isEmpty()) {
+                for (int i = 0; i < count; i++) {
+                    for (ConsumerGroup consumerGroup : this.groups.values()) { // Deliver the message once per consumer group
+                        ClientHandler member = consumerGroup.select(senders[i], this.text(payloads, textOffsets, i));
+                        if (member != null) {
+                            ClientHandler.broadcast(member, payloads[i], false); // Flushed with the member's range below
+                        }
+                    }
+                }
+            }
+            int audience = this.clients.size();
+            ForkJoinPool fanOutPool = this.resources.getFanOutPool();
+            int parallelism = fanOutPool.getParallelism();
+            if (parallelism > 1 && (long) audience * count >= this.splitThreshold) {
+                // Ranges small enough to balance the pool's threads, large enough to be worth a task
+                int range = Math.max(Math.max(1, MIN_RANGE_WRITES / count), audience / (4 * parallelism));
+                fanOutPool.invoke(new FanOutTask(senders, payloads, textOffsets, count, 0, audience, range));
+            } else {
+                this.fanOutRange(senders, payloads, textOffsets, count, 0, audience); // Not worth splitting
+            }
+        } finally {
+            lock.unlock();
+        }
+        MessageIndex index = this.messageIndex;
+        MessageHistory history = this.messageHistory;
+        if (!this.hostedBots.isEmpty() || index != null || history != null) {
+            for (int i = 0; i < count; i++) {
+                String message = this.text(payloads, textOffsets, i);
+                for (HostedBot bot : this.hostedBots) {
+                    bot.offer(senders[i], message); // Queue the message for the bot, without waiting for its response
+                }
+                if (index != null) {
+                    index.offer(senders[i], message); // Queue the message to be indexed, without waiting for it
+                }
+                if (history != null) {
+                    history.offer(senders[i], message); // Queue the message to be kept, without waiting for it
+                }
+            }
+        }
+        Arrays.fill(this.batchTexts, 0, count, null);
+    }
+
+    /**
+     * Writes a batch of broadcasts to a range of the connected clients, and
+     * flushes their output. Clients in a consumer group are skipped, they
+     * receive their group's messages separately.
+     * Must be called while the fan-out holds the lock.
+     * @param senders Names of the clients or hosted bots sending the messages
+     * @param payloads The messages, including the sender's name, encoded in UTF-8
+     * @param textOffsets Index of each payload's first byte after the sender's name
+     * @param count Number of broadcasts in the batch
+     * @param from Index of the first client of the range
+     * @param to Index after the last client of the range
+     */
+    private void fanOutRange(String[] senders, PooledBuffer[] payloads, int[] textOffsets, int count, int from, int to) {
+        for (int i = 0; i < count; i++) {
+            for (int c = from; c < to; c++) { // Iterate through the range of clients
+                ClientHandler client = this.clients.get(c);
+                if (client.group != null) {
+                    continue; // Receives the message through its consumer group
+                }
+                if (!client.filters.isEmpty() && !client.accepts(senders[i], this.text(payloads, textOffsets, i))) {
+                    continue;
+                }
+                ClientHandler.broadcast(client, payloads[i], false); // broadcast the message to each client
+            }
+        }
+        for (int c = from; c < to; c++) {
+            this.clients.get(c).outbox.flush(); // Send each client the messages of the batch together
+        }
+    }
+
+    /**
+     * Decodes a message of the batch being fanned out, the first time its
+     * text is needed.
+     * Ranges written in parallel may both decode the same message; either
+     * result can be kept.
+     * @param payloads The messages, including the sender's name, encoded in UTF-8
+     * @param textOffsets Index of each payload's first byte after the sender's name
+     * @param i Index of the message in the batch
+     * @return The message, without the sender's name
+     */
+    private String text(PooledBuffer[] payloads, int[] textOffsets, int i) {
+        String message = this.batchTexts[i];
+        if (message == null) {
+            message = payloads[i].toString(textOffsets[i]);
+            this.batchTexts[i] = message;
+        }
+        return message;
+    }
+
+    /**
+     * Writes a batch of broadcasts to a range of the room's connected
+     * clients, splitting the range in two until it is small enough to be
+     * written by one thread of the fan-out pool.
+     * Extends RecursiveAction.
+     */
+    private class FanOutTask extends RecursiveAction {
+        /**
+         * Tasks are never serialised
+         */
+        private static final long serialVersionUID = 1L;
+        /**
+         * Names of the clients or hosted bots sending the messages
+         */
+        private final String[] senders;
+        /**
+         * The messages, including the sender's name, encoded in UTF-8
+         */
+        private final PooledBuffer[] payloads;
+        /**
+         * Index of each payload's first byte after the sender's name
+         */
+        private final int[] textOffsets;
+        /**
+         * Number of broadcasts in the batch
+         */
+        private final int count;
+        /**
+         * Index of the first client of the range
+         */
+        private final int from;
+        /**
+         * Index after the last client of the range
+         */
+        private final int to;
+        /**
+         * Largest number of clients written without splitting the range
+         */
+        private final int range;
+
+        private FanOutTask(String[] senders, PooledBuffer[] payloads, int[] textOffsets, int count, int from, int to, int range) {
+            this.senders = senders;
+            this.payloads = payloads;
+            this.textOffsets = textOffsets;
+            this.count = count;
+            this.from = from;
+            this.to = to;
+            this.range = range;
+        }
+
+        /**
+         * Writes the range, or splits it and writes both halves in parallel.
+         * @Override
+         */
+        protected void compute() {
+            if (this.to - this.from <= this.range) {
+                fanOutRange(this.senders, this.payloads, this.textOffsets, this.count, this.from, this.to);
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new FanOutTask(this.senders, this.payloads, this.textOffsets, this.count, this.from, middle, this.range),
+                    new FanOutTask(this.senders, this.payloads, this.textOffsets, this.count, middle, this.to, this.range));
+        }
+    }
+
+    /**
+     * Setter method for the amount of work above which the fan-out is split
+     * between the threads of the fan-out pool.
+     * @param writes Number of recipients times number of messages in a batch;
+     * Integer.MAX_VALUE always fans out on the sequencer's thread
+     */
+    public void setSplitThreshold(int writes) {
+        this.splitThreshold = writes;
+    }
+
+    /**
+     * Adds a client to the list of connected clients without starting its
+     * thread, so it receives broadcasts but nothing is read from it.
+     * Used by tools that simulate a large audience inside the Server's JVM.
+     * @param client The client to be added
+     */
+    public void addRecipient(ClientHandler client) {
+        this.newConnection(client);
+    }
+
+    /**
+     * Starts fanning out the broadcasts published to the sequencer.
+     */
+    public void startSequencer() {
+        this.sequencer.start();
+    }
+
+    /**
+     * Stops the sequencer, once the broadcasts already published have been fanned out.
+     */
+    public void stopSequencer() {
+        this.sequencer.terminate();
+    }
+
+    /**
+     * Getter method for the current snapshot of the connected clients' names.
+     * Never waits for the lock.
+     * @return The current snapshot
+     */
+    public Roster getRoster() {
+        return roster;
+    }
+
+    /**
+     * Starts announcing connections, departures and name changes, and sending
+     * the changes to the roster to the clients watching it.
+     * @param window How often the announcements are sent, in milliseconds
+     * @param threshold Largest number of announcements sent individually per window, above it a digest is sent
+     */
+    public void startPresenceFeed(long window, int threshold) {
+        this.presenceFeed.setWindow(window);
+        this.presenceFeed.setThreshold(threshold);
+        this.presenceFeed.start();
+    }
+
+    /**
+     * Stops sending the changes to the roster.
+     */
+    public void stopPresenceFeed() {
+        this.presenceFeed.terminate();
+    }
+
+    /**
+     * Setter method for the index of broadcast messages used for SEARCH.
+     * @param index The index every broadcast is handed to, or null to stop indexing
+     */
+    public void setMessageIndex(MessageIndex index) {
+        this.messageIndex = index;
+    }
+
+    /**
+     * Setter method for the history of the broadcast messages.
+     * @param history The history, or null to stop keeping it
+     */
+    public void setMessageHistory(MessageHistory history) {
+        this.messageHistory = history;
+    }
+
+    /**
+     * Setter method for the capture the traffic received from clients is recorded to.
+     * @param capture The capture, or null to stop capturing
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        this.trafficCapture = capture;
+    }
+
+    /**
+     * Makes file transfers available to the clients.
+     * @param store Keeps the shared files, or null to stop file transfers
+     * @param port Port number of the file transfer listener
+     */
+    public void setFileTransfers(AttachmentStore store, int port) {
+        this.fileTransferPort = port;
+        this.attachmentStore = store;
+    }
+
+    /**
+     * Tells every client that a file has been shared. The message only
+     * carries the file's short reference; clients download the file itself
+     * on the file transfer port if they want it.
+     * @param sender Name of the client sharing the file
+     * @param blob The stored file
+     */
+    public void announceFile(String sender, AttachmentStore.Blob blob) {
+        System.out.println("> File: \"" + blob.getName() + "\" (" + blob.getSize() + " bytes) shared by " + sender + ".");
+        this.informAll(sender + " shared the file \"" + blob.getName() + "\" (" + blob.getSize()
+                + " bytes). Type \"DOWNLOAD " + blob.getReference() + "\" to save it.");
+    }
+
+    /**
+     * Starts hosting a bot inside the Server; the bot receives every broadcast
+     * directly and its responses are broadcast without using a socket.
+     * @param plugin The bot to be hosted
+     */
+    public void hostBot(BotPlugin plugin) {
+        HostedBot bot = new HostedBot(this, plugin);
+        this.hostedBots.add(bot);
+        bot.start(); // Start the thread handing broadcasts to the bot
+        System.out.println("> Bot: " + bot.getBotName() + " is hosted by the server.");
+    }
+
+    /**
+     * Stops every bot hosted by the Server.
+     */
+    public void stopBots() {
+        for (HostedBot bot : this.hostedBots) {
+            bot.terminate();
+        }
+        this.hostedBots.clear();
+    }
+
+    /**
+     * Broadcasts a message from the Server to all clients whose filters accept it.
+     * @param message The message from the server to be broadcasted
+     */
+    public void informAll(String message) {
+        try {
+            lock.lock(); // Synchronise the looping through the list of clients
+            // Encoded once for every recipient
+            PooledBuffer fullMessage = PooledBuffer.wrap(("[Server]: " + message).getBytes(StandardCharsets.UTF_8));
+            for (ClientHandler client : this.clients) { // Iterate through the list of clients
+                if (client.accepts("[Server]", message)) {
+                    ClientHandler.sendControl(client, fullMessage, true); // broadcast the message to each client, ahead of the chat
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the reliable sessions that can no longer be resumed.
+     * Must be called while holding the lock.
+     */
+    void expireSessions() {
+        long now = System.currentTimeMillis();
+        Iterator<DeliveryLog> iterator = this.sessions.values().iterator();
+        while (iterator.hasNext()) {
+            DeliveryLog log = iterator.next();
+            if (log.isExpired(now, SESSION_TIMEOUT)) {
+                iterator.remove();
+                log.clear(); // Return the kept messages to the pool
+            }
+        }
+    }
+
+    /**
+     * Adds a stage to the interceptor pipeline, before the stage handling
+     * the commands, so it sees every line including the commands.
+     * @param name Name of the stage, shown in the metrics
+     * @param interceptor The stage's interceptor
+     * @param budget Time budget of the stage per line, in nanoseconds, or 0 for none
+     */
+    public void addInterceptor(String name, MessageInterceptor interceptor, long budget) {
+        this.pipeline.addBefore(COMMAND_STAGE, name, interceptor, budget);
+    }
+
+    /**
+     * Describes the metrics of every stage of the interceptor pipeline.
+     * @return One line per stage, in order
+     */
+    public List<String> getInterceptorReport() {
+        return this.pipeline.report();
+    }
+}
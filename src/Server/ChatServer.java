@@ -1,17 +1,32 @@
 package Server;
 
+import Common.BotPlugin;
 import Controllers.ServerController;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.SocketException;
+import java.util.ArrayList;
 
 /**
  * Starts listening and prepares for Client connections.
  * Establishes a two-way connection with each Client connected to the Server,
  * and handles each Client accordingly.
+ * Each Server has its own ChatRoom, so several Servers, e.g. one per tenant,
+ * can run in one JVM sharing a ServerResources without sharing any clients.
  */
 public class ChatServer {
+    /**
+     * Number of connections waiting to be accepted before new ones are refused.
+     * Large enough for every client to reconnect at once after a network problem.
+     */
+    public static final int ACCEPT_BACKLOG = 1024;
+    /**
+     * Default number of hours messages are kept in the history
+     */
+    public static final long DEFAULT_RETENTION = 7 * 24;
+
     /**
      * ServerSocket used for accepting new client connections
      */
@@ -20,11 +35,71 @@ public class ChatServer {
      * The port number the ServerSocket is listening to
      */
     private int port;
+    /**
+     * The clients connected to this Server
+     */
+    private ChatRoom room;
+    /**
+     * Servers of the other tenants started by this Server, shut down with it
+     */
+    private ArrayList<ChatServer> tenants = new ArrayList<ChatServer>();
+    /**
+     * Listens for connections secured with TLS, or null if the Server only
+     * accepts plain connections
+     */
+    private TlsListener tlsListener;
+    /**
+     * Listens for WebSocket connections, or null if the Server does not
+     * accept WebSocket connections
+     */
+    private WebSocketListener webSocketListener;
+    /**
+     * Listens for connections on a Unix domain socket, or null if the Server
+     * only accepts network connections
+     */
+    private UnixListener unixListener;
+    /**
+     * Listens for file transfer connections, or null if the Server does not
+     * accept file transfers
+     */
+    private FileTransferListener fileTransferListener;
+    /**
+     * Keeps the files shared by clients, or null if the Server does not accept file transfers
+     */
+    private AttachmentStore attachmentStore;
+    /**
+     * Index of the broadcast messages used for SEARCH, or null if searching is not available
+     */
+    private MessageIndex messageIndex;
+    /**
+     * History of the broadcast messages, or null if the Server does not keep it
+     */
+    private MessageHistory messageHistory;
+    /**
+     * Compresses and drops old parts of the history, or null if the Server does not keep it
+     */
+    private HistoryCompactor historyCompactor;
+    /**
+     * Stops repeated messages before they are broadcast, or null if repeats are broadcast
+     */
+    private DuplicateFilter duplicateFilter;
+    /**
+     * Records the traffic received from clients, or null if it is not captured
+     */
+    private TrafficCapture trafficCapture;
+    /**
+     * How often connections, departures and name changes are announced, in milliseconds
+     */
+    private long presenceWindow = PresenceFeed.DEFAULT_WINDOW;
+    /**
+     * Largest number of announcements sent individually per window
+     */
+    private int presenceThreshold = PresenceFeed.DEFAULT_THRESHOLD;
 
     /**
      * Used to indicate whether or not the Server is running
      */
-    private boolean running;
+    private volatile boolean running;
 
     /**
      * Default constructor, creates a ServerSocket listening to the default port.
@@ -35,14 +110,26 @@ public class ChatServer {
     }
 
     /**
-     * Creates a ServerSocket listening to the specified port.
+     * Creates a ServerSocket listening to the specified port, using the
+     * resources shared by the Servers not given any.
      * @param port
      */
     public ChatServer(int port) {
+        this(port, ServerResources.getShared());
+    }
+
+    /**
+     * Creates a ServerSocket listening to the specified port, with its own
+     * clients but the threads and buffers of the given resources.
+     * @param port The port number to listen to
+     * @param resources Threads and buffers shared with the other Servers in the JVM
+     */
+    public ChatServer(int port, ServerResources resources) {
         this.port = port;
+        this.room = new ChatRoom(resources);
         try {
             System.out.println("> Starting Server with Port number: " + this.port + ".");
-            this.serverSocket = new ServerSocket(this.port); // Instantiate ServerSocket to listen for Client connections
+            this.serverSocket = new ServerSocket(this.port, ACCEPT_BACKLOG); // Instantiate ServerSocket to listen for Client connections
             this.running = true;
             System.out.println("> Server is listening for connections.");
             System.out.println("> To shut down the server type \"EXIT\".");
@@ -84,6 +171,14 @@ public class ChatServer {
         this.port = port;
     }
 
+    /**
+     * Getter method for the clients connected to the Server.
+     * @return The Server's ChatRoom
+     */
+    public ChatRoom getRoom() {
+        return room;
+    }
+
     /**
      * Checks if the Server is currently running (listening for connections).
      * @return true if it is listening for connections, otherwise false
@@ -99,6 +194,213 @@ public class ChatServer {
         this.running = false;
     }
 
+    /**
+     * Starts listening for connections secured with TLS on a second port.
+     * The certificate is read from the key store given with the
+     * javax.net.ssl.keyStore and javax.net.ssl.keyStorePassword system properties.
+     * @param tlsPort The port number to listen to for secure connections
+     */
+    public void listenTls(int tlsPort) {
+        try {
+            this.tlsListener = new TlsListener(this.room, tlsPort);
+            this.tlsListener.start(); // Accept secure connections on their own thread
+            System.out.println("> Server is listening for secure connections on port number: " + tlsPort + ".");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error listening for secure connections with the given port number: " + tlsPort + ".");
+        }
+    }
+
+    /**
+     * Starts listening for connections on a Unix domain socket, so bots and
+     * bridges on the same machine can connect without going through the
+     * loopback TCP stack. Needs Java 16 or later.
+     * @param path Path of the socket file, removed when the Server shuts down
+     */
+    public void listenUnix(String path) {
+        try {
+            this.unixListener = new UnixListener(this.room, path);
+            this.unixListener.start(); // Accept local connections on their own thread
+            System.out.println("> Server is listening for local connections on: " + path + ".");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error listening for local connections on: " + path + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts listening for file transfer connections on another port, so
+     * clients can share files. Files are kept in a temporary directory that
+     * is deleted when the Server shuts down.
+     * @param fileTransferPort The port number to listen to for file transfer connections
+     */
+    public void listenFileTransfers(int fileTransferPort) {
+        try {
+            this.attachmentStore = new AttachmentStore();
+            this.fileTransferListener = new FileTransferListener(this.room, fileTransferPort, this.attachmentStore);
+            this.fileTransferListener.start(); // Accept file transfer connections on their own thread
+            this.room.setFileTransfers(this.attachmentStore, fileTransferPort);
+            System.out.println("> Server is listening for file transfers on port number: " + fileTransferPort + ".");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error listening for file transfers with the given port number: " + fileTransferPort + ".");
+            if (this.attachmentStore != null) {
+                this.attachmentStore.delete();
+                this.attachmentStore = null;
+            }
+        }
+    }
+
+    /**
+     * Starts listening for WebSocket connections, e.g. from web browsers, on another port.
+     * WebSocket clients take part in the chat exactly like other clients.
+     * @param webSocketPort The port number to listen to for WebSocket connections
+     */
+    public void listenWebSocket(int webSocketPort) {
+        try {
+            this.webSocketListener = new WebSocketListener(this.room, webSocketPort);
+            this.webSocketListener.start(); // Accept WebSocket connections on their own thread
+            System.out.println("> Server is listening for WebSocket connections on port number: " + webSocketPort + ".");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error listening for WebSocket connections with the given port number: " + webSocketPort + ".");
+        }
+    }
+
+    /**
+     * Sets how connections, departures and name changes are announced.
+     * Announcements are collected during a window and sent together at its
+     * end; if there are more than the threshold, a single digest is sent instead.
+     * Must be called before the Server is started.
+     * @param window How often the announcements are sent, in milliseconds
+     * @param threshold Largest number of announcements sent individually per window
+     */
+    public void setPresenceDigest(long window, int threshold) {
+        this.presenceWindow = window;
+        this.presenceThreshold = threshold;
+    }
+
+    /**
+     * Starts indexing every broadcast message, so clients can search earlier
+     * messages with the SEARCH command.
+     * @param directory Directory the index is kept in across restarts, or null to only keep it in memory
+     */
+    public void indexMessages(File directory) {
+        try {
+            this.messageIndex = new MessageIndex(directory);
+            this.messageIndex.start(); // Index the messages on their own thread
+            this.room.setMessageIndex(this.messageIndex);
+            if (directory != null) {
+                System.out.println("> Server has loaded " + this.messageIndex.size() + " indexed messages from: " + directory + ".");
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading the message index from: " + directory + ".\nSearching is not available.");
+        }
+    }
+
+    /**
+     * Starts keeping the history of the broadcast messages, so new clients
+     * are sent the newest messages and clients can read earlier messages
+     * with the HISTORY command.
+     * @param directory Directory the history is kept in across restarts
+     * @param retention How long messages are kept, in hours
+     */
+    public void keepHistory(File directory, long retention) {
+        try {
+            this.messageHistory = new MessageHistory(directory, retention * 60 * 60 * 1000);
+            this.messageHistory.start(); // Write the messages on their own thread
+            this.historyCompactor = new HistoryCompactor(this.messageHistory, HistoryCompactor.DEFAULT_INTERVAL);
+            this.historyCompactor.start(); // Compress and drop old messages in the background
+            this.room.setMessageHistory(this.messageHistory);
+            System.out.println("> Server has loaded a history of " + this.messageHistory.size() + " messages from: " + directory
+                    + ", kept for " + retention + " hours.");
+        } catch (IOException e) {
+            System.err.println("Error loading the history from: " + directory + ".\nThe history is not kept.");
+        }
+    }
+
+    /**
+     * Loads a bot by its class name and hosts it inside the Server.
+     * The class must implement BotPlugin and have a public constructor
+     * without parameters, e.g. "Clients.BotResponder".
+     * @param className Fully qualified name of the bot's class
+     */
+    public void hostBot(String className) {
+        try {
+            BotPlugin plugin = Class.forName(className).asSubclass(BotPlugin.class).getDeclaredConstructor().newInstance();
+            this.room.hostBot(plugin); // Start handing broadcasts to the bot
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            System.err.println("Error loading bot: " + className + ".");
+        }
+    }
+
+    /**
+     * Loads a message interceptor by its class name and adds it to the
+     * pipeline every line read from a client passes through, with the
+     * default time budget.
+     * The class must implement MessageInterceptor and have a public
+     * constructor without parameters.
+     * @param className Fully qualified name of the interceptor's class
+     */
+    public void addInterceptor(String className) {
+        try {
+            MessageInterceptor interceptor = Class.forName(className).asSubclass(MessageInterceptor.class).getDeclaredConstructor().newInstance();
+            this.room.addInterceptor(className, interceptor, InterceptorPipeline.DEFAULT_BUDGET);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            System.err.println("Error loading interceptor: " + className + ".");
+        }
+    }
+
+    /**
+     * Rejects the messages containing any of the words or phrases listed in
+     * a file, one per line, before they are broadcast.
+     * @param file The list of blocked words and phrases
+     */
+    public void filterContent(File file) {
+        try {
+            this.room.addInterceptor("content filter", ContentFilter.load(file), 0); // Never bypassed, or clients could switch it off
+            System.out.println("> Server is filtering messages with the blocked words in: " + file + ".");
+        } catch (IOException e) {
+            System.err.println("Error reading the blocked words from: " + file + ".\nMessages are not filtered.");
+        }
+    }
+
+    /**
+     * Stops repeated messages before they are broadcast: a client sending
+     * the same message again within the window, or several clients sending
+     * the same long message more than a few times.
+     * @param mode What happens to the repeats sent by the same client
+     * @param window How long a message counts as a repeat after it was first sent, in milliseconds
+     */
+    public void suppressDuplicates(DuplicateFilter.Mode mode, long window) {
+        this.duplicateFilter = new DuplicateFilter(this.room, mode, window);
+        this.duplicateFilter.start(); // Rotate its Bloom filter and end its windows on its own thread
+        this.room.addInterceptor("duplicate filter", this.duplicateFilter, 0); // Never bypassed, or clients could switch it off
+        System.out.println("> Server is " + (mode == DuplicateFilter.Mode.DROP ? "dropping" : "collapsing")
+                + " repeated messages sent within " + window + " ms.");
+    }
+
+    /**
+     * Starts recording the traffic received from clients to a capture file,
+     * which Tools.TrafficReplay can replay against a Server.
+     * @param file The capture file, replaced if it exists
+     */
+    public void captureTraffic(File file) {
+        try {
+            this.trafficCapture = new TrafficCapture(file);
+            this.trafficCapture.start(); // Write the events on their own thread
+            this.room.setTrafficCapture(this.trafficCapture);
+            System.out.println("> Server is capturing the traffic to: " + file + ".");
+        } catch (IOException e) {
+            System.err.println("Error creating the capture file: " + file + ".\nThe traffic is not captured.");
+        }
+    }
+
+    /**
+     * Prints the metrics of every stage of the interceptor pipeline.
+     */
+    public void printInterceptorReport() {
+        for (String line : this.room.getInterceptorReport()) {
+            System.out.println("> " + line);
+        }
+    }
+
     /**
      * Shuts down the Server by closing the ServerSocket and informs connected
      * clients the Server is shutting down.
@@ -109,15 +411,50 @@ public class ChatServer {
                 System.out.println("> Server is shutting down.");
 
                 // Send message informing of clients that the Server shut down:
-                ClientHandler.informAll("The Server has shut down, enter \"EXIT\" to disconnect.");
+                this.room.informAll("The Server has shut down, enter \"EXIT\" to disconnect.");
+                this.room.stopBots(); // Stop the bots hosted by the Server
+                this.room.stopPresenceFeed(); // Stop sending changes to the list of clients
+                this.room.stopSequencer(); // Stop fanning out broadcasts
 
                 this.serverSocket.close(); // Closes the Socket used for listening to new connections
+                if (this.tlsListener != null) this.tlsListener.shutdown(); // Stops listening for secure connections
+                if (this.webSocketListener != null) this.webSocketListener.shutdown(); // Stops listening for WebSocket connections
+                if (this.unixListener != null) this.unixListener.shutdown(); // Stops listening for local connections
+                if (this.fileTransferListener != null) this.fileTransferListener.shutdown(); // Stops listening for file transfers
+                if (this.attachmentStore != null) this.attachmentStore.delete(); // Deletes the shared files
+                if (this.messageIndex != null) this.messageIndex.terminate(); // Writes the rest of the index to its directory
+                if (this.historyCompactor != null) this.historyCompactor.terminate(); // Stops compacting the history
+                if (this.duplicateFilter != null) this.duplicateFilter.terminate(); // Stops ending the repeats' windows
+                if (this.messageHistory != null) this.messageHistory.terminate(); // Writes the rest of the history to its directory
+                if (this.trafficCapture != null) this.trafficCapture.terminate(); // Writes the rest of the traffic and closes the capture
                 this.terminate(); // Sets running flag to false
             } catch (IOException e) {}
+            for (ChatServer tenant : this.tenants) {
+                tenant.shutdown(); // Shuts down the other tenants' Servers, which remove their own clients
+            }
         }
 
     }
 
+    /**
+     * Starts a Server for another tenant on a second port, in the same JVM.
+     * The tenant's clients never see this Server's clients, but they share
+     * this Server's connection threads, fan-out threads and buffers. The
+     * tenant's Server is shut down with this Server.
+     * @param tenantPort The port number the tenant's clients connect to
+     */
+    public void addTenant(int tenantPort) {
+        ChatServer tenant = new ChatServer(tenantPort, this.room.getResources());
+        if (!tenant.isRunning()) {
+            return; // The error has already been printed
+        }
+        tenant.setPresenceDigest(this.presenceWindow, this.presenceThreshold);
+        this.tenants.add(tenant);
+        tenant.room.startSequencer(); // Start fanning out the tenant's broadcasts in one order
+        tenant.room.startPresenceFeed(tenant.presenceWindow, tenant.presenceThreshold);
+        new Thread(tenant::acceptConnections).start(); // Accept the tenant's connections on their own thread
+    }
+
     /**
      * Starts threads responsible for handling new client connections and for
      * controlling the Server.
@@ -125,14 +462,26 @@ public class ChatServer {
     private void start() {
         if (!this.isRunning()) return; // Checks that the Server has started successfully
 
+        this.room.startSequencer(); // Start fanning out broadcasts in one order
+        // Start announcing connections, departures and name changes in batches
+        this.room.startPresenceFeed(this.presenceWindow, this.presenceThreshold);
+
         // Start thread for managing user input
         ServerController controller = new ServerController(this);
         controller.start();
 
+        this.acceptConnections();
+    }
+
+    /**
+     * Accepts new client connections and starts a ClientHandler for each,
+     * until the Server is shut down, e.g. by the "EXIT" command.
+     */
+    private void acceptConnections() {
         try {
-            while (controller.isRunning()) { // Checks if "EXIT" command has been issued by the controller
+            while (this.isRunning()) { // Checks if the Server has been shut down
                 // Create new ClientHandler thread to manage new client connection
-                ClientHandler newClient = new ClientHandler(this.serverSocket.accept());
+                ClientHandler newClient = new ClientHandler(this.room, this.serverSocket.accept());
                 newClient.start(); // Start thread to manage the connection
             }
         } catch (SocketException s) {
@@ -140,7 +489,7 @@ public class ChatServer {
         } catch (IOException e) {
             System.err.println("Error establishing new connection.");
         } finally {
-            ClientHandler.removeAll(); // Kick off all currently connected clients and terminate their threads
+            this.room.removeAll(); // Kick off all currently connected clients and terminate their threads
             this.shutdown(); // Shuts down the Server
         }
     }
@@ -148,11 +497,53 @@ public class ChatServer {
     public static void main(String[] args) {
         int port = 14001;
         String portStr = null;
+        String tlsPortStr = null;
+        String webSocketPortStr = null;
+        String unixPath = null;
+        String fileTransferPortStr = null;
+        String indexDirectory = null;
+        String historyDirectory = null;
+        String retentionStr = null;
+        String windowStr = null;
+        ArrayList<String> bots = new ArrayList<String>();
+        ArrayList<String> interceptors = new ArrayList<String>();
+        String blockedWordsFile = null;
+        String duplicatesStr = null;
+        String captureFile = null;
+        ArrayList<String> tenantPorts = new ArrayList<String>();
 
-        // Search and extract the -csp parameter
+        // Search and extract the -csp, -cst, -csw, -csl, -csf, -csi, -csh, -csr, -csd, -csb, -csc, -csu, -csq, -csm and -csx parameters
         for (int i = 0; i < args.length - 1; i++) {
             if (args[i].equals("-csp")) {
                 portStr = args[i + 1];
+            } else if (args[i].equals("-cst")) {
+                tlsPortStr = args[i + 1];
+            } else if (args[i].equals("-csw")) {
+                webSocketPortStr = args[i + 1];
+            } else if (args[i].equals("-csl")) {
+                unixPath = args[i + 1];
+            } else if (args[i].equals("-csf")) {
+                fileTransferPortStr = args[i + 1];
+            } else if (args[i].equals("-csi")) {
+                indexDirectory = args[i + 1];
+            } else if (args[i].equals("-csh")) {
+                historyDirectory = args[i + 1];
+            } else if (args[i].equals("-csr")) {
+                retentionStr = args[i + 1];
+            } else if (args[i].equals("-csd")) {
+                windowStr = args[i + 1];
+            } else if (args[i].equals("-csb")) {
+                bots.add(args[i + 1]); // The parameter can be repeated to host several bots
+            } else if (args[i].equals("-csc")) {
+                blockedWordsFile = args[i + 1];
+            } else if (args[i].equals("-csu")) {
+                duplicatesStr = args[i + 1];
+            } else if (args[i].equals("-csq")) {
+                captureFile = args[i + 1];
+            } else if (args[i].equals("-csm")) {
+                tenantPorts.add(args[i + 1]); // The parameter can be repeated, one Server per tenant
+            } else if (args[i].equals("-csx")) {
+                interceptors.add(args[i + 1]); // The parameter can be repeated, the interceptors run in the order given
             }
         }
 
@@ -165,6 +556,79 @@ public class ChatServer {
             }
         }
 
-        new ChatServer(port).start(); // Start a new ChatServer with the given parameters
+        // Every tenant's Server shares the same threads and buffers
+        ChatServer server = new ChatServer(port, new ServerResources(1 + tenantPorts.size()));
+        if (server.isRunning()) {
+            if (tlsPortStr != null) { // Check that a secure port number has been given
+                try {
+                    server.listenTls(Integer.parseInt(tlsPortStr));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error with the given secure port argument.\nNot listening for secure connections.");
+                }
+            }
+            if (webSocketPortStr != null) { // Check that a WebSocket port number has been given
+                try {
+                    server.listenWebSocket(Integer.parseInt(webSocketPortStr));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error with the given WebSocket port argument.\nNot listening for WebSocket connections.");
+                }
+            }
+            if (unixPath != null) { // Check that a Unix domain socket path has been given
+                server.listenUnix(unixPath);
+            }
+            if (fileTransferPortStr != null) { // Check that a file transfer port number has been given
+                try {
+                    server.listenFileTransfers(Integer.parseInt(fileTransferPortStr));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error with the given file transfer port argument.\nNot accepting file transfers.");
+                }
+            }
+            if (windowStr != null) { // Check that an announcement window has been given
+                try {
+                    server.setPresenceDigest(Long.parseLong(windowStr), PresenceFeed.DEFAULT_THRESHOLD);
+                } catch (NumberFormatException e) {
+                    System.err.println("Error with the given announcement window argument.\nUsing the default window.");
+                }
+            }
+            server.indexMessages(indexDirectory == null ? null : new File(indexDirectory));
+            if (historyDirectory != null) { // Check that a history directory has been given
+                long retention = DEFAULT_RETENTION;
+                if (retentionStr != null) {
+                    try {
+                        retention = Long.parseLong(retentionStr);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Error with the given retention argument.\nUsing the default retention.");
+                    }
+                }
+                server.keepHistory(new File(historyDirectory), retention);
+            }
+            if (captureFile != null) { // Check that a capture file has been given
+                server.captureTraffic(new File(captureFile));
+            }
+            for (String bot : bots) {
+                server.hostBot(bot); // Host the requested bots inside the Server
+            }
+            if (duplicatesStr != null) { // Check that a way of handling repeated messages has been given
+                try {
+                    server.suppressDuplicates(DuplicateFilter.Mode.valueOf(duplicatesStr.toUpperCase()), DuplicateFilter.DEFAULT_WINDOW);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error with the given repeated messages argument, use DROP or COLLAPSE.\nRepeated messages are broadcast.");
+                }
+            }
+            if (blockedWordsFile != null) { // Check that a list of blocked words has been given
+                server.filterContent(new File(blockedWordsFile));
+            }
+            for (String interceptor : interceptors) {
+                server.addInterceptor(interceptor); // Add the requested interceptors to the pipeline
+            }
+            for (String tenantPortStr : tenantPorts) {
+                try {
+                    server.addTenant(Integer.parseInt(tenantPortStr));
+                } catch (NumberFormatException e) {
+                    System.err.println("Error with the given tenant port argument: " + tenantPortStr + ".\nNot starting the tenant's Server.");
+                }
+            }
+        }
+        server.start(); // Start the ChatServer with the given parameters
     }
 }
@@ -1,74 +1,188 @@
 package Server;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.net.ssl.SSLSocket;
 
 /**
  * Handles a single connection between the Server and a Client.
+ * The client belongs to the ChatRoom of the Server it connected to, and only
+ * ever exchanges messages with the other clients of that room.
  * Implements Runnable.
  * Used on the Server side.
  */
 public class ClientHandler implements Runnable {
 
+    /**
+     * The clients this client exchanges messages with
+     */
+    private final ChatRoom room;
     /**
      * Socket used to establish connection between the Client and Server
      */
     private Socket clientSocket;
+    /**
+     * A unique number identifying the connection, which does not change when
+     * the client changes their name
+     */
+    private int clientId;
     /**
      * A unique username used to identify each client
      */
     private String clientName;
     /**
-     * Used to get messages from the client
+     * Used to get data from the client
+     */
+    protected InputStream inputStream;
+    /**
+     * The client's name followed by ": ", encoded in UTF-8; written in front
+     * of every message the client broadcasts
+     */
+    private byte[] senderPrefix;
+    /**
+     * Ends the line printed for every message received from the client,
+     * e.g. "\" from client [Client 1]" and a line break
+     */
+    private byte[] receivedSuffix;
+    /**
+     * The line printed for the message received last, reused for every message
      */
-    private BufferedReader input;
+    private byte[] receivedLine = new byte[BufferPool.BUFFER_SIZE];
+    /**
+     * Passes the client's lines through the interceptor pipeline, reused for every line
+     */
+    private InterceptedMessage intercepted = new InterceptedMessage(this);
     /**
      * Used to send server responses to the client
      */
-    private PrintWriter output;
+    protected OutputStream output;
+    /**
+     * Messages waiting to be written to the client, the Server's own ahead of the broadcasts
+     */
+    final Outbox outbox = new Outbox(this);
+    /**
+     * Filters registered by the client; when the list is not empty the client
+     * only receives broadcasts matching at least one of them
+     */
+    final List<MessageFilter> filters = new CopyOnWriteArrayList<MessageFilter>();
+    /**
+     * The consumer group the client has joined, or null if the client
+     * receives broadcasts on its own
+     */
+    ConsumerGroup group;
+    /**
+     * Numbers and keeps the messages sent to the client, or null if the client
+     * has not asked for reliable delivery
+     */
+    volatile DeliveryLog deliveryLog;
 
     /**
-     * ArrayList containing all current client connection handlers
+     * Maximum number of messages returned by SEARCH
      */
-    private static volatile ArrayList<ClientHandler> clients = new ArrayList<ClientHandler>();
+    private static final int SEARCH_RESULTS = 10;
 
     /**
-     * Keeps track of the number of total connections established; used
-     * to assign a unique number to each new connecting client
+     * Maximum number of messages sent by HISTORY, and to new clients when they connect
      */
-    private static volatile int clientNumber = 0;
+    private static final int HISTORY_PAGE = 20;
 
     /**
-     * A Reentrant lock used to access synchronised segments of code
+     * How long a client has to complete the opening handshake, in milliseconds
      */
-    private static Lock lock = new ReentrantLock();
+    static final int HANDSHAKE_TIMEOUT = 10000;
+    /**
+     * Largest message accepted from a client, in bytes; a client sending a
+     * longer one is disconnected, so a line never grows a buffer without limit
+     */
+    static final int MAX_MESSAGE_SIZE = 65536;
+    /**
+     * Size of each connection's socket send buffer, in bytes; kept small so a
+     * backlog waits in the client's outbox, where the Server's own messages
+     * can still go ahead of it, rather than in the socket
+     */
+    private static final int SEND_BUFFER_SIZE = 65536;
+
+    /**
+     * Written before messages that are not numbered
+     */
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    /**
+     * Starts the line printed for every message received from a client
+     */
+    private static final byte[] RECEIVED = "Received: \"".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Acknowledgement sent by clients using reliable delivery
+     */
+    private static final byte[] ACK_COMMAND = "ACK ".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Every command other than ACK, followed by a space or the end of the
+     * message; messages starting with anything else are broadcast without
+     * being decoded
+     */
+    private static final byte[][] COMMANDS = encodeAll("NAME", "FILTER", "GROUP", "RELIABLE", "RESUME", "WHO", "SEARCH", "UPLOAD", "DOWNLOAD", "HISTORY");
 
     /**
      * Creates new ClientHandler object to handle a new client connection
      * through the specified Socket.
-     * Assigns the client a unique username, initialises the required input and
-     * output data streams and appends the current client list
+     * Assigns the client a unique username and initialises the required input
+     * and output data streams. The client is added to the current client list
+     * by its own thread, once the connection has been established.
+     * @param room The clients of the Server the client connected to
      * @param clientSocket
      */
-    public ClientHandler(Socket clientSocket) {
-        this.clientName = "[Client " + clientNumber + "]"; // Assign unique username
+    public ClientHandler(ChatRoom room, Socket clientSocket) {
+        this.room = room;
+        this.clientId = room.nextClientId();
+        this.clientName = "[Client " + this.clientId + "]"; // Assign unique username
+        this.encodeName();
         this.clientSocket = clientSocket;
         try {
             // Initialise input and output data streams used to communicate between the client and server
-            this.input = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
-            this.output = new PrintWriter(new OutputStreamWriter(this.clientSocket.getOutputStream()), true);
-            ClientHandler.newConnection(this); // Update the current list of connected clients
+            this.inputStream = new BufferedInputStream(this.clientSocket.getInputStream());
+            this.output = new BufferedOutputStream(this.clientSocket.getOutputStream());
         } catch (IOException e) {
             System.out.println("Problem connecting client: " + this.clientName);
         }
+        try {
+            this.clientSocket.setSendBufferSize(SEND_BUFFER_SIZE);
+        } catch (IOException e) {
+            // The connection keeps the system's default send buffer
+        }
+    }
+
+    /**
+     * Encodes the parts of every broadcast and printed line that contain the
+     * client's name, so they are not encoded again for every message.
+     */
+    private void encodeName() {
+        this.senderPrefix = (this.clientName + ": ").getBytes(StandardCharsets.UTF_8);
+        this.receivedSuffix = ("\" from client " + this.clientName + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes several commands.
+     * @param commands The commands, in ASCII
+     * @return The encoded commands
+     */
+    private static byte[][] encodeAll(String... commands) {
+        byte[][] encoded = new byte[commands.length][];
+        for (int i = 0; i < commands.length; i++) {
+            encoded[i] = commands[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return encoded;
     }
 
     /**
@@ -87,6 +201,14 @@ public class ClientHandler implements Runnable {
         this.clientSocket = clientSocket;
     }
 
+    /**
+     * Getter method for the unique number identifying the connection.
+     * @return The connection's unique number
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
     /**
      * Getter method for the Client's name.
      * @return The Client's name
@@ -104,143 +226,259 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Updates the current list of connected clients and sends a list of
-     * commands to the new client.
-     * Uses a Reentrant lock to ensure synchronisation.
-     * Prints a message informing of addition of the client.
-     * @param newClient The new client to be added to the list
+     * Closes the Socket used for the connection, and the input and output data
+     * streams used.
      */
-    private static void newConnection(ClientHandler newClient) {
+    void terminate() {
+        this.outbox.close(); // Write the control messages still waiting, e.g. the disconnection notice
         try {
-            lock.lock(); // Used to synchronise the updating of the list
-            clients.add(newClient); // Adds new client to the list
-            clientNumber++; // Adjust the clientNumber for the next connection
-        } catch (Exception e) {
-            System.err.println("Error adding client to list.");
-        } finally {
-            System.out.println("> Client: " + newClient.clientName + " has been added to the list.");
-            lock.unlock(); // Unlocks the synchronised block of code
-            sendCommands(newClient); // Sends a list of commands on how to navigate the server
-            informAll("New connection. Client: " + newClient.clientName + " has connected." ); // Inform connected clients of new connection
+            this.clientSocket.close(); // Close the Socket associated with this Client
+            // Close the IO stream readers/writers used:
+            this.inputStream.close();
+            this.output.close();
+        } catch (SocketException s) {
+            System.err.println("Error closing " + this.clientName + "'s client socket.");
+        } catch (IOException e) {
+            System.err.println("Error closing input/output stream/writer");
         }
     }
 
     /**
-     * Removes a client from the list of connected clients, closing any input
-     * and output streams associated with them as well as the Socket they used.
-     * Uses a Reentrant lock to ensure synchronisation.
-     * @param client Client to be removed from the list
+     * Sends a message from the Server to a specified client, ahead of the
+     * broadcasts waiting to be written to the client.
+     * @param client The recipient of the message
+     * @param message The message to be sent to the client
      */
-    public static void removeClient(ClientHandler client) {
-        if (client.clientSocket.isClosed()) { // Check if the client has already been removed
-            return;
+    private static void broadcast(ClientHandler client, String message) {
+        sendControl(client, PooledBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), true);
+    }
+
+    /**
+     * Queues a broadcast in a specified client's chat lane, optionally
+     * leaving it there so several messages are sent together.
+     * Broadcasts to many clients encode the message once and pass the same
+     * payload to every client.
+     * @param client The recipient of the message
+     * @param payload The message encoded in UTF-8, shared by all recipients and never modified;
+     * retained by the client's outbox until it has been written
+     * @param flush true to send the message straight away, false to leave it
+     * until the client's outbox is flushed
+     */
+    static void broadcast(ClientHandler client, PooledBuffer payload, boolean flush) {
+        client.outbox.offer(payload, false, client.deliveryLog != null);
+        if (flush) {
+            client.outbox.flush();
         }
+    }
 
-        try {
-            lock.lock(); // Used to synchronise the list updating
-            broadcast(client, "[Server]: You've been disconnected from the server."); // Inform the Client they are being removed
+    /**
+     * Queues a message from the Server in a specified client's control lane,
+     * which is written ahead of the broadcasts waiting in the chat lane.
+     * @param client The recipient of the message
+     * @param payload The message encoded in UTF-8; retained by the client's outbox until it has been written
+     * @param numbered true to number the message if the client asked for reliable delivery
+     */
+    static void sendControl(ClientHandler client, PooledBuffer payload, boolean numbered) {
+        client.outbox.offer(payload, true, numbered && client.deliveryLog != null);
+        client.outbox.flush();
+    }
 
-            clients.remove(client); // Update the list of clients
+    /**
+     * Writes a message taken from the client's outbox to the client's output buffer.
+     * Numbered messages are prefixed with their sequence number, e.g.
+     * "#42 [Client 1]: Hello", and kept until the client acknowledges them.
+     * They are given their number here rather than when queued, so the
+     * numbers follow the order they are written in, whichever lane they were
+     * queued in.
+     * If the message cannot be written the client's connection is shut down,
+     * so the client gets removed by its own thread.
+     * @param payload The message encoded in UTF-8; retained by the client's delivery log if it keeps the message
+     * @param numbered true to number the message, if the client still has a reliable session
+     */
+    void writeQueued(PooledBuffer payload, boolean numbered) {
+        DeliveryLog log = numbered ? this.deliveryLog : null;
+        try {
+            if (log == null) {
+                this.writeMessage(NO_PREFIX, 0, payload.array(), 0, payload.length());
+            } else {
+                synchronized (log) { // Write the messages in the order of their sequence numbers
+                    int prefixLength = log.formatPrefix(log.append(payload));
+                    this.writeMessage(log.getPrefix(), prefixLength, payload.array(), 0, payload.length());
+                }
+            }
+        } catch (IOException e) { // The message could not be written
+            this.writeFailed();
+        }
+    }
 
-            client.terminate(); // Close the input, output streams and Sockets used
-        } catch (Exception e) {
-            System.err.println("Error removing client from list.");
-        } finally {
-            informAll("Client " + client.clientName + " has left the Server."); // Inform all connected clients that a client left
-            System.out.println("> Client: " + client.clientName + " has been removed from the list.");
-            lock.unlock(); // Unlock the synchronised block of code
+    /**
+     * Keeps a broadcast that was never written because the client was
+     * removed, if the client asked for reliable delivery, so it is sent if
+     * the session is resumed.
+     * @param payload The message encoded in UTF-8; retained by the client's delivery log
+     */
+    void keepQueued(PooledBuffer payload) {
+        DeliveryLog log = this.deliveryLog;
+        if (log != null) {
+            log.append(payload);
         }
     }
 
     /**
-     * Closes the Socket used for the connection, and the input and output data
-     * streams used.
+     * Sends the messages left in this client's output buffer.
+     * If they cannot be written the client's connection is shut down.
      */
-    private void terminate() {
+    void flushOutput() {
         try {
-            this.clientSocket.close(); // Close the Socket associated with this Client
-            // Close the IO stream readers/writers used:
-            this.input.close();
-            this.output.close();
-        } catch (SocketException s) {
-            System.err.println("Error closing " + this.clientName + "'s client socket.");
+            synchronized (this.output) {
+                this.output.flush();
+            }
         } catch (IOException e) {
-            System.err.println("Error closing input/output stream/writer");
+            this.writeFailed();
         }
     }
 
     /**
-     * Removes all connected clients from the server.
+     * Sends a message to this client without numbering it, even if the client
+     * asked for reliable delivery, ahead of the broadcasts waiting to be written.
+     * @param message The message to be sent
      */
-    public static void removeAll() {
-        if (clients.isEmpty()) { // If there are no current connections, return
-            return;
-        }
-        try {
-            lock.lock(); // Synchronise the accessing of the list of connections
-            while (!clients.isEmpty()) {
-                removeClient(clients.remove(0)); // Remove each connection
-            }
-        } finally {
-            lock.unlock();
+    void sendUnnumbered(String message) {
+        sendControl(this, PooledBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    /**
+     * Writes a message to the client's output buffer as a single line; it is
+     * sent when the output is flushed, or when the buffer is full.
+     * The prefix and payload are written one after the other, so the shared
+     * payload never has to be copied.
+     * Subclasses using a different framing override this method.
+     * @param prefix Written before the payload, e.g. the sequence number
+     * @param prefixLength Number of bytes of the prefix in use
+     * @param payload The message encoded in UTF-8
+     * @param offset Index of the payload's first byte
+     * @param length Number of bytes of the payload
+     * @throws IOException If the message could not be written
+     */
+    protected void writeMessage(byte[] prefix, int prefixLength, byte[] payload, int offset, int length) throws IOException {
+        synchronized (this.output) { // Messages from different threads must not be interleaved
+            this.output.write(prefix, 0, prefixLength);
+            this.output.write(payload, offset, length);
+            this.output.write('\n');
         }
     }
 
     /**
-     * Broadcasts a message from to a specified client.
-     * @param client The recipient of the message
-     * @param message The message to be sent to the client
+     * Reads the next message sent by the client into a buffer, after the
+     * bytes already in it, without its line ending.
+     * Lines may end with "\n" or "\r\n".
+     * Subclasses using a different framing override this method.
+     * @param buffer The buffer the message is appended to, encoded in UTF-8
+     * @return true if a message was read, false if the client has closed the connection
+     * @throws IOException If the message could not be read, or is longer than MAX_MESSAGE_SIZE
      */
-    private static void broadcast(ClientHandler client, String message) {
-        client.output.println(message); // Send the message using the PrintWriter
+    protected boolean readMessage(PooledBuffer buffer) throws IOException {
+        int start = buffer.length();
+        int b;
+        while ((b = this.inputStream.read()) != '\n') {
+            if (b < 0) {
+                return buffer.length() > start; // The last line may end without a line break
+            }
+            if (buffer.length() - start > MAX_MESSAGE_SIZE) { // One more byte is allowed for a "\r"
+                throw new IOException("Message too long.");
+            }
+            buffer.append(b);
+        }
+        if (buffer.length() > start && buffer.array()[buffer.length() - 1] == '\r') {
+            buffer.setLength(buffer.length() - 1);
+        }
+        return true;
     }
 
     /**
-     * Broadcasts a message to all connected clients.
-     * @param message The message to be sent to all clients
+     * Shuts down the input of the connection after a failed write, which ends
+     * the client's thread and removes the client.
+     * The socket is not closed here, so removeClient() still removes the client.
      */
-    private void broadcastToAll(String message) {
+    void writeFailed() {
         try {
-            lock.lock(); // Synchronise the looping through the list of clients
-            message = this.clientName + ": " + message; // Add the username of the Client sending the message
-            for (ClientHandler client : clients) { // Iterate through the list of clients
-                broadcast(client, message); // broadcast the message to each client
+            if (!this.clientSocket.isInputShutdown()) {
+                this.clientSocket.shutdownInput();
             }
-        } finally {
-            lock.unlock();
+        } catch (IOException e) {
+            // The connection is already broken, the client's thread removes the client
         }
     }
 
     /**
-     * Broadcasts a message from the Server to all clients.
-     * @param message The message from the server to be broadcasted
+     * Checks if a broadcast should be delivered to this client, using the
+     * filters registered by the client.
+     * @param sender Name of the sender of the broadcast
+     * @param message The message broadcasted, without the sender's name
+     * @return true if the client has no filters or the message matches any of them
      */
-    public static void informAll(String message) {
-        try {
-            lock.lock(); // Synchronise the looping through the list of clients
-            message = "[Server]: " + message;
-            for (ClientHandler client : clients) { // Iterate through the list of clients
-                broadcast(client, message); // broadcast the message to each client
+    boolean accepts(String sender, String message) {
+        if (this.filters.isEmpty()) {
+            return true; // Clients without filters receive every broadcast
+        }
+        for (MessageFilter filter : this.filters) {
+            if (filter.matches(sender, message)) {
+                return true;
             }
-        } finally {
-            lock.unlock();
         }
+        return false;
+    }
+
+    /**
+     * Broadcasts a message to all connected clients whose filters accept it.
+     * Clients in a consumer group share the message, only one member of each
+     * group receives it.
+     * @param message The message to be sent to all clients
+     */
+    private void broadcastToAll(String message) {
+        this.room.deliver(this.clientName, message);
+    }
+
+    /**
+     * Broadcasts a message read from this client to all connected clients
+     * whose filters accept it, without decoding it.
+     * @param payload The message, including the client's name, encoded in UTF-8;
+     * the caller's reference is handed to the sequencer
+     * @param textOffset Index of the payload's first byte after the client's name
+     */
+    private void broadcastToAll(PooledBuffer payload, int textOffset) {
+        this.room.publish(this.clientName, payload, textOffset);
+    }
+
+    /**
+     * Sends a message to this client only.
+     * @param message The message to be sent
+     */
+    void send(String message) {
+        broadcast(this, message);
     }
 
     /**
      * Sends a list of commands to a client, when they first connect.
      * List of commands:
      * 1. NAME "name" = set name for client
-     * 2. QUIT = exit server
-     * @param client Client that just connected
+     * 2. FILTER "type" "value" = only receive matching broadcasts
+     * 3. GROUP "name" = share broadcasts with the other members of a group
+     * 4. QUIT = exit server
      */
-    private static void sendCommands(ClientHandler client) {
+    void sendCommands() {
         // Array of commands:
         String commandArray[] = {"[Server]: To change your name type: \"NAME\" followed by a space and your desired name.",
+                "[Server]: To only receive some messages type: \"FILTER\" followed by MENTION, KEYWORD or SENDER and a value. \"FILTER CLEAR\" removes your filters.",
+                "[Server]: To share messages with other members of a group type: \"GROUP\" followed by a space and the group's name. \"GROUP LEAVE\" leaves your group.",
+                "[Server]: To list the connected clients type: \"WHO\". \"WHO WATCH\" also sends you every change to the list, \"WHO STOP\" stops them.",
+                "[Server]: To search earlier messages type: \"SEARCH\" followed by the words you are looking for.",
+                "[Server]: To read earlier messages type: \"HISTORY\" followed by a message's number, or \"HISTORY SINCE\" followed by a number of minutes.",
+                "[Server]: To share a file type: \"UPLOAD\" followed by the file's path. \"DOWNLOAD\" followed by a shared file's reference saves it.",
                 "[Server]: To disconnect and exit the application, please send message: \"EXIT\"."};
         // Iterate through the array of commands and send each command seperately
         for (int i = 0; i < commandArray.length; i++) {
-            broadcast(client, commandArray[i]); // Send every command to the client
+            broadcast(this, commandArray[i]); // Send every command to the client
         }
     }
 
@@ -252,16 +490,21 @@ public class ClientHandler implements Runnable {
     private boolean checkUniqueName(String clientName) {
         boolean nameTaken = true; // Used to indicate if the name is unique
         try {
-            lock.lock(); // Synchronise the searching of the list of clients
+            this.room.lock.lock(); // Synchronise the searching of the list of clients
 
-            for (ClientHandler client : clients) {
+            for (ClientHandler client : this.room.clients) {
                 if (client.clientName.equalsIgnoreCase("[" + clientName + "]")) {
                     nameTaken = false; // Name is already in use by another client
                 }
             }
+            for (HostedBot bot : this.room.hostedBots) {
+                if (bot.getBotName().equalsIgnoreCase("[" + clientName + "]")) {
+                    nameTaken = false; // Name is already in use by a hosted bot
+                }
+            }
 
         } finally {
-            lock.unlock(); // Release the synchronised block of code
+            this.room.lock.unlock(); // Release the synchronised block of code
         }
         return nameTaken;
     }
@@ -281,18 +524,513 @@ public class ClientHandler implements Runnable {
                 broadcast(this, "[Server]: Error setting name, the name you requested is already in use by another client or is not allowed.");
             } else {
                 // Inform all clients of the name change and set the clients username to the new name:
-                informAll("Client " + this.clientName + " has changed their name to [" + requestedName + "].");
-                this.clientName = "[" + requestedName + "]"; // Change client's name
+                this.room.presenceFeed.announce(PresenceFeed.Kind.RENAMED,
+                        "Client " + this.clientName + " has changed their name to [" + requestedName + "].");
+                try {
+                    this.room.lock.lock(); // Snapshots must be published in the order of the changes
+                    this.room.roster = this.room.roster.withRenamed(this.clientName, "[" + requestedName + "]");
+                    this.clientName = "[" + requestedName + "]"; // Change client's name
+                    this.encodeName();
+                } finally {
+                    this.room.lock.unlock();
+                }
             }
         }
     }
 
+    /**
+     * Registers or clears a subscription filter for this client.
+     * Once a filter is registered, the client only receives broadcasts that
+     * match at least one of its filters. A client can register at most
+     * MessageFilter.MAX_FILTERS filters.
+     * @param message The message containing the filter command
+     */
+    private void changeFilter(String message) {
+        String spec = message.length() > 7 ? message.substring(7).trim() : "";
+        if (spec.equalsIgnoreCase("CLEAR")) {
+            this.filters.clear(); // Receive every broadcast again
+            broadcast(this, "[Server]: Your filters have been cleared.");
+            return;
+        }
+        if (this.filters.size() >= MessageFilter.MAX_FILTERS) { // Every filter is checked for every broadcast
+            broadcast(this, "[Server]: Error setting filter, you already have " + MessageFilter.MAX_FILTERS
+                    + " filters. \"FILTER CLEAR\" removes them.");
+            return;
+        }
+        try {
+            MessageFilter filter = MessageFilter.parse(spec);
+            this.filters.add(filter);
+            broadcast(this, "[Server]: Filter added: " + filter + ".");
+        } catch (IllegalArgumentException e) { // Unknown filter type, missing value or value too long
+            broadcast(this, "[Server]: Error setting filter, type \"FILTER\" followed by MENTION, KEYWORD or SENDER and a value of at most "
+                    + MessageFilter.MAX_VALUE_LENGTH + " characters.");
+        }
+    }
+
+    /**
+     * Adds this client to a consumer group, creating the group if needed.
+     * Must be called while holding the room's lock.
+     * @param groupName The name of the group to join
+     */
+    private void joinGroup(String groupName) {
+        ConsumerGroup consumerGroup = this.room.groups.get(groupName);
+        if (consumerGroup == null) { // First member of the group
+            consumerGroup = new ConsumerGroup(groupName);
+            this.room.groups.put(groupName, consumerGroup);
+        }
+        consumerGroup.add(this);
+        this.group = consumerGroup;
+    }
+
+    /**
+     * Removes this client from its consumer group, if it has joined one, and
+     * removes the group once it is empty.
+     * Must be called while holding the room's lock.
+     */
+    void leaveGroup() {
+        if (this.group == null) {
+            return;
+        }
+        this.group.remove(this);
+        if (this.group.isEmpty()) {
+            this.room.groups.remove(this.group.getName());
+        }
+        this.group = null;
+    }
+
+    /**
+     * Joins or leaves a consumer group.
+     * Members of a group share the broadcasts sent to the group: each
+     * broadcast is delivered to exactly one member.
+     * @param message The message containing the group command
+     */
+    private void changeGroup(String message) {
+        String groupName = message.length() > 6 ? message.substring(6).trim() : "";
+        if (groupName.isEmpty()) {
+            broadcast(this, "[Server]: Error joining group, type \"GROUP\" followed by a space and the group's name.");
+            return;
+        }
+        try {
+            this.room.lock.lock(); // Synchronise the updating of the groups
+            this.leaveGroup(); // A client can only be a member of one group
+            if (!groupName.equalsIgnoreCase("LEAVE")) {
+                this.joinGroup(groupName);
+            }
+        } finally {
+            this.room.lock.unlock();
+        }
+        broadcast(this, groupName.equalsIgnoreCase("LEAVE") ? "[Server]: You have left your group."
+                : "[Server]: You have joined group: " + groupName + ".");
+    }
+
+    /**
+     * Starts numbering the messages sent to this client and keeping them until
+     * they are acknowledged, and sends the client the token used to resume
+     * the session after reconnecting.
+     */
+    private void startReliableSession() {
+        if (this.deliveryLog != null) {
+            broadcast(this, "[Server]: SESSION " + this.deliveryLog.getSessionId());
+            return; // Already reliable
+        }
+        DeliveryLog log;
+        try {
+            this.room.lock.lock(); // Synchronise the updating of the sessions
+            this.room.expireSessions();
+            long token;
+            do {
+                token = this.room.sessionTokens.nextLong() & Long.MAX_VALUE;
+            } while (this.room.sessions.containsKey(token));
+            log = new DeliveryLog(token);
+            this.room.sessions.put(token, log);
+        } finally {
+            this.room.lock.unlock();
+        }
+        this.deliveryLog = log;
+        broadcast(this, "[Server]: SESSION " + log.getSessionId()); // Sent with sequence number 1
+    }
+
+    /**
+     * Resumes a reliable session after the client reconnected, sending again
+     * every message the client has not acknowledged.
+     * @param message The message containing the resume command, e.g. "RESUME 1234 41"
+     */
+    private void resumeSession(String message) {
+        String parts[] = message.split(" ");
+        DeliveryLog log = null;
+        long lastSeq = 0;
+        try {
+            this.room.lock.lock(); // Synchronise the accessing of the sessions
+            this.room.expireSessions();
+            if (parts.length == 3 && this.deliveryLog == null) {
+                lastSeq = Long.parseLong(parts[2]);
+                log = this.room.sessions.get(Long.parseLong(parts[1]));
+            }
+            for (ClientHandler client : this.room.clients) { // The session's old connection may not have been noticed as lost yet
+                if (log != null && client != this && client.deliveryLog == log) {
+                    client.deliveryLog = null;
+                    client.writeFailed(); // End the old connection
+                }
+            }
+        } catch (NumberFormatException n) {
+            log = null;
+        } finally {
+            this.room.lock.unlock();
+        }
+        if (log == null) {
+            broadcast(this, "[Server]: Error resuming session, the session does not exist or has expired.");
+            return;
+        }
+
+        synchronized (log) { // No new messages can be numbered until the old ones have been sent again
+            log.attach();
+            log.acknowledge(lastSeq); // The client has received everything up to lastSeq
+            long seq = log.getFirstRetainedSeq();
+            try {
+                if (seq > lastSeq + 1) { // Written straight away, before the messages sent again
+                    byte[] notice = ("[Server]: " + (seq - lastSeq - 1) + " messages could not be sent again.").getBytes(StandardCharsets.UTF_8);
+                    this.writeMessage(NO_PREFIX, 0, notice, 0, notice.length);
+                }
+                for (PooledBuffer unacknowledged : log.getUnacknowledged()) {
+                    int prefixLength = log.formatPrefix(seq++); // Send the message again with its original number
+                    this.writeMessage(log.getPrefix(), prefixLength, unacknowledged.array(), 0, unacknowledged.length());
+                }
+                synchronized (this.output) {
+                    this.output.flush();
+                }
+            } catch (IOException e) {
+                this.writeFailed(); // Still attach the log below, so the messages are kept for the next attempt
+            }
+            this.deliveryLog = log;
+        }
+    }
+
+    /**
+     * Sends the client the names of the connected clients, read from the
+     * current roster snapshot without waiting for the lock.
+     * "WHO WATCH" also starts sending the client the changes to the roster in
+     * batches, "WHO STOP" stops them.
+     * @param message The client's WHO command
+     */
+    private void who(String message) {
+        String option = message.substring("WHO".length()).trim();
+        if (option.equalsIgnoreCase("STOP")) {
+            this.room.presenceFeed.unwatch(this);
+            broadcast(this, "[Server]: You will no longer receive changes to the list of connected clients.");
+            return;
+        } else if (!option.isEmpty() && !option.equalsIgnoreCase("WATCH")) {
+            broadcast(this, "[Server]: Error listing clients, type \"WHO\", \"WHO WATCH\" or \"WHO STOP\".");
+            return;
+        }
+        if (option.equalsIgnoreCase("WATCH")) {
+            this.room.presenceFeed.watch(this); // Changes after the snapshot below are sent with the next batch
+        }
+        Roster snapshot = this.room.roster;
+        broadcast(this, "[Server]: WHO " + snapshot.getVersion() + " " + snapshot.size() + " connected: "
+                + String.join(", ", snapshot.getNames()));
+    }
+
+    /**
+     * Sends the client the newest earlier messages containing every word of a
+     * search, e.g. "SEARCH lunch friday".
+     * @param message The client's SEARCH command
+     */
+    private void search(String message) {
+        MessageIndex index = this.room.messageIndex;
+        String query = message.substring("SEARCH".length()).trim();
+        if (index == null) {
+            broadcast(this, "[Server]: Searching is not available on this server.");
+            return;
+        } else if (query.isEmpty()) {
+            broadcast(this, "[Server]: Error searching, type \"SEARCH\" followed by the words you are looking for.");
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<String> results = index.search(query, SEARCH_RESULTS);
+        double milliseconds = (System.nanoTime() - start) / 1e6;
+        if (results.isEmpty()) {
+            broadcast(this, String.format("[Server]: No messages found for \"%s\" (%.1f ms).", query, milliseconds));
+            return;
+        }
+        broadcast(this, String.format("[Server]: Newest %d messages found for \"%s\" (%.1f ms):", results.size(), query, milliseconds));
+        for (String result : results) {
+            broadcast(this, "[Server]: > " + result);
+        }
+    }
+
+    /**
+     * Sends a new client the newest messages of the history, from memory, so
+     * it sees what was said just before it connected.
+     */
+    void sendLatest() {
+        MessageHistory history = this.room.messageHistory;
+        if (history == null) {
+            return;
+        }
+        List<HistorySegment.Entry> latest = history.latest(HISTORY_PAGE);
+        if (latest.isEmpty()) {
+            return;
+        }
+        broadcast(this, "[Server]: Newest " + latest.size() + " messages:");
+        for (HistorySegment.Entry entry : latest) {
+            broadcast(this, "[Server]: > " + entry);
+        }
+    }
+
+    /**
+     * Sends the client earlier messages from the history, HISTORY_PAGE at a
+     * time: "HISTORY 1200" sends the messages from number 1200 onwards,
+     * "HISTORY SINCE 30" those sent in the last 30 minutes, and "HISTORY"
+     * alone the newest messages.
+     * @param message The client's HISTORY command
+     */
+    private void history(String message) {
+        MessageHistory history = this.room.messageHistory;
+        String option = message.substring("HISTORY".length()).trim();
+        if (history == null) {
+            broadcast(this, "[Server]: The history is not kept on this server.");
+            return;
+        } else if (option.isEmpty()) {
+            this.sendLatest();
+            return;
+        }
+
+        long fromNumber = Long.MIN_VALUE;
+        long fromTime = Long.MIN_VALUE;
+        try {
+            if (option.toUpperCase().startsWith("SINCE")) {
+                fromTime = System.currentTimeMillis() - Long.parseLong(option.substring("SINCE".length()).trim()) * 60 * 1000;
+            } else {
+                fromNumber = Long.parseLong(option);
+            }
+        } catch (NumberFormatException n) {
+            broadcast(this, "[Server]: Error reading history, type \"HISTORY\" followed by a message's number, or \"HISTORY SINCE\" followed by a number of minutes.");
+            return;
+        }
+
+        List<HistorySegment.Entry> entries;
+        try {
+            entries = history.read(fromNumber, fromTime, HISTORY_PAGE);
+        } catch (IOException e) {
+            System.err.println("Error reading history for client: " + this.clientName);
+            broadcast(this, "[Server]: Error reading history, please try again later.");
+            return;
+        }
+        if (entries.isEmpty()) {
+            broadcast(this, "[Server]: No messages found in the history.");
+            return;
+        }
+        broadcast(this, "[Server]: " + entries.size() + " messages from the history:");
+        for (HistorySegment.Entry entry : entries) {
+            broadcast(this, "[Server]: > " + entry);
+        }
+        if (entries.size() == HISTORY_PAGE) {
+            broadcast(this, "[Server]: Type \"HISTORY " + (entries.get(entries.size() - 1).getNumber() + 1) + "\" for the next messages.");
+        }
+    }
+
+    /**
+     * Hands the client a ticket for uploading a file on the file transfer
+     * port, e.g. "UPLOAD 2048 <sha256> notes.txt" for a file of 2048 bytes
+     * with the given SHA-256 hash, in hexadecimal.
+     * If the Server already stores a file with that hash it is shared again
+     * straight away, without uploading it. Otherwise the other clients are
+     * told about the file once it has been uploaded and its hash checked.
+     * @param message The client's UPLOAD command
+     */
+    private void upload(String message) {
+        AttachmentStore store = this.room.attachmentStore;
+        String parts[] = message.split(" ", 4);
+        if (store == null) {
+            broadcast(this, "[Server]: File transfers are not available on this server.");
+            return;
+        }
+        long size = -1;
+        try {
+            size = parts.length == 4 ? Long.parseLong(parts[1]) : -1;
+        } catch (NumberFormatException n) {
+            // Reported below
+        }
+        if (size <= 0 || size > AttachmentStore.MAX_FILE_SIZE || !parts[2].matches("[0-9a-f]{64}") || parts[3].trim().isEmpty()) {
+            broadcast(this, "[Server]: Error uploading file, type \"UPLOAD\" followed by the file's size in bytes (at most "
+                    + AttachmentStore.MAX_FILE_SIZE + "), its SHA-256 hash and its name.");
+            return;
+        }
+        AttachmentStore.Blob blob = store.findByHash(parts[2]);
+        if (blob != null && blob.getSize() == size) { // Already stored, share it again without uploading it
+            store.share(blob, parts[3].trim());
+            broadcast(this, "[Server]: Upload skipped, the Server already has the file.");
+            this.room.announceFile(this.clientName, blob);
+            return;
+        }
+        long ticket = store.reserveUpload(this.clientName, parts[3].trim(), size, parts[2]);
+        if (ticket == 0) {
+            broadcast(this, "[Server]: Error uploading file, the Server has no room for it; wait for your other uploads to finish.");
+            return;
+        }
+        broadcast(this, "[Server]: UPLOAD " + ticket + " " + this.room.fileTransferPort);
+    }
+
+    /**
+     * Hands the client a ticket for downloading a shared file on the file
+     * transfer port, e.g. "DOWNLOAD 3f2a9c01b7e4" using the reference given
+     * when the file was shared.
+     * @param message The client's DOWNLOAD command
+     */
+    private void download(String message) {
+        AttachmentStore store = this.room.attachmentStore;
+        if (store == null) {
+            broadcast(this, "[Server]: File transfers are not available on this server.");
+            return;
+        }
+        AttachmentStore.Blob blob = store.find(message.substring("DOWNLOAD".length()).trim());
+        long ticket = blob == null ? 0 : store.reserveDownload(blob); // 0 if it expired since it was found
+        if (ticket == 0) {
+            broadcast(this, "[Server]: Error downloading file, the file does not exist or has expired.");
+            return;
+        }
+        broadcast(this, "[Server]: DOWNLOAD " + ticket + " " + this.room.fileTransferPort + " " + blob.getSize() + " " + blob.getName());
+    }
+
+    /**
+     * Acknowledges every message sent to this client up to a sequence number.
+     * The number is read straight from the received bytes, as reliable
+     * clients acknowledge nearly every message.
+     * @param message The message containing the acknowledgement, e.g. "ACK 41"
+     * @param from Index of the first byte after "ACK "
+     */
+    private void acknowledge(PooledBuffer message, int from) {
+        if (this.deliveryLog == null) {
+            return; // The client has not asked for reliable delivery
+        }
+        byte[] bytes = message.array();
+        int to = message.length();
+        while (from < to && bytes[from] <= ' ') from++; // Ignore the spaces around the number
+        while (to > from && bytes[to - 1] <= ' ') to--;
+        long seq = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9' || i - from >= 19) { // Not a number, or too long for a sequence number
+                broadcast(this, "[Server]: Error acknowledging messages, type \"ACK\" followed by a sequence number.");
+                return;
+            }
+            seq = seq * 10 + (bytes[i] - '0');
+        }
+        if (from == to || seq < 0) { // No number, or a number that overflowed
+            broadcast(this, "[Server]: Error acknowledging messages, type \"ACK\" followed by a sequence number.");
+            return;
+        }
+        this.deliveryLog.acknowledge(seq);
+    }
+
+    /**
+     * Checks if a message read from the client is a command rather than a
+     * message to be broadcast. The command must be the whole message or be
+     * followed by a space, so e.g. "WHOA" is broadcast.
+     * @param message The message, encoded in UTF-8
+     * @param from Index of the message's first byte
+     * @return true if the message starts with a command, false otherwise
+     */
+    static boolean isCommand(PooledBuffer message, int from) {
+        for (byte[] command : COMMANDS) {
+            int end = from + command.length;
+            if (message.startsWith(command, from) && (end == message.length() || message.array()[end] == ' ')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a message is the given command, either on its own or
+     * followed by a space and its parameters.
+     * @param message The message
+     * @param command The command, e.g. "WHO"
+     * @return true if the message is the command, false otherwise
+     */
+    private static boolean isCommand(String message, String command) {
+        return message.equals(command) || message.startsWith(command + " ");
+    }
+
+    /**
+     * The last stage of the interceptor pipeline: checks for commands and
+     * calls the corresponding function. Other messages are let through to
+     * be broadcast without being decoded.
+     * @param intercepted The message
+     * @return HANDLED for a command, CONTINUE otherwise
+     */
+    MessageInterceptor.Verdict route(InterceptedMessage intercepted) {
+        if (!isCommand(intercepted.getPayload(), intercepted.getTextOffset())) {
+            return MessageInterceptor.Verdict.CONTINUE;
+        }
+        String message = intercepted.getText();
+
+        // Checks for commands
+        if (isCommand(message, "NAME")) {
+            this.changeName(message); // Calls function to handle name change
+        } else if (isCommand(message, "FILTER")) {
+            this.changeFilter(message); // Calls function to register a filter
+        } else if (isCommand(message, "GROUP")) {
+            this.changeGroup(message); // Calls function to join or leave a group
+        } else if (message.equals("RELIABLE")) {
+            this.startReliableSession(); // Calls function to number and keep the client's messages
+        } else if (isCommand(message, "RESUME")) {
+            this.resumeSession(message); // Calls function to resume a reliable session
+        } else if (isCommand(message, "WHO")) {
+            this.who(message); // Calls function to list the connected clients
+        } else if (isCommand(message, "SEARCH")) {
+            this.search(message); // Calls function to search earlier messages
+        } else if (isCommand(message, "HISTORY")) {
+            this.history(message); // Calls function to read earlier messages
+        } else if (isCommand(message, "UPLOAD")) {
+            this.upload(message); // Calls function to hand out an upload ticket
+        } else if (isCommand(message, "DOWNLOAD")) {
+            this.download(message); // Calls function to hand out a download ticket
+        } else {
+            broadcastToAll(message); // Broadcasts message to all other clients
+        }
+        return MessageInterceptor.Verdict.HANDLED;
+    }
+
+    /**
+     * Prints that a message has been received from the client, writing the
+     * message's bytes as they were received so it does not have to be decoded.
+     * @param message The message, encoded in UTF-8
+     * @param from Index of the message's first byte
+     */
+    private void printReceived(PooledBuffer message, int from) {
+        int length = RECEIVED.length + (message.length() - from) + this.receivedSuffix.length;
+        if (length > this.receivedLine.length) {
+            this.receivedLine = Arrays.copyOf(this.receivedLine, Math.max(length, this.receivedLine.length * 2));
+        }
+        // Assemble the whole line first, so it is printed with a single write
+        System.arraycopy(RECEIVED, 0, this.receivedLine, 0, RECEIVED.length);
+        System.arraycopy(message.array(), from, this.receivedLine, RECEIVED.length, message.length() - from);
+        System.arraycopy(this.receivedSuffix, 0, this.receivedLine, length - this.receivedSuffix.length, this.receivedSuffix.length);
+        System.out.write(this.receivedLine, 0, length);
+    }
+
+    /**
+     * Performs the TLS handshake if the client connected securely.
+     * The client must complete the handshake within HANDSHAKE_TIMEOUT.
+     * Subclasses speaking a different protocol extend this method with their
+     * own opening handshake.
+     * @throws IOException If the handshake fails or times out
+     */
+    protected void handshake() throws IOException {
+        if (this.clientSocket instanceof SSLSocket) {
+            this.clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            ((SSLSocket) this.clientSocket).startHandshake(); // Resumes the client's session if it is still cached
+            this.clientSocket.setSoTimeout(0);
+        }
+    }
+
     /**
      * Creates and starts a new ClientHandler thread.
      * @Override
      */
     public void start() {
-        new Thread(this).start();
+        this.room.resources.execute(this); // On a connection thread shared with the other Servers in the JVM
     }
 
     /**
@@ -303,21 +1041,52 @@ public class ClientHandler implements Runnable {
      */
     public void run() {
         try {
-            String message;
-            while (true) {
-                message = input.readLine(); // Gets input from the Client
+            this.handshake(); // Secure connections are established on this thread, not the listener's
+        } catch (IOException e) {
+            System.err.println("Error establishing connection with client: " + this.clientName);
+            this.terminate(); // The client was never added to the list, just close the connection
+            return;
+        }
+        this.outbox.start(this.room.resources::execute); // Messages to the client are written by a writer task on the shared threads from now on
+        TrafficCapture capture = this.room.trafficCapture;
+        if (capture != null) {
+            capture.connected(this.clientId); // Before the connection's first line
+        }
+        this.room.newConnection(this); // Update the current list of connected clients
 
-                if (message == null) {
+        try {
+            while (true) {
+                // Messages are read into a pooled buffer after the client's name, ready to be broadcast as they are
+                PooledBuffer payload = this.room.resources.getBufferPool().acquire();
+                payload.append(this.senderPrefix, 0, this.senderPrefix.length);
+                int textOffset = payload.length();
+                if (!this.readMessage(payload)) { // Gets input from the Client
+                    payload.release();
                     break;
                 }
+                if (payload.startsWith(ACK_COMMAND, textOffset)) { // Acknowledgements are frequent, handle them without printing
+                    this.acknowledge(payload, textOffset + ACK_COMMAND.length);
+                    payload.release();
+                    continue;
+                }
+                capture = this.room.trafficCapture;
+                if (capture != null) {
+                    capture.received(this.clientId, payload, textOffset); // Recorded as sent, before any interceptor
+                }
                 // Prints out message stating that a message has been received
-                System.out.println("Received: \"" + message + "\" from client " + this.clientName);
+                this.printReceived(payload, textOffset);
 
-                // Checks for commands
-                if (message.startsWith("NAME")) {
-                    this.changeName(message); // Calls function to handle name change
-                } else {
-                    broadcastToAll(message); // Broadcasts message to all other clients
+                // Filters, changes or handles the message, before it costs a write to every client
+                this.intercepted.reset(payload, textOffset);
+                MessageInterceptor.Verdict verdict = this.room.pipeline.process(this.intercepted);
+                if (verdict == MessageInterceptor.Verdict.CONTINUE) {
+                    this.broadcastToAll(payload, textOffset); // Broadcasts message to all other clients
+                    continue;
+                }
+                payload.release();
+                if (verdict == MessageInterceptor.Verdict.REJECT) {
+                    String reason = this.intercepted.getRejection();
+                    broadcast(this, "[Server]: Your message was not sent" + (reason == null ? "." : ", " + reason + "."));
                 }
             }
         } catch (SocketException s) {
@@ -328,14 +1097,14 @@ public class ClientHandler implements Runnable {
 
             // Check if the Client is still connected
             try {
-                lock.lock(); // Synchronise the accessing of the list of clients
-                connectedFlag = clients.contains(this); // Update the flag
+                this.room.lock.lock(); // Synchronise the accessing of the list of clients
+                connectedFlag = this.room.clients.contains(this); // Update the flag
             } finally {
-                lock.unlock();
+                this.room.lock.unlock();
             }
 
             if (connectedFlag) { // If the client is still connected, remove them
-                removeClient(this); // Remove client
+                this.room.removeClient(this); // Remove client
             }
         }
     }
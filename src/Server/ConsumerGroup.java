@@ -0,0 +1,106 @@
+package Server;
+
+import java.util.ArrayList;
+
+/**
+ * A named group of clients sharing the broadcasts sent to them, so that each
+ * broadcast is delivered to exactly one member of the group.
+ * Members are picked by hashing the sender's name together with each member
+ * (rendezvous hashing), so a conversation keeps going to the same member and
+ * only the conversations of a member that leaves are moved to other members.
+ * Used on the Server side.
+ */
+public class ConsumerGroup {
+
+    /**
+     * The name of the group
+     */
+    private String name;
+    /**
+     * The clients that have joined the group
+     */
+    private ArrayList<ClientHandler> members;
+
+    /**
+     * Creates a new, empty consumer group.
+     * @param name The name of the group
+     */
+    public ConsumerGroup(String name) {
+        this.name = name;
+        this.members = new ArrayList<ClientHandler>();
+    }
+
+    /**
+     * Getter method for the name of the group.
+     * @return The name of the group
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a client to the group.
+     * Must be called while holding the ChatRoom lock.
+     * @param client The client joining the group
+     */
+    public void add(ClientHandler client) {
+        this.members.add(client);
+    }
+
+    /**
+     * Removes a client from the group.
+     * Must be called while holding the ChatRoom lock.
+     * @param client The client leaving the group
+     */
+    public void remove(ClientHandler client) {
+        this.members.remove(client);
+    }
+
+    /**
+     * Checks if the group has no members left.
+     * @return true if the group is empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return this.members.isEmpty();
+    }
+
+    /**
+     * Picks the member of the group that should receive a broadcast.
+     * Only members whose filters accept the broadcast are considered.
+     * Must be called while holding the ChatRoom lock.
+     * @param sender Name of the sender of the broadcast, used to keep conversations sticky
+     * @param message The message broadcasted, without the sender's name
+     * @return The member to deliver the broadcast to, or null if no member accepts it
+     */
+    public ClientHandler select(String sender, String message) {
+        ClientHandler selected = null;
+        long bestWeight = Long.MIN_VALUE;
+        int senderHash = sender.hashCode();
+        for (ClientHandler member : this.members) {
+            if (!member.accepts(sender, message)) {
+                continue; // Member is not interested in this broadcast
+            }
+            long weight = weight(senderHash, member.getClientId());
+            if (selected == null || weight > bestWeight) {
+                selected = member;
+                bestWeight = weight;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Scores a sender against a member; the member with the highest score
+     * receives the sender's broadcasts.
+     * @param senderHash Hash code of the sender's name
+     * @param memberId Unique id of the member
+     * @return The score of the member for this sender
+     */
+    private static long weight(int senderHash, int memberId) {
+        long x = ((long) senderHash << 32) ^ (memberId & 0xffffffffL);
+        // Mix the bits (SplitMix64 finaliser) so similar names spread evenly across members
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+}
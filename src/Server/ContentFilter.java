@@ -0,0 +1,160 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rejects the lines containing any of a list of blocked words or phrases,
+ * before they are broadcast.
+ * All the patterns are looked for at once with an Aho-Corasick automaton
+ * built over their UTF-8 bytes, so a line is checked in a single pass over
+ * its bytes, however many patterns there are, without decoding it. Letters
+ * A to Z are matched regardless of case; other characters must match exactly.
+ * The automaton is a table of states by byte, built once and never changed,
+ * so it can be used by every reader thread at once.
+ * Implements MessageInterceptor.
+ * Used on the Server side.
+ */
+public class ContentFilter implements MessageInterceptor {
+
+    /**
+     * Next state for each state and byte, following failure links, so
+     * matching never backtracks
+     */
+    private int[][] transitions;
+    /**
+     * true for the states where a pattern ends, directly or through a failure link
+     */
+    private boolean[] accepting;
+
+    /**
+     * Builds the automaton for the given patterns.
+     * @param patterns The blocked words or phrases; empty patterns are ignored
+     */
+    public ContentFilter(List<String> patterns) {
+        // Build the trie of the patterns
+        ArrayList<int[]> goTo = new ArrayList<int[]>();
+        ArrayList<Boolean> ends = new ArrayList<Boolean>();
+        goTo.add(newState());
+        ends.add(false);
+        for (String pattern : patterns) {
+            byte[] bytes = pattern.trim().getBytes(StandardCharsets.UTF_8);
+            if (bytes.length == 0) {
+                continue;
+            }
+            int state = 0;
+            for (byte b : bytes) {
+                int c = lowerCase(b & 0xFF);
+                if (goTo.get(state)[c] < 0) {
+                    goTo.get(state)[c] = goTo.size();
+                    goTo.add(newState());
+                    ends.add(false);
+                }
+                state = goTo.get(state)[c];
+            }
+            ends.set(state, true);
+        }
+
+        // Turn the trie into a complete automaton, breadth first, so each state's failure link is finished before its children
+        int size = goTo.size();
+        this.transitions = goTo.toArray(new int[size][]);
+        this.accepting = new boolean[size];
+        int[] failure = new int[size];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int c = 0; c < 256; c++) {
+            int next = this.transitions[0][c];
+            if (next < 0) {
+                this.transitions[0][c] = 0; // Bytes starting no pattern stay at the root
+            } else {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        this.accepting[0] = ends.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            this.accepting[state] = ends.get(state) || this.accepting[failure[state]];
+            for (int c = 0; c < 256; c++) {
+                int next = this.transitions[state][c];
+                if (next < 0) {
+                    this.transitions[state][c] = this.transitions[failure[state]][c]; // Where the longest suffix would go
+                } else {
+                    failure[next] = this.transitions[failure[state]][c];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the patterns from a file, one per line, ignoring empty lines and
+     * lines starting with '#'.
+     * @param file The file
+     * @return The filter
+     * @throws IOException If the file could not be read
+     */
+    public static ContentFilter load(File file) throws IOException {
+        ArrayList<String> patterns = new ArrayList<String>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                patterns.add(line);
+            }
+        }
+        return new ContentFilter(patterns);
+    }
+
+    /**
+     * Creates a state without transitions.
+     * @return The state's transitions, all -1
+     */
+    private static int[] newState() {
+        int[] state = new int[256];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    /**
+     * Folds the letters A to Z to lower case.
+     * @param c A byte, from 0 to 255
+     * @return The byte, in lower case if it is a letter
+     */
+    private static int lowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Checks if some bytes contain any of the patterns.
+     * @param bytes The bytes
+     * @param from Index of the first byte checked
+     * @param to Index after the last byte checked
+     * @return true if a pattern was found
+     */
+    public boolean matches(byte[] bytes, int from, int to) {
+        int state = 0;
+        for (int i = from; i < to; i++) {
+            state = this.transitions[state][lowerCase(bytes[i] & 0xFF)];
+            if (this.accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rejects the line if it contains a blocked word or phrase.
+     * @Override
+     */
+    public Verdict intercept(InterceptedMessage message) {
+        PooledBuffer payload = message.getPayload();
+        if (this.matches(payload.array(), message.getTextOffset(), payload.length())) {
+            return message.reject("it contains a blocked word");
+        }
+        return Verdict.CONTINUE;
+    }
+}
@@ -0,0 +1,179 @@
+package Server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Numbers the messages sent to a reliable client session and keeps the ones
+ * the client has not acknowledged yet, so they can be sent again when the
+ * client reconnects and resumes the session.
+ * Acknowledgements are cumulative: acknowledging a sequence number
+ * acknowledges every message up to and including it.
+ * At most WINDOW unacknowledged messages are kept; older ones are dropped.
+ * The messages are pooled buffers shared with the other recipients; the log
+ * holds a reference to each until it is dropped.
+ * Used on the Server side.
+ */
+public class DeliveryLog {
+
+    /**
+     * Maximum number of unacknowledged messages kept per session
+     */
+    public static final int WINDOW = 4096;
+
+    /**
+     * Token used by the client to resume the session after reconnecting
+     */
+    private long sessionId;
+    /**
+     * Sequence number of the next message sent
+     */
+    private long nextSeq;
+    /**
+     * Sequence number of the oldest message kept
+     */
+    private long firstRetainedSeq;
+    /**
+     * Messages sent but not acknowledged yet, encoded in UTF-8, oldest first
+     */
+    private ArrayDeque<PooledBuffer> unacknowledged;
+    /**
+     * The sequence number prefix of the message being written, e.g. "#42 ",
+     * reused for every message
+     */
+    private byte[] prefix;
+    /**
+     * Time the session's connection was lost, or 0 while a client is connected
+     */
+    private long detachedAt;
+
+    /**
+     * Creates a new log for a reliable session.
+     * @param sessionId Token used by the client to resume the session
+     */
+    public DeliveryLog(long sessionId) {
+        this.sessionId = sessionId;
+        this.nextSeq = 1;
+        this.firstRetainedSeq = 1;
+        this.unacknowledged = new ArrayDeque<PooledBuffer>();
+        this.prefix = new byte[21]; // '#', up to 19 digits and a space
+    }
+
+    /**
+     * Getter method for the token used to resume the session.
+     * @return The session's token
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Assigns the next sequence number to a message and keeps the message
+     * until it is acknowledged.
+     * Callers must hold this log's monitor until the message has been written,
+     * so messages are written in the order of their sequence numbers.
+     * @param message The message being sent, encoded in UTF-8; it is retained rather than copied
+     * @return The message's sequence number
+     */
+    public synchronized long append(PooledBuffer message) {
+        this.unacknowledged.addLast(message.retain());
+        if (this.unacknowledged.size() > WINDOW) { // Window is full, drop the oldest message
+            this.unacknowledged.removeFirst().release();
+            this.firstRetainedSeq++;
+        }
+        return this.nextSeq++;
+    }
+
+    /**
+     * Drops every kept message up to and including the given sequence number.
+     * @param seq Sequence number acknowledged by the client
+     */
+    public synchronized void acknowledge(long seq) {
+        seq = Math.min(seq, this.nextSeq - 1); // Ignore acknowledgements of messages not sent yet
+        while (this.firstRetainedSeq <= seq) {
+            this.unacknowledged.removeFirst().release();
+            this.firstRetainedSeq++;
+        }
+    }
+
+    /**
+     * Drops every kept message, once the session can no longer be resumed.
+     */
+    public synchronized void clear() {
+        PooledBuffer message;
+        while ((message = this.unacknowledged.pollFirst()) != null) {
+            message.release();
+            this.firstRetainedSeq++;
+        }
+    }
+
+    /**
+     * Encodes the sequence number written before a numbered message into the
+     * log's prefix array, without allocating.
+     * Callers must hold this log's monitor until the prefix has been written.
+     * @param seq The message's sequence number
+     * @return The number of bytes of getPrefix() in use, e.g. 4 for "#42 "
+     */
+    public int formatPrefix(long seq) {
+        int digits = 1;
+        for (long rest = seq / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        this.prefix[0] = '#';
+        for (int i = digits; i > 0; i--, seq /= 10) {
+            this.prefix[i] = (byte) ('0' + seq % 10);
+        }
+        this.prefix[digits + 1] = ' ';
+        return digits + 2;
+    }
+
+    /**
+     * Getter method for the prefix encoded by formatPrefix().
+     * @return The array holding the prefix
+     */
+    public byte[] getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Getter method for the sequence number of the oldest message kept.
+     * @return The sequence number of the oldest unacknowledged message
+     */
+    public synchronized long getFirstRetainedSeq() {
+        return firstRetainedSeq;
+    }
+
+    /**
+     * Getter method for the messages that have not been acknowledged, oldest first.
+     * The first message has sequence number getFirstRetainedSeq().
+     * Callers must hold this log's monitor while using the result.
+     * @return The unacknowledged messages
+     */
+    public synchronized Iterable<PooledBuffer> getUnacknowledged() {
+        return unacknowledged;
+    }
+
+    /**
+     * Records that the session's connection has been lost.
+     * @param time Time the connection was lost, in milliseconds
+     */
+    public synchronized void detach(long time) {
+        this.detachedAt = time;
+    }
+
+    /**
+     * Records that a client has resumed the session.
+     */
+    public synchronized void attach() {
+        this.detachedAt = 0;
+    }
+
+    /**
+     * Checks if the session has been without a connection for too long to be resumed.
+     * @param now The current time, in milliseconds
+     * @param timeout How long a session can be resumed after losing its connection, in milliseconds
+     * @return true if the session can no longer be resumed, false otherwise
+     */
+    public synchronized boolean isExpired(long now, long timeout) {
+        return this.detachedAt != 0 && now - this.detachedAt > timeout;
+    }
+}
@@ -0,0 +1,305 @@
+package Server;
+
+import java.util.ArrayList;
+
+/**
+ * Stops repeated lines before they are broadcast, so paste floods and
+ * clients replaying their lines after reconnecting do not cost a write to
+ * every client for every copy.
+ * A line is a repeat when its sender sent the same line within the window,
+ * or when at least MIN_GLOBAL_LENGTH bytes long and already sent
+ * GLOBAL_REPEATS times within the window by any clients together. Commands
+ * are never repeats.
+ * Repeats by the same sender are dropped, or collapsed: dropped, and
+ * followed at the end of the window by a single copy of the line marked
+ * with the number of copies received, e.g. "hello [x5]". Repeats by
+ * several clients are always dropped.
+ * Every line is hashed without being decoded and looked up in a
+ * RotatingBloomFilter, which most new lines pass without taking a lock.
+ * Only lines the filter may have seen before are counted, in a table of
+ * TABLE_SIZE recent repeats. Both have a fixed size, and both checks take
+ * a constant time, however many clients there are.
+ * Implements MessageInterceptor and Runnable.
+ * Used on the Server side.
+ */
+public class DuplicateFilter implements MessageInterceptor, Runnable {
+
+    /**
+     * What happens to repeats sent by the same client
+     */
+    public enum Mode { DROP, COLLAPSE }
+
+    /**
+     * Default length of the window, in milliseconds
+     */
+    public static final long DEFAULT_WINDOW = 10000;
+    /**
+     * Shortest line, in bytes, counted across clients; shorter lines such
+     * as "ok" are commonly sent by several clients
+     */
+    private static final int MIN_GLOBAL_LENGTH = 16;
+    /**
+     * Number of copies of a line let through within the window, across clients
+     */
+    private static final int GLOBAL_REPEATS = 3;
+    /**
+     * Base 2 logarithm of the number of bits in each generation of the Bloom filter (1 MB)
+     */
+    private static final int BLOOM_BITS = 23;
+    /**
+     * Number of bits looked at for each line
+     */
+    private static final int BLOOM_HASHES = 4;
+    /**
+     * Number of lines a generation holds before it is rotated early; the
+     * chance of mistaking a new line for a repeat stays below one in 100000
+     */
+    private static final int BLOOM_CAPACITY = 100000;
+    /**
+     * Number of repeats counted at a time; a power of 2
+     */
+    private static final int TABLE_SIZE = 8192;
+    /**
+     * Number of slots of the table looked at for a line
+     */
+    private static final int PROBES = 8;
+    /**
+     * Longest time between two checks of the window, in milliseconds
+     */
+    private static final long TICK = 250;
+
+    /**
+     * The clients the collapsed repeats are broadcast to
+     */
+    private ChatRoom room;
+    /**
+     * What happens to repeats sent by the same client
+     */
+    private Mode mode;
+    /**
+     * How long a line counts as a repeat after it was first sent, in milliseconds
+     */
+    private long window;
+    /**
+     * The lines seen recently
+     */
+    private RotatingBloomFilter seen;
+    /**
+     * Keys of the repeats counted, 0 for an empty slot
+     */
+    private long[] keys;
+    /**
+     * Number of copies of each repeat received within its window
+     */
+    private int[] counts;
+    /**
+     * Time each repeat's window started, in milliseconds
+     */
+    private long[] started;
+    /**
+     * Sender of each collapsed repeat, or null
+     */
+    private String[] senders;
+    /**
+     * Text of each collapsed repeat, or null
+     */
+    private String[] texts;
+    /**
+     * Time the Bloom filter was last rotated, in milliseconds
+     */
+    private long rotated;
+    /**
+     * Thread rotating the Bloom filter and ending the windows
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this DuplicateFilter thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new DuplicateFilter.
+     * @param room The clients the collapsed repeats are broadcast to
+     * @param mode What happens to repeats sent by the same client
+     * @param window How long a line counts as a repeat after it was first sent, in milliseconds
+     */
+    public DuplicateFilter(ChatRoom room, Mode mode, long window) {
+        this.room = room;
+        this.mode = mode;
+        this.window = Math.max(2 * TICK, window);
+        this.seen = new RotatingBloomFilter(BLOOM_BITS, BLOOM_HASHES, BLOOM_CAPACITY);
+        this.keys = new long[TABLE_SIZE];
+        this.counts = new int[TABLE_SIZE];
+        this.started = new long[TABLE_SIZE];
+        this.senders = new String[TABLE_SIZE];
+        this.texts = new String[TABLE_SIZE];
+        this.rotated = System.currentTimeMillis();
+        this.running = true;
+    }
+
+    /**
+     * Drops or collapses the line if it is a repeat.
+     * @Override
+     */
+    public Verdict intercept(InterceptedMessage message) {
+        PooledBuffer payload = message.getPayload();
+        int from = message.getTextOffset();
+        int to = payload.length();
+        if (to == from || message.isCommand()) {
+            return Verdict.CONTINUE;
+        }
+        long content = hash(payload.array(), from, to, 0xCBF29CE484222325L);
+        // The payload starts with the sender's name, so the same line from two clients has two keys
+        long bySender = mix(content ^ hash(payload.array(), 0, from, 0x84222325CBF29CE4L) * 0x9E3779B97F4A7C15L);
+        boolean repeatedBySender = this.seen.add(bySender);
+        boolean repeatedByAll = to - from >= MIN_GLOBAL_LENGTH && this.seen.add(content);
+        if (!repeatedBySender && !repeatedByAll) {
+            return Verdict.CONTINUE; // New line, the common case
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this.keys) {
+            if (repeatedBySender) {
+                int slot = this.count(bySender, now);
+                if (this.mode == Mode.COLLAPSE && this.texts[slot] == null) {
+                    this.senders[slot] = message.getSenderName();
+                    this.texts[slot] = message.getText(); // Sent once more at the end of the window
+                }
+                return Verdict.DROP;
+            }
+            int slot = this.count(content, now);
+            return this.counts[slot] > GLOBAL_REPEATS ? Verdict.DROP : Verdict.CONTINUE;
+        }
+    }
+
+    /**
+     * Counts a copy of a repeat, starting to count it if it is not in the table.
+     * Prefers empty slots, then slots whose window has ended without a line
+     * waiting to be sent, then the oldest slot.
+     * Must be called while holding the table's monitor.
+     * @param key The repeat's key
+     * @param now The current time, in milliseconds
+     * @return The repeat's slot
+     */
+    private int count(long key, long now) {
+        key = key == 0 ? 1 : key; // 0 marks empty slots
+        int free = -1;
+        int oldest = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (int) (key + i) & (TABLE_SIZE - 1);
+            if (this.keys[slot] == key && now - this.started[slot] <= this.window) {
+                this.counts[slot]++;
+                return slot;
+            }
+            boolean reusable = this.keys[slot] == 0 || (now - this.started[slot] > this.window && this.texts[slot] == null);
+            if (free < 0 && reusable) {
+                free = slot;
+            }
+            if (oldest < 0 || this.started[slot] < this.started[oldest]) {
+                oldest = slot;
+            }
+        }
+        int slot = free >= 0 ? free : oldest;
+        this.keys[slot] = key;
+        this.counts[slot] = 2; // The filter has seen the first copy
+        this.started[slot] = now;
+        this.senders[slot] = null;
+        this.texts[slot] = null;
+        return slot;
+    }
+
+    /**
+     * Ends the windows that are over, sending the collapsed repeats waiting for them.
+     */
+    private void endWindows() {
+        ArrayList<String> senders = new ArrayList<String>();
+        ArrayList<String> lines = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        synchronized (this.keys) {
+            for (int slot = 0; slot < TABLE_SIZE; slot++) {
+                if (this.keys[slot] != 0 && now - this.started[slot] > this.window) {
+                    if (this.texts[slot] != null) {
+                        senders.add(this.senders[slot]);
+                        lines.add(this.texts[slot] + " [x" + this.counts[slot] + "]");
+                    }
+                    this.keys[slot] = 0;
+                    this.senders[slot] = null;
+                    this.texts[slot] = null;
+                }
+            }
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            this.room.deliver(senders.get(i), lines.get(i)); // Sent without holding the table's monitor
+        }
+    }
+
+    /**
+     * Hashes some bytes, with FNV-1a followed by a final mix.
+     * @param bytes The bytes
+     * @param from Index of the first byte
+     * @param to Index after the last byte
+     * @param seed Starting value, so different kinds of keys do not collide
+     * @return The hash
+     */
+    private static long hash(byte[] bytes, int from, int to, long seed) {
+        long hash = seed;
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spreads the bits of a hash, so every bit of the result depends on every bit of the input.
+     * @param hash The hash
+     * @return The mixed hash
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Terminates this DuplicateFilter. Collapsed repeats still waiting are not sent.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Creates and starts a new DuplicateFilter Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Rotates the Bloom filter every half window, or sooner if it is full,
+     * so lines are remembered for half a window to a window, and ends the
+     * windows that are over.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.running) { // Repeat while this thread has not been terminated
+                Thread.sleep(Math.min(TICK, this.window / 2));
+                long now = System.currentTimeMillis();
+                if (now - this.rotated >= this.window / 2 || this.seen.isFull()) {
+                    this.seen.rotate();
+                    this.rotated = now;
+                }
+                this.endWindows();
+            }
+        } catch (InterruptedException i) {
+            // The filter has been terminated
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package Server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handles a single file transfer connection.
+ * The client sends a single line, "PUT <ticket>" to upload a file or
+ * "GET <ticket>" to download one, using a ticket handed out on its chat
+ * connection. An upload is followed by the file's bytes and answered with
+ * "OK <reference>" once the file has been received and stored; a download is
+ * answered with "OK <size>" followed by the file's bytes. Failures are
+ * answered with "ERROR" and a reason.
+ * Uploads are received in chunks of CHUNK_SIZE with
+ * FileChannel.transferFrom(), and downloads are written from the store's
+ * memory-mapped chunks, so the operating system copies the data without it
+ * passing through the Java heap.
+ * Once the request has been read the connection is non-blocking, and the
+ * transfer waits for it with a Selector, so a client that sends or reads
+ * nothing for IDLE_TIMEOUT is disconnected and cannot hold a transfer slot.
+ * A transfer waits at most IDLE_TIMEOUT for a transfer slot as well, and is
+ * then answered with an error, so the handler's thread is given back.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class FileTransferHandler implements Runnable {
+
+    /**
+     * Number of bytes copied at a time, after which other threads get a
+     * chance to run
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+    /**
+     * Largest request line accepted, in bytes
+     */
+    private static final int MAX_REQUEST = 128;
+    /**
+     * How long a client has to send its request, in milliseconds
+     */
+    private static final int REQUEST_TIMEOUT = 10000;
+    /**
+     * How long a transfer waits for the client to send or read more, in milliseconds
+     */
+    private static final long IDLE_TIMEOUT = 30000;
+
+    /**
+     * The file transfer connection
+     */
+    private SocketChannel channel;
+    /**
+     * The clients told about the files shared
+     */
+    private ChatRoom room;
+    /**
+     * Keeps the shared files
+     */
+    private AttachmentStore store;
+    /**
+     * Limits the number of transfers running at the same time
+     */
+    private Semaphore transfers;
+    /**
+     * Waits for the connection to be ready during the transfer
+     */
+    private Selector selector;
+
+    /**
+     * Creates a new FileTransferHandler for a connection.
+     * @param room The clients told about the files shared
+     * @param channel The file transfer connection
+     * @param store Keeps the shared files
+     * @param transfers Limits the number of transfers running at the same time
+     */
+    public FileTransferHandler(ChatRoom room, SocketChannel channel, AttachmentStore store, Semaphore transfers) {
+        this.room = room;
+        this.channel = channel;
+        this.store = store;
+        this.transfers = transfers;
+    }
+
+    /**
+     * Answers a connection that will not be handled with an error, and closes it.
+     * @param line The error, without its line ending
+     */
+    void refuse(String line) {
+        this.replyQuietly(line); // The channel is still blocking, so the selector is not needed
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing file transfer connection.");
+        }
+    }
+
+    /**
+     * Reads the client's request and performs the transfer.
+     * @Override
+     */
+    public void run() {
+        try {
+            String request = this.readRequest();
+            this.channel.configureBlocking(false); // Every wait from now on is bounded by IDLE_TIMEOUT
+            this.selector = Selector.open();
+            String[] parts = request.split(" ");
+            long ticket = parts.length == 2 ? Long.parseLong(parts[1]) : 0;
+            if (parts[0].equals("PUT")) {
+                this.receive(this.store.redeemUpload(ticket));
+            } else if (parts[0].equals("GET")) {
+                this.send(this.store.redeemDownload(ticket));
+            } else {
+                this.reply("ERROR Unknown request.");
+            }
+        } catch (NumberFormatException n) {
+            this.replyQuietly("ERROR Invalid ticket.");
+        } catch (SocketTimeoutException t) {
+            this.replyQuietly("ERROR " + t.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error transferring file.");
+        } catch (InterruptedException i) {
+            // The Server is shutting down
+        } finally {
+            try {
+                if (this.selector != null) {
+                    this.selector.close();
+                }
+                this.channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing file transfer connection.");
+            }
+        }
+    }
+
+    /**
+     * Receives an uploaded file, stores it, and tells the clients it has been
+     * shared once all of it has arrived.
+     * @param upload The file being uploaded, or null if the ticket was not valid
+     * @throws IOException If the connection failed
+     * @throws InterruptedException If interrupted while waiting for other transfers to finish
+     */
+    private void receive(AttachmentStore.Upload upload) throws IOException, InterruptedException {
+        if (upload == null) {
+            this.reply("ERROR Unknown or expired ticket.");
+            return;
+        }
+        try {
+            long received = 0;
+            this.acquire();
+            try (FileChannel out = FileChannel.open(upload.getFile().toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                boolean readable = false;
+                while (received < upload.getSize()) {
+                    long copied = out.transferFrom(this.channel, received, Math.min(CHUNK_SIZE, upload.getSize() - received));
+                    if (copied > 0) {
+                        received += copied;
+                        readable = false;
+                        Thread.yield(); // Let the chat's threads run between chunks
+                    } else if (readable) {
+                        break; // Nothing read although the connection was readable: the client closed it
+                    } else {
+                        this.await(SelectionKey.OP_READ);
+                        readable = true;
+                    }
+                }
+            } catch (SocketTimeoutException t) {
+                System.err.println("Error receiving file \"" + upload.getName() + "\" from " + upload.getSender() + ": " + t.getMessage());
+                throw t;
+            } finally {
+                this.transfers.release();
+                if (received < upload.getSize()) {
+                    upload.getFile().delete();
+                }
+            }
+            if (received < upload.getSize()) {
+                System.err.println("Error receiving file \"" + upload.getName() + "\" from " + upload.getSender() + ": connection closed.");
+                return;
+            }
+            AttachmentStore.Blob blob;
+            try {
+                blob = this.store.store(upload); // Hashes the file and writes its new chunks
+            } catch (IOException e) {
+                System.err.println("Error storing file \"" + upload.getName() + "\" from " + upload.getSender() + ": " + e.getMessage());
+                this.reply("ERROR " + e.getMessage());
+                return;
+            }
+            this.reply("OK " + blob.getReference());
+            this.room.announceFile(upload.getSender(), blob);
+        } finally {
+            this.store.release(upload); // The file is stored or has failed, give back the room reserved for it
+        }
+    }
+
+    /**
+     * Sends a stored file to the client, one mapped chunk at a time.
+     * @param blob The file being downloaded, or null if the ticket was not valid
+     * @throws IOException If the connection failed
+     * @throws InterruptedException If interrupted while waiting for other transfers to finish
+     */
+    private void send(AttachmentStore.Blob blob) throws IOException, InterruptedException {
+        if (blob == null) {
+            this.reply("ERROR Unknown or expired ticket.");
+            return;
+        }
+        try {
+            this.acquire();
+            try {
+                this.reply("OK " + blob.getSize());
+                for (int i = 0; i < blob.getChunkCount(); i++) {
+                    this.write(this.store.chunk(blob, i));
+                    Thread.yield(); // Let the chat's threads run between chunks
+                }
+            } finally {
+                this.transfers.release();
+            }
+        } finally {
+            this.store.unpin(blob); // The file can be deleted once it has expired
+        }
+    }
+
+    /**
+     * Waits for a free transfer slot, at most IDLE_TIMEOUT.
+     * @throws SocketTimeoutException If no slot was freed within IDLE_TIMEOUT
+     * @throws InterruptedException If interrupted while waiting for other transfers to finish
+     */
+    private void acquire() throws SocketTimeoutException, InterruptedException {
+        if (!this.transfers.tryAcquire(IDLE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new SocketTimeoutException("Server busy, no transfer slot free for " + IDLE_TIMEOUT / 1000 + " seconds.");
+        }
+    }
+
+    /**
+     * Reads the client's request line, one byte at a time so none of the
+     * file that may follow it is read.
+     * @return The request, without its line ending
+     * @throws IOException If the connection was closed, the request is too long or it took too long to arrive
+     */
+    private String readRequest() throws IOException {
+        this.channel.socket().setSoTimeout(REQUEST_TIMEOUT); // Applies to the socket's stream, not the channel
+        byte[] request = new byte[MAX_REQUEST];
+        int length = 0;
+        int b;
+        try {
+            while ((b = this.channel.socket().getInputStream().read()) != '\n') {
+                if (b < 0 || length == MAX_REQUEST) {
+                    throw new IOException("Invalid file transfer request.");
+                }
+                if (b != '\r') {
+                    request[length++] = (byte) b;
+                }
+            }
+        } catch (SocketTimeoutException t) {
+            throw new SocketTimeoutException("No request received.");
+        }
+        return new String(request, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Waits until the connection is ready for reading or writing.
+     * @param operation SelectionKey.OP_READ or SelectionKey.OP_WRITE
+     * @throws SocketTimeoutException If the connection was not ready within IDLE_TIMEOUT
+     * @throws IOException If the connection failed
+     */
+    private void await(int operation) throws IOException {
+        SelectionKey key = this.channel.register(this.selector, operation);
+        int ready = this.selector.select(IDLE_TIMEOUT);
+        this.selector.selectedKeys().clear();
+        key.interestOps(0);
+        if (ready == 0) {
+            throw new SocketTimeoutException("Transfer idle for " + IDLE_TIMEOUT / 1000 + " seconds.");
+        }
+    }
+
+    /**
+     * Writes all of a buffer to the connection, waiting for the client to
+     * read whenever the connection's buffer is full.
+     * @param buffer The bytes to write
+     * @throws SocketTimeoutException If the client read nothing for IDLE_TIMEOUT
+     * @throws IOException If the connection failed
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.write(buffer) == 0) {
+                this.await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Sends a line to the client.
+     * @param line The line, without its line ending
+     * @throws IOException If the line could not be sent
+     */
+    private void reply(String line) throws IOException {
+        this.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Sends a line to the client, ignoring failures as the connection is closed next.
+     * @param line The line, without its line ending
+     */
+    private void replyQuietly(String line) {
+        try {
+            this.reply(line);
+        } catch (IOException e) {
+            // The connection is closed anyway
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens for file transfer connections on a separate port and hands each
+ * connection to a new FileTransferHandler, run by a pool of MAX_HANDLERS
+ * threads.
+ * File transfers are kept apart from the chat: they use their own
+ * connections and low priority threads, and only MAX_TRANSFERS of them run
+ * at the same time, so sending files never delays the chat's messages.
+ * Connections arriving while every thread is busy wait in a queue of
+ * MAX_WAITING; once it is full they are answered with an error and closed,
+ * so a burst of connections cannot create more threads.
+ * Connections are accepted as channels, so files can be copied between the
+ * connection and the store without passing through the Java heap.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class FileTransferListener implements Runnable {
+
+    /**
+     * Largest number of files sent or received at the same time; further
+     * transfers wait for one of them to finish
+     */
+    public static final int MAX_TRANSFERS = 4;
+    /**
+     * Number of threads running FileTransferHandlers: the transfers, and as
+     * many connections sending their request or waiting for a transfer slot
+     */
+    private static final int MAX_HANDLERS = 2 * MAX_TRANSFERS;
+    /**
+     * Number of connections waiting for a thread, beyond which new
+     * connections are refused
+     */
+    private static final int MAX_WAITING = 16;
+    /**
+     * How long an idle handler thread is kept, in milliseconds
+     */
+    private static final long KEEP_ALIVE = 60000;
+
+    /**
+     * Channel used for accepting new file transfer connections
+     */
+    private ServerSocketChannel serverChannel;
+    /**
+     * The port number the channel is listening to
+     */
+    private int port;
+    /**
+     * The clients told about the files shared
+     */
+    private ChatRoom room;
+    /**
+     * Keeps the shared files
+     */
+    private AttachmentStore store;
+    /**
+     * Limits the number of transfers running at the same time
+     */
+    private Semaphore transfers;
+    /**
+     * Threads running the FileTransferHandlers
+     */
+    private ThreadPoolExecutor handlers;
+
+    /**
+     * Creates a channel listening for file transfer connections on the specified port.
+     * @param room The clients told about the files shared
+     * @param port The port number to listen to
+     * @param store Keeps the shared files
+     * @throws IOException If the channel could not be created
+     */
+    public FileTransferListener(ChatRoom room, int port, AttachmentStore store) throws IOException {
+        this.room = room;
+        this.port = port;
+        this.store = store;
+        this.transfers = new Semaphore(MAX_TRANSFERS, true); // Transfers start in the order they were requested
+        this.handlers = new ThreadPoolExecutor(MAX_HANDLERS, MAX_HANDLERS, KEEP_ALIVE, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_WAITING), runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true); // A transfer must not keep the JVM running once the Server has shut down
+            thread.setPriority(Thread.MIN_PRIORITY); // The chat's threads run first
+            return thread;
+        });
+        this.handlers.allowCoreThreadTimeOut(true); // No threads are kept while no files are transferred
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), ChatServer.ACCEPT_BACKLOG);
+    }
+
+    /**
+     * Getter method for the Port number used for listening to file transfer connections.
+     * @return The Port number used for listening to file transfer connections
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Creates and starts a new FileTransferListener Thread.
+     * @Override
+     */
+    public void start() {
+        new Thread(this).start();
+    }
+
+    /**
+     * Stops listening for file transfer connections by closing the channel,
+     * interrupts the transfers running and refuses the connections still
+     * waiting for a thread.
+     */
+    public void shutdown() {
+        try {
+            this.serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the file transfer server channel.");
+        }
+        for (Runnable waiting : this.handlers.shutdownNow()) {
+            ((FileTransferHandler) waiting).refuse("ERROR The Server is shutting down.");
+        }
+    }
+
+    /**
+     * Accepts file transfer connections and hands each to the pool as a
+     * FileTransferHandler, until the channel is closed.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (true) {
+                SocketChannel channel = this.serverChannel.accept();
+                FileTransferHandler handler = new FileTransferHandler(this.room, channel, this.store, this.transfers);
+                try {
+                    this.handlers.execute(handler);
+                } catch (RejectedExecutionException r) {
+                    handler.refuse("ERROR Server busy, try again later."); // Every thread is busy and the queue is full, or the Server is shutting down
+                }
+            }
+        } catch (ClosedChannelException c) {
+            // The channel has been closed
+        } catch (IOException e) {
+            System.err.println("Error establishing new file transfer connection.");
+        }
+    }
+}
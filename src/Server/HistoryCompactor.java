@@ -0,0 +1,82 @@
+package Server;
+
+/**
+ * Compacts a MessageHistory in the background, once every interval:
+ * compresses the warm segments that are no longer among the newest and
+ * drops the segments older than the retention time.
+ * Runs on a low priority thread, so compressing segments never delays the
+ * chat's threads.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class HistoryCompactor implements Runnable {
+
+    /**
+     * Default time between two compactions, in milliseconds
+     */
+    public static final long DEFAULT_INTERVAL = 60 * 1000;
+
+    /**
+     * The history compacted
+     */
+    private MessageHistory history;
+    /**
+     * Time between two compactions, in milliseconds
+     */
+    private long interval;
+    /**
+     * Thread compacting the history
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this HistoryCompactor thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new HistoryCompactor.
+     * @param history The history compacted
+     * @param interval Time between two compactions, in milliseconds
+     */
+    public HistoryCompactor(MessageHistory history, long interval) {
+        this.history = history;
+        this.interval = Math.max(1, interval);
+        this.running = true;
+    }
+
+    /**
+     * Terminates this HistoryCompactor. A compaction in progress is finished first.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Creates and starts a new HistoryCompactor Thread, with a low priority
+     * so the chat's threads run first.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+        this.thread.start();
+    }
+
+    /**
+     * Compacts the history once every interval, until terminated.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.running) { // Repeat while this thread has not been terminated
+                this.history.compact();
+                Thread.sleep(this.interval);
+            }
+        } catch (InterruptedException i) {
+            // The compactor has been terminated
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A file holding consecutive messages of the history, which never changes
+ * once it has been written.
+ * Warm segments keep their messages uncompressed, one after the other, and
+ * are scanned from the start when read. Cold segments compress their
+ * messages in blocks of about BLOCK_SIZE bytes, each compressed on its own,
+ * and end with a sparse index giving the number and time of the first
+ * message of every block; reading starts at the block holding the first
+ * message wanted, so only that block and the following ones are inflated.
+ * The index is read into memory when the segment is opened.
+ * Used by MessageHistory.
+ */
+public class HistorySegment {
+
+    /**
+     * Identifies warm segment files
+     */
+    private static final int WARM_MAGIC = 0x48535457;
+    /**
+     * Identifies cold segment files
+     */
+    private static final int COLD_MAGIC = 0x48535443;
+    /**
+     * Number of uncompressed bytes compressed together in a cold segment
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+    /**
+     * Size of the footer ending a cold segment: the index's position, the
+     * number of blocks, and the number and time of the last message
+     */
+    private static final int FOOTER_SIZE = 8 + 4 + 8 + 8;
+
+    /**
+     * A message kept in the history
+     */
+    public static class Entry {
+        /**
+         * Number of the message, counted from the first message of the history
+         */
+        private final long number;
+        /**
+         * Time the message was broadcast, in milliseconds
+         */
+        private final long time;
+        /**
+         * Name of the client that sent the message
+         */
+        private final String sender;
+        /**
+         * The message, without the client's name
+         */
+        private final String text;
+
+        public Entry(long number, long time, String sender, String text) {
+            this.number = number;
+            this.time = time;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        /**
+         * Getter method for the number of the message.
+         * @return The message's number
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * Getter method for the time the message was broadcast.
+         * @return The message's time, in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Formats the message as it is sent to clients, e.g.
+         * "12 at 2020-03-01 14:03:05, [Client 1]: hello".
+         * @return The formatted message
+         */
+        @Override
+        public String toString() {
+            return String.format("%d at %tF %<tT, %s: %s", this.number, this.time, this.sender, this.text);
+        }
+
+        /**
+         * Writes the message to a stream.
+         * @param out Stream the message is written to
+         * @throws IOException If the message could not be written
+         */
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(this.number);
+            out.writeLong(this.time);
+            writeString(out, this.sender);
+            writeString(out, this.text);
+        }
+
+        /**
+         * Reads a message written by write().
+         * @param in Stream the message is read from
+         * @return The message read
+         * @throws IOException If the message could not be read
+         */
+        private static Entry read(DataInputStream in) throws IOException {
+            long number = in.readLong();
+            long time = in.readLong();
+            return new Entry(number, time, readString(in), readString(in));
+        }
+    }
+
+    /**
+     * The segment's file
+     */
+    private File file;
+    /**
+     * true if the messages are compressed in blocks
+     */
+    private boolean cold;
+    /**
+     * Number of the first message in the segment
+     */
+    private long firstNumber;
+    /**
+     * Number of the last message in the segment
+     */
+    private long lastNumber;
+    /**
+     * Time of the first message in the segment, in milliseconds
+     */
+    private long firstTime;
+    /**
+     * Time of the last message in the segment, in milliseconds
+     */
+    private long lastTime;
+    /**
+     * Number of the first message of each block, for cold segments
+     */
+    private long[] blockNumbers;
+    /**
+     * Time of the first message of each block, for cold segments
+     */
+    private long[] blockTimes;
+    /**
+     * Position of each block in the file, for cold segments
+     */
+    private long[] blockOffsets;
+    /**
+     * Compressed size of each block, for cold segments
+     */
+    private int[] blockLengths;
+    /**
+     * Uncompressed size of each block, for cold segments
+     */
+    private int[] blockSizes;
+
+    private HistorySegment(File file, boolean cold, long firstNumber, long lastNumber, long firstTime, long lastTime) {
+        this.file = file;
+        this.cold = cold;
+        this.firstNumber = firstNumber;
+        this.lastNumber = lastNumber;
+        this.firstTime = firstTime;
+        this.lastTime = lastTime;
+    }
+
+    /**
+     * Getter method for the segment's file.
+     * @return The segment's file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Checks if the segment's messages are compressed.
+     * @return true for a cold segment, false for a warm one
+     */
+    public boolean isCold() {
+        return cold;
+    }
+
+    /**
+     * Getter method for the number of the first message in the segment.
+     * @return The number of the first message
+     */
+    public long getFirstNumber() {
+        return firstNumber;
+    }
+
+    /**
+     * Getter method for the number of the last message in the segment.
+     * @return The number of the last message
+     */
+    public long getLastNumber() {
+        return lastNumber;
+    }
+
+    /**
+     * Getter method for the time of the last message in the segment.
+     * @return The time of the last message, in milliseconds
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Getter method for the number of messages in the segment.
+     * @return The number of messages
+     */
+    public long size() {
+        return lastNumber - firstNumber + 1;
+    }
+
+    /**
+     * Starts writing a new warm segment; messages are added with
+     * Entry.write() and the stream must be closed before the segment is
+     * opened for reading.
+     * @param file The segment's file
+     * @return The stream the messages are written to
+     * @throws IOException If the file could not be created
+     */
+    static DataOutputStream create(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(WARM_MAGIC);
+        return out;
+    }
+
+    /**
+     * Adds a message to a warm segment being written.
+     * @param out Stream returned by create()
+     * @param entry The message
+     * @throws IOException If the message could not be written
+     */
+    static void append(DataOutputStream out, Entry entry) throws IOException {
+        entry.write(out);
+    }
+
+    /**
+     * Describes a warm segment that has just been written, without reading it back.
+     * @param file The segment's file
+     * @param first The first message written to it
+     * @param last The last message written to it
+     * @return The segment
+     */
+    static HistorySegment sealed(File file, Entry first, Entry last) {
+        return new HistorySegment(file, false, first.number, last.number, first.time, last.time);
+    }
+
+    /**
+     * Opens a segment written by a previous run of the Server. A warm
+     * segment cut short when the Server stopped is read up to its last
+     * complete message.
+     * @param file The segment's file
+     * @return The segment, or null if it holds no messages
+     * @throws IOException If the file is not a segment or could not be read
+     */
+    public static HistorySegment open(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic == COLD_MAGIC) {
+                return openCold(file);
+            } else if (magic != WARM_MAGIC) {
+                throw new IOException("Not a history segment: " + file);
+            }
+            Entry first = null;
+            Entry last = null;
+            try {
+                while (true) { // Scan every message, the file has no index
+                    last = Entry.read(in);
+                    if (first == null) {
+                        first = last;
+                    }
+                }
+            } catch (EOFException e) {
+                // End of the segment, or of its last complete message
+            }
+            return first == null ? null : sealed(file, first, last);
+        } catch (EOFException e) {
+            return null; // Not even the header was written
+        }
+    }
+
+    /**
+     * Opens a cold segment, reading its sparse index.
+     * @param file The segment's file
+     * @return The segment
+     * @throws IOException If the segment could not be read
+     */
+    private static HistorySegment openCold(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(in.length() - FOOTER_SIZE);
+            long indexOffset = in.readLong();
+            int blocks = in.readInt();
+            long lastNumber = in.readLong();
+            long lastTime = in.readLong();
+            in.seek(indexOffset);
+            long[] numbers = new long[blocks];
+            long[] times = new long[blocks];
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            int[] sizes = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                numbers[i] = in.readLong();
+                times[i] = in.readLong();
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+                sizes[i] = in.readInt();
+            }
+            HistorySegment segment = new HistorySegment(file, true, numbers[0], lastNumber, times[0], lastTime);
+            segment.blockNumbers = numbers;
+            segment.blockTimes = times;
+            segment.blockOffsets = offsets;
+            segment.blockLengths = lengths;
+            segment.blockSizes = sizes;
+            return segment;
+        }
+    }
+
+    /**
+     * Writes this warm segment's messages to a cold segment, compressed in
+     * blocks. The file is written under a temporary name and renamed once
+     * complete, so a cold segment file is always whole.
+     * @param file The cold segment's file
+     * @return The cold segment
+     * @throws IOException If this segment could not be read or the cold segment could not be written
+     */
+    public HistorySegment compress(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        int capacity = (int) Math.min(this.size(), 1 << 20);
+        long[] numbers = new long[capacity];
+        long[] times = new long[capacity];
+        long[] offsets = new long[capacity];
+        int[] lengths = new int[capacity];
+        int[] sizes = new int[capacity];
+        int blocks = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            in.readInt(); // The warm segment's header
+            out.writeInt(COLD_MAGIC);
+            long offset = 4;
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+            DataOutputStream blockOut = new DataOutputStream(block);
+            byte[] compressed = new byte[BLOCK_SIZE];
+            for (long number = this.firstNumber; number <= this.lastNumber; number++) {
+                Entry entry = Entry.read(in);
+                if (block.size() == 0) { // The first message of a block is indexed
+                    numbers[blocks] = entry.number;
+                    times[blocks] = entry.time;
+                }
+                entry.write(blockOut);
+                if (block.size() >= BLOCK_SIZE || number == this.lastNumber) { // Compress the full block on its own
+                    deflater.reset();
+                    deflater.setInput(block.toByteArray());
+                    deflater.finish();
+                    int length = 0;
+                    while (!deflater.finished()) {
+                        int deflated = deflater.deflate(compressed);
+                        out.write(compressed, 0, deflated);
+                        length += deflated;
+                    }
+                    offsets[blocks] = offset;
+                    lengths[blocks] = length;
+                    sizes[blocks] = block.size();
+                    offset += length;
+                    blocks++;
+                    block.reset();
+                }
+            }
+            // The sparse index, followed by the footer used to find it
+            for (int i = 0; i < blocks; i++) {
+                out.writeLong(numbers[i]);
+                out.writeLong(times[i]);
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                out.writeInt(sizes[i]);
+            }
+            out.writeLong(offset);
+            out.writeInt(blocks);
+            out.writeLong(this.lastNumber);
+            out.writeLong(this.lastTime);
+        } finally {
+            deflater.end();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        HistorySegment segment = new HistorySegment(file, true, this.firstNumber, this.lastNumber, this.firstTime, this.lastTime);
+        segment.blockNumbers = Arrays.copyOf(numbers, blocks);
+        segment.blockTimes = Arrays.copyOf(times, blocks);
+        segment.blockOffsets = Arrays.copyOf(offsets, blocks);
+        segment.blockLengths = Arrays.copyOf(lengths, blocks);
+        segment.blockSizes = Arrays.copyOf(sizes, blocks);
+        return segment;
+    }
+
+    /**
+     * Adds to a list the messages of this segment numbered from a given
+     * number and sent from a given time onwards, oldest first.
+     * @param fromNumber Number of the first message wanted
+     * @param fromTime Time of the first message wanted, in milliseconds
+     * @param limit Maximum number of messages added
+     * @param results The list the messages are added to
+     * @throws IOException If the segment could not be read
+     */
+    public void read(long fromNumber, long fromTime, int limit, List<Entry> results) throws IOException {
+        if (limit <= 0 || fromNumber > this.lastNumber || fromTime > this.lastTime) {
+            return;
+        }
+        int wanted = results.size() + limit;
+        if (!this.cold) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+                in.readInt(); // The segment's header
+                for (long number = this.firstNumber; number <= this.lastNumber && results.size() < wanted; number++) {
+                    Entry entry = Entry.read(in);
+                    if (entry.number >= fromNumber && entry.time >= fromTime) {
+                        results.add(entry);
+                    }
+                }
+            }
+            return;
+        }
+        // Start at the last block whose first message is not after the first message wanted
+        int block = Math.max(floor(this.blockNumbers, fromNumber), floor(this.blockTimes, fromTime));
+        Inflater inflater = new Inflater();
+        try (RandomAccessFile in = new RandomAccessFile(this.file, "r")) {
+            for (; block < this.blockNumbers.length && results.size() < wanted; block++) {
+                byte[] compressed = new byte[this.blockLengths[block]];
+                in.seek(this.blockOffsets[block]);
+                in.readFully(compressed);
+                byte[] bytes = new byte[this.blockSizes[block]];
+                inflater.reset();
+                inflater.setInput(compressed);
+                if (inflater.inflate(bytes) != bytes.length) {
+                    throw new IOException("Corrupted history segment: " + this.file);
+                }
+                DataInputStream entries = new DataInputStream(new ByteArrayInputStream(bytes));
+                while (entries.available() > 0 && results.size() < wanted) {
+                    Entry entry = Entry.read(entries);
+                    if (entry.number >= fromNumber && entry.time >= fromTime) {
+                        results.add(entry);
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted history segment: " + this.file, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Finds the last block whose first key is not after a key, using a
+     * binary search over the sparse index.
+     * @param keys The first key of every block, in increasing order
+     * @param key The key searched for
+     * @return Index of the block, 0 if every block starts after the key
+     */
+    private static int floor(long[] keys, long key) {
+        int index = Arrays.binarySearch(keys, key);
+        if (index < 0) {
+            index = -index - 2; // The block before the insertion point
+        } else {
+            while (index > 0 && keys[index - 1] == key) {
+                index--; // Several blocks may start at the same time, take the first
+            }
+        }
+        return Math.max(0, index);
+    }
+
+    /**
+     * Writes a String of any length, encoded in UTF-8 and preceded by its length.
+     * @param out Stream the String is written to
+     * @param text The String to be written
+     * @throws IOException If the String could not be written
+     */
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a String written by writeString().
+     * @param in Stream the String is read from
+     * @return The String read
+     * @throws IOException If the String could not be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new EOFException("Invalid string length."); // Treated like a message cut short
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
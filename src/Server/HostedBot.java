@@ -0,0 +1,180 @@
+package Server;
+
+import Common.BotPlugin;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a BotPlugin inside the Server.
+ * Broadcasts are handed to the bot through a queue, so the thread broadcasting
+ * a message never waits for the bot, and the bot's responses are broadcast
+ * directly without going through a socket. Only the broadcasts the bot
+ * accepts are queued, and the queue holds at most MAX_PENDING of them; when
+ * it is full the oldest is dropped, so a slow bot answers recent messages.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class HostedBot implements Runnable {
+
+    /**
+     * Number of broadcasts waiting for the bot after which the oldest are dropped
+     */
+    private static final int MAX_PENDING = 256;
+
+    /**
+     * A broadcast waiting to be handled by the bot
+     */
+    private static class Broadcast {
+        /**
+         * Name of the client that sent the message
+         */
+        private final String sender;
+        /**
+         * The message, without the client's name
+         */
+        private final String message;
+
+        private Broadcast(String sender, String message) {
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The bot generating the responses
+     */
+    private BotPlugin plugin;
+    /**
+     * The name the bot's responses are broadcast under, e.g. "[BOT Chad]"
+     */
+    private String botName;
+    /**
+     * The clients the bot's responses are broadcast to
+     */
+    private ChatRoom room;
+    /**
+     * Broadcasts waiting to be handled by the bot
+     */
+    private BlockingQueue<Broadcast> pending;
+    /**
+     * Number of broadcasts dropped because the bot fell behind, since last reported
+     */
+    private LongAdder dropped;
+    /**
+     * Thread handing the broadcasts to the bot
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this HostedBot thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new HostedBot running the given plugin.
+     * @param room The clients the bot's responses are broadcast to
+     * @param plugin The bot to be hosted
+     */
+    public HostedBot(ChatRoom room, BotPlugin plugin) {
+        this.room = room;
+        this.plugin = plugin;
+        this.botName = "[" + plugin.getName() + "]";
+        this.pending = new ArrayBlockingQueue<Broadcast>(MAX_PENDING);
+        this.dropped = new LongAdder();
+        this.running = true;
+    }
+
+    /**
+     * Getter method for the name the bot's responses are broadcast under.
+     * @return The name of the bot, e.g. "[BOT Chad]"
+     */
+    public String getBotName() {
+        return botName;
+    }
+
+    /**
+     * Checks if this HostedBot is currently running.
+     * @return true if the HostedBot is currently running, false if it has been terminated
+     */
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Hands a broadcast to the bot without waiting for it to be handled.
+     * Messages sent by bots, including this one, are ignored so bots do not
+     * keep answering each other, as are messages the bot does not accept.
+     * If MAX_PENDING broadcasts are already waiting the oldest is dropped.
+     * @param sender Name of the client that sent the message
+     * @param message The message, without the client's name
+     */
+    public void offer(String sender, String message) {
+        if (!this.isRunning() || sender.startsWith("[BOT ") || sender.equals(this.botName)) {
+            return;
+        }
+        try {
+            if (!this.plugin.accepts(sender, message)) {
+                return; // Not for this bot, do not queue it
+            }
+        } catch (RuntimeException e) { // A faulty bot must not stop the broadcast
+            return;
+        }
+        Broadcast broadcast = new Broadcast(sender, message);
+        while (!this.pending.offer(broadcast)) { // The bot has fallen behind
+            if (this.pending.poll() != null) {
+                this.dropped.increment(); // Drop the oldest, reported by the bot's thread
+            }
+        }
+    }
+
+    /**
+     * Terminates this HostedBot, by setting the running flag to false and
+     * waking up the thread if it is waiting for broadcasts.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Creates and starts a new HostedBot Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Waits for broadcasts, lets the bot generate a response to each of them
+     * and broadcasts the responses to all clients.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.isRunning()) { // Repeat while this thread has not been terminated
+                Broadcast broadcast = this.pending.take(); // Wait for the next broadcast
+                long lost = this.dropped.sumThenReset();
+                if (lost > 0) {
+                    System.err.println("Error handing messages to bot: " + this.botName + ", " + lost + " were dropped as it fell behind.");
+                }
+                String response;
+                try {
+                    response = this.plugin.respond(broadcast.sender, broadcast.message);
+                } catch (RuntimeException e) { // A faulty bot must not stop the server
+                    System.err.println("Error generating response from bot: " + this.botName);
+                    continue;
+                }
+                if (response != null) {
+                    System.out.println("> Bot " + this.botName + " is sending message: " + response); // document message
+                    this.room.deliver(this.botName, response); // Broadcast the response to all clients
+                }
+            }
+        } catch (InterruptedException i) {
+            // The bot has been terminated
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A block of consecutive broadcast messages together with the inverted index
+ * of their words, mapping each word to the messages containing it.
+ * Messages are numbered from the segment's first number onwards; inside the
+ * segment they are numbered from 0.
+ * Once full the segment is sealed: it never changes again and can be written
+ * to a file, so the index does not have to be rebuilt after a restart, and
+ * searched there as a SegmentFile.
+ * Used by MessageIndex.
+ */
+public class IndexSegment {
+
+    /**
+     * Counts the bytes written, so the positions of the parts of a segment
+     * file are known while it is written
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        /**
+         * Number of bytes written so far
+         */
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Writes a single byte and counts it.
+         * @Override
+         */
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        /**
+         * Writes part of an array at once and counts it.
+         * @Override
+         */
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            this.out.write(bytes, offset, length);
+            this.count += length;
+        }
+    }
+
+    /**
+     * Number of the first message in the segment
+     */
+    private long firstNumber;
+    /**
+     * The messages, including the name of their sender
+     */
+    private String[] messages;
+    /**
+     * Number of messages in the segment
+     */
+    private int count;
+    /**
+     * The messages containing each word
+     */
+    private HashMap<String, Postings> postings;
+
+    /**
+     * Creates an empty segment.
+     * @param firstNumber Number of the first message added to the segment
+     * @param capacity Number of messages the segment can hold
+     */
+    public IndexSegment(long firstNumber, int capacity) {
+        this.firstNumber = firstNumber;
+        this.messages = new String[capacity];
+        this.postings = new HashMap<String, Postings>();
+    }
+
+    /**
+     * Getter method for the number of the first message in the segment.
+     * @return The number of the first message
+     */
+    public long getFirstNumber() {
+        return firstNumber;
+    }
+
+    /**
+     * Getter method for the number of messages in the segment.
+     * @return The number of messages
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Checks if the segment has room for more messages.
+     * @return true if the segment is full, false otherwise
+     */
+    public boolean isFull() {
+        return this.count == this.messages.length;
+    }
+
+    /**
+     * Adds a message to the segment and indexes its words.
+     * @param message The message, including the name of its sender
+     * @param words The words of the message, as produced by Tokenizer
+     */
+    public void add(String message, String[] words) {
+        int number = this.count++;
+        this.messages[number] = message;
+        for (String word : words) {
+            this.postings.computeIfAbsent(word, w -> new Postings()).add(number);
+        }
+    }
+
+    /**
+     * Finds the newest messages in the segment containing every one of the
+     * given words, and adds them to the results, newest first.
+     * @param words The words searched for
+     * @param limit Maximum number of messages to add
+     * @param results List the messages are added to
+     */
+    public void search(String[] words, int limit, List<String> results) {
+        Postings[] lists = new Postings[words.length];
+        for (int i = 0; i < words.length; i++) {
+            lists[i] = this.postings.get(words[i]);
+            if (lists[i] == null) {
+                return; // No message in this segment contains the word
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size())); // Start with the rarest word
+
+        int[] matches = lists[0].toArray();
+        int matchCount = matches.length;
+        for (int i = 1; i < lists.length && matchCount > 0; i++) {
+            matchCount = intersect(matches, matchCount, lists[i].toArray());
+        }
+        for (int i = matchCount - 1; i >= 0 && limit > 0; i--, limit--) {
+            results.add(this.messages[matches[i]]);
+        }
+    }
+
+    /**
+     * Keeps the message numbers that appear in both sorted arrays, in place.
+     * @param matches Message numbers matching so far, in increasing order
+     * @param matchCount Number of entries of matches in use
+     * @param other Message numbers containing the next word, in increasing order
+     * @return The number of entries of matches still in use
+     */
+    static int intersect(int[] matches, int matchCount, int[] other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < matchCount && j < other.length; i++) {
+            while (j < other.length && other[j] < matches[i]) {
+                j++;
+            }
+            if (j < other.length && other[j] == matches[i]) {
+                matches[kept++] = matches[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Writes the segment to a file in the layout read by SegmentFile,
+     * replacing the file only once it has been written completely.
+     * @param file The file the segment is written to
+     * @throws IOException If the segment could not be written
+     */
+    public void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        String[] words = this.postings.keySet().toArray(new String[0]);
+        Arrays.sort(words); // The dictionary is searched block by block, in increasing order
+        long[] messageOffsets = new long[this.count + 1];
+        long[] postingsOffsets = new long[words.length + 1];
+        int blocks = (words.length + SegmentFile.BLOCK_WORDS - 1) / SegmentFile.BLOCK_WORDS;
+        long[] blockOffsets = new long[blocks];
+        try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+             DataOutputStream out = new DataOutputStream(counter)) {
+            for (int i = 0; i < this.count; i++) {
+                messageOffsets[i] = counter.count;
+                writeString(out, this.messages[i]);
+            }
+            messageOffsets[this.count] = counter.count; // The end of the last message
+            for (int i = 0; i < words.length; i++) {
+                postingsOffsets[i] = counter.count;
+                this.postings.get(words[i]).write(out);
+            }
+            postingsOffsets[words.length] = counter.count;
+
+            long messageTable = counter.count;
+            for (long offset : messageOffsets) {
+                out.writeLong(offset);
+            }
+            long dictionary = counter.count;
+            for (int i = 0; i < words.length; i++) {
+                if (i % SegmentFile.BLOCK_WORDS == 0) {
+                    blockOffsets[i / SegmentFile.BLOCK_WORDS] = counter.count; // A new block starts
+                }
+                writeString(out, words[i]);
+                out.writeLong(postingsOffsets[i]);
+                out.writeInt(this.postings.get(words[i]).size());
+                out.writeInt((int) (postingsOffsets[i + 1] - postingsOffsets[i]));
+            }
+            long blockIndex = counter.count;
+            for (int i = 0; i < blocks; i++) {
+                writeString(out, words[i * SegmentFile.BLOCK_WORDS]);
+                out.writeLong(blockOffsets[i]);
+            }
+            // The footer, read first when the file is opened
+            out.writeLong(messageTable);
+            out.writeLong(dictionary);
+            out.writeLong(blockIndex);
+            out.writeInt(blocks);
+            out.writeInt(words.length);
+            out.writeInt(this.count);
+            out.writeLong(this.firstNumber);
+            out.writeInt(SegmentFile.MAGIC);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a whole segment written by write() back into memory, so more
+     * messages can be added to it if it is not full.
+     * @param file The file the segment is read from
+     * @param capacity Number of messages the segment can hold
+     * @return The segment read
+     * @throws IOException If the file is not a segment, holds more than capacity messages or could not be read
+     */
+    public static IndexSegment read(File file, int capacity) throws IOException {
+        SegmentFile segmentFile = SegmentFile.open(file);
+        if (segmentFile.size() > capacity) {
+            throw new IOException("Index segment too large: " + file);
+        }
+        IndexSegment segment = new IndexSegment(segmentFile.getFirstNumber(), capacity);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+             DataInputStream dictionary = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (int i = 0; i < segmentFile.size(); i++) { // The messages come first
+                segment.messages[i] = readString(in);
+            }
+            segment.count = segmentFile.size();
+            dictionary.skipNBytes(segmentFile.getDictionary());
+            for (int i = 0; i < segmentFile.getWordCount(); i++) { // The postings lists follow, in the dictionary's order
+                String word = readString(dictionary);
+                dictionary.skipNBytes(8 + 4 + 4); // Their positions and sizes
+                segment.postings.put(word, Postings.read(in));
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Writes a String of any length, encoded in UTF-8 and preceded by its length.
+     * @param out Stream the String is written to
+     * @param text The String to be written
+     * @throws IOException If the String could not be written
+     */
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a String written by writeString().
+     * @param in Stream the String is read from
+     * @return The String read
+     * @throws IOException If the String could not be read
+     */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
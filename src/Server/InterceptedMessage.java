@@ -0,0 +1,146 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A line read from a client, as seen by the stages of the interceptor pipeline.
+ * The line stays in the pooled buffer it was read into, after the sender's
+ * name, so stages that only look at its bytes never decode it; its text is
+ * decoded the first time a stage asks for it. Stages can replace the text,
+ * which is encoded back into the same buffer.
+ * Each ClientHandler reuses a single InterceptedMessage for all its lines.
+ * Used on the Server side.
+ */
+public class InterceptedMessage {
+
+    /**
+     * The client that sent the line
+     */
+    private final ClientHandler sender;
+    /**
+     * The line, including the sender's name, encoded in UTF-8
+     */
+    private PooledBuffer payload;
+    /**
+     * Index of the payload's first byte after the sender's name
+     */
+    private int textOffset;
+    /**
+     * The line's text, once decoded, or null
+     */
+    private String text;
+    /**
+     * Reason given to the sender when the line is rejected
+     */
+    private String rejection;
+
+    /**
+     * Creates a new InterceptedMessage for the lines of a client.
+     * @param sender The client
+     */
+    InterceptedMessage(ClientHandler sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Starts passing a new line through the pipeline.
+     * @param payload The line, including the sender's name, encoded in UTF-8
+     * @param textOffset Index of the payload's first byte after the sender's name
+     */
+    void reset(PooledBuffer payload, int textOffset) {
+        this.payload = payload;
+        this.textOffset = textOffset;
+        this.text = null;
+        this.rejection = null;
+    }
+
+    /**
+     * Getter method for the client that sent the line.
+     * @return The client
+     */
+    ClientHandler getSender() {
+        return sender;
+    }
+
+    /**
+     * Getter method for the name of the client that sent the line.
+     * @return The client's name, e.g. "[Client 1]"
+     */
+    public String getSenderName() {
+        return sender.getClientName();
+    }
+
+    /**
+     * Getter method for the buffer holding the line. Its bytes from
+     * getTextOffset() to its length are the line's text, encoded in UTF-8.
+     * @return The buffer, which must not be released or kept
+     */
+    public PooledBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * Getter method for the index of the line's first byte in the buffer.
+     * @return The index of the first byte after the sender's name
+     */
+    public int getTextOffset() {
+        return textOffset;
+    }
+
+    /**
+     * Checks if the line starts with the given bytes, without decoding it.
+     * @param prefix The bytes looked for
+     * @return true if the line starts with them
+     */
+    public boolean startsWith(byte[] prefix) {
+        return payload.startsWith(prefix, textOffset);
+    }
+
+    /**
+     * Checks if the line is one of the Server's commands, without decoding it.
+     * @return true if the line starts with a command
+     */
+    public boolean isCommand() {
+        return ClientHandler.isCommand(payload, textOffset);
+    }
+
+    /**
+     * Getter method for the line's text, decoded the first time it is asked for.
+     * @return The line, without the sender's name
+     */
+    public String getText() {
+        if (text == null) {
+            text = payload.toString(textOffset);
+        }
+        return text;
+    }
+
+    /**
+     * Replaces the line's text; later stages, and the clients, see the new text.
+     * @param text The new text, without the sender's name
+     */
+    public void setText(String text) {
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        payload.setLength(textOffset);
+        payload.append(encoded, 0, encoded.length);
+        this.text = text;
+    }
+
+    /**
+     * Rejects the line, giving its sender a reason.
+     * @param reason Told to the sender, e.g. "it contains a blocked word"
+     * @return REJECT, to be returned by the stage
+     */
+    public MessageInterceptor.Verdict reject(String reason) {
+        this.rejection = reason;
+        return MessageInterceptor.Verdict.REJECT;
+    }
+
+    /**
+     * Getter method for the reason the line was rejected.
+     * @return The reason, or null if none was given
+     */
+    String getRejection() {
+        return rejection;
+    }
+}
@@ -0,0 +1,238 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The chain of MessageInterceptors every line read from a client passes
+ * through, in the order they were added, before it is broadcast.
+ * Each stage has a time budget. Stages are timed on every line and their
+ * metrics kept: lines seen, time spent, lines handled, dropped and
+ * rejected, and how often the budget was exceeded. A stage that exceeds its
+ * budget OVERRUN_LIMIT times in a row is bypassed for BYPASS_TIME, so a slow
+ * stage cannot hold up every client's messages; stages added without a
+ * budget are never bypassed, so stages enforcing the Server's policy, e.g.
+ * the content filter, are added without one and cannot be switched off by
+ * clients sending lines that are slow to check. A stage that throws an
+ * exception is skipped for that line, and the failure counted.
+ * Stages can be added while the Server runs; the chain is replaced rather
+ * than changed, so passing a line through it takes no lock and allocates no
+ * memory.
+ * Used on the Server side.
+ */
+public class InterceptorPipeline {
+
+    /**
+     * Default time budget of a stage, in nanoseconds
+     */
+    public static final long DEFAULT_BUDGET = 1000000;
+    /**
+     * Number of lines in a row over budget after which a stage is bypassed
+     */
+    private static final int OVERRUN_LIMIT = 8;
+    /**
+     * How long a stage over budget is bypassed for, in nanoseconds
+     */
+    private static final long BYPASS_TIME = 5000000000L;
+
+    /**
+     * A stage of the pipeline and its metrics
+     */
+    private static class Stage {
+        /**
+         * Name of the stage, shown in the metrics
+         */
+        private final String name;
+        /**
+         * The stage's interceptor
+         */
+        private final MessageInterceptor interceptor;
+        /**
+         * Time budget of the stage, in nanoseconds, or 0 for none
+         */
+        private final long budget;
+        /**
+         * Number of lines the stage has seen
+         */
+        private final LongAdder calls = new LongAdder();
+        /**
+         * Time spent in the stage, in nanoseconds
+         */
+        private final LongAdder nanos = new LongAdder();
+        /**
+         * Number of lines the stage has handled, dropped and rejected
+         */
+        private final LongAdder handled = new LongAdder(), dropped = new LongAdder(), rejected = new LongAdder();
+        /**
+         * Number of lines on which the stage exceeded its budget
+         */
+        private final LongAdder overruns = new LongAdder();
+        /**
+         * Number of lines that skipped the stage while it was bypassed
+         */
+        private final LongAdder bypassed = new LongAdder();
+        /**
+         * Number of lines on which the stage threw an exception
+         */
+        private final LongAdder failures = new LongAdder();
+        /**
+         * Number of lines in a row on which the stage exceeded its budget
+         */
+        private final AtomicInteger overrunsInARow = new AtomicInteger();
+        /**
+         * Time until which the stage is bypassed, from System.nanoTime()
+         */
+        private volatile long bypassUntil;
+        /**
+         * true while the stage is bypassed
+         */
+        private volatile boolean bypassing;
+
+        private Stage(String name, MessageInterceptor interceptor, long budget) {
+            this.name = name;
+            this.interceptor = interceptor;
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * The stages, in order
+     */
+    private volatile Stage[] stages;
+
+    /**
+     * Creates an empty pipeline, which lets every line through.
+     */
+    public InterceptorPipeline() {
+        this.stages = new Stage[0];
+    }
+
+    /**
+     * Adds a stage at the end of the pipeline.
+     * @param name Name of the stage, shown in the metrics
+     * @param interceptor The stage's interceptor
+     * @param budget Time budget of the stage per line, in nanoseconds, or 0 for none
+     */
+    public synchronized void add(String name, MessageInterceptor interceptor, long budget) {
+        Stage[] extended = Arrays.copyOf(this.stages, this.stages.length + 1);
+        extended[this.stages.length] = new Stage(name, interceptor, budget);
+        this.stages = extended; // Lines already in the pipeline finish with the old chain
+    }
+
+    /**
+     * Adds a stage just before another stage, or at the end if there is no
+     * stage with that name.
+     * @param next Name of the stage the new stage comes before
+     * @param name Name of the stage, shown in the metrics
+     * @param interceptor The stage's interceptor
+     * @param budget Time budget of the stage per line, in nanoseconds, or 0 for none
+     */
+    public synchronized void addBefore(String next, String name, MessageInterceptor interceptor, long budget) {
+        int index = 0;
+        while (index < this.stages.length && !this.stages[index].name.equals(next)) {
+            index++;
+        }
+        Stage[] extended = new Stage[this.stages.length + 1];
+        System.arraycopy(this.stages, 0, extended, 0, index);
+        extended[index] = new Stage(name, interceptor, budget);
+        System.arraycopy(this.stages, index, extended, index + 1, this.stages.length - index);
+        this.stages = extended;
+    }
+
+    /**
+     * Passes a line through the stages, until one of them handles, drops or
+     * rejects it.
+     * @param message The line
+     * @return CONTINUE if every stage let the line through, otherwise the verdict of the stage that stopped it
+     */
+    public MessageInterceptor.Verdict process(InterceptedMessage message) {
+        Stage[] chain = this.stages;
+        for (Stage stage : chain) {
+            if (stage.bypassing) {
+                if (System.nanoTime() - stage.bypassUntil < 0) {
+                    stage.bypassed.increment();
+                    continue; // The stage went over its budget too often, skip it for now
+                }
+                stage.bypassing = false;
+            }
+            long start = System.nanoTime();
+            MessageInterceptor.Verdict verdict;
+            try {
+                verdict = stage.interceptor.intercept(message);
+            } catch (RuntimeException e) {
+                verdict = null; // Skip the stage rather than disconnect the sender
+                stage.failures.increment();
+                if (stage.failures.sum() == 1) { // Reported once, the metrics count the others
+                    System.err.println("Error in interceptor " + stage.name + ", skipping it for the lines it fails on: " + e);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            stage.calls.increment();
+            stage.nanos.add(elapsed);
+            if (stage.budget > 0) {
+                this.checkBudget(stage, elapsed);
+            }
+            if (verdict == null) {
+                continue;
+            }
+            switch (verdict) {
+                case CONTINUE:
+                    continue;
+                case HANDLED:
+                    stage.handled.increment();
+                    break;
+                case DROP:
+                    stage.dropped.increment();
+                    break;
+                case REJECT:
+                    stage.rejected.increment();
+                    break;
+            }
+            return verdict;
+        }
+        return MessageInterceptor.Verdict.CONTINUE;
+    }
+
+    /**
+     * Records whether a stage stayed within its budget, and starts bypassing
+     * it once it has exceeded the budget OVERRUN_LIMIT times in a row.
+     * @param stage The stage
+     * @param elapsed Time the stage took on the last line, in nanoseconds
+     */
+    private void checkBudget(Stage stage, long elapsed) {
+        if (elapsed <= stage.budget) {
+            if (stage.overrunsInARow.get() != 0) {
+                stage.overrunsInARow.set(0);
+            }
+            return;
+        }
+        stage.overruns.increment();
+        if (stage.overrunsInARow.incrementAndGet() >= OVERRUN_LIMIT) {
+            stage.overrunsInARow.set(0);
+            stage.bypassUntil = System.nanoTime() + BYPASS_TIME;
+            stage.bypassing = true;
+            System.err.println("Error: interceptor " + stage.name + " went over its budget of " + stage.budget / 1000
+                    + " us " + OVERRUN_LIMIT + " times in a row, bypassing it for " + BYPASS_TIME / 1000000000 + " seconds.");
+        }
+    }
+
+    /**
+     * Describes the metrics of every stage, one line per stage.
+     * @return The metrics, in the order of the stages
+     */
+    public List<String> report() {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (Stage stage : this.stages) {
+            long calls = stage.calls.sum();
+            lines.add(String.format("%s: %d lines, %.2f us average, %d handled, %d dropped, %d rejected, %d over budget%s%s",
+                    stage.name, calls, calls == 0 ? 0.0 : stage.nanos.sum() / 1000.0 / calls, stage.handled.sum(),
+                    stage.dropped.sum(), stage.rejected.sum(), stage.overruns.sum(),
+                    stage.bypassed.sum() == 0 ? "" : ", " + stage.bypassed.sum() + " bypassed",
+                    stage.failures.sum() == 0 ? "" : ", " + stage.failures.sum() + " failed"));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,163 @@
+package Server;
+
+/**
+ * A subscription filter registered by a client, used by the Server to decide
+ * whether a broadcast should be delivered to that client.
+ * Supports three kinds of filters:
+ * 1. MENTION = messages mentioning the given name, e.g. "@bot"
+ * 2. KEYWORD = messages containing the given keyword
+ * 3. SENDER = messages whose sender name matches the given pattern, where
+ * '*' stands for any characters and '?' for any one character, e.g. "[Client *]"
+ * Filters are checked for every broadcast while the fan-out holds the lock,
+ * so sender patterns are simple wildcards, matched in time proportional to
+ * the name's length times the pattern's, rather than regular expressions,
+ * which a client could write to backtrack for ever on a name of its choice.
+ * Values are at most MAX_VALUE_LENGTH characters long and a client can
+ * register at most MAX_FILTERS filters, so checking a broadcast against a
+ * client's filters takes a bounded time whatever the client registers.
+ * Used on the Server side.
+ */
+public class MessageFilter {
+
+    /**
+     * The kinds of filters a client can register
+     */
+    public enum Type { MENTION, KEYWORD, SENDER }
+
+    /**
+     * Longest mention, keyword or sender pattern a client can register
+     */
+    public static final int MAX_VALUE_LENGTH = 64;
+    /**
+     * Number of filters a client can register at most
+     */
+    public static final int MAX_FILTERS = 16;
+
+    /**
+     * The kind of this filter
+     */
+    private Type type;
+    /**
+     * The mention (including the '@') or keyword looked for in the message,
+     * or the pattern matched against the sender's name
+     */
+    private String value;
+
+    /**
+     * Creates a new filter of the given kind.
+     * @param type The kind of filter
+     * @param value The name mentioned, the keyword or the sender pattern
+     * @throws IllegalArgumentException If the value is longer than MAX_VALUE_LENGTH
+     */
+    public MessageFilter(Type type, String value) {
+        this.type = type;
+        if (value.length() > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Filter value too long.");
+        }
+        if (type == Type.MENTION && !value.startsWith("@")) {
+            value = "@" + value; // Mentions are always matched together with the '@'
+        }
+        this.value = value;
+    }
+
+    /**
+     * Creates a filter from a specification sent by a client, e.g. "MENTION bot".
+     * @param spec The kind of filter followed by a space and its value
+     * @return The filter described by the specification
+     * @throws IllegalArgumentException If the specification is in the wrong format
+     */
+    public static MessageFilter parse(String spec) {
+        int space = spec.indexOf(' ');
+        if (space < 0 || space == spec.length() - 1) {
+            throw new IllegalArgumentException("Filter value missing.");
+        }
+        Type type = Type.valueOf(spec.substring(0, space).toUpperCase()); // Throws IllegalArgumentException if unknown
+        return new MessageFilter(type, spec.substring(space + 1).trim());
+    }
+
+    /**
+     * Getter method for the kind of this filter.
+     * @return The kind of this filter
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Getter method for the value of this filter.
+     * @return The name mentioned, the keyword or the sender pattern
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Checks if a message matches this filter.
+     * @param sender Name of the sender, e.g. "[Client 1]" or "[Server]"
+     * @param message The message sent, without the sender's name
+     * @return true if the message matches this filter, false otherwise
+     */
+    public boolean matches(String sender, String message) {
+        if (this.type == Type.SENDER) {
+            return wildcardMatches(sender, this.value);
+        }
+        return containsIgnoreCase(message, this.value);
+    }
+
+    /**
+     * Checks if a whole String matches a wildcard pattern, ignoring case.
+     * '*' matches any characters, including none, and '?' any one character;
+     * every other character matches itself. On a mismatch only the last '*'
+     * is retried, one character further, so nothing is backtracked more than once.
+     * @param text The String to match, e.g. the sender's name
+     * @param pattern The wildcard pattern
+     * @return true if the whole text matches the pattern, false otherwise
+     */
+    private static boolean wildcardMatches(String text, String pattern) {
+        int t = 0, p = 0;
+        int star = -1, retry = 0; // Position of the last '*' seen, and where in the text it was matched up to
+        while (t < text.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                retry = t; // Match nothing first
+            } else if (p < pattern.length() && (pattern.charAt(p) == '?' || text.regionMatches(true, t, pattern, p, 1))) {
+                t++;
+                p++;
+            } else if (star >= 0) {
+                p = star + 1;
+                t = ++retry; // Let the last '*' match one more character
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++; // Trailing '*' match nothing
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Checks if a String contains another String, ignoring case, without
+     * creating lowercase copies of either.
+     * @param text The String to search in
+     * @param word The String to search for
+     * @return true if the text contains the word, false otherwise
+     */
+    private static boolean containsIgnoreCase(String text, String word) {
+        int last = text.length() - word.length();
+        for (int i = 0; i <= last; i++) {
+            if (text.regionMatches(true, i, word, 0, word.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Describes this filter in the same format used to register it.
+     * @return The kind of this filter followed by its value
+     */
+    public String toString() {
+        return this.type + " " + this.value;
+    }
+}
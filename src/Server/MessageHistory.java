@@ -0,0 +1,402 @@
+package Server;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps every broadcast message, numbered and timed, in three tiers so the
+ * recent messages, which are read most often, are the cheapest to read:
+ * 1. Hot: the newest HOT_SIZE messages, in memory. New clients are sent the
+ *    newest of them when they connect.
+ * 2. Warm: segments of SEGMENT_SIZE messages written to files as they are,
+ *    the newest WARM_SEGMENTS of them.
+ * 3. Cold: older segments, compressed in blocks with a sparse index so
+ *    they can be read from any message number or time.
+ * Broadcasts are handed to the history through a queue and written by the
+ * history's own thread, so broadcasting a message never waits for a file.
+ * Compressing warm segments and deleting the segments older than the
+ * retention time is left to a HistoryCompactor, which only swaps segments
+ * in a list that readers copy, so reading the history never waits for it.
+ * The hot tier always holds at least the segment being written, so only
+ * complete segments are ever read from files.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class MessageHistory implements Runnable {
+
+    /**
+     * Number of messages in a segment
+     */
+    public static final int SEGMENT_SIZE = 4096;
+    /**
+     * Number of messages kept in memory; at least SEGMENT_SIZE, so the
+     * segment being written is never read from its file
+     */
+    public static final int HOT_SIZE = SEGMENT_SIZE;
+    /**
+     * Number of newest complete segments kept uncompressed
+     */
+    public static final int WARM_SEGMENTS = 4;
+
+    /**
+     * Newest messages, oldest first
+     */
+    private ArrayDeque<HistorySegment.Entry> hot;
+    /**
+     * Synchronises reading the hot messages with adding messages to them
+     */
+    private ReadWriteLock hotLock;
+    /**
+     * Complete segments, oldest first
+     */
+    private List<HistorySegment> segments;
+    /**
+     * Files of segments that have been replaced or dropped, deleted by the
+     * next compaction so reads that started before still find them
+     */
+    private List<File> retired;
+    /**
+     * Directory the segments are written to
+     */
+    private File directory;
+    /**
+     * How long messages are kept, in milliseconds
+     */
+    private long retention;
+    /**
+     * Stream the segment being written is written to
+     */
+    private DataOutputStream active;
+    /**
+     * File of the segment being written
+     */
+    private File activeFile;
+    /**
+     * First and last messages written to the segment being written
+     */
+    private HistorySegment.Entry activeFirst, activeLast;
+    /**
+     * Number given to the next message
+     */
+    private long nextNumber;
+    /**
+     * Time given to the last message, so message times never go backwards
+     */
+    private long lastTime;
+    /**
+     * Broadcasts waiting to be written, as their sender and text
+     */
+    private BlockingQueue<String[]> pending;
+    /**
+     * Thread writing the messages
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this MessageHistory thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new history, opening the segments written to the directory
+     * when the Server last ran and reading their newest messages into memory.
+     * @param directory Directory the segments are written to
+     * @param retention How long messages are kept, in milliseconds
+     * @throws IOException If the directory could not be created or a segment could not be read
+     */
+    public MessageHistory(File directory, long retention) throws IOException {
+        this.hot = new ArrayDeque<HistorySegment.Entry>(HOT_SIZE);
+        this.hotLock = new ReentrantReadWriteLock();
+        this.segments = new CopyOnWriteArrayList<HistorySegment>();
+        this.retired = new ArrayList<File>();
+        this.directory = directory;
+        this.retention = retention;
+        this.pending = new LinkedBlockingQueue<String[]>();
+        this.running = true;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the history directory: " + directory);
+        }
+        ArrayList<HistorySegment> loaded = new ArrayList<HistorySegment>();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("history-"));
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete(); // A cold segment the Server stopped writing
+                continue;
+            }
+            HistorySegment segment = HistorySegment.open(file);
+            if (segment == null) {
+                file.delete(); // The Server stopped before writing a message to it
+            } else {
+                loaded.add(segment);
+            }
+        }
+        // Cold segments first, so a warm segment whose cold copy was written just before the Server stopped is dropped
+        loaded.sort(Comparator.comparingLong(HistorySegment::getFirstNumber).thenComparing(segment -> !segment.isCold()));
+        for (HistorySegment segment : loaded) {
+            if (!this.segments.isEmpty() && segment.getFirstNumber() <= this.segments.get(this.segments.size() - 1).getLastNumber()) {
+                segment.getFile().delete(); // Already kept in the cold segment before it
+                continue;
+            }
+            this.segments.add(segment);
+        }
+        if (!this.segments.isEmpty()) {
+            HistorySegment last = this.segments.get(this.segments.size() - 1);
+            this.nextNumber = last.getLastNumber() + 1; // Carry on numbering after the stored messages
+            this.lastTime = last.getLastTime();
+            // Read the newest messages back into memory, so new clients are sent them straight away
+            this.hot.addAll(this.read(Math.max(0, this.nextNumber - HOT_SIZE), Long.MIN_VALUE, HOT_SIZE));
+        }
+    }
+
+    /**
+     * Getter method for the number of messages in the history, including
+     * those read from the directory and those already dropped.
+     * @return The number of the next message
+     */
+    public long size() {
+        try {
+            this.hotLock.readLock().lock();
+            return this.nextNumber;
+        } finally {
+            this.hotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hands a broadcast to the history without waiting for it to be written.
+     * @param sender Name of the client that sent the message
+     * @param message The message, without the client's name
+     */
+    public void offer(String sender, String message) {
+        if (this.running) {
+            this.pending.offer(new String[] {sender, message});
+        }
+    }
+
+    /**
+     * Gets the newest messages, from memory.
+     * @param limit Maximum number of messages returned
+     * @return The newest messages, oldest first
+     */
+    public List<HistorySegment.Entry> latest(int limit) {
+        ArrayList<HistorySegment.Entry> results = new ArrayList<HistorySegment.Entry>();
+        try {
+            this.hotLock.readLock().lock();
+            Iterator<HistorySegment.Entry> newestFirst = this.hot.descendingIterator();
+            while (newestFirst.hasNext() && results.size() < limit) {
+                results.add(newestFirst.next());
+            }
+        } finally {
+            this.hotLock.readLock().unlock();
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * Gets the messages numbered from a given number and sent from a given
+     * time onwards, reading them from memory when they are still there and
+     * from the segments otherwise.
+     * @param fromNumber Number of the first message wanted
+     * @param fromTime Time of the first message wanted, in milliseconds
+     * @param limit Maximum number of messages returned
+     * @return The messages, oldest first
+     * @throws IOException If a segment could not be read
+     */
+    public List<HistorySegment.Entry> read(long fromNumber, long fromTime, int limit) throws IOException {
+        // Copy the hot messages wanted first; the older ones are already in complete segments
+        ArrayList<HistorySegment.Entry> hotResults = new ArrayList<HistorySegment.Entry>();
+        long hotFirst;
+        try {
+            this.hotLock.readLock().lock();
+            hotFirst = this.hot.isEmpty() ? this.nextNumber : this.hot.peekFirst().getNumber();
+            for (HistorySegment.Entry entry : this.hot) {
+                if (hotResults.size() == limit) {
+                    break;
+                } else if (entry.getNumber() >= fromNumber && entry.getTime() >= fromTime) {
+                    hotResults.add(entry);
+                }
+            }
+        } finally {
+            this.hotLock.readLock().unlock();
+        }
+
+        ArrayList<HistorySegment.Entry> results = new ArrayList<HistorySegment.Entry>();
+        if (fromNumber < hotFirst) {
+            for (HistorySegment segment : this.segments) { // Iterates over a copy, segments may be swapped meanwhile
+                if (results.size() == limit || segment.getFirstNumber() >= hotFirst) {
+                    break;
+                }
+                segment.read(fromNumber, fromTime, limit - results.size(), results);
+            }
+            results.removeIf(entry -> entry.getNumber() >= hotFirst); // The hot copy above holds them
+        }
+        for (HistorySegment.Entry entry : hotResults) {
+            if (results.size() == limit) {
+                break;
+            }
+            results.add(entry);
+        }
+        return results;
+    }
+
+    /**
+     * Compresses the warm segments older than the newest WARM_SEGMENTS into
+     * cold segments, and drops the segments whose newest message is older
+     * than the retention time.
+     * Called by the HistoryCompactor's thread; each segment is replaced in
+     * the list once its cold copy is complete, and the replaced files are
+     * deleted by the next call, once reads using them have finished.
+     */
+    public void compact() {
+        synchronized (this.retired) {
+            for (File file : this.retired) {
+                file.delete();
+            }
+            this.retired.clear();
+        }
+        long oldest = System.currentTimeMillis() - this.retention;
+        List<HistorySegment> snapshot = new ArrayList<HistorySegment>(this.segments);
+        for (int i = 0; i < snapshot.size(); i++) {
+            HistorySegment segment = snapshot.get(i);
+            if (segment.getLastTime() < oldest) {
+                this.segments.remove(segment); // Every message of the segment is older than the retention time
+                this.retire(segment.getFile());
+            } else if (!segment.isCold() && i < snapshot.size() - WARM_SEGMENTS) {
+                File file = new File(this.directory, String.format("history-%019d.cold", segment.getFirstNumber()));
+                try {
+                    HistorySegment cold = segment.compress(file);
+                    this.segments.set(this.segments.indexOf(segment), cold); // Only the compactor removes segments
+                    this.retire(segment.getFile());
+                } catch (IOException e) {
+                    System.err.println("Error compressing history segment: " + segment.getFile() + ".");
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a segment's file to be deleted by the next compaction.
+     * @param file The segment's file
+     */
+    private void retire(File file) {
+        synchronized (this.retired) {
+            this.retired.add(file);
+        }
+    }
+
+    /**
+     * Terminates this MessageHistory. Messages already handed to the history
+     * are still written, and the segment being written is closed, before the
+     * thread finishes; it is read back as a warm segment the next time the
+     * Server runs.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Creates and starts a new MessageHistory Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Writes the broadcasts handed to the history, sealing the segment being
+     * written whenever it is full.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.running) { // Repeat while this thread has not been terminated
+                this.write(this.pending.take()); // Wait for the next broadcast
+            }
+        } catch (InterruptedException i) {
+            // The history has been terminated
+        }
+        String[] message;
+        while ((message = this.pending.poll()) != null) { // Write the broadcasts still waiting
+            this.write(message);
+        }
+        try {
+            if (this.active != null) {
+                this.active.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing history segment: " + this.activeFile + ".");
+        }
+        synchronized (this.retired) {
+            for (File file : this.retired) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Numbers a broadcast, adds it to the hot messages and to the segment
+     * being written, and seals the segment once it is full.
+     * @param message The broadcast's sender and text
+     */
+    private void write(String[] message) {
+        long time = Math.max(System.currentTimeMillis(), this.lastTime); // Keeps the times in order for seeking
+        HistorySegment.Entry entry = new HistorySegment.Entry(this.nextNumber, time, message[0], message[1]);
+        try {
+            if (this.active == null) {
+                this.activeFile = new File(this.directory, String.format("history-%019d.log", entry.getNumber()));
+                this.active = HistorySegment.create(this.activeFile);
+                this.activeFirst = entry;
+            }
+            HistorySegment.append(this.active, entry);
+            this.activeLast = entry;
+        } catch (IOException e) {
+            System.err.println("Error writing history segment: " + this.activeFile + ".");
+        }
+        try {
+            this.hotLock.writeLock().lock(); // No reads while the hot messages change
+            if (this.hot.size() == HOT_SIZE) {
+                this.hot.pollFirst(); // Already in a complete segment
+            }
+            this.hot.addLast(entry);
+            this.nextNumber++;
+            this.lastTime = time;
+        } finally {
+            this.hotLock.writeLock().unlock();
+        }
+        if (this.activeFirst != null && this.activeLast.getNumber() - this.activeFirst.getNumber() + 1 == SEGMENT_SIZE) {
+            this.seal();
+        }
+    }
+
+    /**
+     * Closes the segment being written, which is full, and adds it to the
+     * complete segments; the next message starts a new segment.
+     */
+    private void seal() {
+        try {
+            this.active.close();
+            this.segments.add(HistorySegment.sealed(this.activeFile, this.activeFirst, this.activeLast));
+        } catch (IOException e) {
+            System.err.println("Error closing history segment: " + this.activeFile + ".");
+        }
+        this.active = null;
+        this.activeFirst = null;
+    }
+}
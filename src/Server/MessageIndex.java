@@ -0,0 +1,353 @@
+package Server;
+
+import Common.Tokenizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the recent broadcast messages and an inverted index of their words,
+ * so clients can search the messages without scanning all of them.
+ * Broadcasts are handed to the index through a queue and indexed by the
+ * index's own thread, so broadcasting a message never waits for the index.
+ * The queue holds at most MAX_PENDING messages; broadcasts arriving while
+ * it is full are not indexed, and counted.
+ * Messages are indexed in segments of SEGMENT_SIZE messages. Full segments
+ * never change again and, if a directory was given, are written to a file
+ * there and dropped from memory; a search reads only the parts of the file
+ * it needs, see SegmentFile. A search reaches at most the newest
+ * MAX_SEARCHED_SEGMENTS full segments. Only the newest MAX_STORED_SEGMENTS
+ * segments are kept in the directory, or MAX_MEMORY_SEGMENTS without one,
+ * so the index's size does not grow with the whole history of the chat.
+ * The segment being filled is written when the Server stops, and filled
+ * further after it restarts.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class MessageIndex implements Runnable {
+
+    /**
+     * Number of messages in a segment
+     */
+    public static final int SEGMENT_SIZE = 65536;
+    /**
+     * Number of full segments kept in the directory; the oldest are deleted
+     */
+    public static final int MAX_STORED_SEGMENTS = 256;
+    /**
+     * Number of full segments kept in memory when the index has no directory
+     */
+    public static final int MAX_MEMORY_SEGMENTS = 4;
+    /**
+     * Number of full segments a search reaches at most, newest first
+     */
+    public static final int MAX_SEARCHED_SEGMENTS = 64;
+    /**
+     * Number of messages waiting to be indexed after which broadcasts are not indexed
+     */
+    private static final int MAX_PENDING = 65536;
+    /**
+     * Milliseconds between reports of broadcasts that were not indexed
+     */
+    private static final long REPORT_INTERVAL = 10000;
+
+    /**
+     * A full segment, kept in memory or in a file
+     */
+    private static class Sealed {
+        /**
+         * File the segment is kept in, or null if it is only kept in memory
+         */
+        private final SegmentFile file;
+        /**
+         * The segment, if it is only kept in memory, otherwise null
+         */
+        private final IndexSegment segment;
+
+        private Sealed(SegmentFile file, IndexSegment segment) {
+            this.file = file;
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * Full segments, oldest first; only changed by the indexing thread
+     */
+    private List<Sealed> sealed;
+    /**
+     * Segment the next messages are added to
+     */
+    private IndexSegment active;
+    /**
+     * Synchronises searching the active segment with adding messages to it
+     */
+    private ReadWriteLock activeLock;
+    /**
+     * Directory the segments are written to, or null if they are only kept in memory
+     */
+    private File directory;
+    /**
+     * Messages waiting to be indexed
+     */
+    private BlockingQueue<String> pending;
+    /**
+     * Number of broadcasts not indexed because the queue was full, since last reported
+     */
+    private LongAdder dropped;
+    /**
+     * Time the broadcasts that were not indexed were last reported
+     */
+    private long reportedAt;
+    /**
+     * Thread indexing the messages
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this MessageIndex thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new index, opening the segments written to the directory
+     * when the Server last ran. Only the first word of every dictionary
+     * block of a full segment is read, see SegmentFile. The newest segment,
+     * if it was written partly filled, is read whole and filled further.
+     * @param directory Directory the segments are written to, or null to only keep them in memory
+     * @throws IOException If the directory could not be created
+     */
+    public MessageIndex(File directory) throws IOException {
+        this.sealed = new CopyOnWriteArrayList<Sealed>();
+        this.activeLock = new ReentrantReadWriteLock();
+        this.directory = directory;
+        this.pending = new ArrayBlockingQueue<String>(MAX_PENDING);
+        this.dropped = new LongAdder();
+        this.running = true;
+
+        long nextNumber = 0;
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create the index directory: " + directory);
+            }
+            File[] files = directory.listFiles((dir, name) -> name.matches("segment-[0-9]{19}\\.idx"));
+            Arrays.sort(files); // The names hold the first numbers, padded, so they sort oldest first
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    SegmentFile file = SegmentFile.open(files[i]);
+                    if (i == files.length - 1 && file.size() < SEGMENT_SIZE) {
+                        this.active = IndexSegment.read(files[i], SEGMENT_SIZE); // Written when the Server stopped, fill it further
+                    } else {
+                        this.sealed.add(new Sealed(file, null));
+                    }
+                    nextNumber = file.getFirstNumber() + file.size(); // Carry on numbering after the stored messages
+                } catch (IOException e) {
+                    System.err.println("Error reading index segment: " + files[i] + ".");
+                }
+            }
+            this.retain();
+        }
+        if (this.active == null) {
+            this.active = new IndexSegment(nextNumber, SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * Getter method for the number of messages indexed so far, including
+     * those indexed before the Server restarted and those no longer kept.
+     * @return The number of indexed messages
+     */
+    public long size() {
+        try {
+            this.activeLock.readLock().lock();
+            return this.active.getFirstNumber() + this.active.size();
+        } finally {
+            this.activeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hands a broadcast to the index without waiting for it to be indexed.
+     * The broadcast is not indexed if MAX_PENDING messages are already waiting.
+     * @param sender Name of the client that sent the message
+     * @param message The message, without the client's name
+     */
+    public void offer(String sender, String message) {
+        if (this.running && !this.pending.offer(sender + ": " + message)) {
+            this.dropped.increment(); // The index has fallen behind, reported by its thread
+        }
+    }
+
+    /**
+     * Finds the newest messages containing every word of the query.
+     * The query is broken down into words the same way as the messages.
+     * @param query The words searched for
+     * @param limit Maximum number of messages returned
+     * @return The matching messages, newest first
+     */
+    public List<String> search(String query, int limit) {
+        // Remove repeated words, they do not change the result
+        String[] words = new LinkedHashSet<String>(List.of(Tokenizer.tokenize(query))).toArray(new String[0]);
+        ArrayList<String> results = new ArrayList<String>();
+        if (words.length == 0) {
+            return results;
+        }
+        try {
+            this.activeLock.readLock().lock(); // The active segment is changed by the indexing thread
+            this.active.search(words, limit, results);
+        } finally {
+            this.activeLock.readLock().unlock();
+        }
+        // Search the full segments from newest to oldest, until enough messages have been found
+        Sealed[] segments = this.sealed.toArray(new Sealed[0]); // The oldest may be deleted meanwhile
+        int oldest = Math.max(0, segments.length - MAX_SEARCHED_SEGMENTS);
+        for (int i = segments.length - 1; i >= oldest && results.size() < limit; i--) {
+            this.search(segments[i], words, limit - results.size(), results);
+        }
+        return results;
+    }
+
+    /**
+     * Searches a full segment, in memory or in its file. The file is read
+     * without holding any lock.
+     * @param sealed The segment
+     * @param words The words searched for
+     * @param limit Maximum number of messages to add
+     * @param results List the messages are added to
+     */
+    private void search(Sealed sealed, String[] words, int limit, List<String> results) {
+        if (sealed.segment != null) {
+            sealed.segment.search(words, limit, results);
+            return;
+        }
+        try {
+            sealed.file.search(words, limit, results);
+        } catch (IOException e) {
+            if (sealed.file.getFile().exists()) { // Otherwise it has just been deleted
+                System.err.println("Error reading index segment: " + sealed.file.getFile() + ".");
+            }
+        }
+    }
+
+    /**
+     * Terminates this MessageIndex. Messages already handed to the index are
+     * still indexed, and the segment being filled is written to the directory,
+     * before the thread finishes.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Creates and starts a new MessageIndex Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Indexes the broadcasts handed to the index, sealing the active segment
+     * whenever it is full.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.running) { // Repeat while this thread has not been terminated
+                this.index(this.pending.take()); // Wait for the next broadcast
+                if (System.currentTimeMillis() - this.reportedAt >= REPORT_INTERVAL) { // Report at most once per interval
+                    long lost = this.dropped.sumThenReset();
+                    if (lost > 0) {
+                        System.err.println("Error indexing messages, " + lost + " broadcasts were not indexed as the index fell behind.");
+                        this.reportedAt = System.currentTimeMillis();
+                    }
+                }
+            }
+        } catch (InterruptedException i) {
+            // The index has been terminated
+        }
+        String message;
+        while ((message = this.pending.poll()) != null) { // Index the broadcasts still waiting
+            this.index(message);
+        }
+        if (this.active.size() > 0) {
+            this.write(this.active); // Keep the partly filled segment for the next time the Server runs
+        }
+    }
+
+    /**
+     * Adds a message to the active segment, replacing the segment with a new
+     * one once it is full.
+     * @param message The message, including the name of its sender
+     */
+    private void index(String message) {
+        String[] words = Tokenizer.tokenize(message.substring(message.indexOf(": ") + 2)); // Leave out the sender's name
+        IndexSegment full = null;
+        Sealed inMemory = null;
+        try {
+            this.activeLock.writeLock().lock(); // No searches while the segment changes
+            this.active.add(message, words);
+            if (this.active.isFull()) {
+                full = this.active;
+                inMemory = new Sealed(null, full);
+                this.sealed.add(inMemory); // Searched in memory until it has been written
+                this.active = new IndexSegment(full.getFirstNumber() + full.size(), SEGMENT_SIZE);
+            }
+        } finally {
+            this.activeLock.writeLock().unlock();
+        }
+        if (full != null) {
+            SegmentFile file = this.write(full); // The full segment never changes again, write it without holding the lock
+            if (file != null) {
+                this.sealed.set(this.sealed.indexOf(inMemory), new Sealed(file, null)); // Searched in its file from now on
+            }
+            this.retain();
+        }
+    }
+
+    /**
+     * Writes a segment to the directory, if the index has one, and opens
+     * the file written so it can be searched.
+     * @param segment The segment to be written
+     * @return The file written, or null if the segment is only kept in memory
+     */
+    private SegmentFile write(IndexSegment segment) {
+        if (this.directory == null) {
+            return null;
+        }
+        File file = new File(this.directory, String.format("segment-%019d.idx", segment.getFirstNumber()));
+        try {
+            segment.write(file);
+            return SegmentFile.open(file);
+        } catch (IOException e) {
+            System.err.println("Error writing index segment: " + file + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Drops the oldest full segments beyond MAX_STORED_SEGMENTS, deleting
+     * their files, or beyond MAX_MEMORY_SEGMENTS if the index has no directory.
+     */
+    private void retain() {
+        int limit = this.directory == null ? MAX_MEMORY_SEGMENTS : MAX_STORED_SEGMENTS;
+        while (this.sealed.size() > limit) {
+            Sealed oldest = this.sealed.remove(0);
+            if (oldest.file != null && !oldest.file.getFile().delete()) {
+                System.err.println("Error deleting index segment: " + oldest.file.getFile() + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package Server;
+
+/**
+ * A stage of the Server's interceptor pipeline, which every line read from a
+ * client passes through before it is broadcast.
+ * A stage can let the line through, possibly after changing it, handle it
+ * itself, or stop it before it costs a write to every client.
+ * Stages are called on the thread reading the client's connection, one line
+ * at a time per client but for several clients at once, so they must be
+ * thread safe. They should be quick: each stage has a time budget, and a
+ * stage that keeps going over it is bypassed for a while.
+ * Implementations loaded by their class name (java ChatServer -csx ClassName)
+ * must have a public constructor without parameters.
+ */
+public interface MessageInterceptor {
+
+    /**
+     * What happens to a line once a stage has seen it
+     */
+    enum Verdict {
+        /**
+         * The line goes on to the next stage, and is broadcast after the last one
+         */
+        CONTINUE,
+        /**
+         * The stage has handled the line, e.g. a command; later stages do not see it
+         */
+        HANDLED,
+        /**
+         * The line is discarded without telling its sender
+         */
+        DROP,
+        /**
+         * The line is discarded and its sender is told why
+         */
+        REJECT
+    }
+
+    /**
+     * Decides what happens to a line read from a client.
+     * @param message The line, which the stage can read and change; only valid during the call
+     * @return What happens to the line
+     */
+    Verdict intercept(InterceptedMessage message);
+}
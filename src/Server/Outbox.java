@@ -0,0 +1,368 @@
+package Server;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The messages waiting to be written to a client, in two lanes: the control
+ * lane, for the Server's own messages to the client, e.g. notices, command
+ * responses and "You've been disconnected", and the chat lane, for the
+ * broadcasts fanned out to the client.
+ * Messages are written in rounds. Each round writes up to CONTROL_BURST
+ * control messages first, then up to CHAT_BURST chat messages, and flushes
+ * the output if it wrote any control message. A control message therefore
+ * never waits behind more than CHAT_BURST chat messages, however long the
+ * chat lane is, and a flood of control messages cannot stop the chat.
+ * Messages queued while the client has a reliable session are given their
+ * sequence number when they are written, not when they are queued, so the
+ * numbers follow the order the client receives them in.
+ * Clients started by their own thread have their lanes emptied by a writer
+ * task, run on the threads shared by the Servers whenever messages are
+ * queued and finishing once the lanes are empty, so the fan-out only queues
+ * their broadcasts and never waits for their connection, and an idle
+ * client costs no writing thread. A client whose chat lane fills up is
+ * disconnected at once, since the fan-out runs while the room's lock is
+ * held and must not wait for one client. Clients added without a thread
+ * have no writer; whichever thread flushes the outbox writes it.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class Outbox implements Runnable {
+
+    /**
+     * Number of control messages the control lane holds; a client this far
+     * behind is no longer reading and is disconnected
+     */
+    public static final int CONTROL_CAPACITY = 256;
+    /**
+     * Number of broadcasts the chat lane holds; a client this far behind is
+     * no longer reading and is disconnected
+     */
+    public static final int CHAT_CAPACITY = 16384;
+    /**
+     * Number of broadcasts the chat lane holds at first; it grows while the
+     * client falls behind, so clients keeping up use little memory
+     */
+    private static final int INITIAL_CHAT_CAPACITY = 64;
+    /**
+     * Largest number of control messages written in a round, before the chat lane's turn
+     */
+    private static final int CONTROL_BURST = 16;
+    /**
+     * Largest number of chat messages written in a round, before the control lane's turn
+     */
+    private static final int CHAT_BURST = 64;
+    /**
+     * How long closing the outbox waits for the control messages left to be written, in milliseconds
+     */
+    private static final long CLOSE_TIMEOUT = 500;
+
+    /**
+     * The client the messages are written to
+     */
+    private final ClientHandler client;
+    /**
+     * Control messages, in a ring starting at controlHead
+     */
+    private final PooledBuffer[] control;
+    /**
+     * Whether each control message is numbered for reliable sessions
+     */
+    private final boolean[] controlNumbered;
+    /**
+     * Index of the oldest control message, and number of control messages queued
+     */
+    private int controlHead, controlCount;
+    /**
+     * Chat messages, in a ring starting at chatHead
+     */
+    private PooledBuffer[] chat;
+    /**
+     * Whether each chat message is numbered for reliable sessions
+     */
+    private boolean[] chatNumbered;
+    /**
+     * Index of the oldest chat message, and number of chat messages queued
+     */
+    private int chatHead, chatCount;
+    /**
+     * Messages taken from the lanes for the current round, reused for every round
+     */
+    private final PooledBuffer[] round;
+    /**
+     * Whether each message of the current round is numbered
+     */
+    private final boolean[] roundNumbered;
+    /**
+     * true while a thread is writing the lanes, or the writer task has been
+     * handed to the writers; only that thread takes messages from them
+     */
+    private boolean draining;
+    /**
+     * true once the client has been removed; no more messages are queued
+     */
+    private boolean closed;
+    /**
+     * true once the client's chat lane has filled up; no more broadcasts are
+     * queued while the client is being disconnected
+     */
+    private boolean stalled;
+    /**
+     * Runs the writer task, or null if the outbox is written by whichever thread flushes it
+     */
+    private Executor writers;
+    /**
+     * Thread running the writer task, or null while it is not running
+     */
+    private Thread writer;
+
+    /**
+     * Creates a new, empty Outbox.
+     * @param client The client the messages are written to
+     */
+    public Outbox(ClientHandler client) {
+        this.client = client;
+        this.control = new PooledBuffer[CONTROL_CAPACITY];
+        this.controlNumbered = new boolean[CONTROL_CAPACITY];
+        this.chat = new PooledBuffer[INITIAL_CHAT_CAPACITY];
+        this.chatNumbered = new boolean[INITIAL_CHAT_CAPACITY];
+        this.round = new PooledBuffer[CONTROL_BURST + CHAT_BURST];
+        this.roundNumbered = new boolean[CONTROL_BURST + CHAT_BURST];
+    }
+
+    /**
+     * Queues a message for the client. A control message is dropped, and the
+     * client disconnected, if the control lane is full. A chat message is
+     * dropped, and the client disconnected, if the chat lane is full; the
+     * calling thread never waits for the client, as it may be fanning out
+     * to every client. With writers, the writer task is handed to them if
+     * it is not already running; without, the calling thread makes room by
+     * writing the lanes itself.
+     * Chat messages dropped are kept by the client's reliable session if it
+     * has one, so they are sent again if the session is resumed.
+     * @param payload The message encoded in UTF-8; retained until it has been written
+     * @param isControl true for the control lane, false for the chat lane
+     * @param numbered true if the message is numbered when written, because the
+     * client had asked for reliable delivery when it was queued
+     */
+    public void offer(PooledBuffer payload, boolean isControl, boolean numbered) {
+        while (true) {
+            synchronized (this) {
+                if (this.closed) {
+                    return; // The client has been removed
+                }
+                if (this.stalled && !isControl) {
+                    if (numbered) {
+                        this.client.keepQueued(payload); // The client is being removed, keep it for its session
+                    }
+                    return;
+                }
+                if (isControl && this.controlCount < CONTROL_CAPACITY) {
+                    int slot = (this.controlHead + this.controlCount++) % CONTROL_CAPACITY;
+                    this.control[slot] = payload.retain();
+                    this.controlNumbered[slot] = numbered;
+                    this.schedule();
+                    return;
+                }
+                // Room is kept for the round being written, so the lane never holds more than CHAT_CAPACITY messages
+                boolean chatFull = this.chatCount >= CHAT_CAPACITY - CHAT_BURST;
+                if (!isControl && !chatFull && this.chatCount == this.chat.length) {
+                    this.growChat();
+                }
+                if (!isControl && !chatFull) {
+                    int slot = (this.chatHead + this.chatCount++) % this.chat.length;
+                    this.chat[slot] = payload.retain();
+                    this.chatNumbered[slot] = numbered;
+                    this.schedule();
+                    return;
+                }
+                if (isControl) {
+                    break; // The client has not read its last CONTROL_CAPACITY control messages
+                }
+                if (this.writers != null || this.draining) {
+                    // The client has not read its last CHAT_CAPACITY broadcasts, drop them rather than wait
+                    this.stalled = true;
+                    this.dropChat();
+                    if (numbered) {
+                        this.client.keepQueued(payload);
+                    }
+                    break;
+                }
+                this.draining = true;
+            }
+            this.drain(); // No writers, make room by writing the lanes
+        }
+        System.err.println("Error sending to " + this.client.getClientName() + ", too many messages waiting.");
+        this.client.writeFailed();
+    }
+
+    /**
+     * Hands the writer task to the writers, unless the outbox has none or
+     * the task is already waiting to run or running.
+     * Must be called while holding the outbox's monitor.
+     */
+    private void schedule() {
+        if (this.writers != null && !this.draining) {
+            this.draining = true; // Set until the task finds the lanes empty
+            this.writers.execute(this);
+        }
+    }
+
+    /**
+     * Empties the chat lane, keeping the numbered messages for the client's
+     * reliable session.
+     * Must be called while holding the outbox's monitor.
+     */
+    private void dropChat() {
+        while (this.chatCount > 0) {
+            PooledBuffer dropped = this.chat[this.chatHead];
+            if (this.chatNumbered[this.chatHead]) {
+                this.client.keepQueued(dropped);
+            }
+            this.chat[this.chatHead] = null;
+            this.chatHead = (this.chatHead + 1) % this.chat.length;
+            this.chatCount--;
+            dropped.release();
+        }
+    }
+
+    /**
+     * Doubles the size of the chat lane, keeping its messages in order.
+     * Must be called while holding the outbox's monitor.
+     */
+    private void growChat() {
+        PooledBuffer[] chat = new PooledBuffer[this.chat.length * 2];
+        boolean[] chatNumbered = new boolean[chat.length];
+        for (int i = 0; i < this.chatCount; i++) {
+            int slot = (this.chatHead + i) % this.chat.length;
+            chat[i] = this.chat[slot];
+            chatNumbered[i] = this.chatNumbered[slot];
+        }
+        this.chat = chat;
+        this.chatNumbered = chatNumbered;
+        this.chatHead = 0;
+    }
+
+    /**
+     * Writes the messages queued so far, if the outbox has no writers and
+     * no other thread is writing it already. The writer task writes
+     * messages as soon as they are queued, so flushing it does nothing.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (this.writers != null || this.draining || (this.controlCount == 0 && this.chatCount == 0)) {
+                return;
+            }
+            this.draining = true;
+        }
+        this.drain();
+    }
+
+    /**
+     * Writes the lanes in rounds until both are empty, then flushes the output.
+     * Must only be called by the thread that set draining.
+     */
+    private void drain() {
+        while (true) {
+            int controls;
+            int taken;
+            synchronized (this) {
+                if (this.controlCount == 0 && this.chatCount == 0) {
+                    this.draining = false;
+                    this.notifyAll(); // Wake close(), waiting for the control messages left to be written
+                    break;
+                }
+                controls = Math.min(this.controlCount, CONTROL_BURST);
+                for (int i = 0; i < controls; i++) { // The control lane first
+                    this.round[i] = this.control[this.controlHead];
+                    this.roundNumbered[i] = this.controlNumbered[this.controlHead];
+                    this.control[this.controlHead] = null;
+                    this.controlHead = (this.controlHead + 1) % CONTROL_CAPACITY;
+                }
+                this.controlCount -= controls;
+                int chats = Math.min(this.chatCount, CHAT_BURST);
+                for (int i = 0; i < chats; i++) { // Then a share of the chat lane, so chat still gets through
+                    this.round[controls + i] = this.chat[this.chatHead];
+                    this.roundNumbered[controls + i] = this.chatNumbered[this.chatHead];
+                    this.chat[this.chatHead] = null;
+                    this.chatHead = (this.chatHead + 1) % this.chat.length;
+                }
+                this.chatCount -= chats;
+                taken = controls + chats;
+            }
+            for (int i = 0; i < taken; i++) { // Written without holding the outbox's monitor
+                this.client.writeQueued(this.round[i], this.roundNumbered[i]);
+                this.round[i].release();
+                this.round[i] = null;
+            }
+            if (controls > 0) {
+                this.client.flushOutput(); // Control messages are not left in the buffer behind the chat
+            }
+        }
+        this.client.flushOutput();
+    }
+
+    /**
+     * Stops queueing messages. The chat messages not written yet are dropped,
+     * and kept by the client's reliable session if it has one, so they are
+     * sent again if the session is resumed; the control messages still
+     * waiting, e.g. "You've been disconnected", are written first, waiting
+     * at most CLOSE_TIMEOUT for them. Must not be called while holding the
+     * room's lock, as it may wait for the client.
+     */
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.dropChat();
+            if (this.writers != null) {
+                if (this.writer == Thread.currentThread()) {
+                    return; // Called by the writer task itself, e.g. after a failed write
+                }
+                long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+                try {
+                    while (this.draining && System.currentTimeMillis() < deadline) {
+                        this.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                    }
+                } catch (InterruptedException i) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+        }
+        this.flush(); // Writes the control messages left, unless another thread is already writing them
+    }
+
+    /**
+     * Starts writing the lanes with a writer task, run by the given writers
+     * whenever messages are queued.
+     * @param writers Runs the writer task, e.g. the threads shared by the Servers
+     */
+    public void start(Executor writers) {
+        synchronized (this) {
+            this.writers = writers;
+            if (this.controlCount > 0 || this.chatCount > 0) {
+                this.schedule(); // Messages queued before the outbox was started
+            }
+        }
+    }
+
+    /**
+     * Writes the lanes until they are empty. Handed to the writers whenever
+     * messages are queued while it is not running.
+     * @Override
+     */
+    public void run() {
+        synchronized (this) {
+            this.writer = Thread.currentThread();
+        }
+        try {
+            this.drain();
+        } finally {
+            synchronized (this) {
+                this.writer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reusable buffer holding one encoded message, taken from a BufferPool.
+ * A broadcast shares a single buffer between every recipient and every
+ * reliable session keeping it, so the buffer counts its references and goes
+ * back to its pool once the last one has been released.
+ * The bytes must not be changed once the buffer has been shared.
+ * Used on the Server side.
+ */
+public class PooledBuffer {
+
+    /**
+     * Pool the buffer goes back to, or null if it was not taken from a pool
+     */
+    private final BufferPool pool;
+    /**
+     * The bytes of the buffer
+     */
+    private byte[] array;
+    /**
+     * Number of bytes in use
+     */
+    private int length;
+    /**
+     * Number of holders that have not released the buffer yet
+     */
+    private final AtomicInteger references;
+    /**
+     * Next free buffer of the pool, while the buffer is in the pool
+     */
+    PooledBuffer next;
+
+    /**
+     * Creates a new, empty buffer.
+     * @param pool Pool the buffer goes back to, or null if it is not pooled
+     * @param capacity Number of bytes the buffer can hold
+     */
+    PooledBuffer(BufferPool pool, int capacity) {
+        this.pool = pool;
+        this.array = new byte[capacity];
+        this.references = new AtomicInteger();
+    }
+
+    /**
+     * Creates a buffer holding the given bytes, not taken from a pool.
+     * Used for messages that are rarely sent, e.g. Server notices.
+     * @param bytes The bytes of the buffer, not copied
+     * @return A buffer with a single reference
+     */
+    public static PooledBuffer wrap(byte[] bytes) {
+        PooledBuffer buffer = new PooledBuffer(null, 0);
+        buffer.array = bytes;
+        buffer.length = bytes.length;
+        buffer.references.set(1);
+        return buffer;
+    }
+
+    /**
+     * Getter method for the bytes of the buffer; only the first length() are in use.
+     * @return The bytes of the buffer
+     */
+    public byte[] array() {
+        return array;
+    }
+
+    /**
+     * Getter method for the number of bytes in use.
+     * @return The number of bytes in use
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Setter method for the number of bytes in use.
+     * @param length The number of bytes in use
+     */
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Makes sure the buffer can hold at least the given number of bytes,
+     * keeping the bytes in use. Only allowed before the buffer is shared.
+     * @param capacity Number of bytes the buffer must be able to hold
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > this.array.length) {
+            this.array = Arrays.copyOf(this.array, Math.max(capacity, this.array.length * 2));
+        }
+    }
+
+    /**
+     * Appends bytes to the buffer, growing it if needed. Only allowed before the buffer is shared.
+     * @param bytes The bytes to be appended
+     * @param offset Index of the first byte to be appended
+     * @param count Number of bytes to be appended
+     */
+    public void append(byte[] bytes, int offset, int count) {
+        this.ensureCapacity(this.length + count);
+        System.arraycopy(bytes, offset, this.array, this.length, count);
+        this.length += count;
+    }
+
+    /**
+     * Appends a single byte to the buffer, growing it if needed. Only allowed before the buffer is shared.
+     * @param b The byte to be appended
+     */
+    public void append(int b) {
+        if (this.length == this.array.length) {
+            this.ensureCapacity(this.length + 1);
+        }
+        this.array[this.length++] = (byte) b;
+    }
+
+    /**
+     * Checks if the bytes in use start with the given ASCII text.
+     * @param prefix The text, encoded in ASCII
+     * @param from Index the comparison starts at
+     * @return true if the bytes starting at from match the prefix, false otherwise
+     */
+    public boolean startsWith(byte[] prefix, int from) {
+        if (this.length - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (this.array[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes part of the buffer.
+     * @param from Index of the first byte decoded
+     * @return The bytes from the index to the end, decoded from UTF-8
+     */
+    public String toString(int from) {
+        return new String(this.array, from, this.length - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a holder of the buffer, who must release it once done with it.
+     * @return This buffer
+     */
+    public PooledBuffer retain() {
+        this.references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Removes a holder of the buffer. The last holder to release the buffer
+     * returns it to its pool.
+     */
+    public void release() {
+        int remaining = this.references.decrementAndGet();
+        if (remaining == 0 && this.pool != null) {
+            this.length = 0;
+            this.pool.recycle(this);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Buffer released more often than it was retained.");
+        }
+    }
+
+    /**
+     * Prepares a buffer taken from the pool for its first holder.
+     */
+    void acquired() {
+        this.references.set(1);
+    }
+}
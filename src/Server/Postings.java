@@ -0,0 +1,133 @@
+package Server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The list of messages containing a word, in increasing order of message number.
+ * Each number is stored as the difference from the previous one, encoded in
+ * as few bytes as possible (7 bits per byte), so most entries take a single byte.
+ * Used by IndexSegment.
+ */
+public class Postings {
+
+    /**
+     * The encoded differences between consecutive message numbers
+     */
+    private byte[] data;
+    /**
+     * Number of bytes of data in use
+     */
+    private int length;
+    /**
+     * Number of messages in the list
+     */
+    private int count;
+    /**
+     * The last message number added, or -1 if the list is empty
+     */
+    private int last;
+
+    /**
+     * Creates an empty list.
+     */
+    public Postings() {
+        this(new byte[4], 0, 0, -1);
+    }
+
+    /**
+     * Creates a list from its encoded form.
+     * @param data The encoded differences
+     * @param length Number of bytes of data in use
+     * @param count Number of messages in the list
+     * @param last The last message number in the list
+     */
+    private Postings(byte[] data, int length, int count, int last) {
+        this.data = data;
+        this.length = length;
+        this.count = count;
+        this.last = last;
+    }
+
+    /**
+     * Getter method for the number of messages in the list.
+     * @return The number of messages containing the word
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Adds a message to the list. Message numbers must be added in increasing
+     * order; adding the last number again has no effect, so a word appearing
+     * twice in a message is only listed once.
+     * @param number The message's number
+     */
+    public void add(int number) {
+        if (number == this.last) {
+            return;
+        }
+        int delta = number - this.last; // Always at least 1
+        if (this.length + 5 > this.data.length) { // Make room for the largest encoding
+            this.data = Arrays.copyOf(this.data, Math.max(8, this.data.length * 2));
+        }
+        while (delta >= 0x80) {
+            this.data[this.length++] = (byte) (delta | 0x80); // More bytes follow
+            delta >>>= 7;
+        }
+        this.data[this.length++] = (byte) delta;
+        this.last = number;
+        this.count++;
+    }
+
+    /**
+     * Decodes the list.
+     * @return The message numbers, in increasing order
+     */
+    public int[] toArray() {
+        int[] numbers = new int[this.count];
+        int number = -1;
+        int position = 0;
+        for (int i = 0; i < this.count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.data[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0); // The highest bit is set while more bytes follow
+            number += delta;
+            numbers[i] = number;
+        }
+        return numbers;
+    }
+
+    /**
+     * Writes the encoded list.
+     * @param out Stream the list is written to
+     * @throws IOException If the list could not be written
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.count);
+        out.writeInt(this.last);
+        out.writeInt(this.length);
+        out.write(this.data, 0, this.length);
+    }
+
+    /**
+     * Reads a list written by write().
+     * @param in Stream the list is read from
+     * @return The list read
+     * @throws IOException If the list could not be read
+     */
+    public static Postings read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        int last = in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new Postings(data, data.length, count, last);
+    }
+}
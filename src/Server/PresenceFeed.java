@@ -0,0 +1,226 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tells the clients about connections, departures and name changes in
+ * batches, once every window, instead of as they happen.
+ * Every client receives the announcements made during the window. When
+ * there are more than the threshold, a single digest such as
+ * "Clients: 512 joined, 3 left." replaces them, so a reconnect storm of N
+ * clients costs a number of writes linear in N rather than N squared.
+ * The clients watching the roster also receive how it changed since the
+ * previous window.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class PresenceFeed implements Runnable {
+
+    /**
+     * The kinds of announcements
+     */
+    public enum Kind { JOINED, LEFT, RENAMED }
+
+    /**
+     * Default length of the window, in milliseconds
+     */
+    public static final long DEFAULT_WINDOW = 1000;
+    /**
+     * Default largest number of announcements sent individually per window
+     */
+    public static final int DEFAULT_THRESHOLD = 10;
+
+    /**
+     * An announcement waiting for the end of the window
+     */
+    private static class Announcement {
+        /**
+         * What happened
+         */
+        private final Kind kind;
+        /**
+         * The announcement sent when it is not part of a digest
+         */
+        private final String text;
+
+        private Announcement(Kind kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+    }
+
+    /**
+     * How often the announcements and changes are sent, in milliseconds
+     */
+    private volatile long window;
+    /**
+     * Largest number of announcements sent individually per window
+     */
+    private volatile int threshold;
+    /**
+     * Announcements made during the current window
+     */
+    private ConcurrentLinkedQueue<Announcement> announcements;
+    /**
+     * The clients the announcements are made to
+     */
+    private ChatRoom room;
+    /**
+     * Clients receiving the changes to the roster
+     */
+    private CopyOnWriteArrayList<ClientHandler> watchers;
+    /**
+     * The snapshot the last changes were computed against
+     */
+    private Roster lastSent;
+    /**
+     * Thread sending the announcements and changes
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this PresenceFeed thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new PresenceFeed with the default window and threshold, and no watchers.
+     * @param room The clients the announcements are made to
+     */
+    public PresenceFeed(ChatRoom room) {
+        this.room = room;
+        this.window = DEFAULT_WINDOW;
+        this.threshold = DEFAULT_THRESHOLD;
+        this.announcements = new ConcurrentLinkedQueue<Announcement>();
+        this.watchers = new CopyOnWriteArrayList<ClientHandler>();
+        this.lastSent = Roster.EMPTY;
+    }
+
+    /**
+     * Setter method for the length of the window.
+     * @param window How often the announcements and changes are sent, in milliseconds
+     */
+    public void setWindow(long window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Setter method for the largest number of announcements sent individually per window.
+     * @param threshold Above this number, a digest is sent instead
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Queues an announcement for the end of the current window.
+     * Never writes to a client, so it can be called while holding the lock.
+     * @param kind What happened
+     * @param text The announcement sent when it is not part of a digest
+     */
+    public void announce(Kind kind, String text) {
+        this.announcements.offer(new Announcement(kind, text));
+    }
+
+    /**
+     * Starts sending the changes to the roster to a client.
+     * @param client The client watching the roster
+     */
+    public void watch(ClientHandler client) {
+        this.watchers.addIfAbsent(client);
+    }
+
+    /**
+     * Stops sending the changes to the roster to a client.
+     * @param client The client no longer watching the roster
+     */
+    public void unwatch(ClientHandler client) {
+        this.watchers.remove(client);
+    }
+
+    /**
+     * Terminates this PresenceFeed, by setting the running flag to false and
+     * waking up the thread. Announcements still waiting are dropped.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Creates and starts a new PresenceFeed Thread.
+     * @Override
+     */
+    public void start() {
+        this.running = true;
+        this.thread = new Thread(this);
+        this.thread.setDaemon(true); // Never keeps the Server running
+        this.thread.start();
+    }
+
+    /**
+     * At the end of every window, sends the announcements made during it and
+     * the changes to the roster.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.running) { // Repeat while this thread has not been terminated
+                Thread.sleep(this.window);
+                this.sendAnnouncements();
+                this.sendChanges();
+            }
+        } catch (InterruptedException i) {
+            // The feed has been terminated
+        }
+    }
+
+    /**
+     * Sends every client the announcements made during the window, or a
+     * digest of them if there are more than the threshold.
+     */
+    private void sendAnnouncements() {
+        ArrayList<Announcement> batch = new ArrayList<Announcement>();
+        Announcement announcement;
+        while ((announcement = this.announcements.poll()) != null) {
+            batch.add(announcement);
+        }
+        if (batch.size() <= this.threshold) {
+            for (Announcement single : batch) {
+                this.room.informAll(single.text);
+            }
+            return;
+        }
+
+        int[] counts = new int[Kind.values().length];
+        for (Announcement single : batch) {
+            counts[single.kind.ordinal()]++;
+        }
+        ArrayList<String> parts = new ArrayList<String>();
+        if (counts[Kind.JOINED.ordinal()] > 0) parts.add(counts[Kind.JOINED.ordinal()] + " joined");
+        if (counts[Kind.LEFT.ordinal()] > 0) parts.add(counts[Kind.LEFT.ordinal()] + " left");
+        if (counts[Kind.RENAMED.ordinal()] > 0) parts.add(counts[Kind.RENAMED.ordinal()] + " changed their name");
+        this.room.informAll("Clients: " + String.join(", ", parts) + ". Type \"WHO\" to see who is connected.");
+    }
+
+    /**
+     * Sends the watchers how the roster changed since the previous window, if it did.
+     */
+    private void sendChanges() {
+        Roster current = this.room.getRoster();
+        if (current.getVersion() == this.lastSent.getVersion()) {
+            return; // Nothing changed
+        }
+        String changes = current.diff(this.lastSent);
+        if (!changes.isEmpty()) { // Changes that cancelled each other out are not sent
+            String message = "[Server]: PRESENCE " + this.lastSent.getVersion() + " " + current.getVersion() + " " + changes;
+            for (ClientHandler watcher : this.watchers) {
+                watcher.send(message);
+            }
+        }
+        this.lastSent = current;
+    }
+}
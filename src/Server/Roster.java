@@ -0,0 +1,132 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the names of the connected clients.
+ * Every change produces a new snapshot with a higher version, so a snapshot
+ * can be read by any thread without locking, and two snapshots can be
+ * compared to find out what changed between them.
+ * Used on the Server side.
+ */
+public class Roster {
+
+    /**
+     * The roster with no clients
+     */
+    public static final Roster EMPTY = new Roster(0, new String[0]);
+
+    /**
+     * Increases with every change to the roster
+     */
+    private final long version;
+    /**
+     * Names of the connected clients, in the order they connected
+     */
+    private final String[] names;
+
+    /**
+     * Creates a new snapshot.
+     * @param version The snapshot's version
+     * @param names Names of the connected clients, not copied
+     */
+    private Roster(long version, String[] names) {
+        this.version = version;
+        this.names = names;
+    }
+
+    /**
+     * Getter method for the snapshot's version.
+     * @return The version, increasing with every change to the roster
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Getter method for the names of the connected clients.
+     * @return The names, in the order the clients connected
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Getter method for the number of connected clients.
+     * @return The number of connected clients
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Creates the snapshot following a client's connection.
+     * @param name Name of the client that connected
+     * @return The new snapshot
+     */
+    public Roster withAdded(String name) {
+        String[] added = Arrays.copyOf(this.names, this.names.length + 1);
+        added[this.names.length] = name;
+        return new Roster(this.version + 1, added);
+    }
+
+    /**
+     * Creates the snapshot following a client's departure.
+     * @param name Name of the client that left
+     * @return The new snapshot, or this snapshot if the client was not in it
+     */
+    public Roster withRemoved(String name) {
+        int index = Arrays.asList(this.names).indexOf(name);
+        if (index < 0) {
+            return this;
+        }
+        String[] removed = new String[this.names.length - 1];
+        System.arraycopy(this.names, 0, removed, 0, index);
+        System.arraycopy(this.names, index + 1, removed, index, removed.length - index);
+        return new Roster(this.version + 1, removed);
+    }
+
+    /**
+     * Creates the snapshot following a client's name change.
+     * @param oldName The client's previous name
+     * @param newName The client's new name
+     * @return The new snapshot, or this snapshot if the client was not in it
+     */
+    public Roster withRenamed(String oldName, String newName) {
+        int index = Arrays.asList(this.names).indexOf(oldName);
+        if (index < 0) {
+            return this;
+        }
+        String[] renamed = this.names.clone();
+        renamed[index] = newName;
+        return new Roster(this.version + 1, renamed);
+    }
+
+    /**
+     * Describes how the roster changed since an older snapshot, listing the
+     * names that appeared with a "+" and those that disappeared with a "-".
+     * A client that connected and left again in between does not appear at all,
+     * and a name change appears as the old name leaving and the new one appearing.
+     * @param older The older snapshot
+     * @return The changes, e.g. "+[Alice] -[Client 3]", or an empty String if there are none
+     */
+    public String diff(Roster older) {
+        HashSet<String> before = new HashSet<String>(Arrays.asList(older.names));
+        HashSet<String> after = new HashSet<String>(Arrays.asList(this.names));
+        StringBuilder changes = new StringBuilder();
+        for (String name : this.names) {
+            if (!before.contains(name)) {
+                changes.append(changes.length() == 0 ? "+" : " +").append(name);
+            }
+        }
+        for (String name : older.names) {
+            if (!after.contains(name)) {
+                changes.append(changes.length() == 0 ? "-" : " -").append(name);
+            }
+        }
+        return changes.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package Server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers which 64-bit hashes have been seen recently, in a fixed amount
+ * of memory, with a small chance of mistaking a new hash for one already
+ * seen but never the opposite.
+ * Hashes are added to the current generation of the filter, a Bloom filter
+ * of 2^bits bits. rotate() makes the current generation the previous one
+ * and starts a new, empty one; a hash is remembered while it is in either,
+ * so hashes are forgotten one to two rotations after they were last added.
+ * Three bit arrays are allocated once and reused: the current generation,
+ * the previous one, and a spare cleared by rotate() for the next generation.
+ * Adding a hash sets its bits with atomic operations and takes no lock, so
+ * any number of threads can add hashes at once; only one thread may rotate.
+ * Used by DuplicateFilter.
+ */
+public class RotatingBloomFilter {
+
+    /**
+     * Sets bits of the current generation atomically
+     */
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * Number of bits looked at for each hash
+     */
+    private final int hashes;
+    /**
+     * Number of bits in a generation, minus one
+     */
+    private final int mask;
+    /**
+     * Number of hashes a generation is meant to hold; beyond it mistakes
+     * become more likely and the filter should be rotated
+     */
+    private final int capacity;
+    /**
+     * Generation hashes are added to
+     */
+    private volatile long[] current;
+    /**
+     * Generation before the current one
+     */
+    private volatile long[] previous;
+    /**
+     * Cleared array, the next current generation
+     */
+    private long[] spare;
+    /**
+     * Number of new hashes added to the current generation
+     */
+    private LongAdder added;
+
+    /**
+     * Creates an empty filter.
+     * @param bits Base 2 logarithm of the number of bits in a generation, at most 31
+     * @param hashes Number of bits looked at for each hash
+     * @param capacity Number of hashes a generation is meant to hold
+     */
+    public RotatingBloomFilter(int bits, int hashes, int capacity) {
+        this.hashes = hashes;
+        this.mask = (int) ((1L << bits) - 1);
+        this.capacity = capacity;
+        int words = (int) Math.max(1, (1L << bits) / 64);
+        this.current = new long[words];
+        this.previous = new long[words];
+        this.spare = new long[words];
+        this.added = new LongAdder();
+    }
+
+    /**
+     * Adds a hash to the current generation.
+     * @param hash The hash, well mixed
+     * @return true if the hash may have been seen before, in this generation or the previous one
+     */
+    public boolean add(long hash) {
+        long[] current = this.current;
+        long[] previous = this.previous;
+        boolean inCurrent = true;
+        boolean inPrevious = true;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1; // Odd, so the bits looked at are all different
+        for (int i = 0; i < this.hashes; i++) {
+            int bit = (h1 + i * h2) & this.mask;
+            long word = 1L << bit; // Only the bit's low 6 bits are used as the shift
+            long old = (long) WORDS.getAndBitwiseOr(current, bit >>> 6, word);
+            inCurrent &= (old & word) != 0;
+            inPrevious &= (previous[bit >>> 6] & word) != 0;
+        }
+        if (!inCurrent) {
+            this.added.increment();
+        }
+        return inCurrent || inPrevious;
+    }
+
+    /**
+     * Checks if the current generation holds as many hashes as it is meant to.
+     * @return true if the filter should be rotated
+     */
+    public boolean isFull() {
+        return this.added.sum() >= this.capacity;
+    }
+
+    /**
+     * Starts a new generation, forgetting the hashes only in the previous one.
+     * Must only be called by one thread at a time.
+     */
+    public void rotate() {
+        long[] next = this.spare;
+        long[] forgotten = this.previous;
+        this.previous = this.current; // Still remembered until the next rotation
+        this.current = next;
+        this.added.reset();
+        Arrays.fill(forgotten, 0); // Threads still reading it only miss hashes already being forgotten
+        this.spare = forgotten;
+    }
+}
@@ -0,0 +1,287 @@
+package Server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A full IndexSegment written to a file, searched without reading the whole
+ * file into memory.
+ * The file holds the messages, the postings lists, a table of the messages'
+ * positions, and the dictionary: every word in increasing order with the
+ * position, size and length of its postings list. The dictionary is split
+ * in blocks of BLOCK_WORDS words; only the first word and the position of
+ * every block are kept in memory, read when the file is opened. A search
+ * reads the block holding each word it looks for, the postings lists of
+ * those words and the messages found, nothing else.
+ * The file is opened again by every search, so searches never share a file
+ * pointer and a file deleted during a search is simply not found.
+ * Used by MessageIndex.
+ */
+public class SegmentFile {
+
+    /**
+     * Identifies segment files
+     */
+    static final int MAGIC = 0x494D5332;
+    /**
+     * Number of dictionary entries in a block
+     */
+    static final int BLOCK_WORDS = 64;
+    /**
+     * Size of the footer ending a segment file: the positions of the message
+     * table, the dictionary and the block index, the number of blocks, words
+     * and messages, the number of the first message and MAGIC
+     */
+    static final int FOOTER_SIZE = 8 + 8 + 8 + 4 + 4 + 4 + 8 + 4;
+
+    /**
+     * The segment's file
+     */
+    private File file;
+    /**
+     * Number of the first message in the segment
+     */
+    private long firstNumber;
+    /**
+     * Number of messages in the segment
+     */
+    private int count;
+    /**
+     * Number of words in the dictionary
+     */
+    private int wordCount;
+    /**
+     * Position of the table of message positions
+     */
+    private long messageTable;
+    /**
+     * Position of the dictionary
+     */
+    private long dictionary;
+    /**
+     * The first word of every dictionary block, in increasing order
+     */
+    private String[] blockWords;
+    /**
+     * The position of every dictionary block, followed by the end of the last block
+     */
+    private long[] blockOffsets;
+
+    /**
+     * An entry of the dictionary
+     */
+    private static class Entry {
+        /**
+         * Position of the word's postings list
+         */
+        private final long offset;
+        /**
+         * Number of messages containing the word
+         */
+        private final int size;
+        /**
+         * Number of bytes of the postings list
+         */
+        private final int length;
+
+        private Entry(long offset, int size, int length) {
+            this.offset = offset;
+            this.size = size;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Creates a segment file, whose footer and block index are then read by open().
+     * @param file The segment's file
+     */
+    private SegmentFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a segment file, reading its footer and the first word of every
+     * dictionary block.
+     * @param file The segment's file
+     * @return The segment file
+     * @throws IOException If the file is not a segment or could not be read
+     */
+    public static SegmentFile open(File file) throws IOException {
+        SegmentFile segment = new SegmentFile(file);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < FOOTER_SIZE) {
+                throw new IOException("Not an index segment: " + file);
+            }
+            DataInputStream footer = new DataInputStream(new ByteArrayInputStream(read(in, in.length() - FOOTER_SIZE, FOOTER_SIZE)));
+            segment.messageTable = footer.readLong();
+            segment.dictionary = footer.readLong();
+            long blockIndex = footer.readLong();
+            int blocks = footer.readInt();
+            segment.wordCount = footer.readInt();
+            segment.count = footer.readInt();
+            segment.firstNumber = footer.readLong();
+            if (footer.readInt() != MAGIC || blocks != (segment.wordCount + BLOCK_WORDS - 1) / BLOCK_WORDS || segment.count < 0) {
+                throw new IOException("Not an index segment: " + file);
+            }
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(read(in, blockIndex, in.length() - FOOTER_SIZE - blockIndex)));
+            segment.blockWords = new String[blocks];
+            segment.blockOffsets = new long[blocks + 1];
+            for (int i = 0; i < blocks; i++) {
+                segment.blockWords[i] = IndexSegment.readString(index);
+                segment.blockOffsets[i] = index.readLong();
+            }
+            segment.blockOffsets[blocks] = blockIndex; // The block index follows the last block
+        }
+        return segment;
+    }
+
+    /**
+     * Getter method for the segment's file.
+     * @return The file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Getter method for the number of the first message in the segment.
+     * @return The number of the first message
+     */
+    public long getFirstNumber() {
+        return firstNumber;
+    }
+
+    /**
+     * Getter method for the number of messages in the segment.
+     * @return The number of messages
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Getter method for the number of words in the dictionary.
+     * @return The number of words
+     */
+    int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * Getter method for the position of the dictionary.
+     * @return The position of the first dictionary entry
+     */
+    long getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Finds the newest messages in the segment containing every one of the
+     * given words, and adds them to the results, newest first.
+     * @param words The words searched for
+     * @param limit Maximum number of messages to add
+     * @param results List the messages are added to
+     * @throws IOException If the file could not be read
+     */
+    public void search(String[] words, int limit, List<String> results) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(this.file, "r")) {
+            Entry[] entries = new Entry[words.length];
+            for (int i = 0; i < words.length; i++) {
+                entries[i] = this.lookUp(in, words[i]);
+                if (entries[i] == null) {
+                    return; // No message in this segment contains the word
+                }
+            }
+            Arrays.sort(entries, (a, b) -> Integer.compare(a.size, b.size)); // Start with the rarest word
+
+            int[] matches = this.postings(in, entries[0]);
+            int matchCount = matches.length;
+            for (int i = 1; i < entries.length && matchCount > 0; i++) {
+                matchCount = IndexSegment.intersect(matches, matchCount, this.postings(in, entries[i]));
+            }
+            for (int i = matchCount - 1; i >= 0 && limit > 0; i--, limit--) {
+                results.add(this.message(in, matches[i]));
+            }
+        }
+    }
+
+    /**
+     * Finds a word in the dictionary, reading only the block that would hold it.
+     * @param in The open file
+     * @param word The word
+     * @return The word's entry, or null if no message in the segment contains it
+     * @throws IOException If the file could not be read
+     */
+    private Entry lookUp(RandomAccessFile in, String word) throws IOException {
+        int block = Arrays.binarySearch(this.blockWords, word);
+        if (block < 0) {
+            block = -block - 2; // The block before the insertion point
+            if (block < 0) {
+                return null; // Before the first word of the dictionary
+            }
+        }
+        long offset = this.blockOffsets[block];
+        DataInputStream entries = new DataInputStream(new ByteArrayInputStream(read(in, offset, this.blockOffsets[block + 1] - offset)));
+        int words = Math.min(BLOCK_WORDS, this.wordCount - block * BLOCK_WORDS);
+        for (int i = 0; i < words; i++) {
+            int order = IndexSegment.readString(entries).compareTo(word);
+            Entry entry = new Entry(entries.readLong(), entries.readInt(), entries.readInt());
+            if (order == 0) {
+                return entry;
+            } else if (order > 0) {
+                return null; // The words are in increasing order, it is not in the block
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a word's postings list.
+     * @param in The open file
+     * @param entry The word's entry
+     * @return The numbers of the messages containing the word, in increasing order
+     * @throws IOException If the file could not be read
+     */
+    private int[] postings(RandomAccessFile in, Entry entry) throws IOException {
+        return Postings.read(new DataInputStream(new ByteArrayInputStream(read(in, entry.offset, entry.length)))).toArray();
+    }
+
+    /**
+     * Reads a message, using the table of message positions.
+     * @param in The open file
+     * @param number The message's number inside the segment
+     * @return The message, including the name of its sender
+     * @throws IOException If the file could not be read
+     */
+    private String message(RandomAccessFile in, int number) throws IOException {
+        DataInputStream table = new DataInputStream(new ByteArrayInputStream(read(in, this.messageTable + 8L * number, 16)));
+        long start = table.readLong();
+        long end = table.readLong(); // The table ends with the end of the last message
+        byte[] bytes = read(in, start + 4, end - start - 4); // Skip the length written before the message
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads part of the file with a single read.
+     * @param in The open file
+     * @param offset Position of the first byte
+     * @param length Number of bytes to read
+     * @return The bytes read
+     * @throws IOException If the file could not be read or is shorter than expected
+     */
+    private static byte[] read(RandomAccessFile in, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || length > Integer.MAX_VALUE || offset + length > in.length()) {
+            throw new IOException("Corrupted index segment.");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.seek(offset);
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,95 @@
+package Server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The threads and buffers shared by every ChatServer using them: the pool of
+ * buffers holding the messages, the threads writing batches to large
+ * audiences, and the threads reading from the clients.
+ * Several Servers running in one JVM, e.g. one per tenant, can share a
+ * ServerResources, so each new Server only costs its own clients, instead
+ * of a slab of buffers and a thread per processor of its own.
+ * Each Server keeps its own clients, sequencer and presence feed; only the
+ * resources are shared.
+ * Used on the Server side.
+ */
+public class ServerResources {
+
+    /**
+     * Resources used by the Servers not given any, created with the first of them
+     */
+    private static ServerResources shared;
+
+    /**
+     * Buffers holding the messages broadcast by clients, reused once every
+     * recipient has been sent the message
+     */
+    private BufferPool bufferPool;
+    /**
+     * Threads writing batches to large audiences, one per processor
+     */
+    private ForkJoinPool fanOutPool;
+    /**
+     * Threads reading from the clients, one per connected client, and
+     * writing to the clients while they have messages waiting; a thread is
+     * reused for the next connection or write once it is done
+     */
+    private ExecutorService connectionThreads;
+
+    /**
+     * Creates new resources sized for the given number of Servers.
+     * Every chat lane holds the newest broadcasts, so each Server's
+     * sequencer and a full chat lane's worth, and a line being read by each
+     * client, are in use at once; that many buffers are created up front.
+     * @param servers Number of Servers expected to share the resources, at least 1
+     */
+    public ServerResources(int servers) {
+        int perServer = ChatRoom.SEQUENCER_CAPACITY + Outbox.CHAT_CAPACITY;
+        this.bufferPool = new BufferPool(perServer * Math.max(1, servers) + 1024, 4 * ChatRoom.SEQUENCER_CAPACITY * Math.max(1, servers));
+        this.fanOutPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        this.connectionThreads = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true); // Idle threads must not keep the JVM running once the Servers have shut down
+            return thread;
+        });
+    }
+
+    /**
+     * Getter method for the resources shared by the Servers not given any.
+     * They are created the first time they are needed.
+     * @return The shared resources
+     */
+    public static synchronized ServerResources getShared() {
+        if (shared == null) {
+            shared = new ServerResources(1);
+        }
+        return shared;
+    }
+
+    /**
+     * Getter method for the pool of buffers holding the broadcast messages.
+     * @return The pool shared by every client of every Server using these resources
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Getter method for the threads writing batches to large audiences.
+     * @return The pool shared by the fan-out of every Server using these resources
+     */
+    public ForkJoinPool getFanOutPool() {
+        return fanOutPool;
+    }
+
+    /**
+     * Runs a client's connection, or the writer task of its outbox, on one
+     * of the connection threads.
+     * @param connection Reads from the client until it disconnects, or writes the messages waiting for it
+     */
+    public void execute(Runnable connection) {
+        this.connectionThreads.execute(connection);
+    }
+}
@@ -0,0 +1,111 @@
+package Server;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Listens for Client connections secured with TLS on a separate port and
+ * hands each connection to a new ClientHandler.
+ * The TLS handshake is performed by the ClientHandler's own thread, so a slow
+ * handshake never holds up accepting other connections.
+ * Sessions are cached by the Server, so reconnecting clients resume their
+ * session instead of performing a full handshake.
+ * The certificate is read from the key store given with the standard
+ * javax.net.ssl.keyStore and javax.net.ssl.keyStorePassword system properties.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class TlsListener implements Runnable {
+
+    /**
+     * Number of TLS sessions kept by the Server for resumption
+     */
+    private static final int SESSION_CACHE_SIZE = 20000;
+    /**
+     * How long a TLS session can be resumed, in seconds
+     */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    /**
+     * ServerSocket used for accepting new secure client connections
+     */
+    private SSLServerSocket serverSocket;
+    /**
+     * The clients of the Server the connections are handed to
+     */
+    private ChatRoom room;
+    /**
+     * The port number the ServerSocket is listening to
+     */
+    private int port;
+
+    /**
+     * Creates a ServerSocket listening for secure connections on the specified port.
+     * @param room The clients of the Server the connections are handed to
+     * @param port The port number to listen to
+     * @throws IOException If the ServerSocket could not be created
+     */
+    public TlsListener(ChatRoom room, int port) throws IOException {
+        this.room = room;
+        this.port = port;
+        try {
+            SSLContext context = SSLContext.getDefault(); // Configured through the javax.net.ssl system properties
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+            this.serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port, ChatServer.ACCEPT_BACKLOG);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available.", e);
+        }
+    }
+
+    /**
+     * Getter method for the Port number used for listening to secure connections.
+     * @return The Port number used for listening to secure connections
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Creates and starts a new TlsListener Thread.
+     * @Override
+     */
+    public void start() {
+        new Thread(this).start();
+    }
+
+    /**
+     * Stops listening for secure connections by closing the ServerSocket.
+     */
+    public void shutdown() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the secure server socket.");
+        }
+    }
+
+    /**
+     * Accepts secure connections and starts a ClientHandler thread for each,
+     * until the ServerSocket is closed.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (true) {
+                // Create new ClientHandler thread to manage new client connection, the handshake is done by that thread
+                ClientHandler newClient = new ClientHandler(this.room, this.serverSocket.accept());
+                newClient.start();
+            }
+        } catch (SocketException s) {
+            // ServerSocket has been closed
+        } catch (IOException e) {
+            System.err.println("Error establishing new secure connection.");
+        }
+    }
+}
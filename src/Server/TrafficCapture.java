@@ -0,0 +1,276 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the traffic the Server receives to a capture file, so it can be
+ * replayed later with Tools.TrafficReplay: when each client connected, every
+ * line it sent (commands such as NAME included, acknowledgements left out)
+ * and when it disconnected.
+ * The file starts with MAGIC, VERSION and the time the capture started, in
+ * milliseconds since the epoch. Each event follows as its kind, the time
+ * since the previous event in microseconds, and the connection's number,
+ * with the line's UTF-8 bytes and their length for LINE events; numbers are
+ * written as variable length integers, and the whole file is compressed
+ * with GZIP.
+ * Events are handed to the capture's own thread, so the clients' threads
+ * never wait for the file.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class TrafficCapture implements Runnable {
+
+    /**
+     * First four bytes of a capture file, "IMCP"
+     */
+    public static final int MAGIC = 0x494D4350;
+    /**
+     * Version of the capture format
+     */
+    public static final int VERSION = 1;
+    /**
+     * A client connected
+     */
+    public static final int CONNECT = 1;
+    /**
+     * A client sent a line
+     */
+    public static final int LINE = 2;
+    /**
+     * A client disconnected
+     */
+    public static final int DISCONNECT = 3;
+
+    /**
+     * File the traffic is written to
+     */
+    private File file;
+    /**
+     * Stream the events are written to
+     */
+    private DataOutputStream out;
+    /**
+     * Events waiting to be written
+     */
+    private BlockingQueue<Event> pending;
+    /**
+     * Time of the last event written, from System.nanoTime()
+     */
+    private long lastTime;
+    /**
+     * Number of events written
+     */
+    private long events;
+    /**
+     * true once writing to the file failed; the events left are dropped
+     */
+    private boolean failed;
+    /**
+     * Thread writing the events
+     */
+    private Thread thread;
+    /**
+     * Used to indicate if this TrafficCapture thread is currently running or not
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a new capture, replacing the file if it exists.
+     * @param file File the traffic is written to
+     * @throws IOException If the file could not be created
+     */
+    public TrafficCapture(File file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 65536)));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeLong(System.currentTimeMillis());
+        this.pending = new LinkedBlockingQueue<Event>();
+        this.lastTime = System.nanoTime();
+        this.running = true;
+    }
+
+    /**
+     * An event waiting to be written.
+     */
+    private static class Event {
+
+        /**
+         * Kind of the event: CONNECT, LINE or DISCONNECT
+         */
+        private int kind;
+        /**
+         * When the event happened, from System.nanoTime()
+         */
+        private long time;
+        /**
+         * Number of the client's connection
+         */
+        private int connection;
+        /**
+         * The line sent, encoded in UTF-8, or null
+         */
+        private byte[] line;
+
+        /**
+         * Creates a new event, happening now.
+         * @param kind Kind of the event: CONNECT, LINE or DISCONNECT
+         * @param connection Number of the client's connection
+         * @param line The line sent, encoded in UTF-8, or null
+         */
+        private Event(int kind, int connection, byte[] line) {
+            this.kind = kind;
+            this.time = System.nanoTime();
+            this.connection = connection;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Records that a client connected.
+     * @param connection Number of the client's connection
+     */
+    public void connected(int connection) {
+        this.pending.add(new Event(CONNECT, connection, null));
+    }
+
+    /**
+     * Records a line sent by a client.
+     * @param connection Number of the client's connection
+     * @param payload Buffer holding the line, encoded in UTF-8
+     * @param from Index of the line's first byte
+     */
+    public void received(int connection, PooledBuffer payload, int from) {
+        byte[] line = new byte[payload.length() - from];
+        System.arraycopy(payload.array(), from, line, 0, line.length); // Copied, the buffer goes back to the pool
+        this.pending.add(new Event(LINE, connection, line));
+    }
+
+    /**
+     * Records that a client disconnected.
+     * @param connection Number of the client's connection
+     */
+    public void disconnected(int connection) {
+        this.pending.add(new Event(DISCONNECT, connection, null));
+    }
+
+    /**
+     * Getter method for the file the traffic is written to.
+     * @return The capture file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Writes a number as a variable length integer: 7 bits per byte, lowest
+     * first, with the top bit set on every byte but the last.
+     * @param out Stream the number is written to
+     * @param value The number, not negative
+     * @throws IOException If the number could not be written
+     */
+    public static void writeNumber(DataOutputStream out, long value) throws IOException {
+        while (value >= 0x80) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a number written by writeNumber().
+     * @param in Stream the number is read from
+     * @return The number
+     * @throws IOException If the number could not be read
+     * @throws EOFException If the stream ended before the number
+     */
+    public static long readNumber(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in capture file");
+    }
+
+    /**
+     * Writes an event to the capture file.
+     * @param event The event
+     */
+    private void write(Event event) {
+        if (this.failed) {
+            return;
+        }
+        try {
+            long time = Math.max(event.time, this.lastTime); // Events are written in the order they were handed over
+            this.out.writeByte(event.kind);
+            writeNumber(this.out, (time - this.lastTime) / 1000);
+            writeNumber(this.out, event.connection);
+            if (event.line != null) {
+                writeNumber(this.out, event.line.length);
+                this.out.write(event.line);
+            }
+            this.lastTime = time - (time - this.lastTime) % 1000; // The rest of the microsecond counts towards the next event
+            this.events++;
+        } catch (IOException e) {
+            System.err.println("Error writing to the capture file: " + this.file + ".\nThe traffic is no longer captured.");
+            this.failed = true;
+        }
+    }
+
+    /**
+     * Terminates this TrafficCapture. Events already handed to the capture
+     * are still written, and the file is closed, before the thread finishes.
+     */
+    public void terminate() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Creates and starts a new TrafficCapture Thread.
+     * @Override
+     */
+    public void start() {
+        this.thread = new Thread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Writes the events handed to the capture until it is terminated.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (this.running) { // Repeat while this thread has not been terminated
+                this.write(this.pending.take()); // Wait for the next event
+            }
+        } catch (InterruptedException i) {
+            // The capture has been terminated
+        }
+        Event event;
+        while ((event = this.pending.poll()) != null) { // Write the events still waiting
+            this.write(event);
+        }
+        try {
+            this.out.close(); // Finishes the compressed stream
+            System.out.println("> Captured " + this.events + " events to: " + this.file + ".");
+        } catch (IOException e) {
+            System.err.println("Error closing the capture file: " + this.file + ".");
+        }
+    }
+}
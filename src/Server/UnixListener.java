@@ -0,0 +1,130 @@
+package Server;
+
+import Common.ChannelSocket;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Listens for Client connections on a Unix domain socket and hands each
+ * connection to a new ClientHandler.
+ * Bots and bridges running on the same machine as the Server connect to the
+ * socket's path instead of a port, skipping the loopback TCP stack. Their
+ * clients take part in the chat exactly like the others.
+ * The socket file is created when listening starts, replacing a file left by
+ * a Server that stopped without removing it, and removed on shutdown.
+ * Needs Java 16 or later, see ChannelSocket.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class UnixListener implements Runnable {
+
+    /**
+     * Channel used for accepting new client connections
+     */
+    private ServerSocketChannel serverChannel;
+    /**
+     * The clients of the Server the connections are handed to
+     */
+    private ChatRoom room;
+    /**
+     * Path of the socket file the channel is listening to
+     */
+    private Path path;
+
+    /**
+     * Creates a channel listening for connections on a Unix domain socket.
+     * @param room The clients of the Server the connections are handed to
+     * @param path Path of the socket file
+     * @throws IOException If the channel could not be created, Unix domain
+     * sockets are not available, or the path is in use
+     */
+    public UnixListener(ChatRoom room, String path) throws IOException {
+        this.room = room;
+        this.path = Paths.get(path);
+        if (!ChannelSocket.isUnixAvailable()) {
+            throw new IOException("Unix domain sockets need Java 16 or later.");
+        }
+        if (Files.exists(this.path)) {
+            if (Files.isRegularFile(this.path) || Files.isDirectory(this.path) || isListening(path)) {
+                throw new IOException("The path is in use: " + path + ".");
+            }
+            Files.delete(this.path); // Nobody is listening, left by a Server that stopped without removing it
+        }
+        this.serverChannel = ChannelSocket.openUnixServerChannel();
+        try {
+            this.serverChannel.bind(ChannelSocket.unixAddress(path), ChatServer.ACCEPT_BACKLOG);
+        } catch (IOException e) {
+            this.serverChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if a Server is listening to a Unix domain socket.
+     * @param path Path of the socket file
+     * @return true if a connection to the socket could be established
+     */
+    private static boolean isListening(String path) {
+        try {
+            ChannelSocket.connectUnix(path).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Getter method for the path of the socket file used for listening to connections.
+     * @return The path of the socket file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Creates and starts a new UnixListener Thread.
+     * @Override
+     */
+    public void start() {
+        new Thread(this).start();
+    }
+
+    /**
+     * Stops listening for connections by closing the channel, and removes
+     * the socket file.
+     */
+    public void shutdown() {
+        try {
+            this.serverChannel.close();
+            Files.deleteIfExists(this.path);
+        } catch (IOException e) {
+            System.err.println("Error closing the Unix domain socket: " + this.path + ".");
+        }
+    }
+
+    /**
+     * Accepts connections and starts a ClientHandler thread for each, until
+     * the channel is closed.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (true) {
+                // Create new ClientHandler thread to manage new client connection
+                SocketChannel channel = this.serverChannel.accept();
+                ClientHandler newClient = new ClientHandler(this.room, new ChannelSocket(channel, "unix:" + this.path));
+                newClient.start();
+            }
+        } catch (ClosedChannelException c) {
+            // The channel has been closed
+        } catch (IOException e) {
+            System.err.println("Error establishing new Unix domain socket connection.");
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+
+/**
+ * Handles a Client connected through a WebSocket, e.g. a web browser.
+ * After the opening handshake every text frame received is treated exactly
+ * like a line sent by a ClientHandler's Client, and every message sent to the
+ * Client is written as a single text frame.
+ * Broadcasts pass the same encoded payload to every Client, so only the frame
+ * header is written separately for each WebSocket Client.
+ * Extends ClientHandler.
+ * Used on the Server side.
+ */
+public class WebSocketHandler extends ClientHandler {
+
+    /**
+     * Appended to the Client's key to compute the Sec-WebSocket-Accept header (RFC 6455)
+     */
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    /**
+     * Largest HTTP request line or header accepted during the handshake, in bytes
+     */
+    private static final int MAX_HEADER_LINE = 8192;
+
+    /**
+     * Frame opcodes, as defined by RFC 6455
+     */
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /**
+     * Masking key of the frame being read, reused for every frame
+     */
+    private final byte[] mask = new byte[4];
+
+    /**
+     * Creates new WebSocketHandler object to handle a new WebSocket connection
+     * through the specified Socket.
+     * @param room The clients of the Server the client connected to
+     * @param clientSocket The Socket of the connection
+     */
+    public WebSocketHandler(ChatRoom room, Socket clientSocket) {
+        super(room, clientSocket);
+    }
+
+    /**
+     * Performs the WebSocket opening handshake: reads the Client's HTTP upgrade
+     * request and accepts it.
+     * The Client must complete the handshake within HANDSHAKE_TIMEOUT.
+     * @throws IOException If the request is not a valid WebSocket upgrade or times out
+     */
+    @Override
+    protected void handshake() throws IOException {
+        super.handshake(); // Performs the TLS handshake first, if the connection is secure
+        this.getClientSocket().setSoTimeout(HANDSHAKE_TIMEOUT);
+
+        String requestLine = this.readHeaderLine();
+        HashMap<String, String> headers = new HashMap<String, String>();
+        String header;
+        while (!(header = this.readHeaderLine()).isEmpty()) { // Headers end with an empty line
+            int colon = header.indexOf(':');
+            if (colon > 0) {
+                headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+            }
+        }
+
+        String key = headers.get("sec-websocket-key");
+        String upgrade = headers.getOrDefault("upgrade", "");
+        if (!requestLine.startsWith("GET ") || key == null || !upgrade.equalsIgnoreCase("websocket")) {
+            this.writeRaw("HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+            throw new IOException("Not a WebSocket upgrade request.");
+        }
+
+        this.writeRaw("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n");
+        this.getClientSocket().setSoTimeout(0);
+    }
+
+    /**
+     * Computes the Sec-WebSocket-Accept header for the Client's key.
+     * @param key The Client's Sec-WebSocket-Key header
+     * @return The Base64 encoded SHA-1 hash of the key and ACCEPT_GUID
+     */
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] hash = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e); // Every Java platform must support SHA-1
+        }
+    }
+
+    /**
+     * Reads a single line of the HTTP upgrade request, without its line ending.
+     * @return The line read
+     * @throws IOException If the connection was closed or the line is too long
+     */
+    private String readHeaderLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = this.inputStream.read()) != '\n') {
+            if (b < 0) throw new EOFException("Connection closed during the handshake.");
+            if (line.size() >= MAX_HEADER_LINE) throw new IOException("Handshake header too long.");
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes part of the HTTP handshake to the Client.
+     * @param response The response to be written
+     * @throws IOException If the response could not be written
+     */
+    private void writeRaw(String response) throws IOException {
+        synchronized (this.output) {
+            this.output.write(response.getBytes(StandardCharsets.US_ASCII));
+            this.output.flush();
+        }
+    }
+
+    /**
+     * Reads the next text message sent by the Client into a buffer, after the
+     * bytes already in it, joining fragmented messages and answering pings on
+     * the way.
+     * Line breaks are replaced with spaces, as a message is a single line for
+     * every other Client.
+     * @param buffer The buffer the message is appended to, encoded in UTF-8
+     * @return true if a message was read, false if the Client has closed the connection
+     * @throws IOException If the message could not be read or breaks the protocol
+     */
+    @Override
+    protected boolean readMessage(PooledBuffer buffer) throws IOException {
+        int start = buffer.length();
+        boolean inMessage = false; // Whether a fragmented message is being received
+        boolean binary = false; // Whether the message being received is binary
+        while (true) {
+            int first = this.inputStream.read();
+            int second = this.inputStream.read();
+            if (first < 0 || second < 0) {
+                return false; // Connection closed without a close frame
+            }
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            if ((second & 0x80) == 0) {
+                throw new IOException("Client frames must be masked.");
+            }
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = this.readUnsigned(2);
+            } else if (length == 127) {
+                length = this.readUnsigned(8);
+            }
+            this.readFully(this.mask, 0, 4);
+
+            if (opcode >= OPCODE_CLOSE) { // Control frames may arrive between the fragments of a message
+                if (length > 125) throw new IOException("Control frame too long.");
+                byte[] payload = new byte[(int) length];
+                this.readFully(payload, 0, payload.length);
+                this.unmask(payload, 0, payload.length);
+                if (opcode == OPCODE_CLOSE) {
+                    this.writeFrame(OPCODE_CLOSE, payload); // Echo the close frame, the connection is closed by the caller
+                    return false;
+                } else if (opcode == OPCODE_PING) {
+                    this.writeFrame(OPCODE_PONG, payload);
+                }
+                continue; // Pongs are ignored
+            }
+
+            if (opcode == OPCODE_CONTINUATION ? !inMessage : inMessage) {
+                throw new IOException("Unexpected continuation frame.");
+            }
+            if (buffer.length() - start + length > MAX_MESSAGE_SIZE) {
+                throw new IOException("Message too long.");
+            }
+            if (opcode != OPCODE_CONTINUATION) {
+                binary = opcode == OPCODE_BINARY;
+            }
+            // Read the frame straight into the buffer and unmask it there
+            int offset = buffer.length();
+            buffer.ensureCapacity(offset + (int) length);
+            this.readFully(buffer.array(), offset, (int) length);
+            this.unmask(buffer.array(), offset, (int) length);
+            buffer.setLength(offset + (int) length);
+            inMessage = !fin;
+
+            if (fin) {
+                if (binary) { // Binary messages have no meaning in the chat, skip them
+                    buffer.setLength(start);
+                    continue;
+                }
+                byte[] bytes = buffer.array();
+                for (int i = start; i < buffer.length(); i++) {
+                    if (bytes[i] == '\r' || bytes[i] == '\n') {
+                        bytes[i] = ' ';
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Writes a message to the Client's output buffer as a single text frame.
+     * Only the frame header is written for this Client; the prefix and the
+     * shared payload follow it unchanged, as frames sent by the Server are
+     * not masked.
+     * @param prefix Written before the payload, e.g. the sequence number
+     * @param prefixLength Number of bytes of the prefix in use
+     * @param payload The message encoded in UTF-8
+     * @param offset Index of the payload's first byte
+     * @param length Number of bytes of the payload
+     * @throws IOException If the message could not be written
+     */
+    @Override
+    protected void writeMessage(byte[] prefix, int prefixLength, byte[] payload, int offset, int length) throws IOException {
+        synchronized (this.output) { // Messages from different threads must not be interleaved
+            this.writeHeader(OPCODE_TEXT, prefixLength + length);
+            this.output.write(prefix, 0, prefixLength);
+            this.output.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Writes a single unfragmented frame to the Client.
+     * @param opcode The frame's opcode
+     * @param payload The frame's payload
+     * @throws IOException If the frame could not be written
+     */
+    private void writeFrame(int opcode, byte[] payload) throws IOException {
+        synchronized (this.output) {
+            this.writeHeader(opcode, payload.length);
+            this.output.write(payload);
+            this.output.flush();
+        }
+    }
+
+    /**
+     * Writes the header of an unmasked, unfragmented frame.
+     * Callers must hold the output's monitor.
+     * @param opcode The frame's opcode
+     * @param length The length of the frame's payload
+     * @throws IOException If the header could not be written
+     */
+    private void writeHeader(int opcode, long length) throws IOException {
+        this.output.write(0x80 | opcode); // Final fragment
+        if (length < 126) {
+            this.output.write((int) length);
+        } else if (length <= 0xFFFF) {
+            this.output.write(126);
+            this.output.write((int) (length >>> 8));
+            this.output.write((int) length);
+        } else {
+            this.output.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.output.write((int) (length >>> shift));
+            }
+        }
+    }
+
+    /**
+     * Reads an unsigned big-endian number from the Client.
+     * @param bytes The number's size in bytes
+     * @return The number read
+     * @throws IOException If the connection was closed
+     */
+    private long readUnsigned(int bytes) throws IOException {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            int b = this.inputStream.read();
+            if (b < 0) throw new EOFException("Connection closed in the middle of a frame.");
+            value = (value << 8) | b;
+        }
+        if (value < 0) throw new IOException("Frame too long.");
+        return value;
+    }
+
+    /**
+     * Reads exactly the given number of bytes from the Client.
+     * @param into The array the bytes are read into
+     * @param offset Index the first byte is read into
+     * @param count The number of bytes to read
+     * @throws IOException If the connection was closed first
+     */
+    private void readFully(byte[] into, int offset, int count) throws IOException {
+        if (this.inputStream.readNBytes(into, offset, count) < count) {
+            throw new EOFException("Connection closed in the middle of a frame.");
+        }
+    }
+
+    /**
+     * Removes the Client's mask, read last, from a frame's payload, in place.
+     * @param payload The array holding the masked payload
+     * @param offset Index of the payload's first byte
+     * @param length Number of bytes of the payload
+     */
+    private void unmask(byte[] payload, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            payload[offset + i] ^= this.mask[i & 3];
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package Server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketException;
+
+/**
+ * Listens for WebSocket connections, e.g. from web browsers, on a separate
+ * port and hands each connection to a new WebSocketHandler.
+ * The WebSocket handshake is performed by the WebSocketHandler's own thread,
+ * so a slow handshake never holds up accepting other connections.
+ * Implements Runnable.
+ * Used on the Server side.
+ */
+public class WebSocketListener implements Runnable {
+
+    /**
+     * ServerSocket used for accepting new WebSocket connections
+     */
+    private ServerSocket serverSocket;
+    /**
+     * The clients of the Server the connections are handed to
+     */
+    private ChatRoom room;
+    /**
+     * The port number the ServerSocket is listening to
+     */
+    private int port;
+
+    /**
+     * Creates a ServerSocket listening for WebSocket connections on the specified port.
+     * @param room The clients of the Server the connections are handed to
+     * @param port The port number to listen to
+     * @throws IOException If the ServerSocket could not be created
+     */
+    public WebSocketListener(ChatRoom room, int port) throws IOException {
+        this.room = room;
+        this.port = port;
+        this.serverSocket = new ServerSocket(port, ChatServer.ACCEPT_BACKLOG);
+    }
+
+    /**
+     * Getter method for the Port number used for listening to WebSocket connections.
+     * @return The Port number used for listening to WebSocket connections
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Creates and starts a new WebSocketListener Thread.
+     * @Override
+     */
+    public void start() {
+        new Thread(this).start();
+    }
+
+    /**
+     * Stops listening for WebSocket connections by closing the ServerSocket.
+     */
+    public void shutdown() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the WebSocket server socket.");
+        }
+    }
+
+    /**
+     * Accepts WebSocket connections and starts a WebSocketHandler thread for
+     * each, until the ServerSocket is closed.
+     * @Override
+     */
+    public void run() {
+        try {
+            while (true) {
+                // Create new WebSocketHandler thread to manage new client connection, the handshake is done by that thread
+                WebSocketHandler newClient = new WebSocketHandler(this.room, this.serverSocket.accept());
+                newClient.start();
+            }
+        } catch (SocketException s) {
+            // ServerSocket has been closed
+        } catch (IOException e) {
+            System.err.println("Error establishing new WebSocket connection.");
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package Tools;
+
+import Server.ChatRoom;
+import Server.ChatServer;
+import Server.ClientHandler;
+import Server.Outbox;
+import Server.ServerResources;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that forwarding a message between clients allocates no memory on
+ * the Server once it is warm, so changes to the message path that start
+ * allocating again are noticed.
+ * Runs the Server's ClientHandlers and sequencer in this JVM, connects
+ * clients that all send and receive messages, and measures the memory
+ * allocated by the Server's threads only, using the JVM's per-thread
+ * allocation counters. The clients' own threads are not measured.
+ * Exits with status 1 if more than the allowed number of bytes were
+ * allocated per forwarded message.
+ */
+public class AllocationCheck {
+
+    /**
+     * Largest number of messages the clients send ahead of the slowest
+     * client's reads; the Server disconnects a client that falls
+     * Outbox.CHAT_CAPACITY messages behind, rather than slow the senders down
+     */
+    private static final long SEND_WINDOW = Outbox.CHAT_CAPACITY / 4;
+    /**
+     * Command sent by every client once connected; its answer, the only
+     * line starting with SENTINEL, follows the lines greeting the client
+     */
+    private static final String SENTINEL_COMMAND = "WHO\n";
+    /**
+     * Start of the answer to SENTINEL_COMMAND
+     */
+    private static final byte[] SENTINEL = "[Server]: WHO ".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Number of connected clients, each sending and receiving
+     */
+    private int clientCount;
+    /**
+     * Number of messages sent during the measurement, by all clients together
+     */
+    private int messages;
+    /**
+     * The in-process Server's clients
+     */
+    private ChatRoom room;
+    /**
+     * Clients connected to the in-process Server
+     */
+    private ArrayList<Socket> clients;
+    /**
+     * Number of lines each client has received
+     */
+    private AtomicLong[] received;
+    /**
+     * Set once each client has received the answer to SENTINEL_COMMAND
+     */
+    private AtomicBoolean[] greeted;
+    /**
+     * Threads used by the clients, which are not measured
+     */
+    private HashSet<Long> clientThreads;
+    /**
+     * Bytes allocated by the Server's threads during the measurement
+     */
+    private long allocated;
+    /**
+     * Buffers the Server's pool had to create during the measurement
+     */
+    private long poolMisses;
+
+    /**
+     * Creates a new check.
+     * @param clientCount Number of connected clients
+     * @param messages Number of messages sent during the measurement
+     */
+    public AllocationCheck(int clientCount, int messages) {
+        this.clientCount = clientCount;
+        this.messages = messages;
+        this.room = new ChatRoom(ServerResources.getShared());
+        this.clients = new ArrayList<Socket>();
+        this.received = new AtomicLong[clientCount];
+        this.greeted = new AtomicBoolean[clientCount];
+        this.clientThreads = new HashSet<Long>();
+        this.clientThreads.add(Thread.currentThread().getId());
+    }
+
+    /**
+     * Starts a Server on a free port, in this JVM, and connects the clients.
+     * Returns once every client has received the lines greeting it, i.e.
+     * the answer to the SENTINEL_COMMAND it sends after connecting.
+     * @throws IOException If the Server could not be started or a client could not connect
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    private void connect() throws IOException, InterruptedException {
+        ServerSocket serverSocket = new ServerSocket(0, ChatServer.ACCEPT_BACKLOG, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try {
+                for (int i = 0; i < this.clientCount; i++) {
+                    new ClientHandler(this.room, serverSocket.accept()).start();
+                }
+                serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error accepting client connection.");
+            }
+        });
+        acceptor.start();
+        this.room.startSequencer();
+
+        for (int i = 0; i < this.clientCount; i++) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            this.clients.add(socket);
+            this.received[i] = new AtomicLong();
+            this.greeted[i] = new AtomicBoolean();
+            Thread reader = new Thread(new LineCounter(socket.getInputStream(), this.received[i], this.greeted[i]));
+            reader.setDaemon(true);
+            reader.start();
+            this.clientThreads.add(reader.getId());
+        }
+        acceptor.join();
+        byte[] command = SENTINEL_COMMAND.getBytes(StandardCharsets.US_ASCII);
+        for (Socket socket : this.clients) {
+            socket.getOutputStream().write(command); // Answered after the greeting, however many lines it has
+            socket.getOutputStream().flush();
+        }
+        for (AtomicBoolean done : this.greeted) {
+            while (!done.get()) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Sends messages from every client, spread evenly, and waits until every
+     * client has received all of them. The clients stop sending while the
+     * slowest client is SEND_WINDOW messages behind.
+     * @param count Number of messages sent by all clients together
+     * @throws IOException If a message could not be sent
+     * @throws InterruptedException If interrupted while waiting for the messages
+     */
+    private void send(int count) throws IOException, InterruptedException {
+        long start = this.received[0].get();
+        long expected = start + count;
+        AtomicLong sentTotal = new AtomicLong();
+        Thread[] senders = new Thread[this.clientCount];
+        for (int i = 0; i < this.clientCount; i++) {
+            OutputStream output = this.clients.get(i).getOutputStream();
+            int share = count / this.clientCount + (i < count % this.clientCount ? 1 : 0);
+            senders[i] = new Thread(() -> {
+                byte[] line = "load test message\n".getBytes(StandardCharsets.US_ASCII);
+                byte[] batch = new byte[line.length * 64];
+                for (int j = 0; j < 64; j++) {
+                    System.arraycopy(line, 0, batch, j * line.length, line.length);
+                }
+                try {
+                    for (int sent = 0; sent < share; sent += 64) {
+                        while (start + sentTotal.get() - this.slowestReceived() > SEND_WINDOW) {
+                            Thread.sleep(1); // Let the slowest client catch up
+                        }
+                        int lines = Math.min(64, share - sent);
+                        output.write(batch, 0, lines * line.length);
+                        output.flush();
+                        sentTotal.addAndGet(lines);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error sending messages.");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            this.clientThreads.add(senders[i].getId());
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        this.waitForLines(expected);
+    }
+
+    /**
+     * Getter method for the number of lines received by the client that has received the fewest.
+     * @return The smallest number of lines received
+     */
+    private long slowestReceived() {
+        long slowest = Long.MAX_VALUE;
+        for (AtomicLong count : this.received) {
+            slowest = Math.min(slowest, count.get());
+        }
+        return slowest;
+    }
+
+    /**
+     * Waits until every client has received the given number of lines.
+     * @param lines Number of lines each client must have received
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private void waitForLines(long lines) throws InterruptedException {
+        for (AtomicLong count : this.received) {
+            while (count.get() < lines) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Adds up the memory allocated so far by every thread that is not one of
+     * the clients' threads, i.e. by the Server's threads.
+     * @param bean Used to read the threads' allocation counters
+     * @return The number of bytes allocated
+     */
+    private long serverAllocatedBytes(com.sun.management.ThreadMXBean bean) {
+        long total = 0;
+        for (long id : bean.getAllThreadIds()) {
+            if (!this.clientThreads.contains(id)) {
+                total += Math.max(0, bean.getThreadAllocatedBytes(id)); // -1 if the thread has finished
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Warms up the Server, then measures the memory its threads allocate
+     * while forwarding the messages.
+     * @param warmUp Number of messages sent before measuring
+     * @throws IOException If a message could not be sent
+     * @throws InterruptedException If interrupted while waiting for the messages
+     */
+    private void measure(int warmUp) throws IOException, InterruptedException {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            throw new IllegalStateException("This JVM does not count the memory allocated by each thread.");
+        }
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        this.send(warmUp); // Fills the buffer pool and compiles the message path
+        long misses = this.room.getResources().getBufferPool().getMisses();
+        long before = this.serverAllocatedBytes(bean);
+        this.send(this.messages);
+        this.allocated = this.serverAllocatedBytes(bean) - before;
+        this.poolMisses = this.room.getResources().getBufferPool().getMisses() - misses;
+    }
+
+    /**
+     * Counts the lines received by a client, reading them without decoding,
+     * and notes when a line starting with SENTINEL arrives.
+     * Implements Runnable.
+     */
+    private static class LineCounter implements Runnable {
+        /**
+         * The client's input
+         */
+        private final InputStream input;
+        /**
+         * Number of lines received
+         */
+        private final AtomicLong lines;
+        /**
+         * Set once a line starting with SENTINEL has been received
+         */
+        private final AtomicBoolean greeted;
+
+        private LineCounter(InputStream input, AtomicLong lines, AtomicBoolean greeted) {
+            this.input = input;
+            this.lines = lines;
+            this.greeted = greeted;
+        }
+
+        /**
+         * Reads until the connection is closed.
+         * @Override
+         */
+        public void run() {
+            byte[] buffer = new byte[65536];
+            try {
+                int read;
+                int matched = 0; // Bytes of SENTINEL matched at the start of the current line, -1 once one differs
+                while ((read = this.input.read(buffer)) > 0) {
+                    int count = 0;
+                    boolean sentinel = false;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            count++;
+                            sentinel |= matched == SENTINEL.length;
+                            matched = 0;
+                        } else if (matched >= 0 && matched < SENTINEL.length) {
+                            matched = buffer[i] == SENTINEL[matched] ? matched + 1 : -1;
+                        }
+                    }
+                    this.lines.addAndGet(count);
+                    if (sentinel) {
+                        this.greeted.set(true); // Only once its line has been counted
+                    }
+                }
+            } catch (IOException e) {
+                // The check has finished
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 4;
+        int messages = 200000;
+        int warmUp = 200000;
+        double threshold = 1.0;
+
+        // Search and extract the -c, -m, -w and -t parameters
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-c")) {
+                clientCount = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-m")) {
+                messages = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-w")) {
+                warmUp = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-t")) {
+                threshold = Double.parseDouble(args[i + 1]);
+            }
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), true)); // The Server prints every message it receives
+        AllocationCheck check = new AllocationCheck(clientCount, messages);
+        try {
+            check.connect();
+            check.measure(warmUp);
+        } finally {
+            System.setOut(console);
+        }
+        check.room.stopSequencer();
+
+        double perMessage = (double) check.allocated / messages;
+        System.out.printf("%d clients, %d messages forwarded to each%n", clientCount, messages);
+        System.out.printf("Server allocated %d bytes, %.2f bytes per message%n", check.allocated, perMessage);
+        System.out.printf("Buffers created while measuring: %d%n", check.poolMisses);
+        if (perMessage > threshold) {
+            System.out.printf("FAILED: more than %.2f bytes allocated per message%n", threshold);
+            System.exit(1);
+        }
+        System.out.printf("PASSED: at most %.2f bytes allocated per message%n", threshold);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,184 @@
+package Tools;
+
+import Server.ChatRoom;
+import Server.ClientHandler;
+import Server.ServerResources;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long the Server takes to fan a message out to 1000, 10000 and
+ * 50000 recipients, written by the sequencer's thread alone and split between
+ * the threads of the fan-out pool.
+ * Runs the Server's ClientHandlers and sequencer in this JVM. The recipients'
+ * sockets discard what is written to them, so only the Server's own work is
+ * measured; their threads are not started. One client sends the messages.
+ * Every recipient has buffered input and output streams, so large audiences
+ * need a large heap, e.g. -Xmx2g for 50000 recipients.
+ */
+public class FanOutBenchmark {
+
+    /**
+     * The in-process Server's clients
+     */
+    private ChatRoom room;
+    /**
+     * Number of lines written to all recipients together
+     */
+    private LongAdder linesWritten;
+    /**
+     * Used to send messages through the sending client's connection
+     */
+    private OutputStream sender;
+    /**
+     * Number of connected recipients
+     */
+    private int audience;
+
+    /**
+     * Creates a new benchmark, connecting the client sending the messages.
+     * @throws IOException If the sending client's connection could not be created
+     */
+    public FanOutBenchmark() throws IOException {
+        this.room = new ChatRoom(ServerResources.getShared());
+        this.linesWritten = new LongAdder();
+        PipedInputStream input = new PipedInputStream(65536);
+        this.sender = new PipedOutputStream(input);
+        new ClientHandler(this.room, new FakeSocket(input, OutputStream.nullOutputStream())).start();
+    }
+
+    /**
+     * Connects recipients until there are the given number.
+     * @param audience Number of recipients
+     */
+    private void growAudience(int audience) {
+        OutputStream counter = new LineCounter(this.linesWritten);
+        for (; this.audience < audience; this.audience++) {
+            this.room.addRecipient(new ClientHandler(this.room, new FakeSocket(InputStream.nullInputStream(), counter)));
+        }
+    }
+
+    /**
+     * Sends messages and waits until every recipient has been written all of them.
+     * @param label Name of the measurement
+     * @param messages Number of messages sent
+     * @throws IOException If a message could not be sent
+     * @throws InterruptedException If interrupted while waiting for the messages
+     */
+    private void measure(String label, int messages) throws IOException, InterruptedException {
+        byte[] line = "benchmark message\n".getBytes(StandardCharsets.US_ASCII);
+        Thread.sleep(200); // Let the recipients' list of commands be written
+        long expected = this.linesWritten.sum() + (long) messages * this.audience;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            this.sender.write(line);
+        }
+        this.sender.flush();
+        while (this.linesWritten.sum() < expected) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%-10s %6d recipients %10.1f us/message %12.0f writes/s%n", label, this.audience,
+                seconds * 1e6 / messages, (double) messages * this.audience / seconds);
+    }
+
+    /**
+     * A connection that reads and writes the given streams instead of a network.
+     * Extends Socket.
+     */
+    private static class FakeSocket extends Socket {
+        /**
+         * Returned as the connection's input
+         */
+        private final InputStream input;
+        /**
+         * Returned as the connection's output
+         */
+        private final OutputStream output;
+
+        private FakeSocket(InputStream input, OutputStream output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return this.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return this.output;
+        }
+    }
+
+    /**
+     * Discards what is written to it, counting the lines.
+     * Extends OutputStream.
+     */
+    private static class LineCounter extends OutputStream {
+        /**
+         * Number of lines written
+         */
+        private final LongAdder lines;
+
+        private LineCounter(LongAdder lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') this.lines.increment();
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            int count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (bytes[i] == '\n') count++;
+            }
+            this.lines.add(count);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = 200;
+
+        // Search and extract the -m parameter
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-m")) {
+                messages = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        // The results are printed to System.err, the Server prints every message it receives to System.out
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), true));
+        System.err.printf("%d processors available to the fan-out pool%n", Runtime.getRuntime().availableProcessors());
+        FanOutBenchmark benchmark = new FanOutBenchmark();
+        benchmark.room.startSequencer();
+        benchmark.growAudience(1000);
+        for (int i = 0; i < 5; i++) { // Compile the fan-out both ways before measuring
+            benchmark.room.setSplitThreshold(i % 2 == 0 ? Integer.MAX_VALUE : 0);
+            benchmark.measure("warm-up", messages);
+        }
+        for (int audience : new int[] {1000, 10000, 50000}) {
+            benchmark.growAudience(audience);
+            benchmark.room.setSplitThreshold(Integer.MAX_VALUE);
+            benchmark.measure("inline", messages);
+            benchmark.room.setSplitThreshold(0);
+            benchmark.measure("split", messages);
+        }
+        benchmark.room.stopSequencer();
+        System.setOut(console);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,749 @@
+package Tools;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A TCP proxy between clients and a ChatServer that injects network faults
+ * into the connections passing through it, to reproduce slow readers,
+ * stalled TCP windows, jitter, half-open connections and resets locally.
+ * Every connection is given the faults of the first scenario line matching
+ * its number, counting from 1 in the order the connections are accepted.
+ * Rates, delays and stalls apply to what the Server sends to the client, so
+ * the client looks like a slow consumer to the Server; the proxy stops
+ * reading from the Server while a connection is throttled or stalled, so the
+ * Server's writes fill the TCP window as they would with a slow client.
+ * A scenario file has one line per rule, e.g.
+ *   # connection  faults
+ *   1    rate 2048 window 4096
+ *   2-3  delay 50 jitter 20
+ *   4    stall 2000 10000
+ *   5    halfopen 3000
+ *   *    none
+ * The faults are:
+ *   rate B          At most B bytes per second to the client
+ *   delay MS        Every chunk sent to the client is held for MS milliseconds
+ *   jitter MS       Plus up to MS milliseconds, keeping the chunks in order
+ *   stall AFTER FOR [EVERY]
+ *                   Stops reading from the Server AFTER milliseconds into the
+ *                   connection, for FOR milliseconds, again every EVERY milliseconds
+ *   window B        Receive buffer of B bytes on the connection to the Server
+ *   reset AFTER     Resets both sides of the connection after AFTER milliseconds
+ *   halfopen AFTER  Stops forwarding in both directions after AFTER milliseconds,
+ *                   without closing either side, like a dead network path
+ *   none            No faults
+ * Connections matching no line have no faults.
+ */
+public class FaultProxy {
+
+    /**
+     * Size of the chunks forwarded, in bytes
+     */
+    private static final int CHUNK_SIZE = 8192;
+    /**
+     * Number of delayed chunks held per connection; the proxy stops reading
+     * from the Server while the delay line is full
+     */
+    private static final int DELAY_LINE_SIZE = 1024;
+
+    /**
+     * Address of the Server
+     */
+    private String host;
+    /**
+     * Port number of the Server
+     */
+    private int port;
+    /**
+     * Used to listen for client connections
+     */
+    private ServerSocket serverSocket;
+    /**
+     * Rules of the scenario, in the order they were read
+     */
+    private ArrayList<Rule> rules;
+    /**
+     * Connections currently open through the proxy
+     */
+    private ArrayList<Connection> connections;
+    /**
+     * Number of connections accepted so far
+     */
+    private int accepted;
+    /**
+     * Used to indicate whether or not the proxy is running
+     */
+    private volatile boolean running;
+
+    /**
+     * Creates a proxy forwarding to the Server at the given address.
+     * @param host Address of the Server
+     * @param port Port number of the Server
+     * @param listenPort Port number the clients connect to
+     * @param rules Rules of the scenario
+     * @throws IOException If the proxy could not listen to the given port
+     */
+    private FaultProxy(String host, int port, int listenPort, ArrayList<Rule> rules) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.rules = rules;
+        this.connections = new ArrayList<Connection>();
+        this.serverSocket = new ServerSocket(listenPort);
+        this.running = true;
+    }
+
+    /**
+     * Reads a scenario file.
+     * @param path Path of the scenario file
+     * @return The rules of the scenario, in the order they were read
+     * @throws IOException If the file could not be read
+     * @throws IllegalArgumentException If a line is not a valid rule
+     */
+    private static ArrayList<Rule> readScenario(String path) throws IOException {
+        ArrayList<Rule> rules = new ArrayList<Rule>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    rules.add(Rule.parse(line.trim().split("\\s+")));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("line " + number + ": " + line.trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("line " + number + ": " + e.getMessage());
+                }
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Finds the faults of a connection.
+     * @param number Number of the connection, counting from 1
+     * @return The faults of the first rule matching the connection, or no faults
+     */
+    private Faults faultsOf(int number) {
+        for (Rule rule : this.rules) {
+            if (number >= rule.from && number <= rule.to) {
+                return rule.faults;
+            }
+        }
+        return new Faults();
+    }
+
+    /**
+     * Accepts client connections and connects each one to the Server, until
+     * the proxy is shut down.
+     */
+    private void acceptConnections() {
+        try {
+            while (this.running) {
+                Socket client = this.serverSocket.accept();
+                int number;
+                synchronized (this) {
+                    number = ++this.accepted;
+                }
+                Faults faults = this.faultsOf(number);
+                try {
+                    Socket server = new Socket();
+                    if (faults.window > 0) {
+                        server.setReceiveBufferSize(faults.window); // Before connecting, so the TCP window is scaled to it
+                    }
+                    server.connect(new InetSocketAddress(this.host, this.port));
+                    Connection connection = new Connection(this, number, client, server, faults);
+                    synchronized (this) {
+                        this.connections.add(connection);
+                    }
+                    System.out.println("> Connection " + number + " from " + client.getRemoteSocketAddress() + ": " + faults + ".");
+                    connection.start();
+                } catch (IOException e) {
+                    System.err.println("Error connecting connection " + number + " to the Server.");
+                    client.close();
+                }
+            }
+        } catch (SocketException s) {
+            // ServerSocket has been closed
+        } catch (IOException e) {
+            System.err.println("Error accepting new connection.");
+        }
+    }
+
+    /**
+     * Removes a closed connection.
+     * @param connection The connection that was closed
+     */
+    private synchronized void removeConnection(Connection connection) {
+        this.connections.remove(connection);
+    }
+
+    /**
+     * Shuts down the proxy, closing every connection open through it.
+     */
+    public void shutdown() {
+        this.running = false;
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {}
+        ArrayList<Connection> open;
+        synchronized (this) {
+            open = new ArrayList<Connection>(this.connections);
+        }
+        for (Connection connection : open) {
+            connection.close(false);
+        }
+        System.out.println("> Proxy has shut down.");
+    }
+
+    /**
+     * The faults injected into a connection.
+     */
+    private static class Faults {
+
+        /**
+         * Largest number of bytes sent to the client per second, or 0 for no limit
+         */
+        private long rate;
+        /**
+         * How long every chunk sent to the client is held, in milliseconds
+         */
+        private long delay;
+        /**
+         * Largest random time added to the delay, in milliseconds
+         */
+        private long jitter;
+        /**
+         * When the first stall starts, how long each stall lasts and how often
+         * stalls repeat, in milliseconds from the start of the connection; no
+         * stall if stallFor is 0, a single stall if stallEvery is 0
+         */
+        private long stallAfter, stallFor, stallEvery;
+        /**
+         * Receive buffer size of the connection to the Server, or 0 for the default
+         */
+        private int window;
+        /**
+         * When the connection is reset, in milliseconds from its start, or -1 if it is not
+         */
+        private long resetAfter = -1;
+        /**
+         * When the connection stops forwarding, in milliseconds from its start, or -1 if it does not
+         */
+        private long halfOpenAfter = -1;
+
+        /**
+         * Checks if the connection should not read from the Server at the given time.
+         * @param elapsed Milliseconds since the connection started
+         * @return Milliseconds left in the current stall, or 0 if the connection is not stalled
+         */
+        private long stalledFor(long elapsed) {
+            long into = elapsed - this.stallAfter;
+            if (this.stallFor == 0 || into < 0 || (this.stallEvery == 0 && into >= this.stallFor)) {
+                return 0;
+            }
+            into = this.stallEvery == 0 ? into : into % this.stallEvery;
+            return Math.max(0, this.stallFor - into);
+        }
+
+        /**
+         * Describes the faults as written in a scenario.
+         * @return The faults, e.g. "rate 2048 stall 2000 10000"
+         * @Override
+         */
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            if (this.rate > 0) text.append(" rate ").append(this.rate);
+            if (this.delay > 0) text.append(" delay ").append(this.delay);
+            if (this.jitter > 0) text.append(" jitter ").append(this.jitter);
+            if (this.stallFor > 0) {
+                text.append(" stall ").append(this.stallAfter).append(' ').append(this.stallFor);
+                if (this.stallEvery > 0) text.append(' ').append(this.stallEvery);
+            }
+            if (this.window > 0) text.append(" window ").append(this.window);
+            if (this.resetAfter >= 0) text.append(" reset ").append(this.resetAfter);
+            if (this.halfOpenAfter >= 0) text.append(" halfopen ").append(this.halfOpenAfter);
+            return text.length() == 0 ? "none" : text.substring(1);
+        }
+    }
+
+    /**
+     * A line of a scenario: the faults of a range of connections.
+     */
+    private static class Rule {
+
+        /**
+         * Numbers of the first and last connections the rule applies to
+         */
+        private int from, to;
+        /**
+         * The faults injected into these connections
+         */
+        private Faults faults;
+
+        /**
+         * Parses a line of a scenario.
+         * @param words The line's words: the connections, e.g. "3", "2-5" or "*", then the faults
+         * @return The rule
+         * @throws IllegalArgumentException If a fault is not known or has a negative value
+         */
+        private static Rule parse(String[] words) {
+            Rule rule = new Rule();
+            if (words[0].equals("*")) {
+                rule.from = 1;
+                rule.to = Integer.MAX_VALUE;
+            } else {
+                int dash = words[0].indexOf('-');
+                rule.from = Integer.parseInt(dash < 0 ? words[0] : words[0].substring(0, dash));
+                rule.to = dash < 0 ? rule.from : Integer.parseInt(words[0].substring(dash + 1));
+            }
+            Faults faults = new Faults();
+            for (int i = 1; i < words.length; i++) {
+                switch (words[i]) {
+                    case "rate":
+                        faults.rate = value(words[++i]);
+                        break;
+                    case "delay":
+                        faults.delay = value(words[++i]);
+                        break;
+                    case "jitter":
+                        faults.jitter = value(words[++i]);
+                        break;
+                    case "stall":
+                        faults.stallAfter = value(words[++i]);
+                        faults.stallFor = value(words[++i]);
+                        if (i + 1 < words.length && Character.isDigit(words[i + 1].charAt(0))) {
+                            faults.stallEvery = value(words[++i]); // The period is optional
+                            if (faults.stallEvery > 0 && faults.stallEvery <= faults.stallFor) {
+                                throw new IllegalArgumentException("stalls must be shorter than their period");
+                            }
+                        }
+                        break;
+                    case "window":
+                        faults.window = (int) Math.min(value(words[++i]), Integer.MAX_VALUE);
+                        break;
+                    case "reset":
+                        faults.resetAfter = value(words[++i]);
+                        break;
+                    case "halfopen":
+                        faults.halfOpenAfter = value(words[++i]);
+                        break;
+                    case "none":
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown fault \"" + words[i] + "\"");
+                }
+            }
+            rule.faults = faults;
+            return rule;
+        }
+
+        /**
+         * Parses a fault's value.
+         * @param word The value
+         * @return The value, which is not negative
+         * @throws IllegalArgumentException If the value is not a number or is negative
+         */
+        private static long value(String word) {
+            long value = Long.parseLong(word);
+            if (value < 0) {
+                throw new IllegalArgumentException("negative value " + word);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A client's connection through the proxy, forwarded by a thread for each
+     * direction, and a thread releasing the delayed chunks if it has a delay.
+     */
+    private static class Connection {
+
+        /**
+         * The proxy the connection was accepted by
+         */
+        private FaultProxy proxy;
+        /**
+         * Number of the connection, counting from 1
+         */
+        private int number;
+        /**
+         * Connection to the client, and to the Server
+         */
+        private Socket client, server;
+        /**
+         * The faults injected into the connection
+         */
+        private Faults faults;
+        /**
+         * When the connection started, from System.nanoTime()
+         */
+        private long started;
+        /**
+         * Chunks sent by the Server waiting for their delay, or null if the connection has no delay
+         */
+        private BlockingQueue<DelayedChunk> delayLine;
+        /**
+         * When the last chunk passed to the delay line is due, from System.nanoTime()
+         */
+        private long lastDue;
+        /**
+         * Bytes forwarded to the Server, and to the client
+         */
+        private volatile long toServer, toClient;
+        /**
+         * Time spent not reading from the Server because of stalls, in milliseconds
+         */
+        private volatile long stalled;
+        /**
+         * true once the connection has stopped forwarding without being closed
+         */
+        private volatile boolean halfOpen;
+        /**
+         * true once the connection has been closed
+         */
+        private boolean closed;
+
+        /**
+         * Creates a connection between a client and the Server.
+         * @param proxy The proxy the connection was accepted by
+         * @param number Number of the connection, counting from 1
+         * @param client Connection to the client
+         * @param server Connection to the Server
+         * @param faults The faults injected into the connection
+         */
+        private Connection(FaultProxy proxy, int number, Socket client, Socket server, Faults faults) {
+            this.proxy = proxy;
+            this.number = number;
+            this.client = client;
+            this.server = server;
+            this.faults = faults;
+            if (faults.delay > 0 || faults.jitter > 0) {
+                this.delayLine = new ArrayBlockingQueue<DelayedChunk>(DELAY_LINE_SIZE);
+            }
+        }
+
+        /**
+         * Starts the threads forwarding the connection, and the timers of its
+         * reset or half-open fault.
+         */
+        private void start() {
+            this.started = System.nanoTime();
+            new Thread(this::forwardToServer).start();
+            new Thread(this::forwardToClient).start();
+            if (this.delayLine != null) {
+                new Thread(this::releaseDelayed).start();
+            }
+            if (this.faults.resetAfter >= 0 || this.faults.halfOpenAfter >= 0) {
+                new Thread(this::injectTimedFault).start();
+            }
+        }
+
+        /**
+         * Milliseconds since the connection started.
+         * @return The connection's age
+         */
+        private long elapsed() {
+            return (System.nanoTime() - this.started) / 1000000;
+        }
+
+        /**
+         * Waits until the connection is closed, once it has stopped forwarding.
+         */
+        private synchronized void waitUntilClosed() {
+            while (!this.closed) {
+                try {
+                    this.wait();
+                } catch (InterruptedException i) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Forwards what the client sends to the Server, as it is.
+         */
+        private void forwardToServer() {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            try {
+                InputStream input = this.client.getInputStream();
+                OutputStream output = this.server.getOutputStream();
+                int read;
+                while ((read = input.read(chunk)) >= 0) {
+                    if (this.halfOpen) {
+                        this.waitUntilClosed(); // The data is lost, as on a dead network path
+                        return;
+                    }
+                    output.write(chunk, 0, read);
+                    output.flush();
+                    this.toServer += read;
+                }
+            } catch (IOException e) {
+                // One of the sockets has been closed or reset
+            }
+            this.close(false);
+        }
+
+        /**
+         * Forwards what the Server sends to the client, reading it no faster
+         * than the connection's rate and not at all while it is stalled.
+         * Delayed chunks are passed to the delay line instead of the client.
+         */
+        private void forwardToClient() {
+            int chunkSize = CHUNK_SIZE;
+            if (this.faults.rate > 0) {
+                chunkSize = (int) Math.max(1, Math.min(CHUNK_SIZE, this.faults.rate / 20)); // Smooth enough for 20 chunks a second
+            }
+            byte[] chunk = new byte[chunkSize];
+            long nextRead = System.nanoTime();
+            try {
+                InputStream input = this.server.getInputStream();
+                OutputStream output = this.client.getOutputStream();
+                while (true) {
+                    long stall = this.faults.stalledFor(this.elapsed());
+                    if (stall > 0) {
+                        Thread.sleep(stall); // Not reading, so the Server's writes fill the TCP window
+                        this.stalled += stall;
+                        nextRead = System.nanoTime(); // No catching up after the stall
+                    }
+                    long wait = nextRead - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000)); // Keeps to the rate
+                    }
+                    int read = input.read(chunk);
+                    if (read < 0 || this.halfOpen) {
+                        break;
+                    }
+                    if (this.faults.rate > 0) {
+                        nextRead = Math.max(nextRead, System.nanoTime()) + read * 1000000000L / this.faults.rate;
+                    }
+                    if (this.delayLine != null) {
+                        this.delay(Arrays.copyOf(chunk, read));
+                    } else {
+                        output.write(chunk, 0, read);
+                        output.flush();
+                        this.toClient += read;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // One of the sockets has been closed or reset
+            }
+            if (this.halfOpen) {
+                this.waitUntilClosed();
+            } else if (this.delayLine != null) {
+                try {
+                    this.delay(null); // The delayed chunks are still sent, then the connection is closed
+                } catch (InterruptedException i) {
+                    this.close(false);
+                }
+            } else {
+                this.close(false);
+            }
+        }
+
+        /**
+         * Passes a chunk to the delay line, due after the connection's delay
+         * and a random share of its jitter, but never before the chunk ahead of it.
+         * Only called by the thread forwarding to the client.
+         * @param chunk The chunk sent by the Server, or null once the Server has closed the connection
+         * @throws InterruptedException If interrupted while waiting for room in the delay line
+         */
+        private void delay(byte[] chunk) throws InterruptedException {
+            long hold = this.faults.delay + (this.faults.jitter > 0 ? ThreadLocalRandom.current().nextLong(this.faults.jitter + 1) : 0);
+            this.lastDue = Math.max(this.lastDue, System.nanoTime() + hold * 1000000); // Chunks stay in order
+            this.delayLine.put(new DelayedChunk(chunk, this.lastDue));
+        }
+
+        /**
+         * Sends the delayed chunks to the client once they are due.
+         */
+        private void releaseDelayed() {
+            try {
+                OutputStream output = this.client.getOutputStream();
+                while (true) {
+                    DelayedChunk delayed = this.delayLine.take();
+                    if (delayed.data == null) {
+                        break; // The Server has closed the connection, or the connection has been closed
+                    }
+                    long wait = delayed.due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                    if (this.halfOpen) {
+                        this.waitUntilClosed();
+                        return;
+                    }
+                    output.write(delayed.data);
+                    output.flush();
+                    this.toClient += delayed.data.length;
+                }
+            } catch (IOException | InterruptedException e) {
+                // One of the sockets has been closed or reset
+            }
+            this.close(false);
+        }
+
+        /**
+         * Resets the connection, or stops it forwarding, once its time has come.
+         */
+        private void injectTimedFault() {
+            boolean reset = this.faults.resetAfter >= 0
+                    && (this.faults.halfOpenAfter < 0 || this.faults.resetAfter <= this.faults.halfOpenAfter);
+            long after = reset ? this.faults.resetAfter : this.faults.halfOpenAfter;
+            try {
+                Thread.sleep(Math.max(0, after - this.elapsed()));
+            } catch (InterruptedException i) {
+                return;
+            }
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+            }
+            if (reset) {
+                System.out.println("> Connection " + this.number + " reset after " + after + " ms.");
+                this.close(true);
+            } else {
+                System.out.println("> Connection " + this.number + " half-open after " + after + " ms.");
+                this.halfOpen = true; // Both sides stay open, but nothing is forwarded any more
+            }
+        }
+
+        /**
+         * Closes both sides of the connection, once.
+         * @param reset true to reset the connections instead of closing them
+         */
+        private void close(boolean reset) {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                this.notifyAll(); // Wake the threads of a half-open connection
+            }
+            for (Socket socket : new Socket[] {this.client, this.server}) {
+                try {
+                    if (reset) {
+                        socket.setSoLinger(true, 0); // Closing sends a RST instead of a FIN
+                    }
+                    socket.close();
+                } catch (IOException e) {}
+            }
+            if (this.delayLine != null) {
+                this.delayLine.clear();
+                this.delayLine.offer(new DelayedChunk(null, 0)); // Wakes the thread releasing the delayed chunks
+            }
+            this.proxy.removeConnection(this);
+            System.out.printf("> Connection %d closed after %.1f s: %d bytes to the Server, %d bytes to the client, stalled %d ms.%n",
+                    this.number, this.elapsed() / 1000.0, this.toServer, this.toClient, this.stalled);
+        }
+    }
+
+    /**
+     * A chunk sent by the Server, held until it is due.
+     */
+    private static class DelayedChunk {
+
+        /**
+         * The chunk, or null to mark the end of the Server's data
+         */
+        private byte[] data;
+        /**
+         * When the chunk is due, from System.nanoTime()
+         */
+        private long due;
+
+        /**
+         * Creates a delayed chunk.
+         * @param data The chunk, or null to mark the end of the Server's data
+         * @param due When the chunk is due, from System.nanoTime()
+         */
+        private DelayedChunk(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    public static void main(String[] args) {
+        String host = "localhost";
+        int port = 14001;
+        int listenPort = 14011;
+        String scenario = null;
+
+        // Search and extract the -cca, -ccp, -cpp and -cps parameters
+        try {
+            for (int i = 0; i < args.length - 1; i++) {
+                if (args[i].equals("-cca")) {
+                    host = args[i + 1];
+                } else if (args[i].equals("-ccp")) {
+                    port = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-cpp")) {
+                    listenPort = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-cps")) {
+                    scenario = args[i + 1];
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error with the given port arguments.");
+            return;
+        }
+
+        ArrayList<Rule> rules = new ArrayList<Rule>();
+        if (scenario != null) {
+            try {
+                rules = readScenario(scenario);
+            } catch (IOException e) {
+                System.err.println("Error reading the scenario file: " + scenario + ".");
+                return;
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error in the scenario file, " + e.getMessage() + ".");
+                return;
+            }
+        }
+
+        FaultProxy proxy;
+        try {
+            proxy = new FaultProxy(host, port, listenPort, rules);
+        } catch (IOException e) {
+            System.err.println("Error listening to port " + listenPort + ".");
+            return;
+        }
+        System.out.println("> Proxy listening to port " + listenPort + ", forwarding to " + host + ":" + port + ".");
+        System.out.println("> To shut down the proxy type \"EXIT\".");
+        Thread acceptor = new Thread(proxy::acceptConnections);
+        acceptor.start();
+
+        // Read commands from the console until "EXIT"; without a console, run until stopped
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = console.readLine()) != null) {
+                if (line.trim().equalsIgnoreCase("EXIT")) {
+                    proxy.shutdown();
+                    break;
+                }
+            }
+            acceptor.join();
+        } catch (IOException | InterruptedException e) {
+            proxy.shutdown();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package Tools;
+
+import Clients.Client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Measures how the clients of a running ChatServer are affected by slow
+ * ones. Healthy clients connect to the Server directly, and slow clients
+ * through a FaultProxy, which makes them as slow as its scenario says. One of
+ * the healthy clients broadcasts timestamped messages at a fixed rate, and
+ * every second the probe prints the latency of the messages received by the
+ * healthy clients.
+ * While the Server's broadcasts are held up, e.g. by a fan-out waiting for a
+ * slow client, no healthy client receives anything; the longest such pause
+ * is reported at the end, along with what the slow clients received.
+ */
+public class LatencyProbe {
+
+    /**
+     * Found in every line carrying a probe message, after the sender's name
+     */
+    private static final String MARKER = ": probe ";
+
+    /**
+     * Latencies of the messages received by healthy clients in the current second, in nanoseconds
+     */
+    private long[] window;
+    /**
+     * Number of latencies in the current second
+     */
+    private int windowCount;
+    /**
+     * Latencies of every message received by healthy clients, in nanoseconds
+     */
+    private long[] all;
+    /**
+     * Number of latencies measured
+     */
+    private int allCount;
+    /**
+     * Number of messages received by slow clients, in the current second and in total
+     */
+    private long slowWindow, slowReceived;
+    /**
+     * Largest latency of a message received by a slow client, in nanoseconds
+     */
+    private long slowMaxLatency;
+    /**
+     * Number of slow clients disconnected by the Server
+     */
+    private int slowDisconnected;
+    /**
+     * When a healthy client last received a message, from System.nanoTime(), or 0 before the first
+     */
+    private long lastArrival;
+    /**
+     * Longest time no healthy client received a message while they were being sent, in nanoseconds
+     */
+    private long longestPause;
+    /**
+     * Number of messages sent so far
+     */
+    private volatile int sent;
+    /**
+     * true while messages are being sent
+     */
+    private volatile boolean sending;
+    /**
+     * Connections of every client, closed at the end
+     */
+    private ArrayList<Socket> sockets;
+
+    /**
+     * Creates a new probe.
+     */
+    public LatencyProbe() {
+        this.window = new long[1024];
+        this.all = new long[1024];
+        this.sockets = new ArrayList<Socket>();
+    }
+
+    /**
+     * Records a message received by a client.
+     * @param slow true if the client is connected through the proxy
+     * @param latency Time since the message was sent, in nanoseconds
+     */
+    private synchronized void record(boolean slow, long latency) {
+        if (slow) {
+            this.slowWindow++;
+            this.slowReceived++;
+            this.slowMaxLatency = Math.max(this.slowMaxLatency, latency);
+            return;
+        }
+        long now = System.nanoTime();
+        if (this.sending && this.lastArrival != 0) {
+            this.longestPause = Math.max(this.longestPause, now - this.lastArrival);
+        }
+        this.lastArrival = now;
+        if (this.windowCount == this.window.length) {
+            this.window = Arrays.copyOf(this.window, this.window.length * 2);
+        }
+        this.window[this.windowCount++] = latency;
+        if (this.allCount == this.all.length) {
+            this.all = Arrays.copyOf(this.all, this.all.length * 2);
+        }
+        this.all[this.allCount++] = latency;
+    }
+
+    /**
+     * Records that a slow client was disconnected by the Server.
+     */
+    private synchronized void recordDisconnected() {
+        this.slowDisconnected++;
+    }
+
+    /**
+     * Finds a percentile of the given latencies.
+     * @param latencies The latencies, sorted
+     * @param count Number of latencies
+     * @param percentile The percentile, from 0 to 100
+     * @return The percentile, in milliseconds, or 0 if there are no latencies
+     */
+    static double percentile(long[] latencies, int count, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(count - 1, Math.ceil(count * percentile / 100) - 1);
+        return latencies[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Connects a client and starts a thread reading the messages it receives.
+     * @param port Port number of the Server, or of the proxy for slow clients
+     * @param host Address of the Server, or of the proxy
+     * @param slow true if the client is connected through the proxy
+     * @return The client's connection
+     * @throws IOException If the client could not connect
+     */
+    private Socket connect(String host, int port, boolean slow) throws IOException {
+        Socket socket = Client.openSocket(host, port);
+        this.sockets.add(socket);
+        BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        new Thread(() -> {
+            try {
+                String line;
+                while ((line = input.readLine()) != null) {
+                    int marker = line.indexOf(MARKER);
+                    if (marker < 0) {
+                        continue; // Not a probe message, e.g. a notice
+                    }
+                    String[] words = line.substring(marker + MARKER.length()).split(" ", 3);
+                    this.record(slow, System.nanoTime() - Long.parseLong(words[1]));
+                }
+                if (slow) {
+                    this.recordDisconnected();
+                } else if (!socket.isClosed()) {
+                    System.err.println("Error, a healthy client was disconnected by the Server.");
+                }
+            } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                if (slow && !socket.isClosed()) {
+                    this.recordDisconnected(); // Reset by the Server or the proxy
+                }
+            }
+        }).start();
+        return socket;
+    }
+
+    /**
+     * Sends messages at a fixed rate, each carrying the time it was sent.
+     * @param socket Connection of the sending client
+     * @param rate Number of messages per second
+     * @param size Number of characters added to each message
+     * @param seconds How long messages are sent for
+     * @throws IOException If the messages could not be sent
+     */
+    private void send(Socket socket, int rate, int size, int seconds) throws IOException {
+        PrintWriter output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), false);
+        String padding = "x".repeat(size);
+        long start = System.nanoTime();
+        long total = (long) rate * seconds;
+        this.sending = true;
+        for (int i = 0; i < total; i++) {
+            long wait = start + i * 1000000000L / rate - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            output.println("probe " + i + " " + System.nanoTime() + " " + padding);
+            output.flush(); // Sent straight away, so the latency is the Server's
+            this.sent = i + 1;
+        }
+        this.sending = false;
+    }
+
+    /**
+     * Prints the latencies of the last second, and starts a new second.
+     * @param second Number of the second, from the start of sending
+     */
+    private synchronized void report(int second) {
+        long[] latencies = Arrays.copyOf(this.window, this.windowCount);
+        Arrays.sort(latencies);
+        System.out.printf("%4d s %8d sent %10d received %8.2f ms p50 %8.2f ms p99 %8.2f ms max %8d slow%n",
+                second, this.sent, this.windowCount, percentile(latencies, latencies.length, 50),
+                percentile(latencies, latencies.length, 99), percentile(latencies, latencies.length, 100), this.slowWindow);
+        this.windowCount = 0;
+        this.slowWindow = 0;
+    }
+
+    /**
+     * Prints the latencies over the whole run.
+     * @param healthy Number of healthy clients
+     * @param slow Number of slow clients
+     */
+    private synchronized void summarise(int healthy, int slow) {
+        long[] latencies = Arrays.copyOf(this.all, this.allCount);
+        Arrays.sort(latencies);
+        System.out.printf("> Healthy clients: %d of %d messages received, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms.%n",
+                this.allCount, (long) this.sent * healthy, percentile(latencies, latencies.length, 50),
+                percentile(latencies, latencies.length, 99), percentile(latencies, latencies.length, 99.9),
+                percentile(latencies, latencies.length, 100));
+        System.out.printf("> Longest pause in delivery to the healthy clients: %.1f ms.%n", this.longestPause / 1e6);
+        if (slow > 0) {
+            System.out.printf("> Slow clients: %d of %d messages received, max latency %.1f ms, %d of %d seen disconnected.%n",
+                    this.slowReceived, (long) this.sent * slow, this.slowMaxLatency / 1e6, this.slowDisconnected, slow);
+        }
+    }
+
+    /**
+     * Checks if every healthy client has received every message sent.
+     * @param healthy Number of healthy clients
+     * @return true if no message is still on its way to a healthy client
+     */
+    private synchronized boolean allReceived(int healthy) {
+        return this.allCount >= (long) this.sent * healthy;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 14001;
+        int proxyPort = -1;
+        int healthy = 8;
+        int slow = 1;
+        int rate = 500;
+        int size = 100;
+        int seconds = 30;
+
+        // Search and extract the -cca, -ccp, -cpp, -n, -s, -r, -b and -d parameters
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-cca")) {
+                host = args[i + 1];
+            } else if (args[i].equals("-ccp")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-cpp")) {
+                proxyPort = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-n")) {
+                healthy = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-s")) {
+                slow = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-r")) {
+                rate = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("-b")) {
+                size = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-d")) {
+                seconds = Integer.parseInt(args[i + 1]);
+            }
+        }
+        if (proxyPort < 0) {
+            slow = 0; // Slow clients need the proxy
+        }
+
+        LatencyProbe probe = new LatencyProbe();
+        // The slow clients connect first, so they are the proxy's first connections
+        for (int i = 0; i < slow; i++) {
+            probe.connect(host, proxyPort, true);
+        }
+        Socket sender = probe.connect(host, port, false);
+        for (int i = 1; i < healthy; i++) {
+            probe.connect(host, port, false);
+        }
+        System.out.println("> " + healthy + " healthy and " + slow + " slow clients connected, sending " + rate
+                + " messages per second for " + seconds + " seconds.");
+        Thread.sleep(1000); // Until the Server has announced the clients
+
+        int messageRate = rate, messageSize = size, duration = seconds;
+        Thread sending = new Thread(() -> {
+            try {
+                probe.send(sender, messageRate, messageSize, duration);
+            } catch (IOException e) {
+                System.err.println("Error sending probe messages.");
+            }
+        });
+        sending.start();
+        for (int second = 1; sending.isAlive(); second++) {
+            Thread.sleep(1000);
+            probe.report(second);
+        }
+        // Wait at most 10 seconds for the messages still on their way
+        for (int i = 0; i < 100 && !probe.allReceived(healthy); i++) {
+            Thread.sleep(100);
+        }
+        probe.summarise(healthy, slow);
+        for (Socket socket : probe.sockets) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package Tools;
+
+import Clients.Client;
+import Server.TrafficCapture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays traffic captured by a ChatServer started with -csq against a
+ * running Server, at the captured speed, faster, or as fast as possible, and
+ * measures how the Server keeps up with it: the messages sent and lines
+ * received per second, and the latency of every message, from the time it is
+ * sent until its sender receives it back in the broadcast.
+ * Every captured connection is opened, sends its lines and is closed at its
+ * captured time divided by the speed; a connection is only closed once its
+ * messages have been received back, or after CLOSE_TIMEOUT, so speeding up
+ * the replay does not cut its last messages short. "RELIABLE" and "RESUME" are not
+ * replayed: the replayed connections do not acknowledge messages, and the
+ * sessions they name belonged to the captured Server. Messages their sender
+ * never receives back, e.g. because of its filters, its consumer group or an
+ * interceptor, are reported as unconfirmed.
+ */
+public class TrafficReplay {
+
+    /**
+     * Beginnings of the lines the Server handles as commands, which are not broadcast
+     */
+    private static final String[] COMMANDS = {"NAME", "FILTER", "GROUP", "RELIABLE", "RESUME", "WHO", "SEARCH", "UPLOAD",
+            "DOWNLOAD", "HISTORY"};
+    /**
+     * Beginnings of the commands that are not replayed
+     */
+    private static final String[] SKIPPED = {"RELIABLE", "RESUME"};
+    /**
+     * Number of the oldest unconfirmed messages of a connection a received line is compared with
+     */
+    private static final int MATCH_WINDOW = 32;
+    /**
+     * How long a connection waits for its messages to be received back before it is closed, in milliseconds
+     */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    /**
+     * Address of the Server
+     */
+    private String host;
+    /**
+     * Port number of the Server
+     */
+    private int port;
+    /**
+     * Speed of the replay, relative to the capture, or 0 for as fast as possible
+     */
+    private double speed;
+    /**
+     * Replayed connections, by their number in the capture
+     */
+    private HashMap<Integer, Replayed> connections;
+    /**
+     * Every connection replayed, open or closed
+     */
+    private ArrayList<Replayed> replayed;
+    /**
+     * Latencies of the messages received back by their sender, in nanoseconds
+     */
+    private long[] latencies;
+    /**
+     * Number of latencies measured, in total and at the last report
+     */
+    private int latencyCount, reportedCount;
+    /**
+     * Number of messages and commands sent, in total and at the last report
+     */
+    private long sent, reportedSent;
+    /**
+     * Number of lines received by all replayed connections, in total and at the last report
+     */
+    private long received, reportedReceived;
+    /**
+     * Number of messages never received back by their sender
+     */
+    private long unconfirmed;
+    /**
+     * How far the replay fell behind the captured times divided by the speed,
+     * at most, in nanoseconds; the Server or this machine could not keep up
+     */
+    private long maxLag;
+
+    /**
+     * Creates a new replay against the Server at the given address.
+     * @param host Address of the Server
+     * @param port Port number of the Server
+     * @param speed Speed of the replay, relative to the capture, or 0 for as fast as possible
+     */
+    public TrafficReplay(String host, int port, double speed) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+        this.connections = new HashMap<Integer, Replayed>();
+        this.replayed = new ArrayList<Replayed>();
+        this.latencies = new long[1024];
+    }
+
+    /**
+     * A captured connection, replayed.
+     */
+    private class Replayed {
+
+        /**
+         * Connection to the Server
+         */
+        private Socket socket;
+        /**
+         * Used to send the connection's lines
+         */
+        private OutputStream output;
+        /**
+         * Messages sent and not received back yet, oldest first, with the time they were sent
+         */
+        private ArrayDeque<Object[]> pending;
+        /**
+         * Thread reading what the Server sends
+         */
+        private Thread reader;
+
+        /**
+         * Connects to the Server and starts a thread reading what it sends.
+         * @throws IOException If the connection failed
+         */
+        private Replayed() throws IOException {
+            this.socket = Client.openSocket(TrafficReplay.this.host, TrafficReplay.this.port);
+            this.socket.setTcpNoDelay(true); // Each line is sent at its own time
+            this.output = this.socket.getOutputStream();
+            this.pending = new ArrayDeque<Object[]>();
+            BufferedReader input = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.UTF_8));
+            this.reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = input.readLine()) != null) {
+                        this.receive(line);
+                    }
+                } catch (IOException e) {
+                    // The connection has been closed
+                }
+                synchronized (this.pending) {
+                    this.unconfirm(this.pending.size());
+                    this.pending.clear();
+                }
+            });
+            this.reader.start();
+        }
+
+        /**
+         * Sends a line to the Server.
+         * @param line The line
+         * @param broadcast true if the Server broadcasts it, so its sender receives it back
+         * @throws IOException If the line could not be sent
+         */
+        private void send(String line, boolean broadcast) throws IOException {
+            if (broadcast) {
+                synchronized (this.pending) {
+                    this.pending.add(new Object[] {line, System.nanoTime()});
+                }
+            }
+            this.output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            this.output.flush(); // Sent at its time, not when a buffer fills
+        }
+
+        /**
+         * Handles a line received from the Server: if it is one of the
+         * connection's own messages, broadcast back, its latency is recorded,
+         * and the older messages that were never received back are dropped.
+         * @param line The line received
+         */
+        private void receive(String line) {
+            long now = System.nanoTime();
+            int dropped = 0;
+            long latency = -1;
+            synchronized (this.pending) {
+                Iterator<Object[]> oldest = this.pending.iterator();
+                for (int i = 0; i < MATCH_WINDOW && oldest.hasNext(); i++) {
+                    Object[] message = oldest.next();
+                    String text = (String) message[0];
+                    int start = line.length() - text.length();
+                    if (start >= 2 && line.endsWith(text) && line.startsWith(": ", start - 2)) { // "[name]: text"
+                        latency = now - (Long) message[1];
+                        dropped = i;
+                        break;
+                    }
+                }
+                if (latency >= 0) {
+                    for (int i = 0; i <= dropped; i++) {
+                        this.pending.poll();
+                    }
+                    if (this.pending.isEmpty()) {
+                        this.pending.notifyAll(); // The connection may be waiting to close
+                    }
+                }
+            }
+            TrafficReplay.this.record(latency, dropped);
+        }
+
+        /**
+         * Counts the messages left waiting once the connection is closed.
+         * @param count Number of messages never received back
+         */
+        private void unconfirm(int count) {
+            TrafficReplay.this.record(-1, count);
+        }
+
+        /**
+         * Closes the connection on another thread, once its messages have
+         * been received back or CLOSE_TIMEOUT has passed.
+         */
+        private void finish() {
+            new Thread(() -> {
+                long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+                synchronized (this.pending) {
+                    long left;
+                    while (!this.pending.isEmpty() && (left = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            this.pending.wait(left);
+                        } catch (InterruptedException i) {
+                            break;
+                        }
+                    }
+                }
+                this.close();
+            }).start();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            try {
+                this.socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Records a line received by a replayed connection.
+     * @param latency Latency of the connection's own message it carries, in nanoseconds, or -1 if it carries none
+     * @param unconfirmed Number of the connection's messages found never to have been received back
+     */
+    private synchronized void record(long latency, int unconfirmed) {
+        this.unconfirmed += unconfirmed;
+        if (unconfirmed > 0 && latency < 0) {
+            return; // Counted once the connection closed, not a line
+        }
+        this.received++;
+        if (latency >= 0) {
+            if (this.latencyCount == this.latencies.length) {
+                this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+            }
+            this.latencies[this.latencyCount++] = latency;
+        }
+    }
+
+    /**
+     * Records a line sent, and how late it was sent.
+     * @param lag How long after its time the line was sent, in nanoseconds
+     */
+    private synchronized void recordSent(long lag) {
+        this.sent++;
+        this.maxLag = Math.max(this.maxLag, lag);
+    }
+
+    /**
+     * Checks if a line is a command the Server handles, rather than a message it broadcasts.
+     * @param line The line
+     * @param commands Beginnings of the commands
+     * @return true if the line starts with one of the commands
+     */
+    private static boolean startsWithAny(String line, String[] commands) {
+        for (String command : commands) {
+            if (line.startsWith(command)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replays a capture file, from its first event to its last.
+     * @param path Path of the capture file
+     * @return Time the capture covers, in nanoseconds
+     * @throws IOException If the file could not be read
+     * @throws InterruptedException If interrupted while waiting for an event's time
+     */
+    private long replay(String path) throws IOException, InterruptedException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(path))))) {
+            if (in.readInt() != TrafficCapture.MAGIC || in.readUnsignedByte() != TrafficCapture.VERSION) {
+                throw new IOException("Not a capture file: " + path);
+            }
+            in.readLong(); // When the capture started
+            long captured = 0; // Time of the current event in the capture, in nanoseconds
+            long start = System.nanoTime();
+            while (true) {
+                int kind;
+                try {
+                    kind = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break; // The end of the capture
+                }
+                captured += TrafficCapture.readNumber(in) * 1000;
+                int number = (int) TrafficCapture.readNumber(in);
+                String line = null;
+                try {
+                    if (kind == TrafficCapture.LINE) {
+                        byte[] bytes = new byte[(int) TrafficCapture.readNumber(in)];
+                        in.readFully(bytes);
+                        line = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                } catch (EOFException e) {
+                    break; // The Server stopped before the capture was closed
+                }
+
+                long lag = 0;
+                if (this.speed > 0) {
+                    long wait = start + (long) (captured / this.speed) - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        lag = -wait;
+                    }
+                }
+                Replayed connection = this.connections.get(number);
+                try {
+                    if (kind == TrafficCapture.CONNECT) {
+                        Replayed opened = new Replayed();
+                        this.connections.put(number, opened);
+                        this.replayed.add(opened);
+                    } else if (kind == TrafficCapture.DISCONNECT && connection != null) {
+                        this.connections.remove(number).finish();
+                    } else if (kind == TrafficCapture.LINE && connection != null && !startsWithAny(line, SKIPPED)) {
+                        connection.send(line, !startsWithAny(line, COMMANDS));
+                        this.recordSent(lag);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error replaying connection " + number + ".");
+                    if (connection != null) {
+                        this.connections.remove(number).close();
+                    }
+                }
+            }
+            return captured;
+        }
+    }
+
+    /**
+     * Prints the messages sent, lines received and latencies since the last report.
+     * @param second Number of the second, from the start of the replay
+     */
+    private synchronized void report(int second) {
+        long[] window = Arrays.copyOfRange(this.latencies, this.reportedCount, this.latencyCount);
+        Arrays.sort(window);
+        System.out.printf("%4d s %8d sent %10d received %8.2f ms p50 %8.2f ms p99 %8.2f ms max %8.1f ms lag%n",
+                second, this.sent - this.reportedSent, this.received - this.reportedReceived,
+                LatencyProbe.percentile(window, window.length, 50), LatencyProbe.percentile(window, window.length, 99),
+                LatencyProbe.percentile(window, window.length, 100), this.maxLag / 1e6);
+        this.reportedCount = this.latencyCount;
+        this.reportedSent = this.sent;
+        this.reportedReceived = this.received;
+    }
+
+    /**
+     * Prints the throughput and latencies over the whole replay.
+     * @param captured Time the capture covers, in nanoseconds
+     * @param replayed Time the replay took, in nanoseconds
+     */
+    private synchronized void summarise(long captured, long replayed) {
+        long[] all = Arrays.copyOf(this.latencies, this.latencyCount);
+        Arrays.sort(all);
+        double seconds = replayed / 1e9;
+        System.out.printf("> Replayed %.1f s of traffic in %.1f s: %d lines sent (%.0f/s), %d lines received (%.0f/s).%n",
+                captured / 1e9, seconds, this.sent, this.sent / seconds, this.received, this.received / seconds);
+        System.out.printf("> Latency of %d messages: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms; %d unconfirmed.%n",
+                all.length, LatencyProbe.percentile(all, all.length, 50), LatencyProbe.percentile(all, all.length, 99),
+                LatencyProbe.percentile(all, all.length, 99.9), LatencyProbe.percentile(all, all.length, 100), this.unconfirmed);
+        if (this.speed > 0) {
+            System.out.printf("> Largest lag behind the capture's times: %.1f ms.%n", this.maxLag / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 14001;
+        String capture = null;
+        double speed = 1;
+
+        // Search and extract the -cca, -ccp, -cpr and -x parameters
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-cca")) {
+                host = args[i + 1];
+            } else if (args[i].equals("-ccp")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-cpr")) {
+                capture = args[i + 1];
+            } else if (args[i].equals("-x")) {
+                speed = args[i + 1].equalsIgnoreCase("max") ? 0 : Double.parseDouble(args[i + 1]);
+            }
+        }
+        if (capture == null) {
+            System.err.println("Error, no capture file given, use -cpr followed by the file's path.");
+            return;
+        }
+
+        TrafficReplay replay = new TrafficReplay(host, port, speed);
+        System.out.println("> Replaying " + capture + (speed > 0 ? " at " + speed + "x speed." : " as fast as possible."));
+        Thread reporter = new Thread(() -> {
+            try {
+                for (int second = 1; ; second++) {
+                    Thread.sleep(1000);
+                    replay.report(second);
+                }
+            } catch (InterruptedException i) {
+                // The replay has finished
+            }
+        });
+        reporter.setDaemon(true);
+        long start = System.nanoTime();
+        reporter.start();
+        long captured;
+        try {
+            captured = replay.replay(capture);
+        } catch (IOException e) {
+            System.err.println("Error reading the capture file: " + capture + ".");
+            return;
+        }
+        long replayed = System.nanoTime() - start;
+        for (Replayed connection : replay.connections.values()) {
+            connection.finish(); // Connections still open at the end of the capture
+        }
+        for (Replayed connection : replay.replayed) {
+            connection.reader.join(); // Until every message has been received back, or given up on
+        }
+        reporter.interrupt();
+        replay.summarise(captured, replayed);
+    }
+}
@@ -0,0 +1,211 @@
+package Tools;
+
+import Clients.Client;
+import Server.Outbox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Measures the cost of TLS against plain connections to a running ChatServer
+ * on the same machine:
+ * 1. Connections per second, with full TLS handshakes and with resumed sessions
+ * 2. Messages per second and time per message, sent and echoed back by the Server
+ * The Server must be started with both a plain and a secure port, and the
+ * JVM running the benchmark must trust the Server's certificate
+ * (javax.net.ssl.trustStore system property).
+ * Every connection waits for the first byte of the Server's greeting before
+ * it is closed: with TLS 1.3 the Server's session ticket only reaches the
+ * client's session cache once the client reads, so a connection closed
+ * without reading leaves nothing to resume. The number of connections that
+ * did resume a session is reported.
+ */
+public class TransportBenchmark {
+
+    /**
+     * Largest number of messages sent ahead of the ones read back; the
+     * Server disconnects a client that falls Outbox.CHAT_CAPACITY messages
+     * behind, rather than slow the sender down
+     */
+    private static final int SEND_WINDOW = Outbox.CHAT_CAPACITY / 4;
+    /**
+     * How long a connection waits for the Server's greeting, in milliseconds
+     */
+    private static final int GREETING_TIMEOUT = 5000;
+
+    /**
+     * Address of the Server
+     */
+    private String host;
+    /**
+     * Number of connections opened for each handshake measurement
+     */
+    private int connections;
+    /**
+     * Number of messages sent for each message measurement
+     */
+    private int messages;
+
+    /**
+     * Creates a new benchmark against the Server at the given address.
+     * @param host Address of the Server
+     * @param connections Number of connections opened for each handshake measurement
+     * @param messages Number of messages sent for each message measurement
+     */
+    public TransportBenchmark(String host, int connections, int messages) {
+        this.host = host;
+        this.connections = connections;
+        this.messages = messages;
+    }
+
+    /**
+     * Waits for the first byte the Server sends on a new connection, which
+     * also processes the session ticket sent ahead of it over TLS 1.3.
+     * @param socket The new connection
+     * @throws IOException If nothing arrived within GREETING_TIMEOUT, or the connection was closed
+     */
+    private static void awaitGreeting(Socket socket) throws IOException {
+        socket.setSoTimeout(GREETING_TIMEOUT);
+        if (socket.getInputStream().read() < 0) {
+            throw new IOException("The Server closed the connection.");
+        }
+    }
+
+    /**
+     * Checks if a TLS connection resumed an earlier session rather than
+     * performing a full handshake. A resumed session keeps the creation time
+     * of the session it resumes.
+     * @param socket The connection
+     * @param openedAt Time the connection was opened, from System.currentTimeMillis()
+     * @return true if the session was created before the connection was opened
+     */
+    private static boolean isResumed(Socket socket, long openedAt) {
+        SSLSession session = ((SSLSocket) socket).getSession();
+        return session.getCreationTime() < openedAt;
+    }
+
+    /**
+     * Opens and closes connections one after another and reports how many
+     * were established per second, and for TLS how many resumed a session.
+     * @param label Name of the measurement
+     * @param address Address passed to Client.openSocket(), "tls:" for secure connections
+     * @param port Port number of the Server
+     * @param fullHandshake true to prevent TLS session resumption
+     * @throws IOException If a connection failed
+     * @throws GeneralSecurityException If a TLS context could not be created
+     */
+    private void measureConnections(String label, String address, int port, boolean fullHandshake)
+            throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        int resumed = 0;
+        for (int i = 0; i < this.connections; i++) {
+            long openedAt = System.currentTimeMillis();
+            Socket socket;
+            if (fullHandshake) {
+                SSLContext context = SSLContext.getInstance("TLS"); // A new context has no cached sessions
+                context.init(null, null, null);
+                socket = context.getSocketFactory().createSocket(this.host, port);
+                ((SSLSocket) socket).startHandshake();
+            } else {
+                socket = Client.openSocket(address, port); // Resumes the cached session for "tls:" addresses
+            }
+            awaitGreeting(socket); // Caches the session ticket before the connection is closed
+            if (socket instanceof SSLSocket && isResumed(socket, openedAt)) {
+                resumed++;
+            }
+            socket.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-24s %10.0f connections/s %10.1f us/connection%s%n", label,
+                this.connections / seconds, seconds * 1e6 / this.connections,
+                Client.isSecure(address) || fullHandshake ? String.format(" %6d of %d resumed", resumed, this.connections) : "");
+    }
+
+    /**
+     * Sends messages over one connection while another thread reads them back
+     * from the Server's broadcast, and reports the throughput.
+     * @param label Name of the measurement
+     * @param address Address passed to Client.openSocket(), "tls:" for secure connections
+     * @param port Port number of the Server
+     * @throws IOException If the connection failed
+     * @throws InterruptedException If interrupted while waiting for the reader
+     */
+    private void measureMessages(String label, String address, int port) throws IOException, InterruptedException {
+        try (Socket socket = Client.openSocket(address, port)) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), false);
+            AtomicInteger received = new AtomicInteger();
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while (received.get() < this.messages && (line = input.readLine()) != null) {
+                        if (line.contains(": bench ")) {
+                            received.incrementAndGet(); // One of our messages, broadcast back to us
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error reading benchmark messages.");
+                }
+            });
+            reader.start();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < this.messages; i++) {
+                output.println("bench " + i);
+                if (i % 64 == 63) {
+                    output.flush();
+                    while (i - received.get() > SEND_WINDOW && reader.isAlive()) {
+                        Thread.sleep(1); // Let the reader catch up
+                    }
+                }
+            }
+            output.flush();
+            reader.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-24s %10.0f messages/s    %10.1f us/message%n", label,
+                    received.get() / seconds, seconds * 1e6 / Math.max(received.get(), 1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 14001;
+        int tlsPort = 14443;
+        int connections = 200;
+        int messages = 20000;
+
+        // Search and extract the -cca, -ccp, -cst, -n and -m parameters
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-cca")) {
+                host = args[i + 1];
+            } else if (args[i].equals("-ccp")) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-cst")) {
+                tlsPort = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-n")) {
+                connections = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-m")) {
+                messages = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        TransportBenchmark benchmark = new TransportBenchmark(host, connections, messages);
+        Socket warmUp = Client.openSocket("tls:" + host, tlsPort); // Warm up, and cache a session to resume
+        awaitGreeting(warmUp);
+        warmUp.close();
+        benchmark.measureConnections("plain connect", host, port, false);
+        benchmark.measureConnections("tls full handshake", host, tlsPort, true);
+        benchmark.measureConnections("tls resumed session", "tls:" + host, tlsPort, false);
+        benchmark.measureMessages("plain messages", host, port);
+        benchmark.measureMessages("tls messages", "tls:" + host, tlsPort);
+    }
+}
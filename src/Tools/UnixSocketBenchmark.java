@@ -0,0 +1,285 @@
+package Tools;
+
+import Clients.Client;
+import Common.ChannelSocket;
+import Server.ChatRoom;
+import Server.ChatServer;
+import Server.ClientHandler;
+import Server.Outbox;
+import Server.PresenceFeed;
+import Server.ServerResources;
+import Server.UnixListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the Server's Unix domain socket with loopback TCP, the two ways a
+ * bot or bridge on the same machine can connect:
+ * 1. Connections per second
+ * 2. Round trip time of a message sent and broadcast back by the Server,
+ * one message at a time
+ * 3. Messages per second sent and broadcast back, and the CPU time the
+ * Server and the client spend together on each message
+ * Runs the Server's ClientHandlers in this JVM, listening on a loopback port
+ * and a Unix domain socket at the same time, so the CPU time of both sides
+ * is measured. Needs Java 16 or later.
+ */
+public class UnixSocketBenchmark {
+
+    /**
+     * Largest number of messages sent ahead of the ones read back; the
+     * Server disconnects a client that falls Outbox.CHAT_CAPACITY messages
+     * behind, rather than slow the sender down
+     */
+    private static final int SEND_WINDOW = Outbox.CHAT_CAPACITY / 4;
+
+    /**
+     * The in-process Server's clients
+     */
+    private ChatRoom room;
+    /**
+     * Accepts the loopback TCP connections
+     */
+    private ServerSocket serverSocket;
+    /**
+     * Accepts the Unix domain socket connections
+     */
+    private UnixListener unixListener;
+    /**
+     * Address passed to Client.openSocket() for loopback TCP connections
+     */
+    private String tcpAddress;
+    /**
+     * Address passed to Client.openSocket() for Unix domain socket connections
+     */
+    private String unixAddress;
+    /**
+     * Number of connections opened for each connection measurement
+     */
+    private int connections;
+    /**
+     * Number of messages sent one at a time for each round trip measurement
+     */
+    private int roundTrips;
+    /**
+     * Number of messages sent for each throughput measurement
+     */
+    private int messages;
+
+    /**
+     * Creates a new benchmark, starting the Server in this JVM.
+     * @param path Path of the Server's Unix domain socket
+     * @param connections Number of connections opened for each connection measurement
+     * @param roundTrips Number of messages sent one at a time for each round trip measurement
+     * @param messages Number of messages sent for each throughput measurement
+     * @throws IOException If the Server could not listen to the port or the socket
+     */
+    public UnixSocketBenchmark(String path, int connections, int roundTrips, int messages) throws IOException {
+        this.connections = connections;
+        this.roundTrips = roundTrips;
+        this.messages = messages;
+        this.room = new ChatRoom(ServerResources.getShared());
+        this.serverSocket = new ServerSocket(0, ChatServer.ACCEPT_BACKLOG, InetAddress.getLoopbackAddress());
+        this.unixListener = new UnixListener(this.room, path);
+        this.tcpAddress = InetAddress.getLoopbackAddress().getHostAddress();
+        this.unixAddress = "unix:" + path;
+
+        new Thread(() -> {
+            try {
+                while (true) {
+                    new ClientHandler(this.room, this.serverSocket.accept()).start();
+                }
+            } catch (SocketException s) {
+                // The benchmark has finished
+            } catch (IOException e) {
+                System.err.println("Error accepting client connection.");
+            }
+        }).start();
+        this.unixListener.start();
+        this.room.startSequencer();
+        this.room.startPresenceFeed(PresenceFeed.DEFAULT_WINDOW, PresenceFeed.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Getter method for the CPU time used by this JVM, the Server's threads and the clients' together.
+     * @return CPU time in nanoseconds
+     */
+    private static long cpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /**
+     * Opens and closes connections one after another and reports how many
+     * were established per second.
+     * @param console Where the results are printed
+     * @param label Name of the measurement
+     * @param address Address passed to Client.openSocket()
+     * @throws IOException If a connection failed
+     */
+    private void measureConnections(PrintStream console, String label, String address) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < this.connections; i++) {
+            Client.openSocket(address, this.serverSocket.getLocalPort()).close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        console.printf("%-20s %10.0f connections/s %10.1f us/connection%n", label,
+                this.connections / seconds, seconds * 1e6 / this.connections);
+    }
+
+    /**
+     * Sends messages one at a time, each once the previous one has been
+     * broadcast back, and reports the round trip times.
+     * @param console Where the results are printed
+     * @param label Name of the measurement
+     * @param address Address passed to Client.openSocket()
+     * @throws IOException If the connection failed or was closed
+     */
+    private void measureRoundTrips(PrintStream console, String label, String address) throws IOException {
+        long[] times = new long[this.roundTrips];
+        try (Socket socket = Client.openSocket(address, this.serverSocket.getLocalPort())) {
+            socket.setTcpNoDelay(true); // As a bot would, so TCP is not held back by Nagle's algorithm
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), false);
+            for (int i = 0; i < this.roundTrips; i++) {
+                String expected = ": rtt " + i;
+                long start = System.nanoTime();
+                output.println("rtt " + i);
+                output.flush();
+                String line;
+                do {
+                    line = input.readLine();
+                    if (line == null) {
+                        throw new IOException("The Server closed the connection.");
+                    }
+                } while (!line.endsWith(expected)); // Skip the Server's notices
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(times);
+        console.printf("%-20s %10.1f us p50 %10.1f us p99 %10.1f us max%n", label,
+                LatencyProbe.percentile(times, times.length, 50) * 1000, LatencyProbe.percentile(times, times.length, 99) * 1000,
+                LatencyProbe.percentile(times, times.length, 100) * 1000);
+    }
+
+    /**
+     * Sends messages over one connection while another thread reads them back
+     * from the Server's broadcast, and reports the throughput and the CPU
+     * time spent per message.
+     * @param console Where the results are printed
+     * @param label Name of the measurement
+     * @param address Address passed to Client.openSocket()
+     * @throws IOException If the connection failed
+     * @throws InterruptedException If interrupted while waiting for the reader
+     */
+    private void measureMessages(PrintStream console, String label, String address) throws IOException, InterruptedException {
+        try (Socket socket = Client.openSocket(address, this.serverSocket.getLocalPort())) {
+            socket.setTcpNoDelay(true); // As a bot would, so TCP is not held back by Nagle's algorithm
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), false);
+            AtomicInteger received = new AtomicInteger();
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while (received.get() < this.messages && (line = input.readLine()) != null) {
+                        if (line.contains(": bench ")) {
+                            received.incrementAndGet(); // One of our messages, broadcast back to us
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error reading benchmark messages.");
+                }
+            });
+            reader.start();
+
+            long cpu = cpuTime();
+            long start = System.nanoTime();
+            for (int i = 0; i < this.messages; i++) {
+                output.println("bench " + i);
+                if (i % 64 == 63) {
+                    output.flush();
+                    while (i - received.get() > SEND_WINDOW && reader.isAlive()) {
+                        Thread.sleep(1); // Let the reader catch up
+                    }
+                }
+            }
+            output.flush();
+            reader.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double cpuPerMessage = (cpuTime() - cpu) / 1e3 / Math.max(received.get(), 1);
+            console.printf("%-20s %10.0f messages/s    %10.1f us/message %8.1f us CPU/message%n", label,
+                    received.get() / seconds, seconds * 1e6 / Math.max(received.get(), 1), cpuPerMessage);
+        }
+    }
+
+    /**
+     * Stops the Server and removes its Unix domain socket.
+     * @throws IOException If the loopback port could not be closed
+     */
+    private void shutdown() throws IOException {
+        this.serverSocket.close();
+        this.unixListener.shutdown();
+        this.room.removeAll();
+        this.room.stopPresenceFeed();
+        this.room.stopSequencer();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String path = new File(System.getProperty("java.io.tmpdir"), "chat-benchmark-" + ProcessHandle.current().pid() + ".sock").getPath();
+        int connections = 2000;
+        int roundTrips = 20000;
+        int messages = 200000;
+
+        // Search and extract the -csl, -n, -r and -m parameters
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-csl")) {
+                path = args[i + 1];
+            } else if (args[i].equals("-n")) {
+                connections = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-r")) {
+                roundTrips = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-m")) {
+                messages = Integer.parseInt(args[i + 1]);
+            }
+        }
+        if (!ChannelSocket.isUnixAvailable()) {
+            System.err.println("Error, Unix domain sockets need Java 16 or later.");
+            return;
+        }
+
+        // The Server prints every message it receives, so its output is discarded while measuring
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), true));
+        UnixSocketBenchmark benchmark = new UnixSocketBenchmark(path, connections, roundTrips, messages);
+        try {
+            console.printf("Unix domain socket %s against loopback TCP, %d processors%n", path, Runtime.getRuntime().availableProcessors());
+            for (int i = 0; i < 2; i++) { // Compile both paths before measuring
+                benchmark.measureRoundTrips(console, "warm-up tcp", benchmark.tcpAddress);
+                benchmark.measureRoundTrips(console, "warm-up unix", benchmark.unixAddress);
+            }
+            benchmark.measureConnections(console, "tcp connect", benchmark.tcpAddress);
+            benchmark.measureConnections(console, "unix connect", benchmark.unixAddress);
+            benchmark.measureRoundTrips(console, "tcp round trip", benchmark.tcpAddress);
+            benchmark.measureRoundTrips(console, "unix round trip", benchmark.unixAddress);
+            benchmark.measureMessages(console, "tcp messages", benchmark.tcpAddress);
+            benchmark.measureMessages(console, "unix messages", benchmark.unixAddress);
+        } finally {
+            benchmark.shutdown();
+            System.setOut(console);
+        }
+        System.exit(0);
+    }
+}